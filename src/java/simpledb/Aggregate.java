@@ -3,20 +3,25 @@ package simpledb;
 import java.util.*;
 
 /**
- * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
- * min). Note that we only support aggregates over a single column, grouped by a
- * single column.
+ * The Aggregation operator that computes aggregates (e.g., sum, avg, max,
+ * min). Any number of aggregates can be computed at once, grouped by any
+ * number of columns; the child is scanned only once.
+ * <p>
+ * The aggregates are computed by a {@link HashAggregator}, which spills to
+ * disk when there are more groups than fit in its memory budget.
  */
 public class Aggregate extends Operator {
 
     private static final long serialVersionUID = 1L;
 
     private OpIterator child;
-    private int aggregateField;
-    private int groupField;
-    private Aggregator.Op operator;
+    private int[] aggregateFields;
+    private int[] groupFields;
+    private Aggregator.Op[] operators;
+    private final int memoryGroups;
 
     private TupleDesc td;
+    transient private HashAggregator agg;
 
     /**
      * Constructor.
@@ -37,57 +42,146 @@ public class Aggregate extends Operator {
      *            The aggregation operator to use
      */
     public Aggregate(OpIterator child, int afield, int gfield, Aggregator.Op aop) {
+        this(child, afield, gfield, aop, HashAggregator.DEFAULT_MEMORY_GROUPS);
+    }
+
+    /**
+     * Constructor with an explicit memory budget.
+     *
+     * @param memoryGroups
+     *            The maximum number of groups held in memory before input
+     *            tuples are partitioned to disk
+     * @see #Aggregate(OpIterator, int, int, Aggregator.Op)
+     */
+    public Aggregate(OpIterator child, int afield, int gfield, Aggregator.Op aop, int memoryGroups) {
+        this(child, new int[] { afield },
+                gfield == Aggregator.NO_GROUPING ? new int[0] : new int[] { gfield },
+                new Aggregator.Op[] { aop }, memoryGroups);
+    }
+
+    /**
+     * Constructor for several aggregates over several grouping columns.
+     *
+     * @param child
+     *            The OpIterator that is feeding us tuples.
+     * @param afields
+     *            The columns over which we are computing aggregates.
+     * @param gfields
+     *            The columns over which we are grouping the result; empty if
+     *            there is no grouping
+     * @param aops
+     *            The aggregation operator applied to each of afields
+     */
+    public Aggregate(OpIterator child, int[] afields, int[] gfields, Aggregator.Op[] aops) {
+        this(child, afields, gfields, aops, HashAggregator.DEFAULT_MEMORY_GROUPS);
+    }
+
+    /**
+     * Constructor for several aggregates with an explicit memory budget.
+     *
+     * @see #Aggregate(OpIterator, int[], int[], Aggregator.Op[])
+     * @see #Aggregate(OpIterator, int, int, Aggregator.Op, int)
+     */
+    public Aggregate(OpIterator child, int[] afields, int[] gfields, Aggregator.Op[] aops,
+            int memoryGroups) {
 	    // some code goes here
+        if (afields.length != aops.length || afields.length == 0)
+            throw new IllegalArgumentException("one operator is needed per aggregate field");
         this.child = child;
-        this.aggregateField = afield;
-        this.groupField = gfield;
-        this.operator = aop;
-        this.td = child.getTupleDesc();
+        this.aggregateFields = afields.clone();
+        this.groupFields = gfields.clone();
+        this.operators = aops.clone();
+        this.memoryGroups = memoryGroups;
+        this.td = outputTupleDesc();
+    }
+
+    private TupleDesc outputTupleDesc() {
+        TupleDesc childTd = child.getTupleDesc();
+        int n = groupFields.length + aggregateFields.length;
+        Type[] types = new Type[n];
+        String[] names = new String[n];
+        for (int i = 0; i < groupFields.length; i++) {
+            types[i] = childTd.getFieldType(groupFields[i]);
+            names[i] = childTd.getFieldName(groupFields[i]);
+        }
+        for (int i = 0; i < aggregateFields.length; i++) {
+            types[groupFields.length + i] = Type.INT_TYPE;
+            names[groupFields.length + i] = nameOfAggregatorOp(operators[i]) + "("
+                    + childTd.getFieldName(aggregateFields[i]) + ")";
+        }
+        return new TupleDesc(types, names);
     }
 
     /**
-     * @return If this aggregate is accompanied by a groupby, return the groupby
-     *         field index in the <b>INPUT</b> tuples. If not, return
-     *         {@link simpledb.Aggregator#NO_GROUPING}
+     * @return If this aggregate is accompanied by a groupby, return the
+     *         (first) groupby field index in the <b>INPUT</b> tuples. If not,
+     *         return {@link simpledb.Aggregator#NO_GROUPING}
      * */
     public int groupField() {
         // some code goes here
-        return this.groupField;
+        return groupFields.length == 0 ? Aggregator.NO_GROUPING : groupFields[0];
+    }
+
+    /**
+     * @return the indexes of all groupby fields in the <b>INPUT</b> tuples;
+     *         empty if there is no grouping. The groupby values are the
+     *         first fields of the output tuples, in this order.
+     */
+    public int[] groupFields() {
+        return groupFields.clone();
     }
 
     /**
      * @return If this aggregate is accompanied by a group by, return the name
-     *         of the groupby field in the <b>OUTPUT</b> tuples. If not, return
-     *         null;
+     *         of the (first) groupby field in the <b>OUTPUT</b> tuples. If
+     *         not, return null;
      * */
     public String groupFieldName() {
         // some code goes here
-        return td.getFieldName(groupField);
+        if (groupFields.length == 0)
+            return null;
+        return td.getFieldName(0);
     }
 
     /**
-     * @return the aggregate field
+     * @return the (first) aggregate field
      * */
     public int aggregateField() {
         // some code goes here
-        return this.aggregateField;
+        return aggregateFields[0];
+    }
+
+    /**
+     * @return the indexes of all aggregated fields in the <b>INPUT</b>
+     *         tuples. The aggregate values follow the groupby values in the
+     *         output tuples, in this order.
+     */
+    public int[] aggregateFields() {
+        return aggregateFields.clone();
     }
 
     /**
-     * @return return the name of the aggregate field in the <b>OUTPUT</b>
-     *         tuples
+     * @return return the name of the (first) aggregate field in the
+     *         <b>OUTPUT</b> tuples
      * */
     public String aggregateFieldName() {
         // some code goes here
-        return td.getFieldName(aggregateField);
+        return td.getFieldName(groupFields.length);
     }
 
     /**
-     * @return return the aggregate operator
+     * @return return the (first) aggregate operator
      * */
     public Aggregator.Op aggregateOp() {
         // some code goes here
-        return this.operator;
+        return operators[0];
+    }
+
+    /**
+     * @return the aggregate operators, one per aggregated field
+     */
+    public Aggregator.Op[] aggregateOps() {
+        return operators.clone();
     }
 
     public static String nameOfAggregatorOp(Aggregator.Op aop) {
@@ -99,41 +193,53 @@ public class Aggregate extends Operator {
     public void open() throws NoSuchElementException, DbException,
 	    TransactionAbortedException {
         // some code goes here
-        child.open();
         generate();
     }
 
     private void generate() throws TransactionAbortedException, DbException {
         super.open();
-        Type groupFieldType = null;
-        if (groupField != Aggregator.NO_GROUPING) {
-            groupFieldType = this.td.getFieldType(groupField);
-        }
-        if(td.getFieldType(aggregateField).equals(Type.INT_TYPE)) {
-            IntegerAggregator tmp = new IntegerAggregator(groupField, groupFieldType, aggregateField, operator);
-            while(child.hasNext()) {
-                Tuple t = child.next();
-                tmp.mergeTupleIntoGroup(t);
-            }
-            iterator =  tmp.iterator();
-        }
-        else {
-            StringAggregator tmp = new StringAggregator(groupField, groupFieldType, aggregateField, operator);
-            while(child.hasNext()) {
-                Tuple t = child.next();
-                tmp.mergeTupleIntoGroup(t);
-            }
-            iterator = tmp.iterator();
-        }
+        agg = computeAggregate();
+        iterator = agg.iterator();
         iterator.open();
     }
 
     /**
-     * Returns the next tuple. If there is a group by field, then the first
-     * field is the field by which we are grouping, and the second field is the
-     * result of computing the aggregate. If there is no group by field, then
-     * the result tuple should contain one field representing the result of the
-     * aggregate. Should return null if there are no more tuples.
+     * @return a new, empty aggregator for the fields and operators of this
+     *         operator
+     */
+    protected HashAggregator newAggregator(int memoryGroups) {
+        TupleDesc childTd = child.getTupleDesc();
+        Type[] gtypes = new Type[groupFields.length];
+        for (int i = 0; i < groupFields.length; i++)
+            gtypes[i] = childTd.getFieldType(groupFields[i]);
+        Type[] atypes = new Type[aggregateFields.length];
+        for (int i = 0; i < aggregateFields.length; i++)
+            atypes[i] = childTd.getFieldType(aggregateFields[i]);
+        return new HashAggregator(groupFields, gtypes, aggregateFields, atypes, operators, memoryGroups);
+    }
+
+    /**
+     * @return the maximum number of groups held in memory
+     */
+    protected int memoryGroups() {
+        return memoryGroups;
+    }
+
+    /**
+     * Open the child and aggregate all of its tuples.
+     */
+    protected HashAggregator computeAggregate() throws DbException, TransactionAbortedException {
+        child.open();
+        HashAggregator result = newAggregator(memoryGroups);
+        while (child.hasNext())
+            result.mergeTupleIntoGroup(child.next());
+        return result;
+    }
+
+    /**
+     * Returns the next tuple. The first fields are the fields by which we are
+     * grouping, if any, and the remaining fields are the results of computing
+     * each aggregate. Should return null if there are no more tuples.
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
@@ -146,10 +252,8 @@ public class Aggregate extends Operator {
     }
 
     /**
-     * Returns the TupleDesc of this Aggregate. If there is no group by field,
-     * this will have one field - the aggregate column. If there is a group by
-     * field, the first field will be the group by field, and the second will be
-     * the aggregate value column.
+     * Returns the TupleDesc of this Aggregate: one field per group by field,
+     * followed by one aggregate value column per aggregate.
      * 
      * The name of an aggregate column should be informative. For example:
      * "aggName(aop) (child_td.getFieldName(afield))" where aop and afield are
@@ -164,7 +268,12 @@ public class Aggregate extends Operator {
     public void close() {
 	    // some code goes here
         this.child.close();
-        this.iterator.close();
+        if (this.iterator != null)
+            this.iterator.close();
+        if (this.agg != null)
+            this.agg.discard();
+        this.iterator = null;
+        this.agg = null;
         super.close();
     }
 
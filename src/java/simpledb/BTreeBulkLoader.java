@@ -0,0 +1,453 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * BTreeBulkLoader builds a BTreeFile bottom-up from the tuples of a HeapFile,
+ * or a SecondaryIndex from the entries for them, without holding the table in
+ * memory.
+ * <p>
+ * The heap file is cut into one page range per worker. Each worker sorts its
+ * range on the key field with an ExternalSort on the MorselExecutor pool, and
+ * the sorted ranges are merged with a loser tree and streamed into leaf pages
+ * filled to the fill factor. The shortest key separating each page from the
+ * one before it is spilled to a TupleSpillFile, and the level above is built
+ * from those keys the same way, until a level fits on one page.
+ * <p>
+ * The number of tuples, counted during the sort, fixes the shape of the whole
+ * tree: the number of pages on each level, and so the page number of every
+ * page, its parent and its siblings. Each page is therefore written once, in
+ * page number order, leaves first and the root last. As with pages split by
+ * inserts, every page but the root is at least half full: if the last page of
+ * a level would fall short, it is merged with or balanced against the page
+ * before it.
+ */
+public class BTreeBulkLoader {
+
+    /** Default fraction of each page filled with tuples or entries */
+    public static final double DEFAULT_FILL_FACTOR = 1.0;
+    /** Default number of pages of tuples the sort holds in memory, over all workers */
+    public static final int DEFAULT_MEMORY_PAGES = BufferPool.DEFAULT_PAGES;
+
+    private final double fillFactor;
+    private final int memoryPages;
+    private final int parallelism;
+
+    /**
+     * A loader filling pages completely, sorting with DEFAULT_MEMORY_PAGES
+     * pages of memory on every worker of the MorselExecutor pool.
+     */
+    public BTreeBulkLoader() {
+        this(DEFAULT_FILL_FACTOR, DEFAULT_MEMORY_PAGES, MorselExecutor.NUM_WORKERS);
+    }
+
+    /**
+     * @param fillFactor
+     *            the fraction of each page to fill, between 0.5 and 1. Leaving
+     *            room on the pages lets later inserts avoid splits.
+     * @param memoryPages
+     *            the number of pages of tuples the sort may hold in memory,
+     *            shared by all workers
+     * @param parallelism
+     *            the maximum number of workers sorting at once
+     */
+    public BTreeBulkLoader(double fillFactor, int memoryPages, int parallelism) {
+        if (fillFactor < 0.5 || fillFactor > 1.0)
+            throw new IllegalArgumentException("fill factor must be between 0.5 and 1");
+        if (memoryPages <= 0 || parallelism <= 0)
+            throw new IllegalArgumentException("memory and parallelism must be positive");
+        this.fillFactor = fillFactor;
+        this.memoryPages = memoryPages;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * The shape of one level of the tree: how many pages it has, and how many
+     * tuples (on the leaf level) or child pointers (above it) each page holds.
+     * All pages hold the target number except the last two.
+     */
+    static class Level {
+        final int firstPage;
+        final int numPages;
+        final int target;
+        private final int secondToLast;
+        private final int last;
+
+        /**
+         * @param n
+         *            the number of tuples or child pointers on the level
+         * @param target
+         *            the number to put on each page
+         * @param min
+         *            the least a page other than the root may hold
+         * @param max
+         *            the most a page can hold
+         * @param firstPage
+         *            the page number of the first page of the level
+         */
+        Level(int n, int target, int min, int max, int firstPage) {
+            this.firstPage = firstPage;
+            this.target = target;
+            int pages = Math.max(1, (n + target - 1) / target);
+            int lastSize = n - (pages - 1) * target;
+            int secondToLastSize = target;
+            if (pages > 1 && lastSize < min) {
+                int total = target + lastSize;
+                if (total <= max) {
+                    // the last page fits on the page before it
+                    pages--;
+                    lastSize = total;
+                } else {
+                    secondToLastSize = total / 2;
+                    lastSize = total - total / 2;
+                }
+            }
+            this.numPages = pages;
+            this.secondToLast = secondToLastSize;
+            this.last = lastSize;
+        }
+
+        /**
+         * @return the number of tuples or child pointers on page i of the level
+         */
+        int size(int i) {
+            if (i == numPages - 1)
+                return last;
+            if (i == numPages - 2)
+                return secondToLast;
+            return target;
+        }
+
+        /**
+         * @return the index of the page holding the i-th tuple or child pointer
+         */
+        int pageOf(int i) {
+            int full = Math.max(0, numPages - 2) * target;
+            if (i < full)
+                return i / target;
+            if (numPages > 1 && i < full + secondToLast)
+                return numPages - 2;
+            return numPages - 1;
+        }
+    }
+
+    /**
+     * Replace the contents of dest with the tuples of source, keyed on the key
+     * field of dest. The pages of source are read-locked by tid. dest must be
+     * in the Catalog and must not have been read through the BufferPool yet,
+     * as its file is rewritten directly.
+     *
+     * @return the number of tuples loaded
+     */
+    public int load(TransactionId tid, HeapFile source, BTreeFile dest)
+            throws DbException, TransactionAbortedException, IOException {
+        if (!source.getTupleDesc().equals(dest.getTupleDesc()))
+            throw new DbException("source and index have different schemas");
+        return load(tid, source, dest, null);
+    }
+
+    /**
+     * Fill a secondary index with an entry for every tuple of its table. The
+     * pages of the table are read-locked by tid. The index must be in the
+     * Catalog and its BTreeFile must not have been read through the
+     * BufferPool yet.
+     *
+     * @return the number of entries loaded
+     */
+    public int load(TransactionId tid, SecondaryIndex index)
+            throws DbException, TransactionAbortedException, IOException {
+        HeapFile source = (HeapFile) Database.getCatalog().getDatabaseFile(index.getTableId());
+        return load(tid, source, index.getIndexFile(), index);
+    }
+
+    /**
+     * Load dest with the tuples of source, or with their entries in index if
+     * it is not null.
+     */
+    private int load(TransactionId tid, HeapFile source, BTreeFile dest, SecondaryIndex index)
+            throws DbException, TransactionAbortedException, IOException {
+        TupleDesc td = dest.getTupleDesc();
+        Comparator<Tuple> cmp = new BTreeFileEncoder.TupleComparator(dest.keyFields());
+
+        // sort page ranges of the heap file in parallel
+        int numSourcePages = source.numPages();
+        int workers = Math.max(1, Math.min(parallelism, numSourcePages / MorselExecutor.MORSEL_PAGES));
+        int memoryTuples = Math.max(1, ExternalSort.tuplesForPages(td, memoryPages) / workers);
+        ExternalSort[] sorts = new ExternalSort[workers];
+        ArrayList<Future<Integer>> counts = new ArrayList<Future<Integer>>();
+        for (int w = 0; w < workers; w++) {
+            final ExternalSort sort = new ExternalSort(td, cmp, memoryTuples);
+            final RangeScan scan = new RangeScan(td,
+                    source.iterator(tid, numSourcePages * w / workers, numSourcePages * (w + 1) / workers), index);
+            sorts[w] = sort;
+            counts.add(MorselExecutor.submit(new Callable<Integer>() {
+                public Integer call() throws DbException, TransactionAbortedException {
+                    scan.open();
+                    try {
+                        sort.sort(scan);
+                    } finally {
+                        scan.close();
+                    }
+                    return scan.count;
+                }
+            }));
+        }
+        OpIterator[] sorted = new OpIterator[workers];
+        try {
+            int numTuples = 0;
+            for (Future<Integer> count : counts)
+                numTuples += waitFor(count);
+            for (int w = 0; w < workers; w++) {
+                sorted[w] = sorts[w].iterator();
+                sorted[w].open();
+            }
+            write(dest, new ExternalSort.LoserTree(sorted, cmp), numTuples);
+            return numTuples;
+        } finally {
+            for (Future<Integer> count : counts) {
+                try {
+                    count.get();
+                } catch (InterruptedException | ExecutionException e) {
+                    // reported by waitFor
+                }
+            }
+            for (int w = 0; w < workers; w++) {
+                if (sorted[w] != null)
+                    sorted[w].close();
+                sorts[w].discard();
+            }
+        }
+    }
+
+    private static int waitFor(Future<Integer> f) throws DbException, TransactionAbortedException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            throw new DbException("interrupted while sorting");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TransactionAbortedException)
+                throw (TransactionAbortedException) e.getCause();
+            if (e.getCause() instanceof DbException)
+                throw (DbException) e.getCause();
+            throw new DbException("sort failed: " + e.getCause());
+        }
+    }
+
+    /**
+     * Compute the shape of the tree holding numTuples tuples, from the leaf
+     * level up to the root.
+     */
+    private ArrayList<Level> shape(BTreeFile dest, int numTuples, int maxTuples, int maxEntries) {
+        ArrayList<Level> levels = new ArrayList<Level>();
+        int target = Math.max(1, (int) (maxTuples * fillFactor));
+        Level level = new Level(numTuples, target, maxTuples / 2, maxTuples, 1);
+        levels.add(level);
+        target = Math.max(2, (int) (maxEntries * fillFactor) + 1);
+        while (level.numPages > 1) {
+            level = new Level(level.numPages, target, maxEntries / 2 + 1, maxEntries + 1,
+                    level.firstPage + level.numPages);
+            levels.add(level);
+        }
+        return levels;
+    }
+
+    private void write(BTreeFile dest, ExternalSort.LoserTree tuples, int numTuples)
+            throws DbException, TransactionAbortedException, IOException {
+        int tableid = dest.getId();
+        int[] keyFields = dest.keyFields();
+        TupleDesc td = dest.getTupleDesc();
+        Type keyType = td.getFieldType(keyFields[0]);
+        Type[] typeAr = new Type[td.numFields()];
+        for (int i = 0; i < typeAr.length; i++)
+            typeAr[i] = td.getFieldType(i);
+        int pageSize = BufferPool.getPageSize();
+
+        // an empty page tells the capacity of each kind of page
+        int maxTuples = new BTreeLeafPage(new BTreePageId(tableid, 1, BTreePageId.LEAF),
+                BTreePage.createEmptyPageData(), keyFields, dest.isCompressed()).getMaxTuples();
+        int maxEntries = new BTreeInternalPage(new BTreePageId(tableid, 1, BTreePageId.INTERNAL),
+                BTreePage.createEmptyPageData(), keyFields).getMaxEntries();
+        ArrayList<Level> levels = shape(dest, numTuples, maxTuples, maxEntries);
+        Level top = levels.get(levels.size() - 1);
+        int rootCategory = (levels.size() == 1 ? BTreePageId.LEAF : BTreePageId.INTERNAL);
+
+        TupleDesc keyTd = keyDesc(td, keyFields);
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(dest.getFile()), 16 * pageSize);
+        TupleSpillFile keys = new TupleSpillFile(keyTd);
+        try {
+            out.write(BTreeFileEncoder.convertToRootPtrPage(top.firstPage, rootCategory, 0));
+
+            // the leaf level, spilling the key separating every page but the first
+            // from the one before it, which is also the high key of that page
+            Level leaves = levels.get(0);
+            Level parents = (levels.size() > 1 ? levels.get(1) : null);
+            for (int i = 0; i < leaves.numPages; i++) {
+                ArrayList<Tuple> pageTuples = new ArrayList<Tuple>();
+                for (int j = leaves.size(i); j > 0; j--)
+                    pageTuples.add(tuples.next());
+
+                BTreePageId pid = new BTreePageId(tableid, leaves.firstPage + i, BTreePageId.LEAF);
+                BTreeLeafPage page;
+                if (dest.isCompressed()) {
+                    page = new BTreeLeafPage(pid, BTreePage.createEmptyPageData(), keyFields, true);
+                    for (Tuple t : pageTuples)
+                        page.insertTuple(t);
+                } else {
+                    page = new BTreeLeafPage(pid,
+                            BTreeFileEncoder.convertToLeafPage(pageTuples, pageSize, typeAr.length, typeAr, keyFields),
+                            keyFields);
+                }
+                page.setParentId(parentId(tableid, parents, i));
+                if (i > 0)
+                    page.setLeftSiblingId(new BTreePageId(tableid, pid.getPageNumber() - 1, BTreePageId.LEAF));
+                if (i < leaves.numPages - 1) {
+                    Field separator = BTreeFile.separator(dest.keyOf(pageTuples.get(pageTuples.size() - 1)),
+                            dest.keyOf(tuples.peek()));
+                    keys.add(keyTuple(keyTd, separator));
+                    page.setRightSiblingId(new BTreePageId(tableid, pid.getPageNumber() + 1, BTreePageId.LEAF));
+                    page.setHighKey(separator);
+                }
+                out.write(page.getPageData());
+            }
+
+            // the internal levels, each built from the keys spilled by the level below
+            for (int l = 1; l < levels.size(); l++) {
+                Level level = levels.get(l);
+                Level children = levels.get(l - 1);
+                parents = (l + 1 < levels.size() ? levels.get(l + 1) : null);
+                int childCategory = (l == 1 ? BTreePageId.LEAF : BTreePageId.INTERNAL);
+                OpIterator childKeys = keys.iterator();
+                TupleSpillFile nextKeys = new TupleSpillFile(keyTd);
+                childKeys.open();
+                int child = children.firstPage;
+                for (int i = 0; i < level.numPages; i++) {
+                    if (i > 0)
+                        nextKeys.add(childKeys.next());
+                    ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+                    for (int j = level.size(i) - 1; j > 0; j--) {
+                        entries.add(new BTreeEntry(keyOf(childKeys.next(), keyFields.length),
+                                new BTreePageId(tableid, child, childCategory),
+                                new BTreePageId(tableid, child + 1, childCategory)));
+                        child++;
+                    }
+                    child++;
+
+                    BTreePageId pid = new BTreePageId(tableid, level.firstPage + i, BTreePageId.INTERNAL);
+                    BTreeInternalPage page = new BTreeInternalPage(pid,
+                            BTreeFileEncoder.convertToInternalPage(entries, pageSize, keyType, childCategory),
+                            keyFields);
+                    page.setParentId(parentId(tableid, parents, i));
+                    out.write(page.getPageData());
+                }
+                childKeys.close();
+                keys.discard();
+                keys = nextKeys;
+            }
+        } finally {
+            keys.discard();
+            out.close();
+        }
+    }
+
+    private static BTreePageId parentId(int tableid, Level parents, int i) {
+        if (parents == null)
+            return BTreeRootPtrPage.getId(tableid);
+        return new BTreePageId(tableid, parents.firstPage + parents.pageOf(i), BTreePageId.INTERNAL);
+    }
+
+    /**
+     * @return the schema of the spilled keys of a tree keyed on the given
+     *         fields: the key fields and, for composite keys, which may be
+     *         prefixes, their number of components
+     */
+    private static TupleDesc keyDesc(TupleDesc td, int[] keyFields) {
+        int n = keyFields.length;
+        Type[] types = new Type[n == 1 ? 1 : n + 1];
+        for (int i = 0; i < n; i++)
+            types[i] = td.getFieldType(keyFields[i]);
+        if (n > 1)
+            types[n] = Type.INT_TYPE;
+        return new TupleDesc(types);
+    }
+
+    private static Tuple keyTuple(TupleDesc keyTd, Field key) {
+        Tuple t = new Tuple(keyTd);
+        if (!(key instanceof CompositeField)) {
+            t.setField(0, key);
+            return t;
+        }
+        CompositeField c = (CompositeField) key;
+        int n = keyTd.numFields() - 1;
+        for (int i = 0; i < n; i++) {
+            if (i < c.numFields())
+                t.setField(i, c.getField(i));
+            else if (keyTd.getFieldType(i) == Type.INT_TYPE)
+                t.setField(i, new IntField(0));
+            else
+                t.setField(i, new StringField("", Type.STRING_LEN));
+        }
+        t.setField(n, new IntField(c.numFields()));
+        return t;
+    }
+
+    /**
+     * @return the key spilled by keyTuple
+     */
+    private static Field keyOf(Tuple t, int numKeyFields) {
+        if (numKeyFields == 1)
+            return t.getField(0);
+        Field[] fields = new Field[((IntField) t.getField(numKeyFields)).getValue()];
+        for (int i = 0; i < fields.length; i++)
+            fields[i] = t.getField(i);
+        return new CompositeField(fields);
+    }
+
+    /**
+     * Scans a page range of a heap file for a sort, counting the tuples, and
+     * turning them into index entries if there is an index.
+     */
+    private static class RangeScan implements OpIterator {
+
+        private static final long serialVersionUID = 1L;
+
+        private final TupleDesc td;
+        private final DbFileIterator it;
+        private final SecondaryIndex index;
+        int count = 0;
+
+        RangeScan(TupleDesc td, DbFileIterator it, SecondaryIndex index) {
+            this.td = td;
+            this.it = it;
+            this.index = index;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            it.open();
+        }
+
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            return it.hasNext();
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException {
+            count++;
+            Tuple t = it.next();
+            return index == null ? t : index.entryFor(t);
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            it.rewind();
+            count = 0;
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public void close() {
+            it.close();
+        }
+    }
+}
@@ -23,7 +23,42 @@ public class BTreeFile implements DbFile {
 	private final File f;
 	private final TupleDesc td;
 	private final int tableid ;
-	private int keyField;
+	private final int[] keyFields;
+	private final boolean compressed; // whether the leaf pages are compressed
+
+	/*
+	 * Navigation through the tree is protected by page latches rather than
+	 * transactional locks, so internal pages are only locked by transactions
+	 * that modify them. Inserts and searches hold the structure latch shared
+	 * and latch pages top-down, as do deletes while they remove a tuple from
+	 * its leaf page. A delete that leaves the page less than half full holds
+	 * the structure latch exclusively while it merges or redistributes pages,
+	 * which may reach their left siblings, but only once the leaf page is
+	 * locked.
+	 */
+	private final LatchManager latches = new LatchManager();
+	private final java.util.concurrent.locks.ReentrantReadWriteLock structureLatch =
+			new java.util.concurrent.locks.ReentrantReadWriteLock();
+
+	/** Number of pages the file is extended by when it has no free page left */
+	public static final int EXTEND_PAGES = 16;
+
+	/*
+	 * Free pages are found through an in-memory index of the header pages
+	 * rather than by walking their chain. The index is read from the header
+	 * pages when first needed, and only hints at which pages are free: the
+	 * header pages are changed by transactions, which may abort, so every
+	 * page taken from the index is checked against its header page, and the
+	 * index is read again when a header page turns out not to be where it
+	 * says. The file is extended several pages at a time; numPages() only
+	 * counts the pages handed out, and pages extended but not handed out
+	 * before the file is reopened are not reused.
+	 */
+	private final Object freeSpaceLock = new Object();
+	private ArrayList<BTreePageId> headerIds = null; // the header pages in chain order, never modified once set
+	private final TreeSet<Integer> freePages = new TreeSet<Integer>();
+	private int allocatedPages = -1; // pages handed out, -1 until the first new page is
+	private int filePages; // pages in the file, including those extended but not handed out yet
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -34,10 +69,46 @@ public class BTreeFile implements DbFile {
 	 * @param td - the tuple descriptor of tuples in the file
 	 */
 	public BTreeFile(File f, int key, TupleDesc td) {
+		this(f, new int[] { key }, td);
+	}
+
+	/**
+	 * Constructs a B+ tree file keyed on several fields. Its keys are
+	 * {@link CompositeField}s of these fields, ordered by the first of them, then
+	 * by the second one, and so on; a search for a composite field with fewer
+	 * components finds the tuples whose key starts with them.
+	 *
+	 * @param f - the file that stores the on-disk backing store for this B+ tree
+	 *            file.
+	 * @param keys - the fields which the index is keyed on, in order
+	 * @param td - the tuple descriptor of tuples in the file
+	 */
+	public BTreeFile(File f, int[] keys, TupleDesc td) {
+		this(f, keys, td, false);
+	}
+
+	/**
+	 * Constructs a B+ tree file whose leaf pages may be compressed. Compressed
+	 * leaves store the key of a run of duplicates once and the rest of each
+	 * tuple in as few bytes as it needs, so they hold more tuples when keys
+	 * repeat or strings are short, but a few less when neither is the case.
+	 *
+	 * @param f - the file that stores the on-disk backing store for this B+ tree
+	 *            file.
+	 * @param keys - the fields which the index is keyed on, in order
+	 * @param td - the tuple descriptor of tuples in the file
+	 * @param compressed - whether the leaf pages are compressed
+	 * @see BTreeLeafPage#BTreeLeafPage(BTreePageId, byte[], int[], boolean)
+	 */
+	public BTreeFile(File f, int[] keys, TupleDesc td, boolean compressed) {
+		if(keys.length == 0 || keys.length > Byte.MAX_VALUE) {
+			throw new IllegalArgumentException("a B+ tree is keyed on 1 to " + Byte.MAX_VALUE + " fields");
+		}
 		this.f = f;
 		this.tableid = f.getAbsoluteFile().hashCode();
-		this.keyField = key;
+		this.keyFields = keys.clone();
 		this.td = td;
+		this.compressed = compressed;
 	}
 
 	/**
@@ -113,11 +184,11 @@ public class BTreeFile implements DbFile {
 				}
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
 				if(id.pgcateg() == BTreePageId.INTERNAL) {
-					BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyField);
+					BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyFields);
 					return p;
 				}
 				else if(id.pgcateg() == BTreePageId.LEAF) {
-					BTreeLeafPage p = new BTreeLeafPage(id, pageBuf, keyField);
+					BTreeLeafPage p = new BTreeLeafPage(id, pageBuf, keyFields, compressed);
 					return p;
 				}
 				else { // id.pgcateg() == BTreePageId.HEADER
@@ -164,22 +235,123 @@ public class BTreeFile implements DbFile {
 	 * Returns the number of pages in this BTreeFile.
 	 */
 	public int numPages() {
+		synchronized(freeSpaceLock) {
+			if(allocatedPages >= 0)
+				return allocatedPages;
+		}
 		// we only ever write full pages
 		return (int) ((f.length() - BTreeRootPtrPage.getPageSize())/ BufferPool.getPageSize());
 	}
 
 	/**
-	 * Returns the index of the field that this B+ tree is keyed on
+	 * Returns the index of the field that this B+ tree is keyed on, or of the
+	 * first of them if it is keyed on several fields
 	 */
 	public int keyField() {
-		return keyField;
+		return keyFields[0];
 	}
 
 	/**
-	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-	 * the left-most page possibly containing the key field f. It locks all internal
-	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the
-	 * leaf node with permission perm.
+	 * Returns true if the leaf pages of this B+ tree are compressed
+	 */
+	public boolean isCompressed() {
+		return compressed;
+	}
+
+	/**
+	 * Returns the indexes of the fields that this B+ tree is keyed on
+	 */
+	public int[] keyFields() {
+		return keyFields.clone();
+	}
+
+	/**
+	 * Returns the key of a tuple of this B+ tree: its key field, or a
+	 * CompositeField of its key fields
+	 */
+	public Field keyOf(Tuple t) {
+		return BTreePage.keyOf(t, keyFields);
+	}
+
+	/**
+	 * Returns the key of a tuple in the form of a search key: the first
+	 * components of a composite key, as many as the search key has
+	 *
+	 * @param t - the tuple
+	 * @param f - the search key
+	 */
+	Field keyOf(Tuple t, Field f) {
+		Field key = keyOf(t);
+		if(f instanceof CompositeField && key instanceof CompositeField) {
+			return ((CompositeField) key).prefix(((CompositeField) f).numFields());
+		}
+		return key;
+	}
+
+	/**
+	 * Returns the shortest key s such that left < s <= right, to separate two pages
+	 * whose keys are at most left and at least right. Leading components that
+	 * differ let the following ones be dropped, and a string component is cut
+	 * to the shortest prefix of it greater than the one on the left. The key
+	 * right itself is returned if the two keys are equal.
+	 *
+	 * @param left - the last key of the left page
+	 * @param right - the first key of the right page
+	 */
+	static Field separator(Field left, Field right) {
+		if(!left.compare(Op.LESS_THAN, right)) {
+			return right;
+		}
+		if(right instanceof CompositeField) {
+			CompositeField l = (CompositeField) left;
+			CompositeField r = (CompositeField) right;
+			int i = 0;
+			while(i < r.numFields() - 1 && l.getField(i).equals(r.getField(i))) {
+				i++;
+			}
+			Field[] fields = new Field[i + 1];
+			for(int j = 0; j < i; j++) {
+				fields[j] = r.getField(j);
+			}
+			fields[i] = separator(l.getField(i), r.getField(i));
+			return new CompositeField(fields);
+		}
+		if(right instanceof StringField) {
+			String l = ((StringField) left).getValue();
+			String r = ((StringField) right).getValue();
+			for(int len = 1; len < r.length(); len++) {
+				if(r.substring(0, len).compareTo(l) > 0) {
+					return new StringField(r.substring(0, len), Type.STRING_LEN);
+				}
+			}
+		}
+		return right;
+	}
+
+	/**
+	 * Finds and locks the leaf page in the B+ tree corresponding to the left-most page
+	 * possibly containing the key field f, starting from the page pid. The internal pages
+	 * along the path are not locked; each one is read-latched only while the next page is
+	 * looked up, and never while waiting for another latch or lock, so a search does not
+	 * wait for concurrent inserts that split pages further down.
+	 * <p>
+	 * An internal page read just before it or one of its descendants was split may send
+	 * the search to a page left of the one now holding f, since splits only move keys to
+	 * new pages on the right. The search recovers at the leaf level: while f is greater
+	 * than the high key of the leaf page, it follows the right sibling pointer (B-link
+	 * traversal). The leaf page is locked with permission perm before its high key is
+	 * checked, so it cannot be split by another transaction once it has been chosen. A
+	 * search may thus wait for the transaction that split the page, and every page it
+	 * moves to is checked again once locked, as below.
+	 * <p>
+	 * A split is undone when its transaction aborts, by reading the pages it changed back
+	 * from disk, where the pages it took for the new halves are empty. An internal page read
+	 * before the abort may thus send the search to a page that is no longer in the tree: an
+	 * empty internal page, or an empty leaf page with no parent other than the root. The
+	 * search then gives up, and must be started again from the root. Such a page may also be
+	 * reused by another split before the search locks it, so when the leaf page is not a
+	 * child of the internal page the search came from, the search moves left as well while
+	 * the high key of the left sibling is not below f.
 	 *
 	 * If f is null, it finds the left-most leaf page -- used for the iterator
 	 *
@@ -188,80 +360,175 @@ public class BTreeFile implements DbFile {
 	 * @param pid - the current page being searched
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
-	 * @return the left-most leaf page possibly containing the key field f
+	 * @return the left-most leaf page possibly containing the key field f, or null if the
+	 * search reached a page that is no longer in the tree
 	 *
 	 */
 	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
 			Field f)
 					throws DbException, TransactionAbortedException {
-		// some code goes here
-		// get the current page
-		/*
-		  check if the current page is a BTreedLeafPage
-		  if so return it
-		 */
-		if(pid.pgcateg() == BTreePageId.LEAF) {
-			return (BTreeLeafPage) getPage(tid, dirtypages,pid, perm);
-		}
-		/*
-		  the current page is a BTreeInternalPage
-		 */
-		else{
-			Page page = getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
-			Iterator<BTreeEntry> iterator = ((BTreeInternalPage) page).iterator();
-			/*
-			  check if the filed is null
-			  if it is, return the left most leaf page
-			 */
-			if(f == null) {
-				BTreePageId leftChild = iterator.next().getLeftChild();
-				return findLeafPage(tid, dirtypages, leftChild, perm, f);
+		// the page the current one was reached from
+		BTreePageId from = null;
+		while(pid.pgcateg() != BTreePageId.LEAF) {
+			from = pid;
+			latches.acquire(from, false);
+			try {
+				pid = childFor((BTreeInternalPage) fetchPage(dirtypages, from), f);
+			} finally {
+				latches.release(from, false);
 			}
-			/*
-			  the field is not null
-			  iterate through the entries in the page
-			  find that if the field is less than or equal to the current entry, return the left child of the entry
-			 */
-			else{
-				BTreeEntry entry = iterator.next();
-				while(true) {
-					if(entry.getKey().compare(Op.GREATER_THAN_OR_EQ,f)) {
-						return findLeafPage(tid, dirtypages, entry.getLeftChild(), perm, f);
-					}
-					/*
-					if the field is greater than the current entry, check if there is a next entry
-					if there is, set the current entry to the next entry
-					 */
-					if(iterator.hasNext()) {
-						entry = iterator.next();
-					}
-					/*
-					  if the field is greater than the last entry, return the right child of the last entry
-					*/
-					else {
-						return findLeafPage(tid, dirtypages, entry.getRightChild(), perm, f);
-					}
+			if(pid == null) {
+				return null;
+			}
+		}
+		while(true) {
+			BTreeLeafPage leafPage = (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
+			BTreePageId rightId = null;
+			BTreePageId leftId;
+			boolean detached;
+			latches.acquire(pid, false);
+			try {
+				detached = isDetached(leafPage);
+				leftId = leafPage.getLeftSiblingId();
+				// a page that is still a child of its parent or the right sibling of the page
+				// before is where the search expects it, so its left sibling need not be read
+				if(leafPage.getParentId().equals(from) || (leftId != null && leftId.equals(from))) {
+					leftId = null;
+				}
+				Field highKey = leafPage.getHighKey();
+				if(f != null && highKey != null && f.compare(Op.GREATER_THAN, highKey)) {
+					rightId = leafPage.getRightSiblingId();
 				}
+			} finally {
+				latches.release(pid, false);
+			}
+			// the leaf page was taken back by an aborted split while the search waited for it
+			if(detached && !pid.equals(rootId(dirtypages))) {
+				return null;
+			}
+			from = pid;
+			if(rightId != null) {
+				pid = rightId;
+			} else if(leftId != null && !isAboveHighKey(dirtypages, leftId, f)) {
+				pid = leftId;
+			} else {
+				return leafPage;
 			}
 		}
 	}
 
+	/**
+	 * Check whether a key field is above the high key of a leaf page, read-latching the page
+	 * meanwhile.
+	 *
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pid - the id of the leaf page
+	 * @param f - the field to search for, or null for the left-most leaf page
+	 * @return true if a tuple with key f cannot be on the page
+	 * @throws DbException
+	 */
+	private boolean isAboveHighKey(HashMap<PageId, Page> dirtypages, BTreePageId pid, Field f)
+			throws DbException {
+		if(f == null) {
+			return false;
+		}
+		latches.acquire(pid, false);
+		try {
+			Field highKey = ((BTreeLeafPage) fetchPage(dirtypages, pid)).getHighKey();
+			return highKey != null && f.compare(Op.GREATER_THAN, highKey);
+		} finally {
+			latches.release(pid, false);
+		}
+	}
+
+	/**
+	 * Check whether a leaf page was taken back by an aborted split, which leaves a page it
+	 * allocated empty and without a parent, like an empty root page but no other leaf page.
+	 *
+	 * @param leafPage - the leaf page, latched by the caller
+	 * @return true if the page is not in the tree, unless it is the root page
+	 */
+	private static boolean isDetached(BTreeLeafPage leafPage) {
+		return leafPage.getNumTuples() == 0 && leafPage.getParentId().pgcateg() == BTreePageId.ROOT_PTR;
+	}
+
+	/**
+	 * Find the child of an internal page whose subtree holds the left-most leaf page
+	 * possibly containing the key field f, or the left-most child if f is null
+	 *
+	 * @param page - the internal page
+	 * @param f - the field to search for
+	 * @return the id of the child page, or null if the page is empty, which happens only to
+	 * a page taken back by an aborted split
+	 */
+	private BTreePageId childFor(BTreeInternalPage page, Field f) {
+		Iterator<BTreeEntry> iterator = page.iterator();
+		if(!iterator.hasNext()) {
+			return null;
+		}
+		BTreeEntry entry = iterator.next();
+		if(f == null) {
+			return entry.getLeftChild();
+		}
+		while(true) {
+			// the field is less than or equal to the current entry's key
+			if(entry.getKey().compare(Op.GREATER_THAN_OR_EQ, f)) {
+				return entry.getLeftChild();
+			}
+			if(!iterator.hasNext()) {
+				return entry.getRightChild();
+			}
+			entry = iterator.next();
+		}
+	}
+
 	/**
 	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
-	 * Used by the BTreeFile iterator.
+	 * Used by the BTreeFile iterator. The root pointer page is read-latched while the
+	 * root id is read; if the root is split afterwards, the search still finds its way
+	 * from the old root.
+	 * <p>
+	 * The search starts again from the root when it reaches a page that is no longer in
+	 * the tree.
 	 * @see #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field)
 	 *
 	 * @param tid - the transaction id
-	 * @param pid - the current page being searched
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
 	 * @return the left-most leaf page possibly containing the key field f
 	 *
 	 */
-	BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid, Permissions perm,
-			Field f)
+	BTreeLeafPage findLeafPage(TransactionId tid, Permissions perm, Field f)
 					throws DbException, TransactionAbortedException {
-		return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f);
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		structureLatch.readLock().lock();
+		try {
+			while(true) {
+				BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId(dirtypages), perm, f);
+				if(leafPage != null) {
+					return leafPage;
+				}
+			}
+		} finally {
+			structureLatch.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Read the id of the root page, read-latching the root pointer page meanwhile.
+	 *
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @return the id of the root page
+	 * @throws DbException
+	 */
+	private BTreePageId rootId(HashMap<PageId, Page> dirtypages) throws DbException {
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		latches.acquire(rootPtrId, false);
+		try {
+			return ((BTreeRootPtrPage) fetchPage(dirtypages, rootPtrId)).getRootId();
+		} finally {
+			latches.release(rootPtrId, false);
+		}
 	}
 
 	/**
@@ -279,7 +546,9 @@ public class BTreeFile implements DbFile {
 	 * @param pid - the current page being searched
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
-	 * @return the right-most leaf page possibly containing the key field f
+	 * @return the right-most leaf page possibly containing the key field f, or null if the
+	 * search reached a page that is no longer in the tree
+	 * @see #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field)
 	 * */
 	private BTreeLeafPage findReverseLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid,
 											  Permissions perm, Field f)
@@ -338,7 +607,8 @@ public class BTreeFile implements DbFile {
 	/**
 	 * Convenience method to Reverse_find a leaf page when there is no dirtypages HashMap.
 	 *
-	 * Used by the BTreeFile iterator.
+	 * Used by the BTreeFile iterator. If the search reaches a page that is no longer in the
+	 * tree, it starts again from the root.
 	 * @see #findReverseLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field)
 	 *
 	 * @param tid - the transaction id
@@ -351,7 +621,12 @@ public class BTreeFile implements DbFile {
 	BTreeLeafPage findReverseLeafPage(TransactionId tid, BTreePageId pid, Permissions perm,
 									  Field f)
 			throws DbException, TransactionAbortedException {
-		return findReverseLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f);
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		BTreeLeafPage leafPage = findReverseLeafPage(tid, dirtypages, pid, perm, f);
+		while(leafPage == null) {
+			leafPage = findReverseLeafPage(tid, dirtypages, rootId(dirtypages), perm, f);
+		}
+		return leafPage;
 	}
 
 	/**
@@ -393,26 +668,20 @@ public class BTreeFile implements DbFile {
 		 */
 
 		BTreeLeafPage newPage = (BTreeLeafPage) getEmptyPage(tid, dirtypages, BTreePageId.LEAF);
-		Iterator<Tuple> iterator = page.iterator();
-		int numTuples = page.getNumTuples();
-		int mid = numTuples / 2;
-		int index = 0;
+		Iterator<Tuple> iterator = page.reverseIterator();
 		/*
-		copy the tuples in the right part into the new page
-		and delete the tuples in the right part from the current page
+		move the tuples in the right part into the new page, last first, until it holds
+		half of the bytes: half of the tuples, unless the leaves are compressed
 		 */
-		while (iterator.hasNext()) {
+		while (iterator.hasNext() && newPage.getUsedBytes() < page.getUsedBytes()) {
 			Tuple currentTuple = iterator.next();
-			if(index >= mid){
-				/*
-				attention that we must delete the tuple first and then insert it into the new page
-				because in the deleteTuple() the RecordId is set to null
-				and then in the insertTuple() the RecordId is set to the new page
-				 */
-				page.deleteTuple(currentTuple);
-				newPage.insertTuple(currentTuple);
-			}
-			index++;
+			/*
+			attention that we must delete the tuple first and then insert it into the new page
+			because in the deleteTuple() the RecordId is set to null
+			and then in the insertTuple() the RecordId is set to the new page
+			 */
+			page.deleteTuple(currentTuple);
+			newPage.insertTuple(currentTuple);
 		}
 		/*
 		update the right sibling pointer of the current page
@@ -429,13 +698,18 @@ public class BTreeFile implements DbFile {
 		update the parent pointer
 		 */
 		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), field);
-		Tuple firstTupleInRight = newPage.iterator().next();
-		parent.insertEntry(new BTreeEntry(firstTupleInRight.getField(keyField),page.getId(), newPage.getId()));
+		Field key = separator(keyOf(page.reverseIterator().next()), keyOf(newPage.iterator().next()));
+		parent.insertEntry(new BTreeEntry(key, page.getId(), newPage.getId()));
 		newPage.setParentId(parent.getId());
 		/*
+		the new page takes over the old high key, and the copied up key separates the two pages
+		 */
+		newPage.setHighKey(page.getHighKey());
+		page.setHighKey(key);
+		/*
 		check which page to return
 		 */
-		if(firstTupleInRight.getField(keyField).compare(Op.GREATER_THAN_OR_EQ, field)){
+		if(key.compare(Op.GREATER_THAN_OR_EQ, field)){
 			return page;
 		} else{
 			return newPage;
@@ -479,22 +753,23 @@ public class BTreeFile implements DbFile {
 
 		BTreeInternalPage newPage = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
 		Iterator<BTreeEntry> iterator = page.iterator();
-		int numTuples = page.getNumEntries();
-		int mid = numTuples / 2;
-		int index = 0;
+		int total = page.getUsedBytes();
+		int before = 0;
 
 		/*
 		copy the entries in the right part into the new page
-		and delete the entries and rightChild in the right part from the current page
+		and delete the entries and rightChild in the right part from the current page.
+		keys differ in size, so the entries are split by bytes: an entry moves to the
+		right if the entries before it take at least as many bytes as those after it
 		 */
 		while (iterator.hasNext()) {
 			BTreeEntry entry = iterator.next();
-			entry.getLeftChild();
-			if (index >= mid) {
+			int size = BTreePage.keySize(entry.getKey()) + BTreePage.INDEX_SIZE;
+			if (2 * before >= total - size) {
 				page.deleteKeyAndRightChild(entry);
 				newPage.insertEntry(entry);
 			}
-			index++;
+			before += size;
 		}
 
 		/*
@@ -659,6 +934,21 @@ public class BTreeFile implements DbFile {
 		}
 	}
 
+	/**
+	 * Fetch a page in order to navigate through it, without locking it. The caller must
+	 * hold a latch on the page. Pages already fetched for writing by this operation are
+	 * taken from the local cache.
+	 *
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pid - the id of the requested page
+	 * @return the requested page
+	 * @throws DbException
+	 */
+	private Page fetchPage(HashMap<PageId, Page> dirtypages, BTreePageId pid) throws DbException {
+		Page p = dirtypages.get(pid);
+		return p != null ? p : Database.getBufferPool().fetchPage(pid);
+	}
+
 	/**
 	 * Insert a tuple into this BTreeFile, keeping the tuples in sorted order.
 	 * May cause pages to split if the page where tuple t belongs is full.
@@ -672,30 +962,151 @@ public class BTreeFile implements DbFile {
 	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		ArrayList<BTreePageId> latched = new ArrayList<BTreePageId>();
+		Field key = keyOf(t);
 
-		// get a read lock on the root pointer page and use it to locate the root page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId rootId = rootPtr.getRootId();
+		createRootPtrPage();
+		structureLatch.readLock().lock();
+		try {
+			// descend optimistically with read latches, write-latching only the leaf page
+			BTreeLeafPage leafPage = latchLeafPage(tid, dirtypages, key, latched);
+			if(leafPage == null || leafPage.getNumEmptySlots() == 0) {
+				// the leaf page must be split, or was taken back by an aborted split, so restart,
+				// keeping write latches on every page the split may change
+				releaseLatches(latched, 0);
+				dirtypages.clear();
+				leafPage = latchPathForSplit(tid, dirtypages, key, latched);
+				if(leafPage.getNumEmptySlots() == 0) {
+					if(leafPage.getRightSiblingId() != null) {
+						latches.acquire(leafPage.getRightSiblingId(), true);
+						latched.add(leafPage.getRightSiblingId());
+					}
+					leafPage = splitLeafPage(tid, dirtypages, leafPage, key);
+				}
+			}
 
-		if(rootId == null) { // the root has just been created, so set the root pointer to point to it
-			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			rootPtr.setRootId(rootId);
+			// insert the tuple into the leaf page
+			leafPage.insertTuple(t);
+
+			ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
+			dirtyPagesArr.addAll(dirtypages.values());
+			return dirtyPagesArr;
+		} finally {
+			// mark the pages dirty before anyone else can see them, so they cannot be
+			// evicted from the buffer pool in the meantime
+			for(Page p : dirtypages.values()) {
+				p.markDirty(true, tid);
+			}
+			releaseLatches(latched, 0);
+			structureLatch.readLock().unlock();
 		}
+	}
 
-		// find and lock the left-most leaf page corresponding to the key field,
-		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
-		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));
+	/**
+	 * Find the leaf page in which a tuple with key field f should be inserted, read-latching
+	 * the internal pages on the way down with latch coupling, and write-latch and lock it.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param f - the key field of the tuple to insert
+	 * @param latched - the pages write-latched by this operation, to which the leaf page is added
+	 * @return the leaf page, or null if the tree has no root page yet or the page found was
+	 *         taken back by an aborted split
+	 */
+	private BTreeLeafPage latchLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, Field f,
+			ArrayList<BTreePageId> latched) throws DbException, TransactionAbortedException {
+		BTreePageId pid = BTreeRootPtrPage.getId(tableid);
+		latches.acquire(pid, false);
+		BTreePageId readLatched = pid;
+		try {
+			BTreePageId rootId = ((BTreeRootPtrPage) fetchPage(dirtypages, pid)).getRootId();
+			pid = rootId;
+			while(pid != null) {
+				if(pid.pgcateg() == BTreePageId.LEAF) {
+					latches.acquire(pid, true);
+					latched.add(pid);
+					latches.release(readLatched, false);
+					readLatched = null;
+					BTreeLeafPage leafPage = (BTreeLeafPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+					if(isDetached(leafPage) && !pid.equals(rootId)) {
+						return null;
+					}
+					return leafPage;
+				}
+				latches.acquire(pid, false);
+				latches.release(readLatched, false);
+				readLatched = pid;
+				pid = childFor((BTreeInternalPage) fetchPage(dirtypages, pid), f);
+			}
+			return null;
+		} finally {
+			if(readLatched != null)
+				latches.release(readLatched, false);
 		}
+	}
+
+	/**
+	 * Find and lock the leaf page in which a tuple with key field f should be inserted,
+	 * write-latching the root pointer page and every page on the way down. Whenever a page
+	 * has room for one more entry, a split below it cannot reach its ancestors, so their
+	 * latches are released. Creates the root page if the tree has none.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param f - the key field of the tuple to insert
+	 * @param latched - the pages write-latched by this operation, top-down
+	 * @return the leaf page
+	 */
+	private BTreeLeafPage latchPathForSplit(TransactionId tid, HashMap<PageId, Page> dirtypages, Field f,
+			ArrayList<BTreePageId> latched) throws DbException, TransactionAbortedException {
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		while(true) {
+			latches.acquire(rootPtrId, true);
+			latched.add(rootPtrId);
+			BTreePageId rootId = ((BTreeRootPtrPage) fetchPage(dirtypages, rootPtrId)).getRootId();
+
+			if(rootId == null) { // the root has just been created, so set the root pointer to point to it
+				rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
+				BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE);
+				rootPtr.setRootId(rootId);
+			}
 
-		// insert the tuple into the leaf page
-		leafPage.insertTuple(t);
+			BTreePageId pid = rootId;
+			while(pid != null) {
+				latches.acquire(pid, true);
+				latched.add(pid);
+				if(pid.pgcateg() == BTreePageId.LEAF) {
+					BTreeLeafPage leafPage = (BTreeLeafPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+					if(isDetached(leafPage) && !pid.equals(rootId)) {
+						break;
+					}
+					if(leafPage.getNumEmptySlots() > 0) {
+						releaseLatches(latched, 1);
+					}
+					return leafPage;
+				}
+				BTreeInternalPage page = (BTreeInternalPage) fetchPage(dirtypages, pid);
+				if(page.getNumEmptySlots() > 0) {
+					releaseLatches(latched, 1);
+				}
+				pid = childFor(page, f);
+			}
+
+			// the descent reached a page taken back by an aborted split, so start again
+			releaseLatches(latched, 0);
+		}
+	}
 
-		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
-		dirtyPagesArr.addAll(dirtypages.values());
-		return dirtyPagesArr;
+	/**
+	 * Release the write latches of this operation, except for the last few.
+	 *
+	 * @param latched - the pages write-latched by this operation
+	 * @param keep - the number of latches acquired last to keep
+	 */
+	private void releaseLatches(ArrayList<BTreePageId> latched, int keep) {
+		while(latched.size() > keep) {
+			latches.release(latched.remove(0), true);
+		}
 	}
 
 	/**
@@ -823,27 +1234,50 @@ public class BTreeFile implements DbFile {
 		delete the first tuples from the right sibling
 		update the parent entry with the first tuple from the right sibling
 		 */
-		int num1 = page.getNumTuples();
-		int num2 = sibling.getNumTuples();
-		int flag = num1 + (num2 - num1)/2;
-		if(isRightSibling){
-			Iterator<Tuple> iterator = sibling.iterator();
-			while(page.getNumTuples()<flag){
-				Tuple tuple = iterator.next();
-				sibling.deleteTuple(tuple);
-				page.insertTuple(tuple);
+		ArrayList<Tuple> candidates = new ArrayList<Tuple>();
+		Iterator<Tuple> iterator = (isRightSibling ? sibling.iterator() : sibling.reverseIterator());
+		while(iterator.hasNext()){
+			candidates.add(iterator.next());
+		}
+		/*
+		move tuples as long as the page holds no more bytes than the sibling: half of the
+		difference in tuples, unless the leaves are compressed
+		 */
+		int moved = 0;
+		while(moved < candidates.size() - 1){
+			Tuple tuple = candidates.get(moved);
+			sibling.deleteTuple(tuple);
+			page.insertTuple(tuple);
+			if(page.getUsedBytes() > sibling.getUsedBytes()){
+				page.deleteTuple(tuple);
+				sibling.insertTuple(tuple);
+				break;
 			}
-			entry.setKey(iterator.next().getField(keyField));
-			parent.updateEntry(entry);
-		} else{
-			Iterator<Tuple> iterator = sibling.reverseIterator();
-			while(page.getNumTuples()<flag){
-				Tuple lastTuple = iterator.next();
-				sibling.deleteTuple(lastTuple);
-				page.insertTuple(lastTuple);
+			moved++;
+		}
+		if(moved == 0){
+			return;
+		}
+		/*
+		the new separator key may be longer than the old one, and if the parent has no
+		room for it the tuples go back and the page is left less than half full
+		 */
+		Field lastMoved = keyOf(candidates.get(moved - 1));
+		Field nextKept = keyOf(candidates.get(moved));
+		Field key = (isRightSibling ? separator(lastMoved, nextKept) : separator(nextKept, lastMoved));
+		if(!parent.canUpdateKey(entry, key)){
+			for(int i = moved - 1; i >= 0; i--){
+				page.deleteTuple(candidates.get(i));
+				sibling.insertTuple(candidates.get(i));
 			}
-			entry.setKey(page.iterator().next().getField(keyField));
-			parent.updateEntry(entry);
+			return;
+		}
+		entry.setKey(key);
+		parent.updateEntry(entry);
+		if(isRightSibling){
+			page.setHighKey(key);
+		} else{
+			sibling.setHighKey(key);
 		}
 	}
 
@@ -925,16 +1359,16 @@ public class BTreeFile implements DbFile {
 		// that the entries are evenly distributed. Be sure to update
 		// the corresponding parent entry. Be sure to update the parent
 		// pointers of all children in the entries that were moved.
-		int num1 = page.getNumEntries();
-		int num2 = leftSibling.getNumEntries();
-		int flag = num1 + (num2 - num1)/2;
-		while(page.getNumEntries() < flag) {
+		while(true) {
 			/*
 			attention that we need to get the iterator int the loop
 			because the insertion and deletion will affect the iterator
 			 */
 			BTreeEntry rightEntry = page.iterator().next();
 			BTreeEntry leftEntry = leftSibling.reverseIterator().next();
+			if(!canRotate(page, leftSibling, parent, parentEntry, leftEntry.getKey())) {
+				break;
+			}
 			leftSibling.deleteKeyAndRightChild(leftEntry);
 			BTreeEntry newEntry = new BTreeEntry(parentEntry.getKey(),leftEntry.getRightChild(),rightEntry.getLeftChild());
 			page.insertEntry(newEntry);
@@ -970,16 +1404,16 @@ public class BTreeFile implements DbFile {
 		// that the entries are evenly distributed. Be sure to update
 		// the corresponding parent entry. Be sure to update the parent
 		// pointers of all children in the entries that were moved.
-		int num1 = page.getNumEntries();
-		int num2 = rightSibling.getNumEntries();
-		int flag = num1 + (num2 - num1)/2;
-		while(page.getNumEntries() < flag) {
+		while(true) {
 			/*
 			attention that we need to get the iterator int the loop
 			because the insertion and deletion will affect the iterator
 			 */
 			BTreeEntry leftEntry = page.reverseIterator().next();
 			BTreeEntry rightEntry = rightSibling.iterator().next();
+			if(!canRotate(page, rightSibling, parent, parentEntry, rightEntry.getKey())) {
+				break;
+			}
 			rightSibling.deleteKeyAndLeftChild(rightEntry);
 			BTreeEntry newEntry = new BTreeEntry(parentEntry.getKey(),leftEntry.getRightChild(),rightEntry.getLeftChild());
 			page.insertEntry(newEntry);
@@ -989,6 +1423,25 @@ public class BTreeFile implements DbFile {
 		updateParentPointers(tid,dirtypages,page);
 	}
 
+	/**
+	 * Check whether one more key can rotate through the parent entry from a sibling
+	 * to the given page: the page must stay no larger than half of the bytes the
+	 * two pages hold, and the key pulled down and the key pushed up must both fit.
+	 *
+	 * @param page - the internal page which is less than half full
+	 * @param sibling - the sibling which has entries to spare
+	 * @param parent - the parent of the two internal pages
+	 * @param parentEntry - the entry in the parent pointing to the two internal pages
+	 * @param pushedUp - the key of the sibling which would replace the key of the parent entry
+	 */
+	private boolean canRotate(BTreeInternalPage page, BTreeInternalPage sibling, BTreeInternalPage parent,
+			BTreeEntry parentEntry, Field pushedUp) {
+		int used = page.getUsedBytes();
+		int size = BTreePage.keySize(parentEntry.getKey()) + BTreePage.INDEX_SIZE;
+		return 2 * (used + size) <= used + sibling.getUsedBytes()
+				&& page.hasRoomFor(parentEntry.getKey()) && parent.canUpdateKey(parentEntry, pushedUp);
+	}
+
 	/**
 	 * Merge two leaf pages by moving all tuples from the right page to the left page.
 	 * Delete the corresponding key and right child pointer from the parent, and recursively
@@ -1029,6 +1482,7 @@ public class BTreeFile implements DbFile {
 		// update sibling pointers
 		BTreePageId rightPageSiblingId = rightPage.getRightSiblingId();
 		leftPage.setRightSiblingId(rightPageSiblingId);
+		leftPage.setHighKey(rightPage.getHighKey());
 		if(rightPageSiblingId != null) {
 			BTreeLeafPage rightPageSibling = (BTreeLeafPage) getPage(tid, dirtypages, rightPage.getRightSiblingId(), Permissions.READ_WRITE);
 			rightPageSibling.setLeftSiblingId(leftPage.getId());
@@ -1161,19 +1615,45 @@ public class BTreeFile implements DbFile {
 
 		BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().getPageNumber(),
 				BTreePageId.LEAF);
-		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
-		page.deleteTuple(t);
+		try {
+			// lock the leaf page before latching anything, so that waiting for the lock
+			// holds up no other operation on the tree
+			BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
+			int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
+
+			// deleting the tuple changes only the leaf page, like inserting one into a page
+			// with room for it
+			structureLatch.readLock().lock();
+			latches.acquire(pageId, true);
+			try {
+				page.deleteTuple(t);
+				page.markDirty(true, tid);
+			} finally {
+				latches.release(pageId, true);
+				structureLatch.readLock().unlock();
+			}
 
-		// if the page is below minimum occupancy, get some tuples from its siblings
-		// or merge with one of the siblings
-		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
-		if(page.getNumEmptySlots() > maxEmptySlots) {
-			handleMinOccupancyPage(tid, dirtypages, page);
-		}
+			// if the page is below minimum occupancy, get some tuples from its siblings
+			// or merge with one of the siblings
+			if(page.getNumEmptySlots() > maxEmptySlots) {
+				structureLatch.writeLock().lock();
+				try {
+					if(page.getNumEmptySlots() > maxEmptySlots && !isDetached(page)) {
+						handleMinOccupancyPage(tid, dirtypages, page);
+					}
+				} finally {
+					structureLatch.writeLock().unlock();
+				}
+			}
 
-		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
-		dirtyPagesArr.addAll(dirtypages.values());
-		return dirtyPagesArr;
+			ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
+			dirtyPagesArr.addAll(dirtypages.values());
+			return dirtyPagesArr;
+		} finally {
+			for(Page p : dirtypages.values()) {
+				p.markDirty(true, tid);
+			}
+		}
 	}
 
 	/**
@@ -1188,26 +1668,36 @@ public class BTreeFile implements DbFile {
 	 * @throws TransactionAbortedException
 	 */
 	BTreeRootPtrPage getRootPtrPage(TransactionId tid, HashMap<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
-		synchronized(this) {
-			if(f.length() == 0) {
-				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
-				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
-			}
-		}
+		createRootPtrPage();
 
 		// get a read lock on the root pointer page
 		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
 	}
 
+	/**
+	 * Create the root pointer page and the root page if the file is empty.
+	 *
+	 * @throws IOException
+	 */
+	private synchronized void createRootPtrPage() throws IOException {
+		if(f.length() == 0) {
+			// create the root pointer page and the root page
+			BufferedOutputStream bw = new BufferedOutputStream(
+					new FileOutputStream(f, true));
+			byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
+			byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
+			bw.write(emptyRootPtrData);
+			bw.write(emptyLeafData);
+			bw.close();
+		}
+	}
+
 	/**
 	 * Get the page number of the first empty page in this BTreeFile.
-	 * Creates a new page if none of the existing pages are empty.
+	 * Creates a new page if none of the existing pages are empty. The empty pages
+	 * are found through an in-memory index rather than by reading every header page,
+	 * and only the header page of the page returned is locked, so inserts into
+	 * different parts of the tree may split pages concurrently.
 	 *
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
@@ -1219,50 +1709,189 @@ public class BTreeFile implements DbFile {
 	 */
 	protected int getEmptyPageNo(TransactionId tid, HashMap<PageId, Page> dirtypages)
 			throws DbException, IOException, TransactionAbortedException {
-		// get a read lock on the root pointer page and use it to locate the first header page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId headerId = rootPtr.getHeaderId();
-		int emptyPageNo = 0;
+		int numSlots = BTreeHeaderPage.getNumSlots();
+		while(true) {
+			ArrayList<BTreePageId> headers = getHeaderIds(tid, dirtypages);
+			int emptyPageNo;
+			synchronized(freeSpaceLock) {
+				Integer free = freePages.pollFirst();
+				if(free == null)
+					return newPageNo();
+				emptyPageNo = free;
+			}
 
-		if(headerId != null) {
-			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
-			int headerPageCount = 0;
-			// try to find a header page with an empty slot
-			while(headerPage != null && headerPage.getEmptySlot() == -1) {
-				headerId = headerPage.getNextPageId();
-				if(headerId != null) {
-					headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
-					headerPageCount++;
+			// the page may have been taken back by a transaction that aborted,
+			// so check that its header page still has it empty
+			int index = emptyPageNo / numSlots;
+			if(index >= headers.size())
+				continue;
+			BTreeHeaderPage headerPage;
+			try {
+				headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headers.get(index), Permissions.READ_WRITE);
+			} catch(TransactionAbortedException e) {
+				synchronized(freeSpaceLock) {
+					freePages.add(emptyPageNo);
 				}
-				else {
-					headerPage = null;
+				throw e;
+			}
+			if(!isChained(headers, index, headerPage)) {
+				invalidateHeaderIds(headers);
+				synchronized(freeSpaceLock) {
+					freePages.add(emptyPageNo);
 				}
+				continue;
 			}
+			if(!headerPage.isSlotUsed(emptyPageNo % numSlots)) {
+				headerPage.markSlotUsed(emptyPageNo % numSlots, true);
+				return emptyPageNo;
+			}
+		}
+	}
 
-			// if headerPage is not null, it must have an empty slot
-			if(headerPage != null) {
-				headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
-				int emptySlot = headerPage.getEmptySlot();
-				headerPage.markSlotUsed(emptySlot, true);
-				emptyPageNo = headerPageCount * BTreeHeaderPage.getNumSlots() + emptySlot;
+	/**
+	 * Hand out a page after the last one in use, extending the file by
+	 * EXTEND_PAGES pages when all of its pages are in use.
+	 *
+	 * @return the page number of the new page
+	 * @throws IOException
+	 */
+	private int newPageNo() throws IOException {
+		synchronized(freeSpaceLock) {
+			if(allocatedPages < 0) {
+				allocatedPages = (int) ((f.length() - BTreeRootPtrPage.getPageSize())/ BufferPool.getPageSize());
+				filePages = allocatedPages;
 			}
+			if(allocatedPages == filePages) {
+				RandomAccessFile rf = new RandomAccessFile(f, "rw");
+				rf.seek(BTreeRootPtrPage.getPageSize() + (long) filePages * BufferPool.getPageSize());
+				rf.write(new byte[EXTEND_PAGES * BufferPool.getPageSize()]);
+				rf.close();
+				filePages += EXTEND_PAGES;
+			}
+			allocatedPages++;
+			return allocatedPages;
+		}
+	}
+
+	/**
+	 * Get the ids of the header pages, in the order of their chain, reading the
+	 * chain and the empty pages it records if they are not known yet or have changed.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @return the ids of the header pages, which must not be modified
+	 *
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	private ArrayList<BTreePageId> getHeaderIds(TransactionId tid, HashMap<PageId, Page> dirtypages)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
+		BTreePageId headerId = rootPtr.getHeaderId();
+		synchronized(freeSpaceLock) {
+			if(headerIds != null && (headerIds.isEmpty() ? headerId == null : headerIds.get(0).equals(headerId)))
+				return headerIds;
 		}
 
-		// at this point if headerId is null, either there are no header pages
-		// or there are no free slots
-		if(headerId == null) {
-			synchronized(this) {
-				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
-				emptyPageNo = numPages();
+		// read the chain without holding the index, since the header pages may be locked
+		ArrayList<BTreePageId> ids = new ArrayList<BTreePageId>();
+		ArrayList<Integer> free = new ArrayList<Integer>();
+		int numSlots = BTreeHeaderPage.getNumSlots();
+		while(headerId != null) {
+			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
+			for(int i = 0; i < numSlots; i++) {
+				if(!headerPage.isSlotUsed(i))
+					free.add(ids.size() * numSlots + i);
 			}
+			ids.add(headerId);
+			headerId = headerPage.getNextPageId();
+		}
+		synchronized(freeSpaceLock) {
+			headerIds = ids;
+			freePages.addAll(free);
+			return ids;
 		}
+	}
 
-		return emptyPageNo;
+	/**
+	 * @return true if headerPage is the header page at the given index of headers,
+	 *         rather than a page which was taken out of the chain by a transaction that aborted
+	 */
+	private static boolean isChained(ArrayList<BTreePageId> headers, int index, BTreeHeaderPage headerPage) {
+		return index == 0 || headers.get(index - 1).equals(headerPage.getPrevPageId());
+	}
+
+	/**
+	 * Forget the ids of the header pages if they are still the given ones, so
+	 * that they are read again when next needed.
+	 */
+	private void invalidateHeaderIds(ArrayList<BTreePageId> headers) {
+		synchronized(freeSpaceLock) {
+			if(headerIds == headers)
+				headerIds = null;
+		}
+	}
+
+	/**
+	 * Get the header page with the slot of a page, locked with read-write
+	 * permission, adding header pages to the end of the chain if needed.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pageNo - the page number whose slot the header page holds
+	 * @return the header page
+	 *
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	private BTreeHeaderPage getHeaderPage(TransactionId tid, HashMap<PageId, Page> dirtypages, int pageNo)
+			throws DbException, IOException, TransactionAbortedException {
+		int index = pageNo / BTreeHeaderPage.getNumSlots();
+		while(true) {
+			ArrayList<BTreePageId> headers = getHeaderIds(tid, dirtypages);
+			if(index < headers.size()) {
+				BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headers.get(index), Permissions.READ_WRITE);
+				if(isChained(headers, index, headerPage))
+					return headerPage;
+				invalidateHeaderIds(headers);
+				continue;
+			}
+
+			// lock the page pointing to the next header page, and only create it
+			// if another transaction has not done so meanwhile
+			BTreePageId nextId;
+			if(headers.isEmpty()) {
+				BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+				nextId = rootPtr.getHeaderId();
+				if(nextId == null) {
+					BTreeHeaderPage headerPage = (BTreeHeaderPage) getEmptyPage(tid, dirtypages, BTreePageId.HEADER);
+					headerPage.init();
+					nextId = headerPage.getId();
+					rootPtr.setHeaderId(nextId);
+				}
+			}
+			else {
+				BTreePageId prevId = headers.get(headers.size() - 1);
+				BTreeHeaderPage prevPage = (BTreeHeaderPage) getPage(tid, dirtypages, prevId, Permissions.READ_WRITE);
+				nextId = prevPage.getNextPageId();
+				if(nextId == null) {
+					BTreeHeaderPage headerPage = (BTreeHeaderPage) getEmptyPage(tid, dirtypages, BTreePageId.HEADER);
+					headerPage.init();
+					nextId = headerPage.getId();
+					headerPage.setPrevPageId(prevId);
+					prevPage.setNextPageId(nextId);
+				}
+			}
+			synchronized(freeSpaceLock) {
+				if(headerIds == headers) {
+					ArrayList<BTreePageId> ids = new ArrayList<BTreePageId>(headers);
+					ids.add(nextId);
+					headerIds = ids;
+				}
+			}
+		}
 	}
 
 	/**
@@ -1336,54 +1965,13 @@ public class BTreeFile implements DbFile {
 //			}
 //		}
 
-		// otherwise, get a read lock on the root pointer page and use it to locate
-		// the first header page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId headerId = rootPtr.getHeaderId();
-		BTreePageId prevId = null;
-		int headerPageCount = 0;
-
-		// if there are no header pages, create the first header page and update
-		// the header pointer in the BTreeRootPtrPage
-		if(headerId == null) {
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-
-			BTreeHeaderPage headerPage = (BTreeHeaderPage) getEmptyPage(tid, dirtypages, BTreePageId.HEADER);
-			headerId = headerPage.getId();
-			headerPage.init();
-			rootPtr.setHeaderId(headerId);
+		// otherwise, mark the slot of the page empty in its header page, and
+		// let the index know that the page can be reused
+		BTreeHeaderPage headerPage = getHeaderPage(tid, dirtypages, emptyPageNo);
+		headerPage.markSlotUsed(emptyPageNo % BTreeHeaderPage.getNumSlots(), false);
+		synchronized(freeSpaceLock) {
+			freePages.add(emptyPageNo);
 		}
-
-		// iterate through all the existing header pages to find the one containing the slot
-		// corresponding to emptyPageNo
-		while(headerId != null && (headerPageCount + 1) * BTreeHeaderPage.getNumSlots() < emptyPageNo) {
-			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
-			prevId = headerId;
-			headerId = headerPage.getNextPageId();
-			headerPageCount++;
-		}
-
-		// at this point headerId should either be null or set with
-		// the headerPage containing the slot corresponding to emptyPageNo.
-		// Add header pages until we have one with a slot corresponding to emptyPageNo
-		while((headerPageCount + 1) * BTreeHeaderPage.getNumSlots() < emptyPageNo) {
-			BTreeHeaderPage prevPage = (BTreeHeaderPage) getPage(tid, dirtypages, prevId, Permissions.READ_WRITE);
-
-			BTreeHeaderPage headerPage = (BTreeHeaderPage) getEmptyPage(tid, dirtypages, BTreePageId.HEADER);
-			headerId = headerPage.getId();
-			headerPage.init();
-			headerPage.setPrevPageId(prevId);
-			prevPage.setNextPageId(headerId);
-
-			headerPageCount++;
-			prevId = headerId;
-		}
-
-		// now headerId should be set with the headerPage containing the slot corresponding to
-		// emptyPageNo
-		BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
-		int emptySlot = emptyPageNo - headerPageCount * BTreeHeaderPage.getNumSlots();
-		headerPage.markSlotUsed(emptySlot, false);
 	}
 
 	/**
@@ -1397,9 +1985,68 @@ public class BTreeFile implements DbFile {
 	 * @return an iterator for the filtered tuples
 	 */
 	public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
+		if(keyFields.length > 1 && !(ipred.getField() instanceof CompositeField)) {
+			// a search on the first key field
+			ipred = new IndexPredicate(ipred.getOp(), new CompositeField(new Field[] { ipred.getField() }));
+		}
 		return new BTreeSearchIterator(this, tid, ipred);
 	}
 
+	/**
+	 * Get the tuples whose keys are equal to any of several keys, in key order. This
+	 * is the same as searching for each key in turn, but the tree is only descended
+	 * for the first key and for keys far to the right of the page the search is on;
+	 * the others are found by following the right sibling pointers.
+	 *
+	 * @param tid - the transaction id
+	 * @param keys - the keys to search for, in ascending order
+	 * @return an iterator for the tuples with these keys
+	 * @see #indexIterator(TransactionId, List, List)
+	 */
+	public DbFileIterator indexIterator(TransactionId tid, List<Field> keys) {
+		return indexIterator(tid, keys, keys);
+	}
+
+	/**
+	 * Get the tuples whose keys are in any of several ranges, in key order, each
+	 * tuple once. The tree is descended for the first range, and for every range
+	 * starting to the right of the right sibling of the page the search is on;
+	 * other ranges are reached by following the right sibling pointers.
+	 *
+	 * @param tid - the transaction id
+	 * @param lows - the lowest key of each range, in ascending order
+	 * @param highs - the highest key of each range, no lower than its lowest key
+	 * @return an iterator for the tuples in these ranges
+	 */
+	public DbFileIterator indexIterator(TransactionId tid, List<Field> lows, List<Field> highs) {
+		if(lows.size() != highs.size()) {
+			throw new IllegalArgumentException("every range needs a lowest and a highest key");
+		}
+		ArrayList<Field> l = new ArrayList<Field>();
+		ArrayList<Field> h = new ArrayList<Field>();
+		for(int i = 0; i < lows.size(); i++) {
+			l.add(searchKey(lows.get(i)));
+			h.add(searchKey(highs.get(i)));
+			if(l.get(i).compare(Op.GREATER_THAN, h.get(i))
+					|| (i > 0 && l.get(i - 1).compare(Op.GREATER_THAN, l.get(i)))) {
+				throw new IllegalArgumentException("ranges must be in ascending order and not empty");
+			}
+		}
+		return new BTreeBatchSearchIterator(this, tid, l, h);
+	}
+
+	/**
+	 * @return the key to search for a field with: the field itself, or a composite
+	 *         field with the field as its one component if this tree is keyed on
+	 *         several fields
+	 */
+	private Field searchKey(Field f) {
+		if(keyFields.length > 1 && !(f instanceof CompositeField)) {
+			return new CompositeField(new Field[] { f });
+		}
+		return f;
+	}
+
 	/**
 	 * Get an iterator for all tuples in this B+ tree file in sorted order. This method
 	 * will acquire a read lock on the affected pages of the file, and may block until
@@ -1439,10 +2086,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+		curp = f.findLeafPage(tid, Permissions.READ_ONLY, null);
 		it = curp.iterator();
 	}
 
@@ -1524,15 +2168,12 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+			curp = f.findLeafPage(tid, Permissions.READ_ONLY, ipred.getField());
 		}
 		else {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+			curp = f.findLeafPage(tid, Permissions.READ_ONLY, null);
 		}
 		it = curp.iterator();
 	}
@@ -1550,7 +2191,8 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
 			while (it.hasNext()) {
 				Tuple t = it.next();
-				if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
+				Field key = f.keyOf(t, ipred.getField());
+				if (key.compare(ipred.getOp(), ipred.getField())) {
 					return t;
 				}
 				else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
@@ -1559,7 +2201,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 					return null;
 				}
 				else if(ipred.getOp() == Op.EQUALS &&
-						t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
+						key.compare(Op.GREATER_THAN, ipred.getField())) {
 					// if the tuple is now greater than the field passed in and the operation
 					// is equals, we have reached the end
 					return null;
@@ -1597,3 +2239,132 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 		it = null;
 	}
 }
+
+/**
+ * Helper class that implements the DbFileIterator for the tuples of a BTreeFile
+ * whose keys are in any of several ranges, visiting the leaf pages left to right
+ */
+class BTreeBatchSearchIterator extends AbstractDbFileIterator {
+
+	Iterator<Tuple> it = null;
+	BTreeLeafPage curp = null;
+	int range = 0;
+
+	TransactionId tid;
+	BTreeFile f;
+	List<Field> lows;
+	List<Field> highs;
+
+	/**
+	 * Constructor for this iterator
+	 * @param f - the BTreeFile containing the tuples
+	 * @param tid - the transaction id
+	 * @param lows - the lowest key of each range, in ascending order
+	 * @param highs - the highest key of each range
+	 */
+	public BTreeBatchSearchIterator(BTreeFile f, TransactionId tid, List<Field> lows, List<Field> highs) {
+		this.f = f;
+		this.tid = tid;
+		this.lows = lows;
+		this.highs = highs;
+	}
+
+	/**
+	 * Open this iterator by getting an iterator on the first leaf page possibly
+	 * holding the first range
+	 */
+	public void open() throws DbException, TransactionAbortedException {
+		range = 0;
+		if(lows.isEmpty()) {
+			it = null;
+			return;
+		}
+		curp = f.findLeafPage(tid, Permissions.READ_ONLY, lows.get(0));
+		it = curp.iterator();
+	}
+
+	/**
+	 * Read the next tuple in the current range, skipping the ranges below the
+	 * tuples read, and moving to the page holding the next range when it is
+	 * not on the current page.
+	 *
+	 * @return the next tuple in any of the ranges, or null if none exists
+	 */
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException,
+	NoSuchElementException {
+		while (it != null) {
+
+			while (it.hasNext()) {
+				Tuple t = it.next();
+				Field key = f.keyOf(t, highs.get(range));
+				while (key.compare(Op.GREATER_THAN, highs.get(range))) {
+					range++;
+					if(range == lows.size()) {
+						// past the last range
+						it = null;
+						return null;
+					}
+					key = f.keyOf(t, highs.get(range));
+				}
+				if (f.keyOf(t, lows.get(range)).compare(Op.GREATER_THAN_OR_EQ, lows.get(range))) {
+					return t;
+				}
+				seek(lows.get(range));
+			}
+
+			BTreePageId nextp = curp.getRightSiblingId();
+			// if there are no more pages to the right, end the iteration
+			if(nextp == null) {
+				it = null;
+				return null;
+			}
+			curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+					nextp, Permissions.READ_ONLY);
+			it = curp.iterator();
+		}
+
+		return null;
+	}
+
+	/**
+	 * Move to the left-most leaf page possibly holding the key, if it is to the right
+	 * of the current page. The right sibling of the current page is tried first, and
+	 * the tree is only descended from the root if the key is past it too.
+	 *
+	 * @param key - the key to move to
+	 */
+	private void seek(Field key) throws TransactionAbortedException, DbException {
+		Field highKey = curp.getHighKey();
+		if(highKey == null || !key.compare(Op.GREATER_THAN, highKey) || curp.getRightSiblingId() == null) {
+			return;
+		}
+		BTreeLeafPage sibling = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+				curp.getRightSiblingId(), Permissions.READ_ONLY);
+		highKey = sibling.getHighKey();
+		if(highKey == null || !key.compare(Op.GREATER_THAN, highKey)) {
+			curp = sibling;
+		}
+		else {
+			curp = f.findLeafPage(tid, Permissions.READ_ONLY, key);
+		}
+		it = curp.iterator();
+	}
+
+	/**
+	 * rewind this iterator back to the beginning of the tuples
+	 */
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	/**
+	 * close the iterator
+	 */
+	public void close() {
+		super.close();
+		it = null;
+		curp = null;
+	}
+}
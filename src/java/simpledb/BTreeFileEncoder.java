@@ -111,7 +111,7 @@ public class BTreeFileEncoder {
 	 * comparator to sort Tuples by key field
 	 */
 	public static class TupleComparator implements Comparator<Tuple> {
-		private int keyField;
+		private int[] keyFields;
 
 		/** 
 		 * Construct a TupleComparator
@@ -119,23 +119,34 @@ public class BTreeFileEncoder {
 		 * @param keyField - the index of the field the tuples are keyed on
 		 */
 		public TupleComparator(int keyField) {
-			this.keyField = keyField;
+			this(new int[] { keyField });
+		}
+
+		/** 
+		 * Construct a TupleComparator for tuples keyed on several fields, which
+		 * orders them by the first field, then by the second one, and so on
+		 * 
+		 * @param keyFields - the indexes of the fields the tuples are keyed on
+		 */
+		public TupleComparator(int[] keyFields) {
+			this.keyFields = keyFields.clone();
 		}
 
 		/**
-		 * Compare two tuples based on their key field
+		 * Compare two tuples based on their key fields
 		 * 
 		 * @return -1 if t1 < t2, 1 if t1 > t2, 0 if t1 == t2
 		 */
 		public int compare(Tuple t1, Tuple t2) {
-			int cmp = 0;
-			if(t1.getField(keyField).compare(Op.LESS_THAN, t2.getField(keyField))) {
-				cmp = -1;
-			}
-			else if(t1.getField(keyField).compare(Op.GREATER_THAN, t2.getField(keyField))) {
-				cmp = 1;
+			for(int keyField : keyFields) {
+				if(t1.getField(keyField).compare(Op.LESS_THAN, t2.getField(keyField))) {
+					return -1;
+				}
+				else if(t1.getField(keyField).compare(Op.GREATER_THAN, t2.getField(keyField))) {
+					return 1;
+				}
 			}
-			return cmp;
+			return 0;
 		}
 	}
 
@@ -224,8 +235,8 @@ public class BTreeFileEncoder {
 		for (int i = 0; i < numFields ; i++) {
 			nrecbytes += typeAr[i].getLen();
 		}
-		// pointerbytes: left sibling pointer, right sibling pointer, parent pointer
-		int leafpointerbytes = 3 * BTreeLeafPage.INDEX_SIZE; 
+		// pointerbytes: left sibling pointer, right sibling pointer, parent pointer, high key
+		int leafpointerbytes = 3 * BTreeLeafPage.INDEX_SIZE + keyType.getLen(); 
 		int nrecords = (npagebytes * 8 - leafpointerbytes * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
 
 		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
@@ -330,6 +341,7 @@ public class BTreeFileEncoder {
 		// set all the parent and sibling pointers
 		setParents(bf, new BTreePageId(tableid, root, rootCategory), BTreeRootPtrPage.getId(tableid));
 		setRightSiblingPtrs(bf, lastPid, null);
+		setHighKeys(bf, new BTreePageId(tableid, root, rootCategory), null);
 
 		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
 		return bf;
@@ -355,6 +367,38 @@ public class BTreeFileEncoder {
 		}
 	}
 
+	/**
+	 * Recursive function to set the high keys of all the leaf pages. The high key of
+	 * each leaf page is the key separating it from its right sibling.
+	 * 
+	 * @param bf - the BTreeFile
+	 * @param pid - the id of the root of the subtree to update
+	 * @param highKey - the upper bound on the keys in the subtree, or null for the
+	 *        right-most subtree
+	 * @throws IOException
+	 * @throws DbException
+	 */
+	private static void setHighKeys(BTreeFile bf, BTreePageId pid, Field highKey) 
+			throws IOException, DbException {
+		if(pid.pgcateg() == BTreePageId.INTERNAL) {
+			BTreeInternalPage page = (BTreeInternalPage) bf.readPage(pid);
+			Iterator<BTreeEntry> it = page.iterator();
+			BTreeEntry e = null;
+			while(it.hasNext()) {
+				e = it.next();
+				setHighKeys(bf, e.getLeftChild(), e.getKey());
+			}
+			if(e != null) {
+				setHighKeys(bf, e.getRightChild(), highKey);
+			}
+		}
+		else { // pid.pgcateg() == BTreePageId.LEAF
+			BTreeLeafPage page = (BTreeLeafPage) bf.readPage(pid);
+			page.setHighKey(highKey);
+			bf.writePage(page);
+		}
+	}
+
 	/**
 	 * Recursive function to set all the parent pointers
 	 * 
@@ -506,13 +550,32 @@ public class BTreeFileEncoder {
 	public static byte[] convertToLeafPage(ArrayList<Tuple> tuples, int npagebytes,
 			int numFields, Type[] typeAr, int keyField)
 					throws IOException {
+		return convertToLeafPage(tuples, npagebytes, numFields, typeAr, new int[] { keyField });
+	}
+
+	/**
+	 * Convert a set of tuples to a byte array in the format of a BTreeLeafPage
+	 * of a B+ tree keyed on several fields
+	 * 
+	 * @param keyFields - the fields of the tuples the B+ tree will be keyed on
+	 * @see #convertToLeafPage(ArrayList, int, int, Type[], int)
+	 */
+	public static byte[] convertToLeafPage(ArrayList<Tuple> tuples, int npagebytes,
+			int numFields, Type[] typeAr, int[] keyFields)
+					throws IOException {
 		int nrecbytes = 0;
 		for (int i = 0; i < numFields ; i++) {
 			nrecbytes += typeAr[i].getLen();
 		}
 		// pointerbytes: left sibling pointer, right sibling pointer, parent pointer
 		int pointerbytes = 3 * BTreeLeafPage.INDEX_SIZE; 
-		int nrecords = (npagebytes * 8 - pointerbytes * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
+		// the high key follows the tuples, and is left empty here; a composite
+		// key has one more byte for its number of components
+		int highkeybytes = (keyFields.length == 1 ? 0 : 1);
+		for (int keyField : keyFields) {
+			highkeybytes += typeAr[keyField].getLen();
+		}
+		int nrecords = (npagebytes * 8 - (pointerbytes + highkeybytes) * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
 
 		//  per record, we need one bit; there are nrecords per page, so we need
 		// nrecords bits, i.e., ((nrecords/32)+1) integers.
@@ -554,7 +617,7 @@ public class BTreeFileEncoder {
 		if (i % 8 > 0)
 			dos.writeByte(headerbyte);
 
-		Collections.sort(tuples, new TupleComparator(keyField));
+		Collections.sort(tuples, new TupleComparator(keyFields));
 		for(int t = 0; t < recordcount; t++) {
 			TupleDesc td = tuples.get(t).getTupleDesc();
 			for(int j = 0; j < td.numFields(); j++) {
@@ -616,7 +679,8 @@ public class BTreeFileEncoder {
 	 * 
 	 * @param entries - the set of entries
 	 * @param npagebytes - number of bytes per page
-	 * @param keyType - the type of the key field
+	 * @param keyType - the type of the key field, which bounds the number of entries
+	 * written; for keys of several fields, the type of the first one
 	 * @param childPageCategory - the category of the child pages (either internal or leaf)
 	 * @return a byte array which can be passed to the BTreeInternalPage constructor
 	 * @throws IOException
@@ -625,73 +689,34 @@ public class BTreeFileEncoder {
 			Type keyType, int childPageCategory)
 					throws IOException {
 		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
-		// pointerbytes: one extra child pointer, parent pointer, child page category
-		int pointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
-		int nentries = (npagebytes * 8 - pointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
-
-		//  per entry, we need one bit; there are nentries per page, so we need
-		// nentries bits, plus 1 for the extra child pointer.
-		int nheaderbytes = (nentries + 1) / 8;
-		if (nheaderbytes * 8 < nentries + 1)
-			nheaderbytes++;  //ceiling
-		int nheaderbits = nheaderbytes * 8;
+		// pointerbytes: one extra child pointer, parent pointer, child page category, number of entries
+		int pointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 3; 
+		int nentries = Math.min((npagebytes - pointerbytes) / nentrybytes,
+				(npagebytes * 8 - (pointerbytes - 2) * 8 - 1) / (nentrybytes * 8 + 1));  //floor comes for free
 
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(npagebytes);
 		DataOutputStream dos = new DataOutputStream(baos);
 
-		// write out the pointers and the header of the page,
-		// then sort the entries and write them out.
-		//
-		// in the header, write a 1 for bits that correspond to entries we've
-		// written and 0 for empty slots.
+		// write out the pointers and the number of entries of the page,
+		// then sort the entries and write them out, each key followed by
+		// its right child pointer.
 		int entrycount = entries.size();
 		if (entrycount > nentries)
 			entrycount = nentries;
 
 		dos.writeInt(0); // parent pointer
 		dos.writeByte((byte) childPageCategory);
-
-		int i = 0;
-		byte headerbyte = 0;
-
-		for (i=0; i<nheaderbits; i++) {
-			if (i < entrycount + 1)
-				headerbyte |= (1 << (i % 8));
-
-			if (((i+1) % 8) == 0) {
-				dos.writeByte(headerbyte);
-				headerbyte = 0;
-			}
-		}
-
-		if (i % 8 > 0)
-			dos.writeByte(headerbyte);
+		dos.writeShort(entrycount);
 
 		Collections.sort(entries, new EntryComparator());
-		for(int e = 0; e < entrycount; e++) {
-			entries.get(e).getKey().serialize(dos);
-		}
-
-		for(int e = entrycount; e < nentries; e++) {
-			for (int j=0; j<keyType.getLen(); j++) {
-				dos.writeByte(0);
-			}
-		}
-
 		dos.writeInt(entries.get(0).getLeftChild().getPageNumber());
 		for(int e = 0; e < entrycount; e++) {
+			BTreePage.writeKey(dos, entries.get(e).getKey());
 			dos.writeInt(entries.get(e).getRightChild().getPageNumber());
 		}
 
-		for(int e = entrycount; e < nentries; e++) {
-			for (int j=0; j<BTreeInternalPage.INDEX_SIZE; j++) {
-				dos.writeByte(0);
-			}
-		}
-
 		// pad the rest of the page with zeroes
-		for (i=0; i<(npagebytes - (nentries * nentrybytes + nheaderbytes + pointerbytes)); i++)
-			dos.writeByte(0);
+		dos.write(new byte[npagebytes - dos.size()]);
 
 		return baos.toByteArray();
 
@@ -17,7 +17,7 @@ public class BTreeInternalPage extends BTreePage {
 	private final byte header[];
 	private final Field keys[];
 	private final int children[];
-	private final int numSlots;
+	final int numSlots;
 	
 	private int childCategory; // either leaf or internal
 
@@ -37,26 +37,24 @@ public class BTreeInternalPage extends BTreePage {
 		}
 
 		if (checkOccupancy && depth > 0) {
-			assert (getNumEntries() >= getMaxEntries() / 2);
+			assert (getNumEmptySlots() <= getMaxEntries() - getMaxEntries() / 2);
 		}
 	}
 	
 	/**
 	 * Create a BTreeInternalPage from a set of bytes of data read from disk.
-	 * The format of a BTreeInternalPage is a set of header bytes indicating
-	 * the slots of the page that are in use, some number of entry slots, and extra
-	 * bytes for the parent pointer, one extra child pointer (a node with m entries 
-	 * has m+1 pointers to children), and the category of all child pages (either 
-	 * leaf or internal).
-	 *  Specifically, the number of entries is equal to: <p>
-	 *          floor((BufferPool.getPageSize()*8 - extra bytes*8) / (entry size * 8 + 1))
-	 * <p> where entry size is the size of entries in this index node
-	 * (key + child pointer), which can be determined via the key field and 
-	 * {@link Catalog#getTupleDesc}.
-	 * The number of 8-bit header words is equal to:
-	 * <p>
-	 *      ceiling((no. entry slots + 1) / 8)
+	 * The format of a BTreeInternalPage is the parent pointer, the category of
+	 * all child pages (either leaf or internal), the number of entries m, the
+	 * first child pointer (a node with m entries has m+1 pointers to children),
+	 * and then m entries, each a key followed by a child pointer.
 	 * <p>
+	 * Keys take only as many bytes as they need (see {@link BTreePage#keySize}),
+	 * so short string keys, and the truncated separator keys that splits store
+	 * in place of long ones, make room for more entries. The page is full when
+	 * its entries take more than the space of {@link #getMaxEntries()} entries
+	 * with keys of the largest size, which is the number of entries the page
+	 * can always hold.
+	 * 
 	 * @see Database#getCatalog
 	 * @see Catalog#getTupleDesc
 	 * @see BufferPool#getPageSize()
@@ -66,45 +64,40 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
-		super(id, key);
-		this.numSlots = getMaxEntries() + 1;
+		this(id, data, new int[] { key });
+	}
+
+	/**
+	 * Create a BTreeInternalPage of a B+ tree keyed on several fields.
+	 *
+	 * @see #BTreeInternalPage(BTreePageId, byte[], int)
+	 * @param keyFields - the fields which the index is keyed on
+	 */
+	public BTreeInternalPage(BTreePageId id, byte[] data, int[] keyFields) throws IOException {
+		super(id, keyFields);
+		this.numSlots = getCapacity() / (minKeySize() + INDEX_SIZE) + 1;
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
 		// Read the parent pointer
-		try {
-			Field f = Type.INT_TYPE.parse(dis);
-			this.parent = ((IntField) f).getValue();
-		} catch (java.text.ParseException e) {
-			e.printStackTrace();
-		}
+		this.parent = dis.readInt();
 
 		// read the child page category
 		childCategory = (int) dis.readByte();
 
-		// allocate and read the header slots of this page
 		header = new byte[getHeaderSize()];
-		for (int i=0; i<header.length; i++)
-			header[i] = dis.readByte();
-
 		keys = new Field[numSlots];
-		try{
-			// allocate and read the keys of this page
-			// start from 1 because the first key slot is not used
-			// since a node with m keys has m+1 pointers
-			keys[0] = null;
-			for (int i=1; i<keys.length; i++)
-				keys[i] = readNextKey(dis,i);
-		}catch(NoSuchElementException e){
-			e.printStackTrace();
-		}
-
 		children = new int[numSlots];
-		try{
-			// allocate and read the child pointers of this page
-			for (int i=0; i<children.length; i++)
-				children[i] = readNextChild(dis,i);
-		}catch(NoSuchElementException e){
-			e.printStackTrace();
+
+		// read the entries into the first slots of the page; slot 0 only has
+		// a child pointer, since a node with m keys has m+1 pointers
+		int numEntries = dis.readUnsignedShort();
+		children[0] = dis.readInt();
+		if (children[0] != 0)
+			markSlotUsed(0, true);
+		for (int i=1; i<=numEntries; i++) {
+			keys[i] = readKey(dis);
+			children[i] = dis.readInt();
+			markSlotUsed(i, true);
 		}
 		dis.close();
 
@@ -112,26 +105,63 @@ public class BTreeInternalPage extends BTreePage {
 	}
 
 	/** 
-	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
+	 * Retrieve the maximum number of entries this page can hold with keys of the
+	 * largest size. (The number of keys)
  	 */
 	public int getMaxEntries() {        
-		int keySize = td.getFieldType(keyField).getLen();
-		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
-		// extraBits are: one parent pointer, 1 byte for child page category, 
-		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header
-		int extraBits = 2 * INDEX_SIZE * 8 + 8 + 1; 
-		int entriesPerPage = (BufferPool.getPageSize()*8 - extraBits) / bitsPerEntryIncludingHeader; //round down
-		return entriesPerPage;
+		int entrySize = maxKeySize() + INDEX_SIZE;
+		// extra bytes are: one parent pointer, 1 byte for child page category, 
+		// 2 bytes for the number of entries, one extra child pointer (node with
+		// m entries has m+1 pointers to children)
+		int entriesPerPage = (BufferPool.getPageSize() - (2 * INDEX_SIZE + 3)) / entrySize;
+		// and no more than fit in fixed-size slots, so that pages keyed on an int
+		// hold as many entries as before keys were stored in as few bytes as they need
+		int bitsPerSlot = maxKeySize() * 8 + INDEX_SIZE * 8 + 1;
+		int slotsPerPage = (BufferPool.getPageSize() * 8 - (2 * INDEX_SIZE * 8 + 8 + 1)) / bitsPerSlot;
+		return Math.min(entriesPerPage, slotsPerPage);
+	}
+
+	/**
+	 * @return the number of bytes the entries on this page can take
+	 */
+	private int getCapacity() {
+		return getMaxEntries() * (maxKeySize() + INDEX_SIZE);
+	}
+
+	/**
+	 * @return the number of bytes taken by the entries on this page
+	 */
+	int getUsedBytes() {
+		int used = 0;
+		for (int i=1; i<numSlots; i++)
+			if (isSlotUsed(i))
+				used += keySize(keys[i]) + INDEX_SIZE;
+		return used;
+	}
+
+	/**
+	 * @return true if an entry with the given key fits on this page
+	 */
+	public boolean hasRoomFor(Field key) {
+		return getUsedBytes() + keySize(key) + INDEX_SIZE <= getCapacity();
 	}
 
 	/**
-	 * Computes the number of bytes in the header of a B+ internal page with each entry occupying entrySize bytes
-	 * @return the number of bytes in the header
+	 * @return true if the key of an entry on this page can be replaced by the
+	 * given key without overflowing the page
+	 */
+	public boolean canUpdateKey(BTreeEntry e, Field key) {
+		Field old = keys[e.getRecordId().getTupleNumber()];
+		return getUsedBytes() - keySize(old) + keySize(key) <= getCapacity();
+	}
+
+	/**
+	 * Computes the number of bytes of the bitmap of used slots of this page
+	 * @return the number of bytes in the bitmap
 	 */
 	private int getHeaderSize() {        
-		int slotsPerPage = getMaxEntries() + 1;
-		int hb = (slotsPerPage / 8);
-		if (hb * 8 < slotsPerPage) hb++;
+		int hb = (numSlots / 8);
+		if (hb * 8 < numSlots) hb++;
 
 		return hb;
 	}
@@ -145,7 +175,7 @@ public class BTreeInternalPage extends BTreePage {
 			{
 				oldDataRef = oldData;
 			}
-			return new BTreeInternalPage(pid,oldDataRef,keyField);
+			return new BTreeInternalPage(pid,oldDataRef,keyFields);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -161,72 +191,14 @@ public class BTreeInternalPage extends BTreePage {
 		}
 	}
 
-	/**
-	 * Read keys from the source file.
-	 */
-	private Field readNextKey(DataInputStream dis, int slotId) throws NoSuchElementException {
-		// if associated bit is not set, read forward to the next key, and
-		// return null.
-		if (!isSlotUsed(slotId)) {
-			for (int i=0; i<td.getFieldType(keyField).getLen(); i++) {
-				try {
-					dis.readByte();
-				} catch (IOException e) {
-					throw new NoSuchElementException("error reading empty key");
-				}
-			}
-			return null;
-		}
-
-		// read the key field
-		Field f = null;
-		try {
-			f = td.getFieldType(keyField).parse(dis);
-		} catch (java.text.ParseException e) {
-			e.printStackTrace();
-			throw new NoSuchElementException("parsing error!");
-		}
-
-		return f;
-	}
-
-	/**
-	 * Read child pointers from the source file.
-	 */
-	private int readNextChild(DataInputStream dis, int slotId) throws NoSuchElementException {
-		// if associated bit is not set, read forward to the next child pointer, and
-		// return -1.
-		if (!isSlotUsed(slotId)) {
-			for (int i=0; i<INDEX_SIZE; i++) {
-				try {
-					dis.readByte();
-				} catch (IOException e) {
-					throw new NoSuchElementException("error reading empty child pointer");
-				}
-			}
-			return -1;
-		}
-
-		// read child pointer
-		int child = -1;
-		try {
-			Field f = Type.INT_TYPE.parse(dis);
-			child = ((IntField) f).getValue();
-		} catch (java.text.ParseException e) {
-			e.printStackTrace();
-			throw new NoSuchElementException("parsing error!");
-		}
-
-		return child;
-	}
-
 	/**
 	 * Generates a byte array representing the contents of this page.
 	 * Used to serialize this page to disk.
 	 * <p>
 	 * The invariant here is that it should be possible to pass the byte
 	 * array generated by getPageData to the BTreeInternalPage constructor and
-	 * have it produce an identical BTreeInternalPage object.
+	 * have it produce an equivalent BTreeInternalPage object, with the entries
+	 * moved to the first slots of the page.
 	 *
 	 * @see #BTreeInternalPage
 	 * @return A byte array correspond to the bytes of this page.
@@ -236,95 +208,23 @@ public class BTreeInternalPage extends BTreePage {
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
 		DataOutputStream dos = new DataOutputStream(baos);
 
-		// write out the parent pointer
 		try {
+			// write out the parent pointer and the child page category
 			dos.writeInt(parent);
-
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		// write out the child page category
-		try {
 			dos.writeByte((byte) childCategory);
 
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		// create the header of the page
-		for (int i=0; i<header.length; i++) {
-			try {
-				dos.writeByte(header[i]);
-			} catch (IOException e) {
-				// this really shouldn't happen
-				e.printStackTrace();
-			}
-		}
-
-		// create the keys
-		// start from 1 because the first key slot is not used
-		// since a node with m keys has m+1 pointers
-		for (int i=1; i<keys.length; i++) {
-
-			// empty slot
-			if (!isSlotUsed(i)) {
-				for (int j=0; j<td.getFieldType(keyField).getLen(); j++) {
-					try {
-						dos.writeByte(0);
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-
+			// write out the entries, the first child pointer on its own
+			dos.writeShort(getNumEntries());
+			dos.writeInt(isSlotUsed(0) ? children[0] : 0);
+			for (int i=1; i<numSlots; i++) {
+				if (isSlotUsed(i)) {
+					writeKey(dos, keys[i]);
+					dos.writeInt(children[i]);
 				}
-				continue;
-			}
-
-			// non-empty slot
-			try {
-				keys[i].serialize(dos);
-			} catch (IOException e) {
-				e.printStackTrace();
 			}
 
-		}
-
-		// create the child pointers
-		for (int i=0; i<children.length; i++) {
-
-			// empty slot
-			if (!isSlotUsed(i)) {
-				for (int j=0; j<INDEX_SIZE; j++) {
-					try {
-						dos.writeByte(0);
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-
-				}
-				continue;
-			}
-
-			// non-empty slot
-			try {
-				dos.writeInt(children[i]);
-
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		}
-
-		// padding
-		int zerolen = BufferPool.getPageSize() - (INDEX_SIZE + 1 + header.length + 
-				td.getFieldType(keyField).getLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
-		byte[] zeroes = new byte[zerolen];
-		try {
-			dos.write(zeroes, 0, zerolen);
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		try {
+			// padding
+			dos.write(new byte[len - dos.size()]);
 			dos.flush();
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -398,8 +298,8 @@ public class BTreeInternalPage extends BTreePage {
 	 * record id.
 	 * @param e - the entry with updated key and/or child pointers
 	 * @throws DbException if this entry is not on this page, entry slot is
-	 *         already empty, or updating this key would put the entry out of 
-	 *         order on the page
+	 *         already empty, updating this key would put the entry out of 
+	 *         order on the page, or the new key does not fit on the page
 	 */
 	public void updateEntry(BTreeEntry e) throws DbException {
 		RecordId rid = e.getRecordId();
@@ -409,6 +309,8 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("tried to update entry on invalid page or table");
 		if (!isSlotUsed(rid.getTupleNumber()))
 			throw new DbException("tried to update null entry.");
+		if (!canUpdateKey(e, e.getKey()))
+			throw new DbException("not enough room on page to update entry with key " + e.getKey());
 		
 		for(int i = rid.getTupleNumber() + 1; i < numSlots; i++) {
 			if(isSlotUsed(i)) {
@@ -441,7 +343,7 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param e The entry to add.
 	 */
 	public void insertEntry(BTreeEntry e) throws DbException {
-		if (!e.getKey().getType().equals(td.getFieldType(keyField)))
+		if (!isKey(e.getKey()))
 			throw new DbException("key field type mismatch, in insertEntry");
 
 		if(e.getLeftChild().getTableId() != pid.getTableId() || e.getRightChild().getTableId() != pid.getTableId())
@@ -476,7 +378,7 @@ public class BTreeInternalPage extends BTreePage {
 			}
 		}
 
-		if (emptySlot == -1)
+		if (emptySlot == -1 || !hasRoomFor(e.getKey()))
 			throw new DbException("called insertEntry on page with no empty slots.");        
 
 		// find the child pointer matching the left or right child in this entry
@@ -562,21 +464,22 @@ public class BTreeInternalPage extends BTreePage {
 	 * Returns the number of entries (keys) currently stored on this page
 	 */
 	public int getNumEntries() {
-		return numSlots - getNumEmptySlots() - 1;
-	}
-	
-	/**
-	 * Returns the number of empty slots on this page.
-	 */
-	public int getNumEmptySlots() {
 		int cnt = 0;
 		// start from 1 because the first key slot is not used
 		// since a node with m keys has m+1 pointers
 		for(int i=1; i<numSlots; i++)
-			if(!isSlotUsed(i))
+			if(isSlotUsed(i))
 				cnt++;
 		return cnt;
 	}
+	
+	/**
+	 * Returns the number of empty slots on this page: the number of entries with
+	 * keys of the largest size which still fit on it.
+	 */
+	public int getNumEmptySlots() {
+		return (getCapacity() - getUsedBytes()) / (maxKeySize() + INDEX_SIZE);
+	}
 
 	/**
 	 * Returns true if associated slot on this page is filled.
@@ -741,7 +644,7 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 
 	public BTreeInternalPageReverseIterator(BTreeInternalPage p) {
 		this.p = p;
-		this.curEntry = p.getMaxEntries();
+		this.curEntry = p.numSlots - 1;
 		while(!p.isSlotUsed(curEntry) && curEntry > 0) {
 			--curEntry;
 		}
@@ -6,6 +6,13 @@ import java.io.*;
 /**
  * Each instance of BTreeLeafPage stores data for one page of a BTreeFile and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * The leaves of a tree may be compressed, which suits trees with many
+ * duplicate keys, such as secondary indexes. The tuples of a compressed page
+ * are stored one after the other, each field in as few bytes as it needs. The
+ * key of a run of tuples with the same key is stored once, followed by the
+ * other fields of each tuple, like a posting list, and a string key stores
+ * only the characters following those it shares with the key before it.
  *
  * @see BTreeFile
  * @see BufferPool
@@ -14,20 +21,22 @@ import java.io.*;
 public class BTreeLeafPage extends BTreePage {
 	private final byte header[];
 	private final Tuple tuples[];
-	private final int numSlots;
+	final int numSlots;
+	private final boolean compressed;
 	
 	private int leftSibling; // leaf node or 0
 	private int rightSibling; // leaf node or 0
+	private Field highKey; // upper bound on the keys of this page, or null if rightSibling is 0
 
-	public void checkRep(int fieldid, Field lowerBound, Field upperBound, boolean checkoccupancy, int depth) {
+	public void checkRep(Field lowerBound, Field upperBound, boolean checkoccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.LEAF);
 
 		Iterator<Tuple> it = this.iterator();
 		while (it.hasNext()) {
 			Tuple t = it.next();
-			assert(null == prev || prev.compare(Predicate.Op.LESS_THAN_OR_EQ, t.getField(fieldid)));
-			prev = t.getField(fieldid);
+			assert(null == prev || prev.compare(Predicate.Op.LESS_THAN_OR_EQ, keyOf(t)));
+			prev = keyOf(t);
 			assert(t.getRecordId().getPageId().equals(this.getId()));
 		}
 
@@ -35,8 +44,13 @@ public class BTreeLeafPage extends BTreePage {
 			assert(prev.compare(Predicate.Op.LESS_THAN_OR_EQ, upperBound));
 		}
 
+		// the high key is the separator between this page and its right sibling
+		if (rightSibling != 0) {
+			assert(null != highKey && highKey.equals(upperBound));
+		}
+
 		if (checkoccupancy && depth > 0) {
-			assert(getNumTuples() >= getMaxTuples()/2);
+			assert(getNumEmptySlots() <= getMaxTuples() - getMaxTuples()/2);
 		}
 	}
 
@@ -44,7 +58,8 @@ public class BTreeLeafPage extends BTreePage {
 	 * Create a BTreeLeafPage from a set of bytes of data read from disk.
 	 * The format of a BTreeLeafPage is a set of header bytes indicating
 	 * the slots of the page that are in use, and some number of tuple slots, 
-	 * as well as some extra bytes for the parent and sibling pointers.
+	 * as well as some extra bytes for the parent and sibling pointers and for
+	 * the high key of the page.
 	 *  Specifically, the number of tuples is equal to: <p>
 	 *          floor((BufferPool.getPageSize()*8 - extra bytes*8) / (tuple size * 8 + 1))
 	 * <p> where tuple size is the size of tuples in this
@@ -62,8 +77,38 @@ public class BTreeLeafPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeLeafPage(BTreePageId id, byte[] data, int key) throws IOException {
-		super(id, key);
-		this.numSlots = getMaxTuples();
+		this(id, data, new int[] { key });
+	}
+
+	/**
+	 * Create a BTreeLeafPage of a B+ tree keyed on several fields.
+	 *
+	 * @see #BTreeLeafPage(BTreePageId, byte[], int)
+	 * @param keys - the fields which the index is keyed on
+	 */
+	public BTreeLeafPage(BTreePageId id, byte[] data, int[] keys) throws IOException {
+		this(id, data, keys, false);
+	}
+
+	/**
+	 * Create a BTreeLeafPage of a B+ tree whose leaves may be compressed.
+	 * A compressed page starts with the parent and sibling pointers and the
+	 * high key, followed by two header bitmaps: one of the slots in use, and
+	 * one of the tuples whose key is the same as that of the tuple before them.
+	 * The tuples of the used slots follow in slot order: the key fields, left
+	 * out for a duplicate key, then the other fields. A string is stored as
+	 * its length followed by its characters, and a string key as the number
+	 * of leading characters it shares with the key before it in one byte,
+	 * followed by the rest of it.
+	 *
+	 * @see #BTreeLeafPage(BTreePageId, byte[], int)
+	 * @param keys - the fields which the index is keyed on
+	 * @param compressed - whether the page is stored in the compressed format
+	 */
+	public BTreeLeafPage(BTreePageId id, byte[] data, int[] keys, boolean compressed) throws IOException {
+		super(id, keys);
+		this.compressed = compressed;
+		this.numSlots = (compressed ? getNumSlots() : getMaxTuples());
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
 		// Read the parent and sibling pointers
@@ -90,10 +135,16 @@ public class BTreeLeafPage extends BTreePage {
 
 		// allocate and read the header slots of this page
 		header = new byte[getHeaderSize()];
+		tuples = new Tuple[numSlots];
+		if (compressed) {
+			readCompressed(dis);
+			dis.close();
+			setBeforeImage();
+			return;
+		}
 		for (int i=0; i<header.length; i++)
 			header[i] = dis.readByte();
 
-		tuples = new Tuple[numSlots];
 		try{
 			// allocate and read the actual records of this page
 			for (int i=0; i<tuples.length; i++)
@@ -101,18 +152,250 @@ public class BTreeLeafPage extends BTreePage {
 		}catch(NoSuchElementException e){
 			e.printStackTrace();
 		}
+
+		// read the high key, which is only set if there is a right sibling
+		byte[] highKeyData = new byte[maxKeySize()];
+		dis.readFully(highKeyData);
+		if (rightSibling != 0)
+			this.highKey = readKey(new DataInputStream(new ByteArrayInputStream(highKeyData)));
 		dis.close();
 
 		setBeforeImage();
 	}
 
+	/**
+	 * Read the high key, the header bitmaps and the tuples of a compressed page.
+	 */
+	private void readCompressed(DataInputStream dis) throws IOException {
+		byte[] highKeyData = new byte[maxKeySize()];
+		dis.readFully(highKeyData);
+		if (rightSibling != 0)
+			this.highKey = readKey(new DataInputStream(new ByteArrayInputStream(highKeyData)));
+		dis.readFully(header);
+		byte[] duplicates = new byte[header.length];
+		dis.readFully(duplicates);
+
+		Tuple prev = null;
+		for (int i=0; i<numSlots; i++) {
+			if (!isSlotUsed(i))
+				continue;
+			Tuple t = new Tuple(td);
+			t.setRecordId(new RecordId(pid, i));
+			if (isBitSet(duplicates, i)) {
+				for (int f : keyFields)
+					t.setField(f, prev.getField(f));
+			}
+			else {
+				int shared = (isPrefixed() ? dis.readUnsignedByte() : 0);
+				for (int k=0; k<keyFields.length; k++) {
+					Field f = readKeyField(dis, td.getFieldType(keyFields[k]));
+					if (k == 0 && shared > 0) {
+						String prefix = ((StringField) prev.getField(keyField)).getValue().substring(0, shared);
+						f = new StringField(prefix + ((StringField) f).getValue(), Type.STRING_LEN);
+					}
+					t.setField(keyFields[k], f);
+				}
+			}
+			for (int j=0; j<td.numFields(); j++) {
+				if (!isKeyField(j))
+					t.setField(j, readKeyField(dis, td.getFieldType(j)));
+			}
+			tuples[i] = t;
+			prev = t;
+		}
+	}
+
+	/**
+	 * Write the high key, the header bitmaps and the tuples of a compressed page.
+	 */
+	private void writeCompressed(DataOutputStream dos) throws IOException {
+		writeHighKey(dos);
+		byte[] duplicates = new byte[header.length];
+		Tuple prev = null;
+		for (int i=0; i<numSlots; i++) {
+			if (isSlotUsed(i)) {
+				if (prev != null && sameKey(tuples[i], prev))
+					duplicates[i / 8] |= 1 << (i % 8);
+				prev = tuples[i];
+			}
+		}
+		dos.write(header);
+		dos.write(duplicates);
+
+		prev = null;
+		for (int i=0; i<numSlots; i++) {
+			if (!isSlotUsed(i))
+				continue;
+			Tuple t = tuples[i];
+			if (!isBitSet(duplicates, i)) {
+				int shared = 0;
+				if (isPrefixed()) {
+					shared = sharedPrefix(t, prev);
+					dos.writeByte(shared);
+				}
+				for (int k=0; k<keyFields.length; k++) {
+					Field f = t.getField(keyFields[k]);
+					if (k == 0 && shared > 0)
+						f = new StringField(((StringField) f).getValue().substring(shared), Type.STRING_LEN);
+					writeKey(dos, f);
+				}
+			}
+			for (int j=0; j<td.numFields(); j++) {
+				if (!isKeyField(j))
+					writeKey(dos, t.getField(j));
+			}
+			prev = t;
+		}
+	}
+
+	/**
+	 * Write out the high key, padded to the size of the largest key.
+	 */
+	private void writeHighKey(DataOutputStream dos) throws IOException {
+		int written = 0;
+		if (rightSibling != 0 && highKey != null) {
+			writeKey(dos, highKey);
+			written = keySize(highKey);
+		}
+		dos.write(new byte[maxKeySize() - written]);
+	}
+
+	private static boolean isBitSet(byte[] bits, int i) {
+		return (bits[i / 8] & (1 << (i % 8))) != 0;
+	}
+
+	/**
+	 * @return true if field i of the tuples is a key field
+	 */
+	private boolean isKeyField(int i) {
+		for (int f : keyFields) {
+			if (f == i)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if the string key fields of compressed pages share their
+	 * leading characters with the key before them
+	 */
+	private boolean isPrefixed() {
+		return td.getFieldType(keyField) == Type.STRING_TYPE;
+	}
+
+	private boolean sameKey(Tuple t, Tuple prev) {
+		for (int f : keyFields) {
+			if (!t.getField(f).equals(prev.getField(f)))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of leading characters the first key field of t
+	 * shares with that of prev, or 0 if there is no tuple before t
+	 */
+	private int sharedPrefix(Tuple t, Tuple prev) {
+		if (prev == null)
+			return 0;
+		String s = ((StringField) t.getField(keyField)).getValue();
+		String p = ((StringField) prev.getField(keyField)).getValue();
+		int n = Math.min(s.length(), p.length());
+		int i = 0;
+		while (i < n && s.charAt(i) == p.charAt(i))
+			i++;
+		return i;
+	}
+
+	/**
+	 * @return the number of bytes tuple t is stored in on a compressed page,
+	 * following tuple prev, or following no tuple if prev is null
+	 */
+	private int storedSize(Tuple t, Tuple prev) {
+		boolean duplicate = (prev != null && sameKey(t, prev));
+		int size = 0;
+		for (int j=0; j<td.numFields(); j++) {
+			if (!duplicate || !isKeyField(j))
+				size += keySize(t.getField(j));
+		}
+		if (!duplicate && isPrefixed())
+			size += 1 - sharedPrefix(t, prev);
+		return size;
+	}
+
+	/**
+	 * @return the most bytes a tuple is stored in on a compressed page
+	 */
+	private int getTupleUnit() {
+		return td.getSize() + (isPrefixed() ? 1 : 0);
+	}
+
+	/**
+	 * @return the number of slots of a compressed page: as many of the smallest
+	 * tuples as fit on it, each taking the bytes of the fields other than the
+	 * key, but at least one, and a bit in each header bitmap
+	 */
+	private int getNumSlots() {
+		int minSize = 0;
+		for (int j=0; j<td.numFields(); j++) {
+			if (!isKeyField(j))
+				minSize += (td.getFieldType(j) == Type.STRING_TYPE ? INDEX_SIZE : td.getFieldType(j).getLen());
+		}
+		int bits = (BufferPool.getPageSize() - 3 * INDEX_SIZE - maxKeySize()) * 8;
+		return bits / (Math.max(1, minSize) * 8 + 2);
+	}
+
+	/**
+	 * @return the number of bytes of a compressed page its tuples may take up:
+	 * a whole number of tuples of the largest size, so that two pages less than
+	 * half full always fit on one
+	 */
+	private int getCapacity() {
+		return getMaxTuples() * getTupleUnit();
+	}
+
+	/**
+	 * @return the share of the capacity of a compressed page each slot stands for
+	 */
+	private int getSlotSize() {
+		return (getCapacity() + numSlots - 1) / numSlots;
+	}
+
+	/**
+	 * Returns the number of bytes the tuples of this page take up. Every tuple
+	 * of a compressed page takes up at least the share of one slot, so that a
+	 * page whose tuples fit never runs out of slots.
+	 */
+	int getUsedBytes() {
+		int n = 0;
+		int bytes = 0;
+		Tuple prev = null;
+		for (int i=0; i<numSlots; i++) {
+			if (isSlotUsed(i)) {
+				n++;
+				if (compressed)
+					bytes += storedSize(tuples[i], prev);
+				prev = tuples[i];
+			}
+		}
+		if (!compressed)
+			return n * td.getSize();
+		return Math.max(bytes, n * getSlotSize());
+	}
+
 	/** 
-	 * Retrieve the maximum number of tuples this page can hold.
+	 * Retrieve the maximum number of tuples this page can hold. A compressed
+	 * page may hold more, as this is the number of tuples of the largest size
+	 * which fit on it.
 	 */
 	public int getMaxTuples() {        
+		if (compressed) {
+			int bytes = BufferPool.getPageSize() - 3 * INDEX_SIZE - maxKeySize() - 2 * getHeaderSize();
+			return bytes / getTupleUnit();
+		}
 		int bitsPerTupleIncludingHeader = td.getSize() * 8 + 1;
-		// extraBits are: left sibling pointer, right sibling pointer, parent pointer
-		int extraBits = 3 * INDEX_SIZE * 8; 
+		// extraBits are: left sibling pointer, right sibling pointer, parent pointer, high key
+		int extraBits = 3 * INDEX_SIZE * 8 + maxKeySize() * 8; 
 		int tuplesPerPage = (BufferPool.getPageSize()*8 - extraBits) / bitsPerTupleIncludingHeader; //round down
 		return tuplesPerPage;
 	}
@@ -121,9 +404,8 @@ public class BTreeLeafPage extends BTreePage {
 	 * Computes the number of bytes in the header of a page in a BTreeFile with each tuple occupying tupleSize bytes
 	 */
 	private int getHeaderSize() {        
-		int tuplesPerPage = getMaxTuples();
-		int hb = (tuplesPerPage / 8);
-		if (hb * 8 < tuplesPerPage) hb++;
+		int hb = (numSlots / 8);
+		if (hb * 8 < numSlots) hb++;
 
 		return hb;
 	}
@@ -137,7 +419,7 @@ public class BTreeLeafPage extends BTreePage {
 			{
 				oldDataRef = oldData;
 			}
-			return new BTreeLeafPage(pid,oldDataRef,keyField);
+			return new BTreeLeafPage(pid,oldDataRef,keyFields,compressed);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -223,6 +505,17 @@ public class BTreeLeafPage extends BTreePage {
 			e.printStackTrace();
 		}
 
+		if (compressed) {
+			try {
+				writeCompressed(dos);
+				dos.write(new byte[len - dos.size()]);
+				dos.flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return baos.toByteArray();
+		}
+
 		// create the header of the page
 		for (int i=0; i<header.length; i++) {
 			try {
@@ -261,8 +554,16 @@ public class BTreeLeafPage extends BTreePage {
 			}
 		}
 
+		// write out the high key, padded to the size of the largest key
+		int keyLen = maxKeySize();
+		try {
+			writeHighKey(dos);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
 		// padding
-		int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length + 3 * INDEX_SIZE); //- numSlots * td.getSize();
+		int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length + 3 * INDEX_SIZE + keyLen); //- numSlots * td.getSize();
 		byte[] zeroes = new byte[zerolen];
 		try {
 			dos.write(zeroes, 0, zerolen);
@@ -302,8 +603,8 @@ public class BTreeLeafPage extends BTreePage {
 	 * Adds the specified tuple to the page such that all records remain in sorted order;  
 	 * the tuple should be updated to reflect
 	 *  that it is now stored on this page.
-	 * @throws DbException if the page is full (no empty slots) or tupledesc
-	 *         is mismatch.
+	 * @throws DbException if the page is full (no empty slots, or no room for
+	 *         the tuple on a compressed page) or tupledesc is mismatch.
 	 * @param t The tuple to add.
 	 */
 	public void insertTuple(Tuple t) throws DbException {
@@ -324,10 +625,10 @@ public class BTreeLeafPage extends BTreePage {
 
 		// find the last key less than or equal to the key being inserted
 		int lessOrEqKey = -1;
-		Field key = t.getField(keyField);
+		Field key = keyOf(t);
 		for (int i=0; i<numSlots; i++) {
 			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
+				if(keyOf(tuples[i]).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
 					lessOrEqKey = i;
 				else
 					break;	
@@ -352,10 +653,15 @@ public class BTreeLeafPage extends BTreePage {
 
 		// insert new record into the correct spot in sorted order
 		markSlotUsed(goodSlot, true);
+		tuples[goodSlot] = t;
+		if (compressed && getUsedBytes() > getCapacity()) {
+			markSlotUsed(goodSlot, false);
+			tuples[goodSlot] = null;
+			throw new DbException("called addTuple on page with no room for the tuple.");
+		}
 		Debug.log(1, "BTreeLeafPage.insertTuple: new tuple, tableId = %d pageId = %d slotId = %d", pid.getTableId(), pid.getPageNumber(), goodSlot);
 		RecordId rid = new RecordId(pid, goodSlot);
 		t.setRecordId(rid);
-		tuples[goodSlot] = t;
 	}
 
 	/**
@@ -434,17 +740,50 @@ public class BTreeLeafPage extends BTreePage {
 		}
 	}
 
+	/**
+	 * Get the high key of this page, an upper bound on the keys of the tuples on it:
+	 * every tuple on the right sibling has a key greater than or equal to it. A search
+	 * for a key greater than the high key belongs to a page further right, which lets
+	 * readers that reached this page before it was split recover by following the
+	 * right sibling pointer.
+	 * @return the high key, or null if this page has no right sibling
+	 */
+	public Field getHighKey() {
+		return (rightSibling == 0 ? null : highKey);
+	}
+
+	/**
+	 * Set the high key of this page. It must be kept equal to the key separating this
+	 * page from its right sibling in their lowest common ancestor.
+	 * @param key - the new high key, or null if this page has no right sibling
+	 * @throws DbException if the key type does not match the key field
+	 */
+	public void setHighKey(Field key) throws DbException {
+		if(key != null && !isKey(key)) {
+			throw new DbException("key field type mismatch in setHighKey");
+		}
+		highKey = key;
+	}
+
 	/**
 	 * Returns the number of tuples currently stored on this page
 	 */
 	public int getNumTuples() {
-		return numSlots - getNumEmptySlots();
+		int cnt = 0;
+		for(int i=0; i<numSlots; i++)
+			if(isSlotUsed(i))
+				cnt++;
+		return cnt;
 	}
 
 	/**
-	 * Returns the number of empty slots on this page.
+	 * Returns the number of empty slots on this page. On a compressed page,
+	 * this is the number of tuples of the largest size which still fit.
 	 */
 	public int getNumEmptySlots() {
+		if (compressed) {
+			return (getCapacity() - getUsedBytes()) / getTupleUnit();
+		}
 		int cnt = 0;
 		for(int i=0; i<numSlots; i++)
 			if(!isSlotUsed(i))
@@ -575,7 +914,7 @@ class BTreeLeafPageReverseIterator implements Iterator<Tuple> {
 
 	public BTreeLeafPageReverseIterator(BTreeLeafPage p) {
 		this.p = p;
-		this.curTuple = p.getMaxTuples() - 1;
+		this.curTuple = p.numSlots - 1;
 	}
 
 	public boolean hasNext() {
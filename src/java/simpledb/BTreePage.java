@@ -18,7 +18,8 @@ public abstract class BTreePage implements Page {
 
 	protected final BTreePageId pid;
 	protected final TupleDesc td;
-	protected final int keyField;
+	protected final int[] keyFields;
+	protected final int keyField; // the first of the key fields
 
 	protected int parent; // parent is always internal node or 0 for root node
 	protected byte[] oldData;
@@ -49,11 +50,159 @@ public abstract class BTreePage implements Page {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreePage(BTreePageId id, int key) throws IOException {
+		this(id, new int[] { key });
+	}
+
+	/**
+	 * Create a page of a B+ tree keyed on several fields, whose keys are
+	 * {@link CompositeField}s ordered by these fields in turn.
+	 *
+	 * @param id - the id of this page
+	 * @param keys - the fields which the index is keyed on
+	 */
+	public BTreePage(BTreePageId id, int[] keys) throws IOException {
 		this.pid = id;
-		this.keyField = key;
+		this.keyFields = keys.clone();
+		this.keyField = keys[0];
 		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
 	}
 
+	/**
+	 * @return the key of a tuple of a B+ tree keyed on the given fields: the
+	 * key field itself, or a CompositeField of the key fields
+	 */
+	static Field keyOf(Tuple t, int[] keyFields) {
+		if(keyFields.length == 1) {
+			return t.getField(keyFields[0]);
+		}
+		Field[] fields = new Field[keyFields.length];
+		for(int i = 0; i < fields.length; i++) {
+			fields[i] = t.getField(keyFields[i]);
+		}
+		return new CompositeField(fields);
+	}
+
+	/**
+	 * @return the key of a tuple stored in this tree
+	 */
+	protected Field keyOf(Tuple t) {
+		return keyOf(t, keyFields);
+	}
+
+	/**
+	 * @return true if the key is a key of this tree: a field of the type of the
+	 * key field, or a composite field whose components have the types of the
+	 * first key fields
+	 */
+	protected boolean isKey(Field key) {
+		if(keyFields.length == 1) {
+			return !(key instanceof CompositeField) && key.getType().equals(td.getFieldType(keyField));
+		}
+		if(!(key instanceof CompositeField) || ((CompositeField) key).numFields() > keyFields.length) {
+			return false;
+		}
+		CompositeField c = (CompositeField) key;
+		for(int i = 0; i < c.numFields(); i++) {
+			if(!c.getField(i).getType().equals(td.getFieldType(keyFields[i]))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Keys are stored in as few bytes as they need: an int in 4 bytes, a string
+	 * as its length followed by its characters, and a composite key as its number
+	 * of components in one byte followed by each component.
+	 *
+	 * @return the number of bytes a key is stored in
+	 */
+	static int keySize(Field key) {
+		if(key instanceof CompositeField) {
+			CompositeField c = (CompositeField) key;
+			int size = 1;
+			for(int i = 0; i < c.numFields(); i++) {
+				size += keySize(c.getField(i));
+			}
+			return size;
+		}
+		if(key instanceof StringField) {
+			return INDEX_SIZE + ((StringField) key).getValue().length();
+		}
+		return key.getType().getLen();
+	}
+
+	/**
+	 * @return the largest number of bytes a key of this tree is stored in
+	 */
+	protected int maxKeySize() {
+		if(keyFields.length == 1) {
+			return td.getFieldType(keyField).getLen();
+		}
+		int size = 1;
+		for(int f : keyFields) {
+			size += td.getFieldType(f).getLen();
+		}
+		return size;
+	}
+
+	/**
+	 * @return the smallest number of bytes a key of this tree is stored in; a
+	 * composite key has at least its first component
+	 */
+	protected int minKeySize() {
+		int size = (td.getFieldType(keyField) == Type.STRING_TYPE ? INDEX_SIZE : td.getFieldType(keyField).getLen());
+		return keyFields.length == 1 ? size : size + 1;
+	}
+
+	/**
+	 * Write a key in {@link #keySize(Field)} bytes.
+	 */
+	static void writeKey(DataOutputStream dos, Field key) throws IOException {
+		if(key instanceof CompositeField) {
+			CompositeField c = (CompositeField) key;
+			dos.writeByte(c.numFields());
+			for(int i = 0; i < c.numFields(); i++) {
+				writeKey(dos, c.getField(i));
+			}
+		}
+		else if(key instanceof StringField) {
+			String s = ((StringField) key).getValue();
+			dos.writeInt(s.length());
+			dos.writeBytes(s);
+		}
+		else {
+			key.serialize(dos);
+		}
+	}
+
+	/**
+	 * Read a key written by {@link #writeKey(DataOutputStream, Field)}.
+	 */
+	protected Field readKey(DataInputStream dis) throws IOException {
+		if(keyFields.length == 1) {
+			return readKeyField(dis, td.getFieldType(keyField));
+		}
+		Field[] fields = new Field[dis.readUnsignedByte()];
+		for(int i = 0; i < fields.length; i++) {
+			fields[i] = readKeyField(dis, td.getFieldType(keyFields[i]));
+		}
+		return new CompositeField(fields);
+	}
+
+	/**
+	 * Read one field of a key, or any int or string field, written by
+	 * {@link #writeKey(DataOutputStream, Field)}.
+	 */
+	static Field readKeyField(DataInputStream dis, Type type) throws IOException {
+		if(type == Type.STRING_TYPE) {
+			byte[] bs = new byte[dis.readInt()];
+			dis.readFully(bs);
+			return new StringField(new String(bs), Type.STRING_LEN);
+		}
+		return new IntField(dis.readInt());
+	}
+
 	/**
 	 * @return the PageId associated with this page.
 	 */
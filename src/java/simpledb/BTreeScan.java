@@ -17,6 +17,7 @@ public class BTreeScan implements OpIterator {
 	private transient DbFileIterator it;
 	private String tablename;
 	private String alias;
+	private int keyField;
 
 	/**
 	 * Creates a B+ tree scan over the specified table as a part of the
@@ -76,6 +77,7 @@ public class BTreeScan implements OpIterator {
 		this.isOpen=false;
 		this.alias = tableAlias;
 		this.tablename = Database.getCatalog().getTableName(tableid);
+		this.keyField = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).keyField();
 		if(ipred == null) {
 			this.it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
 		}
@@ -139,6 +141,14 @@ public class BTreeScan implements OpIterator {
 		isOpen = false;
 	}
 
+	/**
+	 * Both the full scan and the index iterator return tuples in ascending
+	 * key order.
+	 */
+	public SortOrder getSortOrder() {
+		return new SortOrder(keyField, true);
+	}
+
 	public void rewind() throws DbException, NoSuchElementException,
 	TransactionAbortedException {
 		close();
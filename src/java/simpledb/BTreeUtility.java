@@ -278,7 +278,9 @@ public class BTreeUtility {
 	 */
 	public static int getNumTuplesPerPage(int columns) {
 		int bytesPerTuple = Type.INT_TYPE.getLen() * columns * 8;
-		int tuplesPerPage = (BufferPool.getPageSize() * 8 - 3 * BTreeLeafPage.INDEX_SIZE * 8) /  (bytesPerTuple + 1);
+		// pointerbytes: left sibling pointer, right sibling pointer, parent pointer, high key
+		int pointerBytes = 3 * BTreeLeafPage.INDEX_SIZE + Type.INT_TYPE.getLen();
+		int tuplesPerPage = (BufferPool.getPageSize() * 8 - pointerBytes * 8) /  (bytesPerTuple + 1);
 		return tuplesPerPage;
 	}
 	
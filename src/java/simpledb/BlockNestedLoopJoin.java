@@ -0,0 +1,166 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * BlockNestedLoopJoin is a Join that buffers a block of outer tuples in memory
+ * and scans the inner relation once per block instead of once per outer
+ * tuple. The block is sized in pages, so an outer relation of P pages costs
+ * about P / blockPages scans of the inner relation.
+ * <p>
+ * Any JoinPredicate operator is supported, so this is the join to use for
+ * range and band predicates that HashEquiJoin cannot handle.
+ */
+public class BlockNestedLoopJoin extends Join {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default number of outer pages buffered per block */
+    public static final int DEFAULT_BLOCK_PAGES = 10;
+
+    private final TupleDesc comboTD;
+    private final int blockPages;
+
+    transient private Tuple[] block;
+    transient private int blockLen = 0;
+    transient private int blockPos = 0;
+    transient private Tuple innerTuple = null;
+
+    /**
+     * Constructor. Accepts two children to join and the predicate to join them
+     * on, buffering DEFAULT_BLOCK_PAGES pages of outer tuples per block.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     */
+    public BlockNestedLoopJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, DEFAULT_BLOCK_PAGES);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     * @param blockPages
+     *            The number of pages worth of outer tuples to buffer per block
+     */
+    public BlockNestedLoopJoin(JoinPredicate p, OpIterator child1, OpIterator child2, int blockPages) {
+        super(p, child1, child2);
+        if (blockPages <= 0)
+            throw new IllegalArgumentException("block must hold at least one page");
+        this.blockPages = blockPages;
+        this.comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /**
+     * @return the number of outer tuples that fit in one block
+     */
+    public int getBlockSize() {
+        // same layout as HeapPage: one header bit plus the tuple bytes per slot
+        int tupleBits = child1.getTupleDesc().getSize() * 8 + 1;
+        int tuplesPerPage = Math.max(1, (BufferPool.getPageSize() * 8) / tupleBits);
+        return blockPages * tuplesPerPage;
+    }
+
+    @Override
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    /**
+     * Output is grouped by block, so the outer order is not preserved.
+     */
+    @Override
+    public SortOrder getSortOrder() {
+        return null;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        super.open();
+        block = new Tuple[getBlockSize()];
+        blockLen = 0;
+        blockPos = 0;
+        innerTuple = null;
+    }
+
+    public void close() {
+        super.close();
+        block = null;
+        innerTuple = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        super.rewind();
+        blockLen = 0;
+        blockPos = 0;
+        innerTuple = null;
+    }
+
+    /**
+     * Fill the block with the next outer tuples and restart the inner scan.
+     *
+     * @return false if the outer relation is exhausted
+     */
+    private boolean loadBlock() throws DbException, TransactionAbortedException {
+        blockLen = 0;
+        while (blockLen < block.length && child1.hasNext()) {
+            block[blockLen++] = child1.next();
+        }
+        if (blockLen == 0)
+            return false;
+        child2.rewind();
+        return true;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. For every inner tuple the whole outer block is tested
+     * against the predicate, so output is grouped by block and then by inner
+     * tuple rather than by outer tuple.
+     *
+     * @return The next matching tuple.
+     * @see JoinPredicate#filter
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (innerTuple == null) {
+                if (blockLen > 0 && child2.hasNext()) {
+                    innerTuple = child2.next();
+                } else if (loadBlock() && child2.hasNext()) {
+                    innerTuple = child2.next();
+                } else {
+                    return null;
+                }
+                blockPos = 0;
+            }
+            while (blockPos < blockLen) {
+                Tuple outer = block[blockPos++];
+                if (joinPredicate.filter(outer, innerTuple))
+                    return mergeTuples(outer, innerTuple);
+            }
+            innerTuple = null;
+        }
+    }
+
+    private Tuple mergeTuples(Tuple outer, Tuple inner) {
+        int n1 = child1.getTupleDesc().numFields();
+        int n2 = child2.getTupleDesc().numFields();
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < n1; i++)
+            t.setField(i, outer.getField(i));
+        for (int i = 0; i < n2; i++)
+            t.setField(n1 + i, inner.getField(i));
+        return t;
+    }
+
+}
@@ -0,0 +1,84 @@
+package simpledb;
+
+/**
+ * BloomFilter is a set of int keys that may answer "maybe" for keys that were
+ * never added, but never answers "no" for a key that was.
+ * <p>
+ * The filter uses BITS_PER_KEY bits per key and NUM_HASHES bit positions per
+ * key, derived from two halves of one 64-bit hash, which gives a false
+ * positive rate of about 1%.
+ */
+public class BloomFilter implements java.io.Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int BITS_PER_KEY = 10;
+    private static final int NUM_HASHES = 6;
+
+    private final long[] bits;
+    private final int mask;
+
+    /**
+     * Constructor.
+     *
+     * @param expectedKeys
+     *            the number of keys the filter is sized for; adding more only
+     *            raises the false positive rate
+     */
+    public BloomFilter(int expectedKeys) {
+        long wanted = Math.max(64L, (long) expectedKeys * BITS_PER_KEY);
+        int n = (int) Math.min(1L << 30, Long.highestOneBit(wanted - 1) << 1);
+        bits = new long[n / 64];
+        mask = n - 1;
+    }
+
+    /**
+     * @return the filter holding the first n keys of an array
+     */
+    public static BloomFilter of(int[] keys, int n) {
+        BloomFilter f = new BloomFilter(n);
+        for (int i = 0; i < n; i++)
+            f.add(keys[i]);
+        return f;
+    }
+
+    private static long hash(int key) {
+        // the splitmix64 finalizer
+        long h = key * 0x9E3779B97F4A7C15L;
+        h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+        return h ^ (h >>> 31);
+    }
+
+    public void add(int key) {
+        long h = hash(key);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32) | 1;
+        for (int i = 0; i < NUM_HASHES; i++) {
+            int bit = (h1 + i * h2) & mask;
+            bits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    /**
+     * @return false if key was certainly never added
+     */
+    public boolean mightContain(int key) {
+        long h = hash(key);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32) | 1;
+        for (int i = 0; i < NUM_HASHES; i++) {
+            int bit = (h1 + i * h2) & mask;
+            if ((bits[bit >>> 6] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the size of the filter in bits
+     */
+    public int numBits() {
+        return mask + 1;
+    }
+}
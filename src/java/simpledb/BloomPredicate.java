@@ -0,0 +1,65 @@
+package simpledb;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * BloomPredicate passes the tuples whose field may be one of the join keys
+ * in a BloomFilter. A HashEquiJoin pushes one into the scan on its probe side
+ * and fills it in every time it reads its build side, so probe tuples that
+ * cannot join are dropped on the pages, before they are deserialized. Until
+ * the filter is set, every tuple passes.
+ * <p>
+ * Fields are compared by their join key ({@link HashEquiJoin#keyOf}), the int
+ * value for int fields and the hash code for others.
+ */
+public class BloomPredicate extends Predicate {
+
+    private static final long serialVersionUID = 1L;
+
+    transient private volatile BloomFilter filter = null;
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * Constructor.
+     *
+     * @param field
+     *            the field holding the join key of passed in tuples
+     */
+    public BloomPredicate(int field) {
+        super(field, Op.EQUALS, null);
+    }
+
+    /**
+     * Replace the filter tuples are tested against; null lets every tuple
+     * pass.
+     */
+    public void setFilter(BloomFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * @return the number of tuples this predicate has rejected
+     */
+    public long numDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Test a join key, counting it if it is rejected.
+     */
+    boolean filter(int key) {
+        BloomFilter f = filter;
+        if (f == null || f.mightContain(key))
+            return true;
+        dropped.increment();
+        return false;
+    }
+
+    public boolean filter(Tuple t) {
+        return filter(HashEquiJoin.keyOf(t.getField(getField())));
+    }
+
+    public String toString() {
+        return "f = " + getField() + " op = bloom";
+    }
+}
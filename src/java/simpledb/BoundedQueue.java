@@ -0,0 +1,140 @@
+package simpledb;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * BoundedQueue is a fixed-capacity queue for any number of producer and
+ * consumer threads that never takes a lock.
+ * <p>
+ * Items are kept in a ring of slots. Every slot carries a sequence number
+ * telling whether it is ready to be written for position p (sequence == p) or
+ * to be read for position p (sequence == p + 1). Producers and consumers claim
+ * a position with a compare-and-set on the tail or head counter, then hand the
+ * slot over by advancing its sequence number, so a thread never waits for
+ * another one to release anything.
+ */
+public class BoundedQueue<T> {
+
+    /** Busy-wait iterations in take() before yielding the processor */
+    private static final int SPINS = 100;
+    /** Yields in take() before parking between polls */
+    private static final int YIELDS = 10;
+    private static final long PARK_NANOS = 50000;
+
+    private final AtomicReferenceArray<T> items;
+    private final AtomicLongArray sequence;
+    private final int mask;
+    /** the next position to read */
+    private final AtomicLong head = new AtomicLong();
+    /** the next position to write */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param capacity
+     *            the minimum number of items the queue can hold; it is
+     *            rounded up to a power of two
+     */
+    public BoundedQueue(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive");
+        int n = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        items = new AtomicReferenceArray<T>(n);
+        sequence = new AtomicLongArray(n);
+        for (int i = 0; i < n; i++)
+            sequence.set(i, i);
+        mask = n - 1;
+    }
+
+    /**
+     * @return the number of items the queue can hold
+     */
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * @return the number of items in the queue; only a hint while other
+     *         threads are using it
+     */
+    public int size() {
+        long n = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(n, capacity()));
+    }
+
+    /**
+     * Add an item to the tail of the queue if there is room for it.
+     *
+     * @return false if the queue is full
+     */
+    public boolean offer(T item) {
+        if (item == null)
+            throw new NullPointerException();
+        while (true) {
+            long pos = tail.get();
+            int i = (int) pos & mask;
+            long diff = sequence.get(i) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    items.set(i, item);
+                    sequence.set(i, pos + 1);
+                    return true;
+                }
+            } else if (diff < 0) {
+                // the slot still holds the item from one lap ago
+                return false;
+            }
+            // another producer claimed the position first; try the next one
+        }
+    }
+
+    /**
+     * Remove the item at the head of the queue.
+     *
+     * @return the item, or null if the queue is empty
+     */
+    public T poll() {
+        while (true) {
+            long pos = head.get();
+            int i = (int) pos & mask;
+            long diff = sequence.get(i) - (pos + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    T item = items.get(i);
+                    items.set(i, null);
+                    sequence.set(i, pos + mask + 1);
+                    return item;
+                }
+            } else if (diff < 0) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Remove the item at the head of the queue, waiting for one to arrive if
+     * the queue is empty. The caller spins briefly, then yields, then parks
+     * for short intervals, so a producer never has to wake it up.
+     *
+     * @throws InterruptedException
+     *             if the calling thread is interrupted while waiting
+     */
+    public T take() throws InterruptedException {
+        int waits = 0;
+        T item;
+        while ((item = poll()) == null) {
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            if (waits >= SPINS + YIELDS)
+                LockSupport.parkNanos(PARK_NANOS);
+            else if (waits >= SPINS)
+                Thread.yield();
+            waits++;
+        }
+        return item;
+    }
+}
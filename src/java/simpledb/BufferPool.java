@@ -125,16 +125,50 @@ public class BufferPool {
             }
         }
 
-        if(pagesMap.containsKey(pid)){
-            return pagesMap.get(pid);
+        return fetchPage(pid);
+    }
+
+    /**
+     * Acquire a lock on the specified page for the transaction if it is free,
+     * without waiting for it or retrieving the page.
+     *
+     * @param tid the ID of the transaction requesting the lock
+     * @param pid the ID of the page to lock
+     * @param perm the requested permissions on the page
+     * @return true if the transaction holds the lock
+     */
+    public boolean tryLockPage(TransactionId tid, PageId pid, Permissions perm) {
+        return lockManager.acquireLock(tid, pid, perm);
+    }
+
+    /**
+     * Retrieve the specified page like {@link #getPage}, but without
+     * acquiring a lock on it for any transaction. Callers must make sure the
+     * page is not modified while they use it by other means; B+ trees latch
+     * their internal pages while navigating through them this way.
+     *
+     * @param pid the ID of the requested page
+     */
+    public Page fetchPage(PageId pid) throws DbException {
+        Page page = pagesMap.get(pid);
+        if(page != null){
+            return page;
         }
         DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
-        Page page = dbFile.readPage(pid);
-        if(this.pagesMap.size()>=maxPageNum) {
-            evictPage();
-        }
+        page = dbFile.readPage(pid);
+        // two threads may read the same page at once; keep the first copy
+        // cached, so that changes made to it are not lost
+        synchronized (this) {
+            Page cached = pagesMap.get(pid);
+            if(cached != null){
+                return cached;
+            }
+            if(this.pagesMap.size()>=maxPageNum) {
+                evictPage();
+            }
 //            throw new DbException("Eviction policy need to be implemented");
-        pagesMap.put(pid, page);
+            pagesMap.put(pid, page);
+        }
         return page;
     }
 
@@ -171,6 +205,15 @@ public class BufferPool {
         return lockManager.getLock(tid, p) != null;
     }
 
+    /**
+     * Return true if the buffer pool holds a copy of the specified page with
+     * changes that have not been written to disk yet
+     */
+    public boolean isDirty(PageId pid) {
+        Page page = pagesMap.get(pid);
+        return page != null && page.isDirty() != null;
+    }
+
     /**
      * Commit or abort a given transaction; release all locks associated to
      * the transaction.
@@ -188,12 +231,8 @@ public class BufferPool {
         else{
             revertPages(tid);
         }
-        // release the pages that is locked by the
-        for(PageId pid : pagesMap.keySet()) {
-            if(holdsLock(tid, pid)) {
-                releasePage(tid, pid);
-            }
-        }
+        // release the locks of the transaction, also on the pages evicted since
+        lockManager.releaseLocks(tid);
     }
 
     /**
@@ -223,6 +262,8 @@ public class BufferPool {
      * been dirtied to the cache (replacing any existing versions of those pages) so
      * that future requests see up-to-date pages.
      *
+     * The secondary indexes on the table are given an entry for the tuple.
+     *
      * @param tid the transaction adding the tuple
      * @param tableId the table to add the tuple to
      * @param t the tuple to add
@@ -233,6 +274,8 @@ public class BufferPool {
         // not necessary for lab1
         DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
         ArrayList<Page> pages = dbFile.insertTuple(tid, t);
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId))
+            pages.addAll(index.insertTuple(tid, t));
         for(Page page: pages){
             page.markDirty(true, tid);
             pagesMap.put(page.getId(), page);
@@ -249,6 +292,9 @@ public class BufferPool {
      * been dirtied to the cache (replacing any existing versions of those pages) so
      * that future requests see up-to-date pages.
      *
+     * The entries for the tuple are removed from the secondary indexes on
+     * its table.
+     *
      * @param tid the transaction deleting the tuple.
      * @param t the tuple to delete
      */
@@ -259,6 +305,8 @@ public class BufferPool {
         int tableId = t.getRecordId().getPageId().getTableId();
         DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
         ArrayList<Page> pages = dbFile.deleteTuple(tid, t);
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId))
+            pages.addAll(index.deleteTuple(tid, t));
         for(Page page: pages){
             page.markDirty(true, tid);
             pagesMap.put(page.getId(), page);
@@ -276,7 +324,14 @@ public class BufferPool {
         for(Page page: pagesMap.values()){
             flushPage(page.getId());
         }
-
+        // with every page written, the zone maps describe the files on disk
+        Iterator<Integer> tableIds = Database.getCatalog().tableIdIterator();
+        while(tableIds.hasNext()){
+            DbFile dbFile = Database.getCatalog().getDatabaseFile(tableIds.next());
+            if(dbFile instanceof HeapFile){
+                ((HeapFile) dbFile).saveZoneMap();
+            }
+        }
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -6,6 +6,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The Catalog keeps track of all available tables in the database and their
@@ -66,6 +67,21 @@ public class Catalog {
 
     private LinkedList<Table> tableList;
     private LinkedList<Integer> tableIdList;
+    /** secondary indexes by the id of the indexed table; the lists are never modified once stored */
+    private final ConcurrentHashMap<Integer, List<SecondaryIndex>> indexes =
+            new ConcurrentHashMap<Integer, List<SecondaryIndex>>();
+
+    /** shared by all catalogs, so that a new catalog never reuses a version */
+    private static final AtomicInteger versions = new AtomicInteger();
+    private volatile int version = versions.incrementAndGet();
+
+    /**
+     * @return a number that changes whenever tables are added to or removed
+     *         from this catalog, and that no other catalog has had
+     */
+    public int getVersion() {
+        return version;
+    }
 
     /**
      * Constructor.
@@ -112,6 +128,7 @@ public class Catalog {
         }
         this.tableList.add(new Table(file, name, pkeyField));
         this.tableIdList.add(file.getId());
+        version = versions.incrementAndGet();
     }
 
     public void addTable(DbFile file, String name) {
@@ -210,6 +227,82 @@ public class Catalog {
         return null;
     }
 
+    /**
+     * Add a secondary index to the catalog. Its BTreeFile is added as a table
+     * with the given name, and from now on every tuple inserted into or
+     * deleted from the indexed table by the BufferPool updates the index.
+     *
+     * @param index the index to add
+     * @param name  the name of the index -- may not be null
+     */
+    public void addIndex(SecondaryIndex index, String name) {
+        addTable(index.getIndexFile(), name, "");
+        synchronized (indexes) {
+            List<SecondaryIndex> old = indexes.get(index.getTableId());
+            ArrayList<SecondaryIndex> updated = new ArrayList<SecondaryIndex>();
+            if (old != null)
+                updated.addAll(old);
+            updated.add(index);
+            indexes.put(index.getTableId(), Collections.unmodifiableList(updated));
+        }
+        version = versions.incrementAndGet();
+    }
+
+    /**
+     * @return the secondary indexes on the table with the given id; empty if
+     *         it has none
+     */
+    public List<SecondaryIndex> getIndexes(int tableid) {
+        List<SecondaryIndex> result = indexes.get(tableid);
+        return result == null ? Collections.<SecondaryIndex>emptyList() : result;
+    }
+
+    /**
+     * @return a secondary index on a field of the table with the given id, or
+     *         null if the field is not indexed
+     */
+    public SecondaryIndex getIndex(int tableid, int field) {
+        for (SecondaryIndex index : getIndexes(tableid)) {
+            if (index.getKeyField() == field)
+                return index;
+        }
+        return null;
+    }
+
+    /**
+     * Delete a table from the catalog, with the secondary indexes on it. If
+     * the table is the BTreeFile of a secondary index, the index is removed.
+     * Does nothing if there is no table with the given id.
+     *
+     * @param tableid The id of the table, as specified by the DbFile.getId()
+     *                function passed to addTable
+     */
+    public void removeTable(int tableid) {
+        for (int i = this.tableList.size() - 1; i >= 0; i--) {
+            if (tableid == this.tableList.get(i).getTableId()) {
+                this.tableList.remove(i);
+                this.tableIdList.remove(i);
+            }
+        }
+        synchronized (indexes) {
+            List<SecondaryIndex> dropped = indexes.remove(tableid);
+            if (dropped != null) {
+                for (SecondaryIndex index : dropped)
+                    removeTable(index.getIndexFile().getId());
+            }
+            for (Map.Entry<Integer, List<SecondaryIndex>> e : indexes.entrySet()) {
+                ArrayList<SecondaryIndex> kept = new ArrayList<SecondaryIndex>();
+                for (SecondaryIndex index : e.getValue()) {
+                    if (index.getIndexFile().getId() != tableid)
+                        kept.add(index);
+                }
+                if (kept.size() < e.getValue().size())
+                    e.setValue(Collections.unmodifiableList(kept));
+            }
+        }
+        version = versions.incrementAndGet();
+    }
+
     /**
      * Delete all tables from the catalog
      */
@@ -217,6 +310,8 @@ public class Catalog {
         // some code goes here
         this.tableList = new LinkedList<>();
         this.tableIdList = new LinkedList<>();
+        this.indexes.clear();
+        version = versions.incrementAndGet();
     }
 
     /**
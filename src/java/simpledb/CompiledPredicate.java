@@ -0,0 +1,310 @@
+package simpledb;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.NoSuchElementException;
+
+/**
+ * CompiledPredicate evaluates a conjunction of Predicates with a chain of
+ * MethodHandles, built once when a plan is opened.
+ * <p>
+ * Every predicate becomes a pair of handles, one testing a Tuple and one
+ * testing a tuple serialized in a page, and a conjunction joins them with
+ * {@link MethodHandles#guardWithTest}, so that later predicates only run on
+ * tuples that pass the earlier ones. A comparison of an int field with an int
+ * constant binds the field's index, its offset within a serialized tuple, the
+ * constant and a static comparison method for its operator into the handles,
+ * so neither form of evaluation switches on the operator, goes through
+ * {@link Field#compare}, or creates a Field. Serialized tuples are tested in
+ * place, which lets HeapPage deserialize only the tuples that match. Other
+ * predicates are evaluated with Field.compare as before.
+ */
+public final class CompiledPredicate {
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private static final MethodType TUPLE_TEST = MethodType.methodType(boolean.class, Tuple.class);
+    private static final MethodType DATA_TEST = MethodType.methodType(boolean.class, byte[].class, int.class);
+
+    /** (int, int)boolean, one per IntComparison, indexed by ordinal */
+    private static final MethodHandle[] COMPARISONS = new MethodHandle[IntComparison.values().length];
+    /** (int field, Tuple)int */
+    private static final MethodHandle INT_FIELD;
+    /** (int offset, byte[] data, int off)int */
+    private static final MethodHandle INT_AT;
+    /** (Predicate, int offset, Type, byte[] data, int off)boolean */
+    private static final MethodHandle FIELD_AT;
+    /** (BloomPredicate, int offset, Type, byte[] data, int off)boolean */
+    private static final MethodHandle BLOOM_AT;
+    /** Predicate.filter(Tuple) */
+    private static final MethodHandle FILTER;
+    /** BloomPredicate.filter(int) */
+    private static final MethodHandle BLOOM_KEY;
+
+    static {
+        MethodType cmp = MethodType.methodType(boolean.class, int.class, int.class);
+        MethodType fieldAt = MethodType.methodType(boolean.class, Predicate.class, int.class, Type.class,
+                byte[].class, int.class);
+        try {
+            for (IntComparison c : IntComparison.values())
+                COMPARISONS[c.ordinal()] = LOOKUP.findStatic(CompiledPredicate.class, c.method, cmp);
+            INT_FIELD = LOOKUP.findStatic(CompiledPredicate.class, "intField",
+                    MethodType.methodType(int.class, int.class, Tuple.class));
+            INT_AT = LOOKUP.findStatic(CompiledPredicate.class, "intAt",
+                    MethodType.methodType(int.class, int.class, byte[].class, int.class));
+            FIELD_AT = LOOKUP.findStatic(CompiledPredicate.class, "fieldAt", fieldAt);
+            BLOOM_AT = LOOKUP.findStatic(CompiledPredicate.class, "bloomAt",
+                    fieldAt.changeParameterType(0, BloomPredicate.class));
+            FILTER = LOOKUP.findVirtual(Predicate.class, "filter", TUPLE_TEST);
+            BLOOM_KEY = LOOKUP.findVirtual(BloomPredicate.class, "filter",
+                    MethodType.methodType(boolean.class, int.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /** The compiled form of an empty conjunction; every tuple matches */
+    public static final CompiledPredicate TRUE = new CompiledPredicate(constant(TUPLE_TEST, true),
+            constant(DATA_TEST, true));
+
+    /** (Tuple)boolean */
+    private final MethodHandle tupleTest;
+    /** (byte[] data, int off)boolean */
+    private final MethodHandle dataTest;
+
+    private CompiledPredicate(MethodHandle tupleTest, MethodHandle dataTest) {
+        this.tupleTest = tupleTest;
+        this.dataTest = dataTest;
+    }
+
+    /**
+     * @return true if the tuple satisfies every predicate
+     */
+    public boolean matches(Tuple t) {
+        try {
+            return (boolean) tupleTest.invokeExact(t);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            // no method in the chain declares a checked exception
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param data
+     *            a page holding a serialized tuple
+     * @param offset
+     *            the offset of the tuple in data
+     * @return true if the serialized tuple satisfies every predicate
+     */
+    boolean matches(byte[] data, int offset) {
+        try {
+            return (boolean) dataTest.invokeExact(data, offset);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Compile the conjunction of the given predicates over tuples of td.
+     */
+    public static CompiledPredicate compile(Predicate[] predicates, TupleDesc td) {
+        if (predicates.length == 0)
+            return TRUE;
+        int last = predicates.length - 1;
+        MethodHandle tupleTest = tupleTest(predicates[last], td);
+        MethodHandle dataTest = dataTest(predicates[last], td);
+        for (int i = last - 1; i >= 0; i--) {
+            tupleTest = and(tupleTest(predicates[i], td), tupleTest);
+            dataTest = and(dataTest(predicates[i], td), dataTest);
+        }
+        return new CompiledPredicate(tupleTest, dataTest);
+    }
+
+    /**
+     * @return a (Tuple)boolean handle testing p
+     */
+    private static MethodHandle tupleTest(Predicate p, TupleDesc td) {
+        if (isIntComparison(p, td))
+            return MethodHandles.filterReturnValue(MethodHandles.insertArguments(INT_FIELD, 0, p.getField()),
+                    comparison(p));
+        return FILTER.bindTo(p);
+    }
+
+    /**
+     * @return a (byte[], int)boolean handle testing p on a serialized tuple
+     */
+    private static MethodHandle dataTest(Predicate p, TupleDesc td) {
+        int field = p.getField();
+        int offset = td.getFieldOffset(field);
+        Type type = td.getFieldType(field);
+        MethodHandle intAt = MethodHandles.insertArguments(INT_AT, 0, offset);
+        if (p instanceof BloomPredicate) {
+            if (type == Type.INT_TYPE)
+                return MethodHandles.filterReturnValue(intAt, BLOOM_KEY.bindTo(p));
+            return MethodHandles.insertArguments(BLOOM_AT, 0, p, offset, type);
+        }
+        if (isIntComparison(p, td))
+            return MethodHandles.filterReturnValue(intAt, comparison(p));
+        return MethodHandles.insertArguments(FIELD_AT, 0, p, offset, type);
+    }
+
+    private static boolean isIntComparison(Predicate p, TupleDesc td) {
+        return !(p instanceof BloomPredicate) && td.getFieldType(p.getField()) == Type.INT_TYPE
+                && p.getOperand() instanceof IntField;
+    }
+
+    /**
+     * @return an (int)boolean handle comparing its argument with the int
+     *         operand of p
+     */
+    private static MethodHandle comparison(Predicate p) {
+        MethodHandle cmp = COMPARISONS[IntComparison.of(p.getOp()).ordinal()];
+        return MethodHandles.insertArguments(cmp, 1, ((IntField) p.getOperand()).getValue());
+    }
+
+    /**
+     * @return a handle of the given type returning a if it is false, and b
+     *         otherwise
+     */
+    private static MethodHandle and(MethodHandle a, MethodHandle b) {
+        return MethodHandles.guardWithTest(a, b, constant(a.type(), false));
+    }
+
+    /**
+     * @return a handle of the given type ignoring its arguments and returning
+     *         value
+     */
+    private static MethodHandle constant(MethodType type, boolean value) {
+        return MethodHandles.dropArguments(MethodHandles.constant(boolean.class, value), 0,
+                type.parameterList());
+    }
+
+    static int readInt(byte[] data, int off) {
+        return ((data[off] & 0xFF) << 24) | ((data[off + 1] & 0xFF) << 16)
+                | ((data[off + 2] & 0xFF) << 8) | (data[off + 3] & 0xFF);
+    }
+
+    static Field readField(byte[] data, int off, Type type) {
+        try {
+            return type.parse(new DataInputStream(new ByteArrayInputStream(data, off, type.getLen())));
+        } catch (java.text.ParseException e) {
+            e.printStackTrace();
+            throw new NoSuchElementException("parsing error!");
+        }
+    }
+
+    // the methods the handles are built from
+
+    private static int intField(int field, Tuple t) {
+        return ((IntField) t.getField(field)).getValue();
+    }
+
+    private static int intAt(int offset, byte[] data, int off) {
+        return readInt(data, off + offset);
+    }
+
+    private static boolean fieldAt(Predicate p, int offset, Type type, byte[] data, int off) {
+        return readField(data, off + offset, type).compare(p.getOp(), p.getOperand());
+    }
+
+    private static boolean bloomAt(BloomPredicate p, int offset, Type type, byte[] data, int off) {
+        return p.filter(HashEquiJoin.keyOf(readField(data, off + offset, type)));
+    }
+
+    private static boolean eq(int a, int b) {
+        return a == b;
+    }
+
+    private static boolean ne(int a, int b) {
+        return a != b;
+    }
+
+    private static boolean gt(int a, int b) {
+        return a > b;
+    }
+
+    private static boolean ge(int a, int b) {
+        return a >= b;
+    }
+
+    private static boolean lt(int a, int b) {
+        return a < b;
+    }
+
+    private static boolean le(int a, int b) {
+        return a <= b;
+    }
+
+    /**
+     * A comparison of two ints, one constant per Predicate.Op.
+     */
+    enum IntComparison {
+        EQUALS("eq") {
+            boolean test(int a, int b) {
+                return a == b;
+            }
+        },
+        NOT_EQUALS("ne") {
+            boolean test(int a, int b) {
+                return a != b;
+            }
+        },
+        GREATER_THAN("gt") {
+            boolean test(int a, int b) {
+                return a > b;
+            }
+        },
+        GREATER_THAN_OR_EQ("ge") {
+            boolean test(int a, int b) {
+                return a >= b;
+            }
+        },
+        LESS_THAN("lt") {
+            boolean test(int a, int b) {
+                return a < b;
+            }
+        },
+        LESS_THAN_OR_EQ("le") {
+            boolean test(int a, int b) {
+                return a <= b;
+            }
+        };
+
+        /** the static method of CompiledPredicate making this comparison */
+        final String method;
+
+        IntComparison(String method) {
+            this.method = method;
+        }
+
+        abstract boolean test(int a, int b);
+
+        /**
+         * @return the comparison IntField.compare makes for op; LIKE on ints
+         *         is equality
+         */
+        static IntComparison of(Predicate.Op op) {
+            switch (op) {
+            case EQUALS:
+            case LIKE:
+                return EQUALS;
+            case NOT_EQUALS:
+                return NOT_EQUALS;
+            case GREATER_THAN:
+                return GREATER_THAN;
+            case GREATER_THAN_OR_EQ:
+                return GREATER_THAN_OR_EQ;
+            case LESS_THAN:
+                return LESS_THAN;
+            default:
+                return LESS_THAN_OR_EQ;
+            }
+        }
+    }
+}
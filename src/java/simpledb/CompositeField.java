@@ -0,0 +1,142 @@
+package simpledb;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Instance of Field that stores the values of several fields of a tuple, the
+ * key of a B+ tree keyed on more than one field.
+ * <p>
+ * Composite fields are ordered lexicographically: by their first components,
+ * then by their second ones, and so on. A composite field whose components
+ * are the first components of a longer one is a prefix of it and sorts
+ * before it. B+ trees use such prefixes as separator keys, and searches for
+ * all the tuples whose key starts with some values.
+ */
+public class CompositeField implements Field {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Field[] fields;
+
+    /**
+     * Constructor.
+     *
+     * @param fields
+     *            the components of this field, at least one
+     */
+    public CompositeField(Field[] fields) {
+        if (fields.length == 0)
+            throw new IllegalArgumentException("a composite field needs at least one component");
+        this.fields = fields.clone();
+    }
+
+    /**
+     * @return the number of components of this field
+     */
+    public int numFields() {
+        return fields.length;
+    }
+
+    /**
+     * @return the ith component of this field
+     */
+    public Field getField(int i) {
+        return fields[i];
+    }
+
+    /**
+     * @return the first n components of this field, or this field if it has
+     *         no more than n components
+     */
+    public CompositeField prefix(int n) {
+        if (n >= fields.length)
+            return this;
+        return new CompositeField(Arrays.copyOf(fields, n));
+    }
+
+    /**
+     * Write the number of components, then each component.
+     */
+    public void serialize(DataOutputStream dos) throws IOException {
+        dos.writeByte(fields.length);
+        for (Field f : fields)
+            f.serialize(dos);
+    }
+
+    /**
+     * @return a negative number, zero or a positive number as this field is
+     *         less than, equal to or greater than value. A field which is not
+     *         composite is compared as a composite field with one component.
+     */
+    public int compareTo(Field value) {
+        Field[] other = value instanceof CompositeField ? ((CompositeField) value).fields
+                : new Field[] { value };
+        int n = Math.min(fields.length, other.length);
+        for (int i = 0; i < n; i++) {
+            if (fields[i].compare(Predicate.Op.LESS_THAN, other[i]))
+                return -1;
+            if (fields[i].compare(Predicate.Op.GREATER_THAN, other[i]))
+                return 1;
+        }
+        return fields.length - other.length;
+    }
+
+    /**
+     * Compare the specified field to the value of this Field, in the
+     * lexicographic order of their components. LIKE is the same as EQUALS.
+     *
+     * @see Field#compare
+     */
+    public boolean compare(Predicate.Op op, Field value) {
+        int cmpVal = compareTo(value);
+
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            return cmpVal == 0;
+
+        case NOT_EQUALS:
+            return cmpVal != 0;
+
+        case GREATER_THAN:
+            return cmpVal > 0;
+
+        case GREATER_THAN_OR_EQ:
+            return cmpVal >= 0;
+
+        case LESS_THAN:
+            return cmpVal < 0;
+
+        case LESS_THAN_OR_EQ:
+            return cmpVal <= 0;
+        }
+
+        return false;
+    }
+
+    /**
+     * @return the type of the first component
+     */
+    public Type getType() {
+        return fields[0].getType();
+    }
+
+    public int hashCode() {
+        return Arrays.hashCode(fields);
+    }
+
+    public boolean equals(Object field) {
+        return field instanceof CompositeField && Arrays.equals(fields, ((CompositeField) field).fields);
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0)
+                sb.append(", ");
+            sb.append(fields[i]);
+        }
+        return sb.append(")").toString();
+    }
+}
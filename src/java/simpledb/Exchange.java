@@ -0,0 +1,356 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Exchange moves the tuples of its child from the threads that produce them
+ * to the threads that consume them.
+ * <p>
+ * When the child is a pipeline the {@link MorselExecutor} can run (a scan of a
+ * HeapFile under Filters, Projects and HashEquiJoin probe sides), it is run by
+ * the worker pool, and the batches the workers produce are handed over through
+ * bounded lock-free queues. An exchange has one or more outputs:
+ * <ul>
+ * <li>GATHER collects the whole result into a single output.</li>
+ * <li>HASH repartitions the result on a field, sending each tuple to the
+ * output chosen by a hash of the field.</li>
+ * <li>BROADCAST sends every tuple to every output.</li>
+ * </ul>
+ * Each output is an Operator of its own. The outputs of one HASH or BROADCAST
+ * exchange have to be read concurrently by separate threads, since the
+ * workers never get more than a bounded number of batches ahead of the
+ * slowest output.
+ * <p>
+ * Any other child, or a pipeline whose join build side does not fit in
+ * memory, is read serially by whichever consumer needs the next tuple. The
+ * tuples it reads for other outputs are buffered until they are read, and a
+ * consumer that would fill the buffer of another output waits for that
+ * output to be read first.
+ */
+public class Exchange extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** How the result of the child is distributed among the outputs */
+    public enum Mode {
+        GATHER, HASH, BROADCAST;
+
+        public String toString() {
+            return name().toLowerCase();
+        }
+    }
+
+    /** Heap files with fewer pages than this are not worth exchanging */
+    public static final int MIN_PARALLEL_PAGES = 4 * MorselExecutor.MORSEL_PAGES;
+    /** Number of tuples a consumer reads from a serial child at a time */
+    private static final int SERIAL_BATCH = 256;
+    /** Number of tuples of a serial child buffered for another output */
+    private static final int SERIAL_BUFFER = 4 * SERIAL_BATCH;
+
+    private final Shared shared;
+    private final int output;
+
+    transient private List<Tuple> batch = null;
+    transient private int pos = 0;
+
+    /**
+     * Constructor for a gathering exchange.
+     *
+     * @param child
+     *            the plan whose tuples are gathered
+     */
+    public Exchange(OpIterator child) {
+        this(new Shared(child, Mode.GATHER, -1, 1), 0);
+    }
+
+    private Exchange(Shared shared, int output) {
+        this.shared = shared;
+        this.output = output;
+    }
+
+    /**
+     * Build the outputs of an exchange repartitioning the result of child on
+     * a field.
+     *
+     * @param field
+     *            the index of the field in child's tuples that decides where
+     *            a tuple goes; equal values always go to the same output
+     * @param n
+     *            the number of outputs
+     */
+    public static Exchange[] repartition(OpIterator child, int field, int n) {
+        if (field < 0 || field >= child.getTupleDesc().numFields())
+            throw new IllegalArgumentException("no field " + field + " to repartition on");
+        return outputs(new Shared(child, Mode.HASH, field, n));
+    }
+
+    /**
+     * Build the outputs of an exchange sending the whole result of child to
+     * each of n consumers.
+     */
+    public static Exchange[] broadcast(OpIterator child, int n) {
+        return outputs(new Shared(child, Mode.BROADCAST, -1, n));
+    }
+
+    private static Exchange[] outputs(Shared shared) {
+        Exchange[] result = new Exchange[shared.numOutputs];
+        for (int i = 0; i < result.length; i++)
+            result[i] = new Exchange(shared, i);
+        return result;
+    }
+
+    /**
+     * @return true if child is a pipeline with at least one join over a heap
+     *         file large enough to be worth running on the worker pool. Scans
+     *         without joins are parallelized by {@link ParallelSeqScan}.
+     */
+    public static boolean worthParallelizing(OpIterator child) {
+        MorselExecutor.Pipeline p = MorselExecutor.Pipeline.compile(child);
+        return p != null && p.numJoins() > 0 && p.file.numPages() >= MIN_PARALLEL_PAGES;
+    }
+
+    /**
+     * @return the output a tuple with the given field value goes to in a HASH
+     *         exchange with n outputs
+     */
+    static int partitionOf(Field f, int n) {
+        int h = HashEquiJoin.keyOf(f) * 0x9E3779B9;
+        return ((h ^ (h >>> 16)) & 0x7FFFFFFF) % n;
+    }
+
+    public Mode getMode() {
+        return shared.mode;
+    }
+
+    /**
+     * @return which of the exchange's outputs this is
+     */
+    public int getOutput() {
+        return output;
+    }
+
+    /**
+     * @return true if the exchange is currently open on the worker pool,
+     *         false if its child is read serially
+     */
+    public boolean isParallel() {
+        return shared.isParallel();
+    }
+
+    /**
+     * @return the name shown for this exchange in query plans
+     */
+    public String getName() {
+        String name = shared.mode.toString();
+        if (shared.mode == Mode.HASH)
+            name += "(" + getTupleDesc().getFieldName(shared.field) + ")";
+        if (shared.numOutputs > 1)
+            name += "[" + output + "/" + shared.numOutputs + "]";
+        return name;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return shared.child.getTupleDesc();
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        shared.open(output);
+        batch = null;
+        pos = 0;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        batch = null;
+        shared.close(output);
+    }
+
+    /**
+     * Start the child over. Only a single-output exchange can be rewound,
+     * since the other outputs of a HASH or BROADCAST exchange are still being
+     * read.
+     */
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (shared.numOutputs > 1)
+            throw new DbException("cannot rewind one output of a " + shared.mode + " exchange");
+        shared.close(output);
+        shared.open(output);
+        batch = null;
+        pos = 0;
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        while (batch == null || pos >= batch.size()) {
+            batch = shared.nextBatch(output);
+            if (batch == null)
+                return null;
+            pos = 0;
+        }
+        return batch.get(pos++);
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { shared.child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        shared.child = children[0];
+    }
+
+    /**
+     * The state shared by the outputs of one exchange. The child is opened
+     * with the first output and closed with the last one.
+     */
+    private static class Shared implements MorselExecutor.Router, java.io.Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        OpIterator child;
+        final Mode mode;
+        final int field;
+        final int numOutputs;
+
+        // guarded by this
+        transient private int numOpen = 0;
+        transient private MorselExecutor.Run run = null;
+        transient private ArrayList<ArrayDeque<Tuple>> buffered = null;
+        /** the outputs of a serial child that have been closed */
+        transient private boolean[] closed = null;
+
+        Shared(OpIterator child, Mode mode, int field, int numOutputs) {
+            if (numOutputs <= 0)
+                throw new IllegalArgumentException("an exchange needs at least one output");
+            this.child = child;
+            this.mode = mode;
+            this.field = field;
+            this.numOutputs = numOutputs;
+        }
+
+        synchronized boolean isParallel() {
+            return run != null;
+        }
+
+        synchronized void open(int output) throws DbException, TransactionAbortedException {
+            if (numOpen > 0) {
+                numOpen++;
+                if (closed != null)
+                    closed[output] = false;
+                return;
+            }
+            MorselExecutor.Pipeline pipeline = MorselExecutor.Pipeline.compile(child);
+            if (pipeline != null && pipeline.prepare()) {
+                run = new MorselExecutor.Run(pipeline, this, numOutputs);
+                run.start();
+            } else {
+                child.open();
+                buffered = new ArrayList<ArrayDeque<Tuple>>();
+                for (int i = 0; i < numOutputs; i++)
+                    buffered.add(new ArrayDeque<Tuple>());
+                closed = new boolean[numOutputs];
+            }
+            numOpen = 1;
+        }
+
+        synchronized void close(int output) {
+            if (numOpen == 0)
+                return;
+            if (closed != null) {
+                // nothing is buffered for a closed output, so nobody waits for it
+                closed[output] = true;
+                buffered.get(output).clear();
+                notifyAll();
+            }
+            if (--numOpen > 0)
+                return;
+            if (run != null) {
+                run.cancel();
+                run = null;
+            } else {
+                child.close();
+                buffered = null;
+                closed = null;
+            }
+        }
+
+        /**
+         * @return the next batch for an output, or null when the child is
+         *         exhausted
+         */
+        List<Tuple> nextBatch(int output) throws DbException, TransactionAbortedException {
+            MorselExecutor.Run r;
+            synchronized (this) {
+                r = run;
+                if (r == null)
+                    return nextSerialBatch(output);
+            }
+            // wait outside the lock, so that other outputs can be read
+            return r.take(output);
+        }
+
+        /**
+         * Read the next batch for an output from the serial child, buffering
+         * the tuples read for the other outputs. Called with the lock held.
+         */
+        @SuppressWarnings("unchecked")
+        private List<Tuple> nextSerialBatch(int output) throws DbException, TransactionAbortedException {
+            ArrayDeque<Tuple> mine = buffered.get(output);
+            List<Tuple>[] routed = new List[numOutputs];
+            while (mine.size() < SERIAL_BATCH) {
+                if (othersFull(output)) {
+                    if (!mine.isEmpty())
+                        break;
+                    // wait for the other output to be read, releasing the lock
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        throw new DbException("interrupted while waiting for another exchange output");
+                    }
+                    continue;
+                }
+                if (!child.hasNext())
+                    break;
+                route(Collections.singletonList(child.next()), routed);
+                for (int i = 0; i < numOutputs; i++) {
+                    if (!closed[i])
+                        buffered.get(i).addAll(routed[i]);
+                }
+            }
+            if (mine.isEmpty())
+                return null;
+            ArrayList<Tuple> result = new ArrayList<Tuple>(mine);
+            mine.clear();
+            notifyAll();
+            return result;
+        }
+
+        /**
+         * @return true if the buffer of an open output other than the given
+         *         one is full
+         */
+        private boolean othersFull(int output) {
+            for (int i = 0; i < numOutputs; i++) {
+                if (i != output && !closed[i] && buffered.get(i).size() >= SERIAL_BUFFER)
+                    return true;
+            }
+            return false;
+        }
+
+        public void route(List<Tuple> batch, List<Tuple>[] outputs) {
+            switch (mode) {
+            case HASH:
+                for (int i = 0; i < numOutputs; i++)
+                    outputs[i] = new ArrayList<Tuple>();
+                for (Tuple t : batch)
+                    outputs[partitionOf(t.getField(field), numOutputs)].add(t);
+                break;
+            default:
+                // tuples are not changed after they are produced, so all
+                // outputs can share one batch
+                Arrays.fill(outputs, batch);
+            }
+        }
+    }
+}
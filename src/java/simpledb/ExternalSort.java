@@ -0,0 +1,305 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * ExternalSort sorts a stream of tuples that may be larger than memory.
+ * <p>
+ * Runs are generated with replacement selection: a heap of at most
+ * memoryTuples tuples is kept, and each tuple popped from it is appended to
+ * the current run. Incoming tuples that sort after the last one written join
+ * the current run; the others are held back for the next one. On random
+ * input runs average twice the memory size, and presorted input produces a
+ * single run. Runs are written to TupleSpillFiles and combined with a k-way
+ * merge driven by a loser tree, at most MERGE_FAN_IN runs at a time.
+ * <p>
+ * If the input fits in memory nothing is written to disk.
+ */
+public class ExternalSort {
+
+    /** Maximum number of runs merged in one pass */
+    public static final int MERGE_FAN_IN = 64;
+
+    private final TupleDesc td;
+    private final Comparator<Tuple> cmp;
+    private final int memoryTuples;
+
+    private ArrayList<Tuple> inMemory = null;
+    private ArrayList<TupleSpillFile> runs = new ArrayList<TupleSpillFile>();
+
+    /**
+     * @param td
+     *            the schema of the tuples being sorted
+     * @param cmp
+     *            the sort order
+     * @param memoryTuples
+     *            the maximum number of tuples held in memory while sorting
+     */
+    public ExternalSort(TupleDesc td, Comparator<Tuple> cmp, int memoryTuples) {
+        if (memoryTuples <= 0)
+            throw new IllegalArgumentException("memory budget must be positive");
+        this.td = td;
+        this.cmp = cmp;
+        this.memoryTuples = memoryTuples;
+    }
+
+    /**
+     * @return how many tuples of this schema fit in the given number of
+     *         pages, using the HeapPage slot layout
+     */
+    public static int tuplesForPages(TupleDesc td, int pages) {
+        int tupleBits = td.getSize() * 8 + 1;
+        return pages * Math.max(1, (BufferPool.getPageSize() * 8) / tupleBits);
+    }
+
+    /**
+     * Consume the whole (already opened) input and sort it.
+     */
+    public void sort(OpIterator input) throws DbException, TransactionAbortedException {
+        discard();
+        generateRuns(input);
+        while (runs.size() > MERGE_FAN_IN)
+            mergePass();
+    }
+
+    /**
+     * @return the number of sorted runs on disk, 0 if the input fit in memory
+     */
+    public int numRuns() {
+        return runs.size();
+    }
+
+    /**
+     * @return an iterator over the sorted tuples; it can be rewound
+     */
+    public OpIterator iterator() {
+        if (inMemory != null)
+            return new TupleIterator(td, inMemory);
+        return new MergeIterator(new ArrayList<TupleSpillFile>(runs));
+    }
+
+    /**
+     * Delete any runs from disk and forget the sorted data.
+     */
+    public void discard() {
+        for (TupleSpillFile run : runs)
+            run.discard();
+        runs.clear();
+        inMemory = null;
+    }
+
+    private static class HeapEntry {
+        Tuple t;
+        int run;
+
+        HeapEntry(Tuple t, int run) {
+            this.t = t;
+            this.run = run;
+        }
+    }
+
+    private void generateRuns(OpIterator input) throws DbException, TransactionAbortedException {
+        PriorityQueue<HeapEntry> heap = new PriorityQueue<HeapEntry>(memoryTuples,
+                new Comparator<HeapEntry>() {
+                    public int compare(HeapEntry a, HeapEntry b) {
+                        if (a.run != b.run)
+                            return a.run < b.run ? -1 : 1;
+                        return cmp.compare(a.t, b.t);
+                    }
+                });
+        while (heap.size() < memoryTuples && input.hasNext())
+            heap.add(new HeapEntry(input.next(), 0));
+
+        if (!input.hasNext()) {
+            // everything fit; sort in place and skip the disk
+            inMemory = new ArrayList<Tuple>(heap.size());
+            for (HeapEntry e : heap)
+                inMemory.add(e.t);
+            Collections.sort(inMemory, cmp);
+            return;
+        }
+
+        int run = 0;
+        TupleSpillFile out = new TupleSpillFile(td);
+        while (!heap.isEmpty()) {
+            HeapEntry e = heap.poll();
+            if (e.run != run) {
+                runs.add(out);
+                out = new TupleSpillFile(td);
+                run = e.run;
+            }
+            out.add(e.t);
+            if (input.hasNext()) {
+                Tuple t = input.next();
+                // a tuple smaller than the one just written has to wait for the next run
+                e.run = cmp.compare(t, e.t) >= 0 ? run : run + 1;
+                e.t = t;
+                heap.add(e);
+            }
+        }
+        runs.add(out);
+    }
+
+    /**
+     * Merge groups of MERGE_FAN_IN runs into longer runs.
+     */
+    private void mergePass() throws DbException, TransactionAbortedException {
+        ArrayList<TupleSpillFile> merged = new ArrayList<TupleSpillFile>();
+        for (int i = 0; i < runs.size(); i += MERGE_FAN_IN) {
+            List<TupleSpillFile> group = runs.subList(i, Math.min(i + MERGE_FAN_IN, runs.size()));
+            TupleSpillFile out = new TupleSpillFile(td);
+            MergeIterator it = new MergeIterator(new ArrayList<TupleSpillFile>(group));
+            it.open();
+            while (it.hasNext())
+                out.add(it.next());
+            it.close();
+            for (TupleSpillFile run : group)
+                run.discard();
+            merged.add(out);
+        }
+        runs = merged;
+    }
+
+    /**
+     * Tournament tree over k sorted inputs. Internal nodes remember the loser
+     * of the match played there, so replacing the winner costs log(k)
+     * comparisons along a single leaf-to-root path.
+     */
+    static class LoserTree {
+        private final int k;
+        private final int[] tree;
+        private final Tuple[] heads;
+        private final OpIterator[] sources;
+        private final Comparator<Tuple> cmp;
+
+        LoserTree(OpIterator[] sources, Comparator<Tuple> cmp) throws DbException, TransactionAbortedException {
+            this.k = sources.length;
+            this.sources = sources;
+            this.cmp = cmp;
+            this.tree = new int[Math.max(1, k)];
+            this.heads = new Tuple[k];
+            for (int i = 0; i < k; i++)
+                heads[i] = sources[i].hasNext() ? sources[i].next() : null;
+            // index k is a virtual -infinity that loses its way out of the tree
+            Arrays.fill(tree, k);
+            for (int i = k - 1; i >= 0; i--)
+                adjust(i);
+        }
+
+        /** true if source a's head sorts before source b's */
+        private boolean beats(int a, int b) {
+            if (a == k)
+                return true;
+            if (b == k)
+                return false;
+            if (heads[a] == null)
+                return false;
+            if (heads[b] == null)
+                return true;
+            int c = cmp.compare(heads[a], heads[b]);
+            return c < 0 || (c == 0 && a < b);
+        }
+
+        private void adjust(int s) {
+            for (int t = (s + k) >> 1; t > 0; t >>= 1) {
+                if (beats(tree[t], s)) {
+                    int tmp = tree[t];
+                    tree[t] = s;
+                    s = tmp;
+                }
+            }
+            tree[0] = s;
+        }
+
+        boolean hasNext() {
+            return k > 0 && heads[tree[0]] != null;
+        }
+
+        /** @return the tuple next() would return, without removing it */
+        Tuple peek() {
+            return heads[tree[0]];
+        }
+
+        Tuple next() throws DbException, TransactionAbortedException {
+            int w = tree[0];
+            Tuple t = heads[w];
+            heads[w] = sources[w].hasNext() ? sources[w].next() : null;
+            adjust(w);
+            return t;
+        }
+    }
+
+    private class MergeIterator implements OpIterator {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ArrayList<TupleSpillFile> inputs;
+        private OpIterator[] sources;
+        private LoserTree tree;
+
+        MergeIterator(ArrayList<TupleSpillFile> inputs) {
+            this.inputs = inputs;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            sources = new OpIterator[inputs.size()];
+            for (int i = 0; i < sources.length; i++) {
+                sources[i] = inputs.get(i).iterator();
+                sources[i].open();
+            }
+            tree = new LoserTree(sources, cmp);
+        }
+
+        public boolean hasNext() {
+            if (tree == null)
+                throw new IllegalStateException("iterator not open");
+            return tree.hasNext();
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return tree.next();
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public void close() {
+            if (sources != null) {
+                for (OpIterator s : sources)
+                    s.close();
+            }
+            sources = null;
+            tree = null;
+        }
+    }
+
+    /**
+     * Return the k smallest tuples of the (already opened) input in sorted
+     * order, holding no more than k tuples at a time.
+     */
+    public static ArrayList<Tuple> topK(OpIterator input, final Comparator<Tuple> cmp, int k)
+            throws DbException, TransactionAbortedException {
+        // max-heap on cmp: the root is the worst of the current best k
+        PriorityQueue<Tuple> heap = new PriorityQueue<Tuple>(Math.max(1, k), Collections.reverseOrder(cmp));
+        while (input.hasNext()) {
+            Tuple t = input.next();
+            if (heap.size() < k) {
+                heap.add(t);
+            } else if (k > 0 && cmp.compare(t, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(t);
+            }
+        }
+        ArrayList<Tuple> result = new ArrayList<Tuple>(heap);
+        Collections.sort(result, cmp);
+        return result;
+    }
+}
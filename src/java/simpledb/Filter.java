@@ -11,6 +11,7 @@ public class Filter extends Operator {
 
     private Predicate predicate;
     private OpIterator child;
+    transient private CompiledPredicate compiled;
 
 
     /**
@@ -41,6 +42,7 @@ public class Filter extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
+        this.compiled = CompiledPredicate.compile(new Predicate[] { predicate }, child.getTupleDesc());
         this.child.open();
         super.open();
     }
@@ -60,6 +62,7 @@ public class Filter extends Operator {
      * AbstractDbIterator.readNext implementation. Iterates over tuples from the
      * child operator, applying the predicate to them and returning those that
      * pass the predicate (i.e. for which the Predicate.filter() returns true.)
+     * The predicate is compiled when the filter is opened.
      * 
      * @return The next tuple that passes the filter, or null if there are no
      *         more tuples
@@ -70,13 +73,17 @@ public class Filter extends Operator {
         // some code goes here
         while(this.child.hasNext()){
             Tuple t = this.child.next();
-            if(predicate.filter(t)){
+            if(compiled.matches(t)){
                 return t;
             }
         }
         return null;
     }
 
+    public SortOrder getSortOrder() {
+        return this.child.getSortOrder();
+    }
+
     @Override
     public OpIterator[] getChildren() {
         // some code goes here
@@ -0,0 +1,554 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * HashAggregator computes any number of aggregates over tuples grouped on any
+ * number of fields, in a single pass over its input.
+ * <p>
+ * Groups live in an open-addressing hash table whose keys and running values
+ * are kept in flat arrays: group keys as ints when every group-by field is an
+ * INT, running aggregates as longs. Merging a tuple into an existing group
+ * allocates nothing. SUM and AVG accumulate in a long, so AVG is exact, and a
+ * SUM that does not fit in an INT makes reading its group's result throw a
+ * DbException instead of returning a wrapped or clamped value.
+ * <p>
+ * The table holds at most memoryGroups groups. Once it is full, tuples of
+ * groups already in the table are still merged in place, while tuples of any
+ * other group are written to one of NUM_PARTITIONS TupleSpillFiles by a hash
+ * of their group key. No group is split between the table and the partitions,
+ * so each partition is aggregated on its own when the results are read,
+ * recursively with a different hash function if it is still too large.
+ */
+public class HashAggregator implements Aggregator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default maximum number of groups held in memory */
+    public static final int DEFAULT_MEMORY_GROUPS = 1 << 16;
+    /** Number of partitions overflowing tuples are split into */
+    public static final int NUM_PARTITIONS = 16;
+    /** Partitions are repartitioned at most this many times before the table may outgrow the budget */
+    private static final int MAX_LEVEL = 3;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final int[] gbfields;
+    private final Type[] gbtypes;
+    private final int[] afields;
+    private final Type[] atypes;
+    private final Op[] ops;
+    private final int memoryGroups;
+    private final int level;
+    private final boolean intKeys;
+    private final TupleDesc td;
+
+    private int numGroups = 0;
+    private int capacity = 0;
+    /** group number + 1 for each slot, 0 if the slot is empty */
+    private int[] slots;
+    private int[] groupHash;
+    private int[] intKeyData;
+    private Field[] keyData;
+    private long[] acc;
+    private long[] counts;
+
+    private TupleSpillFile[] partitions = null;
+    private boolean sealed = false;
+
+    /**
+     * Aggregate constructor
+     *
+     * @param gbfields
+     *            the 0-based indexes of the group-by fields in the tuple; empty
+     *            if there is no grouping
+     * @param gbtypes
+     *            the types of the group-by fields
+     * @param afields
+     *            the 0-based indexes of the aggregated fields in the tuple
+     * @param atypes
+     *            the types of the aggregated fields
+     * @param ops
+     *            the aggregation operator applied to each aggregated field
+     * @throws IllegalArgumentException
+     *             if an operator is not supported on its field
+     */
+    public HashAggregator(int[] gbfields, Type[] gbtypes, int[] afields, Type[] atypes, Op[] ops) {
+        this(gbfields, gbtypes, afields, atypes, ops, DEFAULT_MEMORY_GROUPS);
+    }
+
+    /**
+     * Aggregate constructor with an explicit memory budget
+     *
+     * @param memoryGroups
+     *            the maximum number of groups held in memory before tuples of
+     *            new groups are spilled to disk
+     * @see #HashAggregator(int[], Type[], int[], Type[], Op[])
+     */
+    public HashAggregator(int[] gbfields, Type[] gbtypes, int[] afields, Type[] atypes, Op[] ops,
+            int memoryGroups) {
+        this(gbfields, gbtypes, afields, atypes, ops, memoryGroups, 0);
+    }
+
+    private HashAggregator(int[] gbfields, Type[] gbtypes, int[] afields, Type[] atypes, Op[] ops,
+            int memoryGroups, int level) {
+        if (gbfields.length != gbtypes.length)
+            throw new IllegalArgumentException("one type is needed per group-by field");
+        if (afields.length != ops.length || atypes.length != ops.length || ops.length == 0)
+            throw new IllegalArgumentException("one type and operator is needed per aggregate field");
+        if (memoryGroups <= 0)
+            throw new IllegalArgumentException("memory budget must be positive");
+        for (int i = 0; i < ops.length; i++) {
+            switch (ops[i]) {
+            case COUNT:
+                break;
+            case MIN:
+            case MAX:
+            case SUM:
+            case AVG:
+                if (atypes[i] != Type.INT_TYPE)
+                    throw new IllegalArgumentException(ops[i] + " is only supported on INT fields");
+                break;
+            default:
+                throw new IllegalArgumentException("unsupported aggregate " + ops[i]);
+            }
+        }
+        this.gbfields = gbfields;
+        this.gbtypes = gbtypes;
+        this.afields = afields;
+        this.atypes = atypes;
+        this.ops = ops;
+        this.memoryGroups = memoryGroups;
+        this.level = level;
+
+        boolean allInts = true;
+        for (Type t : gbtypes)
+            allInts &= t == Type.INT_TYPE;
+        this.intKeys = allInts;
+
+        Type[] outTypes = new Type[gbtypes.length + ops.length];
+        System.arraycopy(gbtypes, 0, outTypes, 0, gbtypes.length);
+        for (int i = 0; i < ops.length; i++)
+            outTypes[gbtypes.length + i] = Type.INT_TYPE;
+        this.td = new TupleDesc(outTypes);
+    }
+
+    /**
+     * Build an aggregator computing one aggregate over at most one group-by
+     * field, as used by the single-column Aggregator implementations.
+     *
+     * @param gbfield
+     *            the group-by field, or NO_GROUPING
+     * @param gbtype
+     *            the type of the group-by field, ignored if there is no
+     *            grouping
+     */
+    static HashAggregator single(int gbfield, Type gbtype, int afield, Type atype, Op op) {
+        boolean grouped = gbfield != NO_GROUPING;
+        return new HashAggregator(grouped ? new int[] { gbfield } : new int[0],
+                grouped ? new Type[] { gbtype } : new Type[0],
+                new int[] { afield }, new Type[] { atype }, new Op[] { op });
+    }
+
+    /**
+     * @return the schema of the result tuples: the group-by fields followed
+     *         by one INT field per aggregate
+     */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return the number of groups currently held in memory
+     */
+    public int numGroupsInMemory() {
+        return numGroups;
+    }
+
+    /**
+     * @return true if tuples were written to disk because there were more
+     *         groups than fit in memory
+     */
+    public boolean hasSpilled() {
+        return partitions != null;
+    }
+
+    private void allocate(int minCapacity) {
+        // keep the slot count a power of two so that slots can be masked
+        int cap = 1;
+        while (cap < minCapacity)
+            cap <<= 1;
+        capacity = cap;
+        slots = new int[cap * 2];
+        groupHash = Arrays.copyOf(groupHash == null ? new int[0] : groupHash, cap);
+        counts = Arrays.copyOf(counts == null ? new long[0] : counts, cap);
+        acc = Arrays.copyOf(acc == null ? new long[0] : acc, cap * ops.length);
+        if (intKeys)
+            intKeyData = Arrays.copyOf(intKeyData == null ? new int[0] : intKeyData, cap * gbfields.length);
+        else
+            keyData = Arrays.copyOf(keyData == null ? new Field[0] : keyData, cap * gbfields.length);
+        int mask = slots.length - 1;
+        for (int g = 0; g < numGroups; g++) {
+            int s = groupHash[g] & mask;
+            while (slots[s] != 0)
+                s = (s + 1) & mask;
+            slots[s] = g + 1;
+        }
+    }
+
+    private int hashOf(Tuple t) {
+        int h = level * 0x9E3779B9;
+        for (int f : gbfields)
+            h = h * 31 + HashEquiJoin.keyOf(t.getField(f));
+        // murmur3 finalizer
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private boolean sameKey(int g, Tuple t) {
+        int base = g * gbfields.length;
+        for (int i = 0; i < gbfields.length; i++) {
+            Field f = t.getField(gbfields[i]);
+            if (intKeys) {
+                if (intKeyData[base + i] != ((IntField) f).getValue())
+                    return false;
+            } else if (!keyData[base + i].equals(f)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int newGroup(Tuple t, int h) {
+        int g = newGroup(h);
+        int base = g * gbfields.length;
+        for (int i = 0; i < gbfields.length; i++) {
+            Field f = t.getField(gbfields[i]);
+            if (intKeys)
+                intKeyData[base + i] = ((IntField) f).getValue();
+            else
+                keyData[base + i] = f;
+        }
+        return g;
+    }
+
+    private int newGroup(int h) {
+        int g = numGroups++;
+        groupHash[g] = h;
+        counts[g] = 0;
+        int abase = g * ops.length;
+        for (int i = 0; i < ops.length; i++) {
+            if (ops[i] == Op.MIN)
+                acc[abase + i] = Long.MAX_VALUE;
+            else if (ops[i] == Op.MAX)
+                acc[abase + i] = Long.MIN_VALUE;
+            else
+                acc[abase + i] = 0;
+        }
+        return g;
+    }
+
+    private void update(int g, Tuple t) {
+        counts[g]++;
+        int base = g * ops.length;
+        for (int i = 0; i < ops.length; i++) {
+            if (ops[i] == Op.COUNT)
+                continue;
+            int v = ((IntField) t.getField(afields[i])).getValue();
+            switch (ops[i]) {
+            case MIN:
+                if (v < acc[base + i])
+                    acc[base + i] = v;
+                break;
+            case MAX:
+                if (v > acc[base + i])
+                    acc[base + i] = v;
+                break;
+            default:
+                acc[base + i] += v;
+                break;
+            }
+        }
+    }
+
+    /**
+     * Merge a new tuple into the aggregate, grouping as indicated in the
+     * constructor
+     *
+     * @param tup
+     *            the Tuple containing the aggregate and group-by fields
+     * @throws IllegalStateException
+     *             if tuples were spilled and the results have already been
+     *             read
+     */
+    public void mergeTupleIntoGroup(Tuple tup) {
+        if (sealed)
+            throw new IllegalStateException("cannot add tuples after spilled results were read");
+        if (slots == null)
+            allocate(Math.min(INITIAL_CAPACITY, memoryGroups));
+        int h = hashOf(tup);
+        int mask = slots.length - 1;
+        int s = h & mask;
+        for (int g; (g = slots[s]) != 0; s = (s + 1) & mask) {
+            if (groupHash[g - 1] == h && sameKey(g - 1, tup)) {
+                update(g - 1, tup);
+                return;
+            }
+        }
+        if (numGroups >= memoryGroups && level < MAX_LEVEL) {
+            spill(tup, h);
+            return;
+        }
+        if (numGroups == capacity) {
+            allocate(capacity * 2);
+            mask = slots.length - 1;
+            s = h & mask;
+            while (slots[s] != 0)
+                s = (s + 1) & mask;
+        }
+        int g = newGroup(tup, h);
+        slots[s] = g + 1;
+        update(g, tup);
+    }
+
+    /**
+     * Fold the groups of another aggregator with the same fields and
+     * operators into this one, as when combining partial aggregates computed
+     * over disjoint parts of the input. Counts and sums (including the sum
+     * and count behind an AVG) are added and MIN and MAX are compared. The
+     * memory budget is not enforced while merging.
+     *
+     * @param other
+     *            the partial aggregate to merge; it is not modified
+     * @throws IllegalArgumentException
+     *             if other has spilled tuples to disk
+     */
+    public void merge(HashAggregator other) {
+        if (other.hasSpilled())
+            throw new IllegalArgumentException("cannot merge an aggregate that has spilled");
+        if (other.numGroups == 0)
+            return;
+        if (slots == null)
+            allocate(Math.max(INITIAL_CAPACITY, other.numGroups));
+        for (int og = 0; og < other.numGroups; og++) {
+            int h = other.groupHash[og];
+            int mask = slots.length - 1;
+            int s = h & mask;
+            int g = -1;
+            for (int cur; (cur = slots[s]) != 0; s = (s + 1) & mask) {
+                if (groupHash[cur - 1] == h && sameKey(cur - 1, other, og)) {
+                    g = cur - 1;
+                    break;
+                }
+            }
+            if (g < 0) {
+                if (numGroups == capacity) {
+                    allocate(capacity * 2);
+                    mask = slots.length - 1;
+                    s = h & mask;
+                    while (slots[s] != 0)
+                        s = (s + 1) & mask;
+                }
+                g = newGroup(h);
+                slots[s] = g + 1;
+                int n = gbfields.length;
+                if (intKeys)
+                    System.arraycopy(other.intKeyData, og * n, intKeyData, g * n, n);
+                else
+                    System.arraycopy(other.keyData, og * n, keyData, g * n, n);
+            }
+            counts[g] += other.counts[og];
+            int base = g * ops.length;
+            int obase = og * ops.length;
+            for (int i = 0; i < ops.length; i++) {
+                switch (ops[i]) {
+                case MIN:
+                    acc[base + i] = Math.min(acc[base + i], other.acc[obase + i]);
+                    break;
+                case MAX:
+                    acc[base + i] = Math.max(acc[base + i], other.acc[obase + i]);
+                    break;
+                default:
+                    acc[base + i] += other.acc[obase + i];
+                    break;
+                }
+            }
+        }
+    }
+
+    private boolean sameKey(int g, HashAggregator other, int og) {
+        int n = gbfields.length;
+        for (int i = 0; i < n; i++) {
+            if (intKeys) {
+                if (intKeyData[g * n + i] != other.intKeyData[og * n + i])
+                    return false;
+            } else if (!keyData[g * n + i].equals(other.keyData[og * n + i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void spill(Tuple tup, int h) {
+        if (partitions == null)
+            partitions = new TupleSpillFile[NUM_PARTITIONS];
+        int p = (h & 0x7FFFFFFF) % NUM_PARTITIONS;
+        try {
+            if (partitions[p] == null)
+                partitions[p] = new TupleSpillFile(tup.getTupleDesc());
+            partitions[p].add(tup);
+        } catch (DbException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Tuple resultTuple(int g) throws DbException {
+        Tuple t = new Tuple(td);
+        int base = g * gbfields.length;
+        for (int i = 0; i < gbfields.length; i++)
+            t.setField(i, intKeys ? new IntField(intKeyData[base + i]) : keyData[base + i]);
+        int abase = g * ops.length;
+        for (int i = 0; i < ops.length; i++) {
+            long v;
+            switch (ops[i]) {
+            case COUNT:
+                v = counts[g];
+                break;
+            case AVG:
+                v = acc[abase + i] / counts[g];
+                break;
+            default:
+                v = acc[abase + i];
+                break;
+            }
+            if (v < Integer.MIN_VALUE || v > Integer.MAX_VALUE)
+                throw new DbException(ops[i] + " of field " + afields[i] + " is " + v
+                        + ", which does not fit in an INT");
+            t.setField(gbfields.length + i, new IntField((int) v));
+        }
+        return t;
+    }
+
+    /**
+     * Delete any spilled partitions and forget all groups.
+     */
+    public void discard() {
+        if (partitions != null) {
+            for (TupleSpillFile f : partitions) {
+                if (f != null)
+                    f.discard();
+            }
+        }
+        partitions = null;
+        sealed = false;
+        numGroups = 0;
+        slots = null;
+        groupHash = null;
+        intKeyData = null;
+        keyData = null;
+        acc = null;
+        counts = null;
+    }
+
+    /**
+     * Create a OpIterator over group aggregate results.
+     *
+     * @return a OpIterator whose tuples hold the group-by values followed by
+     *         the aggregate values. Groups held in memory come first, in the
+     *         order they were first seen, followed by the groups of each
+     *         spilled partition.
+     */
+    public OpIterator iterator() {
+        return new ResultIterator();
+    }
+
+    private class ResultIterator implements OpIterator {
+
+        private static final long serialVersionUID = 1L;
+
+        private boolean open = false;
+        private int pos;
+        private int part;
+        private HashAggregator nestedAgg;
+        private OpIterator nested;
+        private Tuple next;
+
+        public void open() throws DbException, TransactionAbortedException {
+            pos = 0;
+            part = 0;
+            next = null;
+            if (partitions != null)
+                sealed = true;
+            open = true;
+        }
+
+        private Tuple readNext() throws DbException, TransactionAbortedException {
+            while (true) {
+                if (pos < numGroups)
+                    return resultTuple(pos++);
+                if (nested != null) {
+                    if (nested.hasNext())
+                        return nested.next();
+                    closeNested();
+                }
+                if (partitions == null || part >= NUM_PARTITIONS)
+                    return null;
+                TupleSpillFile f = partitions[part++];
+                if (f == null)
+                    continue;
+                nestedAgg = new HashAggregator(gbfields, gbtypes, afields, atypes, ops, memoryGroups, level + 1);
+                OpIterator in = f.iterator();
+                in.open();
+                while (in.hasNext())
+                    nestedAgg.mergeTupleIntoGroup(in.next());
+                in.close();
+                nested = nestedAgg.iterator();
+                nested.open();
+            }
+        }
+
+        private void closeNested() {
+            if (nested != null) {
+                nested.close();
+                nestedAgg.discard();
+            }
+            nested = null;
+            nestedAgg = null;
+        }
+
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            if (!open)
+                throw new IllegalStateException("iterator not open");
+            if (next == null)
+                next = readNext();
+            return next != null;
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Tuple t = next;
+            next = null;
+            return t;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public void close() {
+            closeNested();
+            next = null;
+            open = false;
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package simpledb;
+
+import java.util.*;
+import java.io.*;
+
+/**
+ * Each instance of HashBucketPage stores the tuples of one page of a bucket of
+ * a {@link HashFile}. The first page of a bucket is its primary page; when it
+ * fills up, overflow pages are chained to it through their next page
+ * pointers.
+ *
+ * @see HashFile
+ * @see BufferPool
+ */
+public class HashBucketPage implements Page {
+
+    final HashPageId pid;
+    final TupleDesc td;
+    final byte[] header;
+    final Tuple[] tuples;
+    final int numSlots;
+    private int nextPageNo;
+
+    byte[] oldData;
+    private final Object oldDataLock = new Object();
+    private TransactionId dirtier = null;
+
+    /**
+     * Create a HashBucketPage from a set of bytes of data read from disk. The
+     * format of a HashBucketPage is the page number of the next page of the
+     * bucket as a 4 byte integer (0 if this is the last one), a set of header
+     * bytes indicating the slots of the page that are in use, and some number
+     * of tuple slots. The number of tuple slots is:
+     * <p>
+     * floor(((BufferPool.getPageSize() - 4) * 8) / (tuple size * 8 + 1))
+     * <p>
+     * and the header has ceiling(no. tuple slots / 8) bytes, as in a
+     * {@link HeapPage}.
+     */
+    public HashBucketPage(HashPageId id, byte[] data) throws IOException {
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.numSlots = getMaxTuples(td);
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+
+        nextPageNo = dis.readInt();
+        header = new byte[(numSlots + 7) / 8];
+        dis.readFully(header);
+
+        tuples = new Tuple[numSlots];
+        try {
+            for (int i = 0; i < numSlots; i++)
+                tuples[i] = readNextTuple(dis, i);
+        } catch (NoSuchElementException e) {
+            throw new IOException(e);
+        }
+        dis.close();
+
+        setBeforeImage();
+    }
+
+    /**
+     * @return the number of tuples a page of a hash file with the given
+     *         schema holds
+     */
+    public static int getMaxTuples(TupleDesc td) {
+        return (BufferPool.getPageSize() - 4) * 8 / (td.getSize() * 8 + 1);
+    }
+
+    /**
+     * Suck up tuples from the source file.
+     */
+    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
+        // if associated bit is not set, read forward to the next tuple, and
+        // return null.
+        if (!isSlotUsed(slotId)) {
+            try {
+                dis.skipBytes(td.getSize());
+            } catch (IOException e) {
+                throw new NoSuchElementException("error reading empty tuple");
+            }
+            return null;
+        }
+
+        // read fields in the tuple
+        Tuple t = new Tuple(td);
+        t.setRecordId(new RecordId(pid, slotId));
+        try {
+            for (int j = 0; j < td.numFields(); j++)
+                t.setField(j, td.getFieldType(j).parse(dis));
+        } catch (java.text.ParseException e) {
+            throw new NoSuchElementException("parsing error!");
+        }
+        return t;
+    }
+
+    /** Return a view of this page before it was modified -- used by recovery */
+    public HashBucketPage getBeforeImage() {
+        try {
+            synchronized (oldDataLock) {
+                return new HashBucketPage(pid, oldData);
+            }
+        } catch (IOException e) {
+            // should never happen -- we parsed it OK before!
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void setBeforeImage() {
+        synchronized (oldDataLock) {
+            oldData = getPageData().clone();
+        }
+    }
+
+    /**
+     * @return the PageId associated with this page.
+     */
+    public HashPageId getId() {
+        return pid;
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page. Passing
+     * it to the HashBucketPage constructor produces an identical page.
+     *
+     * @see #HashBucketPage
+     */
+    public synchronized byte[] getPageData() {
+        int len = BufferPool.getPageSize();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            dos.writeInt(nextPageNo);
+            dos.write(header);
+            for (int i = 0; i < numSlots; i++) {
+                if (!isSlotUsed(i)) {
+                    dos.write(new byte[td.getSize()]);
+                    continue;
+                }
+                for (int j = 0; j < td.numFields(); j++)
+                    tuples[i].getField(j).serialize(dos);
+            }
+            dos.write(new byte[len - dos.size()]);
+            dos.flush();
+        } catch (IOException e) {
+            // writing to a byte array does not fail
+            throw new RuntimeException(e);
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * Static method to generate a byte array corresponding to an empty
+     * HashBucketPage, the last page of its bucket.
+     */
+    public static byte[] createEmptyPageData() {
+        return new byte[BufferPool.getPageSize()]; // all 0
+    }
+
+    /**
+     * @return the page number of the next page of the bucket, or 0 if this
+     *         is the last one
+     */
+    public int getNextPageNo() {
+        return nextPageNo;
+    }
+
+    /**
+     * Set the page number of the next page of the bucket, or 0 if this is
+     * the last one
+     */
+    public void setNextPageNo(int nextPageNo) {
+        this.nextPageNo = nextPageNo;
+    }
+
+    /**
+     * Delete the specified tuple from the page.
+     *
+     * @throws DbException if this tuple is not on this page, or its slot is
+     *         already empty.
+     */
+    public synchronized void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !pid.equals(rid.getPageId()))
+            throw new DbException("tried to delete tuple on invalid page or table");
+        int slot = rid.getTupleNumber();
+        if (slot < 0 || slot >= numSlots || !isSlotUsed(slot))
+            throw new DbException("tried to delete null tuple");
+        tuples[slot] = null;
+        markSlotUsed(slot, false);
+    }
+
+    /**
+     * Adds the specified tuple to the page; the tuple is updated to reflect
+     * that it is now stored on this page.
+     *
+     * @throws DbException if the page is full (no empty slots) or tupledesc
+     *         is mismatch.
+     */
+    public synchronized void insertTuple(Tuple t) throws DbException {
+        if (!t.getTupleDesc().equals(td))
+            throw new DbException("type mismatch, in addTuple");
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i)) {
+                tuples[i] = t;
+                t.setRecordId(new RecordId(pid, i));
+                markSlotUsed(i, true);
+                return;
+            }
+        }
+        throw new DbException("called addTuple on page with no empty slots.");
+    }
+
+    /**
+     * Remove every tuple from the page, and make it the last page of its
+     * bucket.
+     *
+     * @return the tuples that were on the page
+     */
+    public synchronized ArrayList<Tuple> clear() {
+        ArrayList<Tuple> removed = new ArrayList<Tuple>();
+        for (int i = 0; i < numSlots; i++) {
+            if (isSlotUsed(i)) {
+                removed.add(tuples[i]);
+                tuples[i] = null;
+                markSlotUsed(i, false);
+            }
+        }
+        nextPageNo = 0;
+        return removed;
+    }
+
+    /**
+     * Marks this page as dirty/not dirty and record that transaction that did
+     * the dirtying
+     */
+    public void markDirty(boolean dirty, TransactionId tid) {
+        dirtier = dirty ? tid : null;
+    }
+
+    /**
+     * Returns the tid of the transaction that last dirtied this page, or null
+     * if the page is not dirty
+     */
+    public TransactionId isDirty() {
+        return dirtier;
+    }
+
+    /**
+     * Returns the number of empty slots on this page.
+     */
+    public synchronized int getNumEmptySlots() {
+        int cnt = 0;
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i))
+                cnt++;
+        }
+        return cnt;
+    }
+
+    /**
+     * Returns true if associated slot on this page is filled.
+     */
+    public boolean isSlotUsed(int i) {
+        return (header[i / 8] & (1 << (i % 8))) != 0;
+    }
+
+    /**
+     * Abstraction to fill or clear a slot on this page.
+     */
+    private void markSlotUsed(int i, boolean value) {
+        if (value)
+            header[i / 8] |= (1 << (i % 8));
+        else
+            header[i / 8] &= ~(1 << (i % 8));
+    }
+
+    /**
+     * @return an iterator over all tuples on this page (calling remove on this
+     *         iterator throws an UnsupportedOperationException)
+     */
+    public synchronized Iterator<Tuple> iterator() {
+        ArrayList<Tuple> result = new ArrayList<Tuple>();
+        for (int i = 0; i < numSlots; i++) {
+            if (isSlotUsed(i))
+                result.add(tuples[i]);
+        }
+        return Collections.unmodifiableList(result).iterator();
+    }
+}
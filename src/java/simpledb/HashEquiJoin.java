@@ -3,7 +3,24 @@ package simpledb;
 import java.util.*;
 
 /**
- * The Join operator implements the relational join operation.
+ * The HashEquiJoin operator implements an equality join with a hybrid hash
+ * join.
+ * <p>
+ * The left child is the build side. While it fits in the memory budget the
+ * whole build side is kept in an in-memory hash table and the right child is
+ * streamed past it once. When the build side exceeds the budget both inputs
+ * are split into NUM_PARTITIONS partitions by a hash of the join key. The
+ * first partition stays in memory and is joined while the probe side is being
+ * partitioned; the remaining partitions are spilled to TupleSpillFiles and
+ * joined pair by pair afterwards. Each side is therefore read once and written
+ * at most once. A partition that is still too large is joined recursively with
+ * a different hash function.
+ * <p>
+ * Every build phase also fills a Bloom filter with the join keys of the build
+ * side. When the probe side is a SeqScan, possibly under Filters, the filter
+ * is pushed into the scan as a {@link BloomPredicate}, so probe tuples whose
+ * key cannot match are dropped on the pages, before they are deserialized,
+ * spilled or handed to other operators.
  */
 public class HashEquiJoin extends Operator {
 
@@ -11,13 +28,36 @@ public class HashEquiJoin extends Operator {
     private JoinPredicate pred;
     private OpIterator child1, child2;
     private TupleDesc comboTD;
-    transient private Tuple t1 = null;
+    private final int memoryTuples;
+    private final int level;
+
+    /** Default number of build-side tuples kept in memory */
+    public final static int MAP_SIZE = 20000;
+    /** Number of partitions the inputs are split into when spilling */
+    public final static int NUM_PARTITIONS = 16;
+    /** Partitions are repartitioned at most this many times before being joined in memory */
+    private final static int MAX_LEVEL = 3;
+    /** Build sides with more tuples than this do not get a Bloom filter */
+    public final static int MAX_FILTER_KEYS = 1 << 22;
+
+    private final BloomPredicate probeFilter;
+
+    transient private BuildTable table = null;
+    transient private boolean partitioned = false;
+    transient private int memPartition = -1;
+    transient private TupleSpillFile[] buildParts = null;
+    transient private TupleSpillFile[] probeParts = null;
+    transient private boolean firstPass = true;
+    transient private int nextPartition = 0;
+    transient private OpIterator probeSource = null;
+    transient private HashEquiJoin nested = null;
     transient private Tuple t2 = null;
+    transient private int matchRow = -1;
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
      * on
-     * 
+     *
      * @param p
      *            The predicate to use to join the children
      * @param child1
@@ -26,9 +66,37 @@ public class HashEquiJoin extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, MAP_SIZE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join; this is the
+     *            build side
+     * @param child2
+     *            Iterator for the right(inner) relation to join; this is the
+     *            probe side
+     * @param memoryTuples
+     *            The maximum number of build-side tuples held in memory
+     *            before the join starts spilling partitions to disk
+     */
+    public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2, int memoryTuples) {
+        this(p, child1, child2, memoryTuples, 0);
+    }
+
+    private HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2, int memoryTuples, int level) {
+        if (memoryTuples <= 0)
+            throw new IllegalArgumentException("memory budget must be positive");
         this.pred = p;
         this.child1 = child1;
         this.child2 = child2;
+        this.memoryTuples = memoryTuples;
+        this.level = level;
+        this.probeFilter = new BloomPredicate(p.getField2());
         comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
     }
 
@@ -39,7 +107,7 @@ public class HashEquiJoin extends Operator {
     public TupleDesc getTupleDesc() {
         return comboTD;
     }
-    
+
     public String getJoinField1Name()
     {
 	return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
@@ -49,53 +117,222 @@ public class HashEquiJoin extends Operator {
     {
 	return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
     }
-    
-    HashMap<Object, ArrayList<Tuple>> map = new HashMap<Object, ArrayList<Tuple>>();
-    public final static int MAP_SIZE = 20000;
 
-    private boolean loadMap() throws DbException, TransactionAbortedException {
-        int cnt = 0;
-        map.clear();
+    /**
+     * @return true if the last build phase overflowed the memory budget and
+     *         partitions were spilled to disk
+     */
+    public boolean hasSpilled() {
+        return partitioned;
+    }
+
+    /**
+     * @return the number of probe-side tuples the Bloom filter pushed into
+     *         the probe scan has dropped so far
+     */
+    public long numProbeTuplesDropped() {
+        return probeFilter.numDropped();
+    }
+
+    /**
+     * Fill the probe scan's Bloom filter with the first n keys of the build
+     * side just read, pushing the filter into the scan the first time.
+     */
+    private void pushProbeFilter(int[] keys, int n) {
+        TableScan scan = TableScan.scanOf(child2);
+        if (scan == null)
+            return;
+        probeFilter.setFilter(n <= MAX_FILTER_KEYS ? BloomFilter.of(keys, n) : null);
+        scan.addPredicate(probeFilter);
+    }
+
+    private static int[] addKey(int[] keys, int n, int key) {
+        if (n == keys.length)
+            keys = Arrays.copyOf(keys, n * 2);
+        keys[n] = key;
+        return keys;
+    }
+
+    /**
+     * The int the hash table is keyed on. Int join keys are used directly;
+     * other fields use their hashCode, and equality is rechecked on probe.
+     */
+    static int keyOf(Field f) {
+        if (f instanceof IntField)
+            return ((IntField) f).getValue();
+        return f.hashCode();
+    }
+
+    private int partitionOf(Field f) {
+        // murmur3 finalizer, seeded per level so that recursive passes split
+        // a partition differently from the pass that produced it
+        int h = keyOf(f) ^ (level * 0x9E3779B9);
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return (h & 0x7FFFFFFF) % NUM_PARTITIONS;
+    }
+
+    private void spill(TupleSpillFile[] parts, int p, Tuple t) throws DbException {
+        if (parts[p] == null)
+            parts[p] = new TupleSpillFile(t.getTupleDesc());
+        parts[p].add(t);
+    }
+
+    /**
+     * Read the whole build side. Tuples stay in the in-memory table until the
+     * budget is exceeded, after which only the memory partition is kept.
+     */
+    private void build() throws DbException, TransactionAbortedException {
+        table = new BuildTable();
+        partitioned = false;
+        memPartition = -1;
+        int f1 = pred.getField1();
+        int[] keys = new int[1024];
+        int numKeys = 0;
         while (child1.hasNext()) {
-            t1 = child1.next();
-            ArrayList<Tuple> list = map.get(t1.getField(pred.getField1()));
-            if (list == null) {
-                list = new ArrayList<Tuple>();
-                map.put(t1.getField(pred.getField1()), list);
+            Tuple t = child1.next();
+            Field f = t.getField(f1);
+            if (numKeys <= MAX_FILTER_KEYS)
+                keys = addKey(keys, numKeys++, keyOf(f));
+            if (!partitioned) {
+                table.add(t, keyOf(f));
+                if (table.size() > memoryTuples)
+                    startPartitioning();
+            } else if (table != null && partitionOf(f) == memPartition) {
+                table.add(t, keyOf(f));
+                if (table.size() > memoryTuples)
+                    spillMemoryPartition();
+            } else {
+                spill(buildParts, partitionOf(f), t);
             }
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
+        }
+        pushProbeFilter(keys, numKeys);
+        firstPass = true;
+        probeSource = child2;
+        matchRow = -1;
+    }
+
+    private void startPartitioning() throws DbException {
+        partitioned = true;
+        memPartition = 0;
+        buildParts = new TupleSpillFile[NUM_PARTITIONS];
+        probeParts = new TupleSpillFile[NUM_PARTITIONS];
+        BuildTable old = table;
+        table = new BuildTable();
+        int f1 = pred.getField1();
+        for (int i = 0; i < old.size(); i++) {
+            Tuple t = old.row(i);
+            Field f = t.getField(f1);
+            int p = partitionOf(f);
+            if (p == memPartition)
+                table.add(t, keyOf(f));
+            else
+                spill(buildParts, p, t);
+        }
+        if (table.size() > memoryTuples)
+            spillMemoryPartition();
+    }
+
+    private void spillMemoryPartition() throws DbException {
+        for (int i = 0; i < table.size(); i++)
+            spill(buildParts, memPartition, table.row(i));
+        table = null;
+        memPartition = -1;
+    }
+
+    /**
+     * Move on to the next pair of spilled partitions.
+     *
+     * @return false if there are no partitions left to join
+     */
+    private boolean advancePartition() throws DbException, TransactionAbortedException {
+        if (firstPass) {
+            firstPass = false;
+            if (!partitioned)
+                return false;
+            nextPartition = 0;
+        } else if (probeSource != null) {
+            probeSource.close();
+        }
+        probeSource = null;
+        table = null;
+        matchRow = -1;
+        while (nextPartition < NUM_PARTITIONS) {
+            int p = nextPartition++;
+            if (p == memPartition || buildParts[p] == null || probeParts[p] == null)
+                continue;
+            OpIterator build = buildParts[p].iterator();
+            OpIterator probe = probeParts[p].iterator();
+            if (buildParts[p].numTuples() > memoryTuples && level < MAX_LEVEL) {
+                nested = new HashEquiJoin(pred, build, probe, memoryTuples, level + 1);
+                nested.open();
                 return true;
+            }
+            table = new BuildTable();
+            int f1 = pred.getField1();
+            build.open();
+            while (build.hasNext()) {
+                Tuple t = build.next();
+                table.add(t, keyOf(t.getField(f1)));
+            }
+            build.close();
+            probe.open();
+            probeSource = probe;
+            return true;
         }
-        return cnt > 0;
+        return false;
+    }
 
+    private void cleanup() {
+        if (nested != null) {
+            nested.close();
+            nested = null;
+        }
+        if (probeSource != null && probeSource != child2)
+            probeSource.close();
+        probeSource = null;
+        for (TupleSpillFile[] parts : new TupleSpillFile[][] { buildParts, probeParts }) {
+            if (parts == null)
+                continue;
+            for (TupleSpillFile f : parts) {
+                if (f != null)
+                    f.discard();
+            }
+        }
+        buildParts = null;
+        probeParts = null;
+        table = null;
+        t2 = null;
+        matchRow = -1;
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
+        // the probe side is opened after the build, with the Bloom filter
+        // in place
+        build();
         child2.open();
-        loadMap();
         super.open();
     }
 
     public void close() {
         super.close();
+        cleanup();
         child2.close();
         child1.close();
-        this.t1=null;
-        this.t2=null;
-        this.listIt=null;
-        this.map.clear();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        cleanup();
         child1.rewind();
+        build();
         child2.rewind();
     }
 
-    transient Iterator<Tuple> listIt = null;
-
     /**
      * Returns the next tuple generated by the join, or null if there are no
      * more tuples. Logically, this is the next tuple in r1 cross r2 that
@@ -110,13 +347,99 @@ public class HashEquiJoin extends Operator {
      * <p>
      * For example, if one tuple is {1,2,3} and the other tuple is {1,5,6},
      * joined on equality of the first column, then this returns {1,2,3,1,5,6}.
-     * 
+     *
      * @return The next matching tuple.
      * @see JoinPredicate#filter
      */
-    private Tuple processList() throws TransactionAbortedException, DbException {
-        t1 = listIt.next();
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        int f1 = pred.getField1();
+        int f2 = pred.getField2();
+        while (true) {
+            // emit the remaining build tuples chained under the probe key
+            while (matchRow >= 0) {
+                Tuple t1 = table.row(matchRow);
+                matchRow = table.nextRow(matchRow);
+                if (t1.getField(f1).equals(t2.getField(f2)))
+                    return mergeTuples(t1, t2);
+            }
+
+            if (nested != null) {
+                if (nested.hasNext())
+                    return nested.next();
+                nested.close();
+                nested = null;
+                if (!advancePartition())
+                    return null;
+                continue;
+            }
+
+            if (probeSource != null && probeSource.hasNext()) {
+                t2 = probeSource.next();
+                Field f = t2.getField(f2);
+                if (firstPass && partitioned) {
+                    int p = partitionOf(f);
+                    if (p != memPartition) {
+                        // no build tuples in this partition means no matches
+                        if (buildParts[p] != null)
+                            spill(probeParts, p, t2);
+                        continue;
+                    }
+                }
+                if (table != null)
+                    matchRow = table.lookup(keyOf(f));
+                continue;
+            }
+
+            if (!advancePartition())
+                return null;
+        }
+    }
+
+    /**
+     * Read the whole build side into an in-memory table that several threads
+     * can probe at once with {@link #probe}. The join itself does not need to
+     * be open. The Bloom filter of the build side is pushed into the probe
+     * scan, if there is one, for whoever scans it next.
+     *
+     * @return the table, or null if the build side does not fit in the
+     *         memory budget
+     */
+    BuildTable buildInMemory() throws DbException, TransactionAbortedException {
+        BuildTable result = new BuildTable();
+        int f1 = pred.getField1();
+        int[] keys = new int[1024];
+        child1.open();
+        try {
+            while (child1.hasNext()) {
+                Tuple t = child1.next();
+                int key = keyOf(t.getField(f1));
+                keys = addKey(keys, result.size(), key);
+                result.add(t, key);
+                if (result.size() > memoryTuples)
+                    return null;
+            }
+        } finally {
+            child1.close();
+        }
+        pushProbeFilter(keys, result.size());
+        return result;
+    }
 
+    /**
+     * Join a probe-side tuple against a table from {@link #buildInMemory},
+     * adding the joined tuples to out. The table is only read.
+     */
+    void probe(BuildTable table, Tuple t2, List<Tuple> out) {
+        int f1 = pred.getField1();
+        Field f = t2.getField(pred.getField2());
+        for (int row = table.lookup(keyOf(f)); row >= 0; row = table.nextRow(row)) {
+            Tuple t1 = table.row(row);
+            if (t1.getField(f1).equals(f))
+                out.add(mergeTuples(t1, t2));
+        }
+    }
+
+    private Tuple mergeTuples(Tuple t1, Tuple t2) {
         int td1n = t1.getTupleDesc().numFields();
         int td2n = t2.getTupleDesc().numFields();
 
@@ -127,47 +450,99 @@ public class HashEquiJoin extends Operator {
         for (int i = 0; i < td2n; i++)
             t.setField(td1n + i, t2.getField(i));
         return t;
+    }
 
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child1, this.child2};
     }
 
-    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
-            return processList();
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+
+    /**
+     * Open-addressing hash table from an int key to a chain of build tuples.
+     * Slots hold the key and the index of the newest row with that key; rows
+     * with the same key are linked through nextRow, so nothing is boxed.
+     */
+    static class BuildTable {
+        private int[] slotKeys;
+        private int[] slotHeads;
+        private int mask;
+        private int usedSlots = 0;
+
+        private Tuple[] rows = new Tuple[1024];
+        private int[] nextRow = new int[1024];
+        private int numRows = 0;
+
+        BuildTable() {
+            allocSlots(1024);
         }
 
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
+        private void allocSlots(int capacity) {
+            slotKeys = new int[capacity];
+            slotHeads = new int[capacity];
+            Arrays.fill(slotHeads, -1);
+            mask = capacity - 1;
+        }
 
-            // if match, create a combined tuple and fill it with the values
-            // from both tuples
-            ArrayList<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
-                continue;
-            listIt = l.iterator();
+        private int find(int key) {
+            int h = key * 0x9E3779B9;
+            int i = (h ^ (h >>> 16)) & mask;
+            while (slotHeads[i] != -1 && slotKeys[i] != key)
+                i = (i + 1) & mask;
+            return i;
+        }
 
-            return processList();
+        void add(Tuple t, int key) {
+            if (numRows == rows.length) {
+                rows = Arrays.copyOf(rows, numRows * 2);
+                nextRow = Arrays.copyOf(nextRow, numRows * 2);
+            }
+            int slot = find(key);
+            if (slotHeads[slot] == -1) {
+                slotKeys[slot] = key;
+                usedSlots++;
+            }
+            rows[numRows] = t;
+            nextRow[numRows] = slotHeads[slot];
+            slotHeads[slot] = numRows++;
+            if (usedSlots * 2 > slotHeads.length)
+                grow();
+        }
 
+        private void grow() {
+            int[] oldKeys = slotKeys;
+            int[] oldHeads = slotHeads;
+            allocSlots(oldHeads.length * 2);
+            for (int i = 0; i < oldHeads.length; i++) {
+                if (oldHeads[i] != -1) {
+                    int slot = find(oldKeys[i]);
+                    slotKeys[slot] = oldKeys[i];
+                    slotHeads[slot] = oldHeads[i];
+                }
+            }
         }
 
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
+        /** @return the newest row with this key, or -1 */
+        int lookup(int key) {
+            return slotHeads[find(key)];
         }
 
-        return null;
-    }
+        /** @return the next row in the same chain, or -1 */
+        int nextRow(int row) {
+            return nextRow[row];
+        }
 
-    @Override
-    public OpIterator[] getChildren() {
-        return new OpIterator[]{this.child1, this.child2};
-    }
+        Tuple row(int i) {
+            return rows[i];
+        }
 
-    @Override
-    public void setChildren(OpIterator[] children) {
-        this.child1 = children[0];
-        this.child2 = children[1];
+        int size() {
+            return numRows;
+        }
     }
-    
 }
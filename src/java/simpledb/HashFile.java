@@ -0,0 +1,505 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * HashFile is a DbFile that stores the tuples of a table in the buckets of a
+ * hash table on one of their fields, so that the tuples with a given key are
+ * found by reading the pages of a single bucket, usually just one.
+ * <p>
+ * The file grows by linear hashing: whenever a tuple does not fit in the
+ * pages of its bucket and an overflow page is chained to them, the next
+ * bucket in order is split in two, so the number of buckets grows with the
+ * number of tuples one bucket at a time, and an insert never rehashes more
+ * than one bucket. The state of the hash table is kept on a meta page, page
+ * 0 of the file; the format of the file is described in
+ * {@link HashMetaPage}.
+ * <p>
+ * Pages are read and locked through the BufferPool like those of any other
+ * file. Readers find the bucket of a key from the meta page without locking
+ * it, under a short read latch, and check after locking the bucket's page
+ * that it has not been split meanwhile. A split locks the meta page, so
+ * splits are made by one transaction at a time. Deletes never shrink the
+ * file.
+ *
+ * @see HashMetaPage
+ * @see HashBucketPage
+ */
+public class HashFile implements DbFile {
+
+    private final File f;
+    private final TupleDesc td;
+    private final int tableid;
+    private final int keyField;
+    private final LatchManager latches = new LatchManager();
+
+    /**
+     * Constructs a hash file backed by the specified file.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this hash
+     *            file.
+     * @param key
+     *            the field the tuples are hashed on
+     * @param td
+     *            the tuple descriptor of tuples in the file
+     */
+    public HashFile(File f, int key, TupleDesc td) {
+        this.f = f;
+        this.tableid = f.getAbsoluteFile().hashCode();
+        this.keyField = key;
+        this.td = td;
+    }
+
+    /**
+     * Returns the File backing this HashFile on disk.
+     */
+    public File getFile() {
+        return f;
+    }
+
+    /**
+     * Returns an ID uniquely identifying this HashFile, the hash code of the
+     * absolute name of its file.
+     */
+    public int getId() {
+        return tableid;
+    }
+
+    /**
+     * Returns the TupleDesc of the table stored in this DbFile.
+     */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return the field the tuples are hashed on
+     */
+    public int keyField() {
+        return keyField;
+    }
+
+    /**
+     * Returns the number of pages of this file on disk. Pages allocated to
+     * the file that have never been written are not counted.
+     */
+    public int numPages() {
+        return (int) (f.length() / BufferPool.getPageSize());
+    }
+
+    /**
+     * Read a page from the file on disk. Pages past the end of the file,
+     * which have been allocated but never written, are read as empty pages.
+     */
+    public Page readPage(PageId pid) {
+        HashPageId id = (HashPageId) pid;
+        byte[] data = new byte[BufferPool.getPageSize()];
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+            long offset = (long) id.getPageNumber() * BufferPool.getPageSize();
+            if (offset < raf.length()) {
+                raf.seek(offset);
+                raf.readFully(data);
+            }
+            if (id.getPageNumber() == 0)
+                return new HashMetaPage(id, data);
+            return new HashBucketPage(id, data);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Unable to read page " + id.getPageNumber() + " of HashFile", e);
+        }
+    }
+
+    /**
+     * Write a page to disk, extending the file if it is past its end.
+     */
+    public synchronized void writePage(Page page) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.seek((long) page.getId().getPageNumber() * BufferPool.getPageSize());
+            raf.write(page.getPageData());
+        }
+    }
+
+    /**
+     * @return the hash of a key. The bits of the key's hash code are mixed,
+     *         so that keys with close hash codes, like consecutive integers,
+     *         differ in the low bits used to pick their bucket.
+     */
+    static int hash(Field key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Create the meta page and the page of the first bucket if the file is
+     * empty.
+     */
+    private synchronized void createMetaPage() throws IOException {
+        if (f.length() == 0) {
+            try (FileOutputStream out = new FileOutputStream(f, true)) {
+                out.write(HashMetaPage.createEmptyPageData());
+                out.write(HashBucketPage.createEmptyPageData());
+            }
+        }
+    }
+
+    /**
+     * @return the id of the meta page of this file
+     */
+    private HashPageId metaId() {
+        return new HashPageId(tableid, 0);
+    }
+
+    /**
+     * Method to encapsulate the process of locking/fetching a page. First the
+     * method checks the local cache ("dirtypages"), and if it can't find the
+     * requested page there, it fetches it from the buffer pool. It also adds
+     * pages to the dirtypages cache if they are fetched with read-write
+     * permission, since presumably they will soon be dirtied by this
+     * transaction.
+     */
+    private Page getPage(TransactionId tid, HashMap<PageId, Page> dirtypages, HashPageId pid, Permissions perm)
+            throws DbException, TransactionAbortedException {
+        Page p = dirtypages.get(pid);
+        if (p != null)
+            return p;
+        p = Database.getBufferPool().getPage(tid, pid, perm);
+        if (perm == Permissions.READ_WRITE)
+            dirtypages.put(pid, p);
+        return p;
+    }
+
+    /**
+     * Read the meta page under a read latch, without locking it, and find
+     * the primary page of the bucket of a key with the given hash, or the
+     * number of pages in use if hash is null.
+     */
+    private int readMeta(HashMap<PageId, Page> dirtypages, Integer hash) throws DbException {
+        HashPageId metaId = metaId();
+        latches.acquire(metaId, false);
+        try {
+            HashMetaPage meta = (HashMetaPage) dirtypages.get(metaId);
+            if (meta == null)
+                meta = (HashMetaPage) Database.getBufferPool().fetchPage(metaId);
+            return hash == null ? meta.getNumPages() : meta.pageOf(meta.bucketOf(hash));
+        } finally {
+            latches.release(metaId, false);
+        }
+    }
+
+    /**
+     * Lock the primary page of the bucket of a key with the given hash. The
+     * bucket may be split while its page is being locked, in which case the
+     * page the key now belongs on is locked instead.
+     */
+    private HashBucketPage bucketPage(TransactionId tid, HashMap<PageId, Page> dirtypages, int hash,
+            Permissions perm) throws DbException, TransactionAbortedException {
+        while (true) {
+            int pgNo = readMeta(dirtypages, hash);
+            HashBucketPage page = (HashBucketPage) getPage(tid, dirtypages, new HashPageId(tableid, pgNo), perm);
+            if (readMeta(dirtypages, hash) == pgNo)
+                return page;
+        }
+    }
+
+    /**
+     * Write-latch the meta page before changing it, so that readers never see
+     * it half changed. The meta page must be locked for writing.
+     */
+    private void latchMeta() {
+        latches.acquire(metaId(), true);
+    }
+
+    private void unlatchMeta() {
+        latches.release(metaId(), true);
+    }
+
+    /**
+     * Insert a tuple into the bucket of its key. If the pages of the bucket
+     * are full, an overflow page is chained to them, and the next bucket in
+     * order is split.
+     */
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        if (!t.getTupleDesc().equals(td))
+            throw new DbException("tuple descriptor does not match that of the file");
+        createMetaPage();
+        HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+        HashBucketPage page = bucketPage(tid, dirtypages, hash(t.getField(keyField)), Permissions.READ_WRITE);
+        while (page.getNumEmptySlots() == 0 && page.getNextPageNo() != 0)
+            page = (HashBucketPage) getPage(tid, dirtypages, new HashPageId(tableid, page.getNextPageNo()),
+                    Permissions.READ_WRITE);
+        if (page.getNumEmptySlots() > 0) {
+            page.insertTuple(t);
+        } else {
+            HashMetaPage meta = (HashMetaPage) getPage(tid, dirtypages, metaId(), Permissions.READ_WRITE);
+            HashBucketPage overflow = newPage(tid, dirtypages, meta);
+            page.setNextPageNo(overflow.getId().getPageNumber());
+            overflow.insertTuple(t);
+            split(tid, dirtypages, meta);
+        }
+        return new ArrayList<Page>(dirtypages.values());
+    }
+
+    /**
+     * Delete a tuple from the page it is stored on.
+     */
+    public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || rid.getPageId().getTableId() != tableid)
+            throw new DbException("tuple is not in this file");
+        HashBucketPage page = (HashBucketPage) Database.getBufferPool().getPage(tid,
+                (HashPageId) rid.getPageId(), Permissions.READ_WRITE);
+        page.deleteTuple(t);
+        ArrayList<Page> dirtied = new ArrayList<Page>();
+        dirtied.add(page);
+        return dirtied;
+    }
+
+    /**
+     * Get an empty page to chain to a bucket, reusing a free page if there is
+     * one, and extending the file otherwise. The meta page must be locked for
+     * writing.
+     */
+    private HashBucketPage newPage(TransactionId tid, HashMap<PageId, Page> dirtypages, HashMetaPage meta)
+            throws DbException, TransactionAbortedException {
+        HashBucketPage page;
+        if (meta.getFreePage() != 0) {
+            page = (HashBucketPage) getPage(tid, dirtypages, new HashPageId(tableid, meta.getFreePage()),
+                    Permissions.READ_WRITE);
+            latchMeta();
+            meta.setFreePage(page.getNextPageNo());
+            unlatchMeta();
+        } else {
+            int pgNo = meta.getNumPages();
+            latchMeta();
+            meta.setNumPages(pgNo + 1);
+            unlatchMeta();
+            page = (HashBucketPage) getPage(tid, dirtypages, new HashPageId(tableid, pgNo), Permissions.READ_WRITE);
+        }
+        page.clear();
+        return page;
+    }
+
+    /**
+     * Put an emptied overflow page on the free list. The meta page must be
+     * locked for writing.
+     */
+    private void freePage(HashMetaPage meta, HashBucketPage page) {
+        page.clear();
+        page.setNextPageNo(meta.getFreePage());
+        latchMeta();
+        meta.setFreePage(page.getId().getPageNumber());
+        unlatchMeta();
+    }
+
+    /**
+     * Split the next bucket in order, moving the tuples that belong to the
+     * new bucket there. The meta page must be locked for writing; the pages
+     * of both buckets are locked before the meta page says the tuples have
+     * moved.
+     */
+    private void split(TransactionId tid, HashMap<PageId, Page> dirtypages, HashMetaPage meta)
+            throws DbException, TransactionAbortedException {
+        int oldBucket = meta.getSplitBucket();
+        int newBucket = meta.getNewBucket();
+        latchMeta();
+        try {
+            meta.allocateGroup();
+        } finally {
+            unlatchMeta();
+        }
+
+        // take every tuple out of the bucket being split
+        ArrayList<HashBucketPage> chain = new ArrayList<HashBucketPage>();
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        int pgNo = meta.pageOf(oldBucket);
+        while (pgNo != 0) {
+            HashBucketPage page = (HashBucketPage) getPage(tid, dirtypages, new HashPageId(tableid, pgNo),
+                    Permissions.READ_WRITE);
+            pgNo = page.getNextPageNo();
+            chain.add(page);
+            tuples.addAll(page.clear());
+        }
+        ArrayList<HashBucketPage> newChain = new ArrayList<HashBucketPage>();
+        HashBucketPage newPage = (HashBucketPage) getPage(tid, dirtypages,
+                new HashPageId(tableid, meta.pageOf(newBucket)), Permissions.READ_WRITE);
+        newPage.clear();
+        newChain.add(newPage);
+
+        // the bit of the hash above those used so far tells the two apart
+        int mask = 2 * (newBucket - oldBucket) - 1;
+        ArrayList<Tuple> staying = new ArrayList<Tuple>();
+        ArrayList<Tuple> moving = new ArrayList<Tuple>();
+        for (Tuple t : tuples)
+            (((hash(t.getField(keyField)) & mask) == newBucket) ? moving : staying).add(t);
+        fill(tid, dirtypages, meta, chain, staying);
+        fill(tid, dirtypages, meta, newChain, moving);
+
+        latchMeta();
+        meta.split();
+        unlatchMeta();
+    }
+
+    /**
+     * Store tuples on a chain of empty pages, chaining more pages to it if
+     * they do not fit, and freeing the overflow pages they do not need.
+     */
+    private void fill(TransactionId tid, HashMap<PageId, Page> dirtypages, HashMetaPage meta,
+            ArrayList<HashBucketPage> chain, List<Tuple> tuples) throws DbException, TransactionAbortedException {
+        int used = 0;
+        HashBucketPage page = chain.get(0);
+        int free = page.getNumEmptySlots();
+        for (Tuple t : tuples) {
+            if (free == 0) {
+                used++;
+                HashBucketPage next = used < chain.size() ? chain.get(used) : newPage(tid, dirtypages, meta);
+                page.setNextPageNo(next.getId().getPageNumber());
+                page = next;
+                free = page.getNumEmptySlots();
+            }
+            page.insertTuple(t);
+            free--;
+        }
+        for (int i = used + 1; i < chain.size(); i++)
+            freePage(meta, chain.get(i));
+    }
+
+    /**
+     * Returns an iterator over all the tuples stored in this file, reading
+     * every page in use.
+     */
+    public DbFileIterator iterator(TransactionId tid) {
+        return new HashFileIterator(tid, null);
+    }
+
+    /**
+     * Returns an iterator over the tuples whose key satisfies a predicate.
+     * An EQUALS predicate reads only the pages of the bucket of its operand;
+     * a predicate with any other operator is evaluated on every tuple of the
+     * file.
+     *
+     * @param ipred
+     *            the predicate on the key field
+     */
+    public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
+        if (ipred.getOp() == Predicate.Op.EQUALS)
+            return new HashLookupIterator(tid, ipred.getField());
+        Predicate p = new Predicate(keyField, ipred.getOp(), ipred.getField());
+        return new HashFileIterator(tid, CompiledPredicate.compile(new Predicate[] { p }, td));
+    }
+
+    /**
+     * Reads every page of the file in use, in order, returning the tuples
+     * that satisfy a predicate.
+     */
+    private class HashFileIterator extends AbstractDbFileIterator {
+        private final TransactionId tid;
+        private final CompiledPredicate predicate;
+        private int numPages;
+        private int pgNo;
+        private Iterator<Tuple> tuples;
+
+        /**
+         * @param predicate
+         *            the predicate the tuples returned satisfy, or null to
+         *            return every tuple
+         */
+        HashFileIterator(TransactionId tid, CompiledPredicate predicate) {
+            this.tid = tid;
+            this.predicate = predicate;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            try {
+                createMetaPage();
+            } catch (IOException e) {
+                throw new DbException(e.getMessage());
+            }
+            numPages = readMeta(new HashMap<PageId, Page>(), null);
+            pgNo = 0;
+            tuples = Collections.<Tuple>emptyList().iterator();
+        }
+
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            if (tuples == null)
+                return null;
+            while (true) {
+                while (tuples.hasNext()) {
+                    Tuple t = tuples.next();
+                    if (predicate == null || predicate.matches(t))
+                        return t;
+                }
+                if (++pgNo >= numPages)
+                    return null;
+                tuples = ((HashBucketPage) Database.getBufferPool().getPage(tid,
+                        new HashPageId(tableid, pgNo), Permissions.READ_ONLY)).iterator();
+            }
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            tuples = null;
+        }
+    }
+
+    /**
+     * Reads the pages of the bucket of a key, returning the tuples with that
+     * key.
+     */
+    private class HashLookupIterator extends AbstractDbFileIterator {
+        private final TransactionId tid;
+        private final Field key;
+        private HashBucketPage page;
+        private Iterator<Tuple> tuples;
+
+        HashLookupIterator(TransactionId tid, Field key) {
+            this.tid = tid;
+            this.key = key;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            try {
+                createMetaPage();
+            } catch (IOException e) {
+                throw new DbException(e.getMessage());
+            }
+            page = bucketPage(tid, new HashMap<PageId, Page>(), hash(key), Permissions.READ_ONLY);
+            tuples = page.iterator();
+        }
+
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            if (tuples == null)
+                return null;
+            while (true) {
+                while (tuples.hasNext()) {
+                    Tuple t = tuples.next();
+                    if (t.getField(keyField).equals(key))
+                        return t;
+                }
+                if (page.getNextPageNo() == 0)
+                    return null;
+                page = (HashBucketPage) Database.getBufferPool().getPage(tid,
+                        new HashPageId(tableid, page.getNextPageNo()), Permissions.READ_ONLY);
+                tuples = page.iterator();
+            }
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            page = null;
+            tuples = null;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * HashMetaPage is the first page of a {@link HashFile}. It holds the state of
+ * the linear hashing scheme: which buckets exist, where their pages are, and
+ * which pages of the file are in use.
+ * <p>
+ * The file has 2^level + next buckets. A key whose hash is h belongs to
+ * bucket h mod 2^level, or to bucket h mod 2^(level+1) if that one is below
+ * next and has been split already. Splitting bucket next moves the tuples
+ * of bucket h mod 2^(level+1) = next + 2^level to that new bucket, then
+ * increments next; once every bucket of a level has been split, the level
+ * grows by one and next starts over from 0.
+ * <p>
+ * The primary pages of buckets are allocated in groups: group 0 is bucket 0,
+ * and group g > 0 holds buckets 2^(g-1) to 2^g - 1, allocated together at the
+ * end of the file when the first of them is created, with their pages in
+ * order. Overflow pages are allocated between groups, so the page of a bucket
+ * is found from the number of pages before its group. Overflow pages emptied
+ * by a split are kept on a free list, chained through their next page
+ * pointers, and reused before the file grows.
+ */
+public class HashMetaPage implements Page {
+
+    /** Number of groups of buckets a file can have */
+    public static final int MAX_GROUPS = 32;
+
+    private final HashPageId pid;
+    private int level;
+    private int next;
+    private int numPages;
+    private int freePage;
+    private final int[] groupOffsets = new int[MAX_GROUPS];
+
+    private byte[] oldData;
+    private final Object oldDataLock = new Object();
+    private TransactionId dirtier = null;
+
+    /**
+     * Create a HashMetaPage from a set of bytes of data read from disk. The
+     * format of the page is the level, the next bucket to split, the number
+     * of pages in use, the first free page (0 if there is none), and for
+     * each group of buckets, the number of overflow pages before it, each as
+     * a 4 byte integer, followed by zeros to the end of the page.
+     *
+     * @see #createEmptyPageData()
+     */
+    public HashMetaPage(HashPageId id, byte[] data) throws IOException {
+        this.pid = id;
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        level = dis.readInt();
+        next = dis.readInt();
+        numPages = dis.readInt();
+        freePage = dis.readInt();
+        for (int i = 0; i < MAX_GROUPS; i++)
+            groupOffsets[i] = dis.readInt();
+        dis.close();
+        setBeforeImage();
+    }
+
+    /**
+     * @return the data of the meta page of a new file, which has one empty
+     *         bucket on page 1
+     */
+    public static byte[] createEmptyPageData() {
+        byte[] data = new byte[BufferPool.getPageSize()];
+        data[11] = 2; // the meta page and the page of bucket 0 are in use
+        return data;
+    }
+
+    public HashPageId getId() {
+        return pid;
+    }
+
+    public byte[] getPageData() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            dos.writeInt(level);
+            dos.writeInt(next);
+            dos.writeInt(numPages);
+            dos.writeInt(freePage);
+            for (int i = 0; i < MAX_GROUPS; i++)
+                dos.writeInt(groupOffsets[i]);
+            dos.write(new byte[BufferPool.getPageSize() - dos.size()]);
+            dos.flush();
+        } catch (IOException e) {
+            // writing to a byte array does not fail
+            throw new RuntimeException(e);
+        }
+        return baos.toByteArray();
+    }
+
+    /** Return a view of this page before it was modified -- used by recovery */
+    public HashMetaPage getBeforeImage() {
+        try {
+            synchronized (oldDataLock) {
+                return new HashMetaPage(pid, oldData);
+            }
+        } catch (IOException e) {
+            // should never happen -- we parsed it OK before!
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void setBeforeImage() {
+        synchronized (oldDataLock) {
+            oldData = getPageData().clone();
+        }
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        dirtier = dirty ? tid : null;
+    }
+
+    public TransactionId isDirty() {
+        return dirtier;
+    }
+
+    /**
+     * @return the bucket of a key with the given hash
+     */
+    public int bucketOf(int hash) {
+        int bucket = hash & ((1 << level) - 1);
+        if (bucket < next)
+            bucket = hash & ((1 << (level + 1)) - 1);
+        return bucket;
+    }
+
+    /**
+     * @return the group of buckets a bucket belongs to
+     */
+    private static int groupOf(int bucket) {
+        return 32 - Integer.numberOfLeadingZeros(bucket);
+    }
+
+    /**
+     * @return the page number of the primary page of a bucket
+     */
+    public int pageOf(int bucket) {
+        return 1 + bucket + groupOffsets[groupOf(bucket)];
+    }
+
+    /**
+     * @return the number of buckets
+     */
+    public int getNumBuckets() {
+        return (1 << level) + next;
+    }
+
+    /**
+     * @return the bucket split next
+     */
+    public int getSplitBucket() {
+        return next;
+    }
+
+    /**
+     * @return the bucket created by the next split
+     */
+    public int getNewBucket() {
+        return next + (1 << level);
+    }
+
+    /**
+     * Allocate the pages of the group starting with the bucket created by the
+     * next split at the end of the file, if that bucket starts a group.
+     *
+     * @throws DbException if the file has as many buckets as it can have
+     */
+    public void allocateGroup() throws DbException {
+        int bucket = getNewBucket();
+        if (Integer.bitCount(bucket) != 1)
+            return;
+        int group = groupOf(bucket);
+        if (group >= MAX_GROUPS)
+            throw new DbException("too many buckets in hash file");
+        groupOffsets[group] = numPages - 1 - bucket;
+        numPages += bucket;
+    }
+
+    /**
+     * Record that the bucket returned by getSplitBucket() has been split,
+     * and its tuples belonging to the one returned by getNewBucket() moved
+     * there.
+     */
+    public void split() {
+        next++;
+        if (next == 1 << level) {
+            level++;
+            next = 0;
+        }
+    }
+
+    /**
+     * @return the number of pages of the file in use, including this one
+     *         and the free pages
+     */
+    public int getNumPages() {
+        return numPages;
+    }
+
+    /**
+     * Set the number of pages of the file in use
+     */
+    public void setNumPages(int numPages) {
+        this.numPages = numPages;
+    }
+
+    /**
+     * @return the page number of the first free page, or 0 if there is none
+     */
+    public int getFreePage() {
+        return freePage;
+    }
+
+    /**
+     * Set the page number of the first free page, or 0 if there is none
+     */
+    public void setFreePage(int freePage) {
+        this.freePage = freePage;
+    }
+}
@@ -0,0 +1,73 @@
+package simpledb;
+
+import java.util.Objects;
+
+/** Unique identifier for the pages of a HashFile. */
+public class HashPageId implements PageId {
+
+    private final int tableId;
+    private final int pgNo;
+
+    /**
+     * Constructor. Create a page id structure for a specific page of a
+     * specific hash file. Page 0 is the meta page of the file; every other
+     * page holds tuples of a bucket.
+     *
+     * @param tableId The table that is being referenced
+     * @param pgNo The page number in that table.
+     */
+    public HashPageId(int tableId, int pgNo) {
+        this.tableId = tableId;
+        this.pgNo = pgNo;
+    }
+
+    /** @return the table associated with this PageId */
+    public int getTableId() {
+        return tableId;
+    }
+
+    /**
+     * @return the page number in the table getTableId() associated with
+     *   this PageId
+     */
+    public int getPageNumber() {
+        return pgNo;
+    }
+
+    /**
+     * @return a hash code for this page, represented by the concatenation of
+     *   the table number and the page number
+     * @see BufferPool
+     */
+    public int hashCode() {
+        return Objects.hash(tableId, pgNo);
+    }
+
+    /**
+     * Compares one PageId to another.
+     *
+     * @param o The object to compare against (must be a PageId)
+     * @return true if the objects are equal (e.g., page numbers and table
+     *   ids are the same)
+     */
+    public boolean equals(Object o) {
+        if (!(o instanceof HashPageId))
+            return false;
+        HashPageId p = (HashPageId) o;
+        return tableId == p.tableId && pgNo == p.pgNo;
+    }
+
+    public String toString() {
+        return "(" + tableId + ", " + pgNo + ")";
+    }
+
+    /**
+     *  Return a representation of this object as an array of
+     *  integers, for writing to disk.  Size of returned array must contain
+     *  number of integers that corresponds to number of args to one of the
+     *  constructors.
+     */
+    public int[] serialize() {
+        return new int[] { tableId, pgNo };
+    }
+}
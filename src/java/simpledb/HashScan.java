@@ -0,0 +1,121 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * HashScan reads the tuples of a HashFile whose key is equal to a value by
+ * reading the bucket of that value, instead of every page of the file.
+ * <p>
+ * The lookup predicate is kept among the predicates of the scan together with
+ * any others, and all of them are checked on the tuples read, so the scan
+ * returns the same tuples as a SeqScan with the same predicates.
+ */
+public class HashScan extends TableScan {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Predicate lookup;
+
+    transient private DbFileIterator it;
+    transient private CompiledPredicate predicate;
+    transient private Tuple nextTuple;
+
+    /**
+     * Creates a scan of the tuples of a hash file satisfying lookup and every
+     * other predicate.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the hash file to scan
+     * @param tableAlias
+     *            the alias of the table
+     * @param lookup
+     *            an EQUALS predicate on the key field of the file; its operand
+     *            is read every time the scan is opened or rewound
+     * @param predicates
+     *            other predicates over the fields of the table
+     */
+    public HashScan(TransactionId tid, int tableid, String tableAlias, Predicate lookup, Predicate[] predicates) {
+        super(tid, tableid, tableAlias, withLookup(lookup, predicates));
+        if (!supports(tableid, lookup))
+            throw new IllegalArgumentException("the hash file cannot answer " + lookup);
+        this.lookup = lookup;
+    }
+
+    private static Predicate[] withLookup(Predicate lookup, Predicate[] predicates) {
+        Predicate[] all = Arrays.copyOf(predicates, predicates.length + 1);
+        all[predicates.length] = lookup;
+        return all;
+    }
+
+    /**
+     * @return true if a predicate over the fields of a table can be answered
+     *         by looking up its bucket, that is the table is a HashFile and
+     *         the predicate an equality on its key
+     */
+    public static boolean supports(int tableid, Predicate p) {
+        DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+        return f instanceof HashFile && p.getOp() == Predicate.Op.EQUALS
+                && p.getField() == ((HashFile) f).keyField();
+    }
+
+    /**
+     * @return the predicate answered by the lookup
+     */
+    public Predicate getLookup() {
+        return lookup;
+    }
+
+    /**
+     * The lookup is made by the first call to hasNext or next, so a scan that
+     * is opened and then rewound with a new key reads only what it returns.
+     */
+    @Override
+    public void open() throws DbException, TransactionAbortedException {
+        predicate = CompiledPredicate.compile(getPredicates(), Database.getCatalog().getTupleDesc(getTableId()));
+        it = null;
+        nextTuple = null;
+    }
+
+    @Override
+    public boolean hasNext() throws TransactionAbortedException, DbException {
+        if (predicate == null)
+            throw new IllegalStateException("Operator not yet open");
+        if (it == null) {
+            HashFile f = (HashFile) Database.getCatalog().getDatabaseFile(getTableId());
+            it = f.indexIterator(getTransactionId(), new IndexPredicate(lookup.getOp(), lookup.getOperand()));
+            it.open();
+        }
+        while (nextTuple == null && it.hasNext()) {
+            Tuple t = it.next();
+            if (predicate.matches(t))
+                nextTuple = t;
+        }
+        return nextTuple != null;
+    }
+
+    @Override
+    public Tuple next() throws NoSuchElementException, TransactionAbortedException, DbException {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        Tuple t = nextTuple;
+        nextTuple = null;
+        return t;
+    }
+
+    @Override
+    public void rewind() throws DbException, NoSuchElementException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    @Override
+    public void close() {
+        if (it != null)
+            it.close();
+        it = null;
+        predicate = null;
+        nextTuple = null;
+    }
+}
@@ -17,6 +17,10 @@ public class HeapFile implements DbFile {
 
     private File file;
     private TupleDesc tupleDesc;
+    /** loaded on first use by a scan with predicates */
+    private ZoneMap zoneMap = null;
+    /** whether the first page write has looked for a sidecar to keep up to date */
+    private boolean sidecarChecked = false;
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -92,7 +96,7 @@ public class HeapFile implements DbFile {
 
     // see DbFile.java for javadocs
     @Override
-    public void writePage(Page page) throws IOException {
+    public synchronized void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for lab1
         try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
@@ -100,6 +104,32 @@ public class HeapFile implements DbFile {
             byte[] data = page.getPageData();
             raf.write(data);
         }
+        // only pay for the zone map once it is in use, but load a sidecar
+        // left by an earlier run before it goes out of date
+        if (zoneMap == null && !sidecarChecked) {
+            sidecarChecked = true;
+            if (ZoneMap.sidecarOf(file).exists())
+                zoneMap();
+        }
+        if (zoneMap != null)
+            zoneMap.update((HeapPage) page);
+    }
+
+    /**
+     * Returns the zone map of this file, loading or building it on first use.
+     */
+    public synchronized ZoneMap zoneMap() {
+        if (zoneMap == null)
+            zoneMap = new ZoneMap(this);
+        return zoneMap;
+    }
+
+    /**
+     * Save the zone map of this file to its sidecar, if it is in use.
+     */
+    synchronized void saveZoneMap() throws IOException {
+        if (zoneMap != null)
+            zoneMap.save();
     }
 
     /**
@@ -248,5 +278,114 @@ public class HeapFile implements DbFile {
     }
 
 
+    /**
+     * Returns an iterator over the tuples of this file that satisfy all of
+     * the given predicates. The predicates are evaluated by each HeapPage
+     * against its data, so tuples that do not match are never deserialized.
+     *
+     * @param tid
+     *            the transaction the pages are read for
+     * @param predicates
+     *            predicates over the fields of this file's TupleDesc
+     */
+    public DbFileIterator iterator(TransactionId tid, Predicate[] predicates) {
+        return new PageRangeIterator(tid, 0, -1, predicates);
+    }
+
+    /**
+     * Returns an iterator over the tuples on pages [startPage, endPage) of
+     * this file. Pages are read through the BufferPool with the given
+     * transaction's READ_ONLY locks, so several ranges of the same file can be
+     * scanned by different threads on behalf of one transaction.
+     *
+     * @param tid
+     *            the transaction the pages are read for
+     * @param startPage
+     *            the first page to read
+     * @param endPage
+     *            one past the last page to read
+     */
+    public DbFileIterator iterator(TransactionId tid, int startPage, int endPage) {
+        return iterator(tid, startPage, endPage, new Predicate[0]);
+    }
+
+    /**
+     * Returns an iterator over the tuples on pages [startPage, endPage) of
+     * this file that satisfy all of the given predicates.
+     *
+     * @see #iterator(TransactionId, int, int)
+     * @see #iterator(TransactionId, Predicate[])
+     */
+    public DbFileIterator iterator(TransactionId tid, int startPage, int endPage, Predicate[] predicates) {
+        return new PageRangeIterator(tid, startPage, endPage, predicates);
+    }
+
+    private class PageRangeIterator implements DbFileIterator {
+
+        private final TransactionId tid;
+        private final int startPage;
+        /** one past the last page, or -1 for the end of the file when opened */
+        private final int endPage;
+        private final Predicate[] predicates;
+        private CompiledPredicate compiled;
+        private int nextPage;
+        private int lastPage;
+        private ZoneMap zones;
+        private Iterator<Tuple> tuples;
+
+        PageRangeIterator(TransactionId tid, int startPage, int endPage, Predicate[] predicates) {
+            this.tid = tid;
+            this.startPage = startPage;
+            this.endPage = endPage;
+            this.predicates = predicates.clone();
+        }
+
+        @Override
+        public void open() throws DbException, TransactionAbortedException {
+            nextPage = startPage;
+            lastPage = endPage < 0 ? numPages() : endPage;
+            zones = predicates.length > 0 ? zoneMap() : null;
+            compiled = CompiledPredicate.compile(predicates, tupleDesc);
+            tuples = Collections.<Tuple>emptyList().iterator();
+        }
+
+        @Override
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            if (tuples == null)
+                return false;
+            // skip over empty pages and pages without matching tuples; pages
+            // the zone map rules out are locked but not read, unless the lock
+            // is not free, so another transaction may be changing the page,
+            // or the buffer pool holds changes the map does not know about yet
+            while (!tuples.hasNext() && nextPage < lastPage) {
+                HeapPageId pid = new HeapPageId(getId(), nextPage++);
+                BufferPool bp = Database.getBufferPool();
+                if (zones != null && bp.tryLockPage(tid, pid, Permissions.READ_ONLY)
+                        && !bp.isDirty(pid) && !zones.mayMatch(pid.getPageNumber(), predicates))
+                    continue;
+                HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+                tuples = page.iterator(compiled);
+            }
+            return tuples.hasNext();
+        }
+
+        @Override
+        public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return tuples.next();
+        }
+
+        @Override
+        public void rewind() throws DbException, TransactionAbortedException {
+            open();
+        }
+
+        @Override
+        public void close() {
+            tuples = null;
+        }
+    }
+
 }
 
@@ -6,6 +6,10 @@ import java.io.*;
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * Tuples are deserialized from the page data the first time they are
+ * returned, so a page that is only scanned with selective predicates never
+ * builds the tuples that do not match.
  *
  * @see HeapFile
  * @see BufferPool
@@ -16,8 +20,12 @@ public class HeapPage implements Page {
     final HeapPageId pid;
     final TupleDesc td;
     final byte[] header;
+    /** the deserialized tuples; null for a used slot not deserialized yet */
     final Tuple[] tuples;
     final int numSlots;
+    /** the page as read from disk, for slots that were not deserialized */
+    private final byte[] data;
+    private final int tupleSize;
 
     byte[] oldData;
     private final Byte oldDataLock=new Byte((byte)0);
@@ -42,24 +50,12 @@ public class HeapPage implements Page {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        this.tupleSize = td.getSize();
+        this.data = data;
 
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++) {
-            header[i] = dis.readByte();
-        }
-        
+        // the header is read now; tuples are read from data when needed
+        header = Arrays.copyOf(data, getHeaderSize());
         tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++) {
-                tuples[i] = readNextTuple(dis,i);
-            }
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
 
         setBeforeImage();
     }
@@ -116,21 +112,11 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * Deserialize the tuple in a used slot from the page data.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
-        }
+    private Tuple readTuple(int slotId) throws NoSuchElementException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data,
+                header.length + slotId * tupleSize, tupleSize));
 
         // read fields in the tuple
         Tuple t = new Tuple(td);
@@ -149,6 +135,24 @@ public class HeapPage implements Page {
         return t;
     }
 
+    /**
+     * @return the tuple in a used slot, deserializing it the first time
+     */
+    private Tuple tupleAt(int slotId) {
+        if (tuples[slotId] == null)
+            tuples[slotId] = readTuple(slotId);
+        return tuples[slotId];
+    }
+
+    /**
+     * @return the tuple in a slot, or null if the slot is empty
+     */
+    synchronized Tuple getTuple(int slotId) {
+        if (slotId < 0 || slotId >= numSlots || !isSlotUsed(slotId))
+            return null;
+        return tupleAt(slotId);
+    }
+
     /**
      * Generates a byte array representing the contents of this page.
      * Used to serialize this page to disk.
@@ -160,7 +164,7 @@ public class HeapPage implements Page {
      * @see #HeapPage
      * @return A byte array correspond to the bytes of this page.
      */
-    public byte[] getPageData() {
+    public synchronized byte[] getPageData() {
         int len = BufferPool.getPageSize();
         ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
         DataOutputStream dos = new DataOutputStream(baos);
@@ -191,6 +195,16 @@ public class HeapPage implements Page {
                 continue;
             }
 
+            // non-empty slot that was never deserialized
+            if (tuples[i] == null) {
+                try {
+                    dos.write(data, header.length + i * tupleSize, tupleSize);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                continue;
+            }
+
             // non-empty slot
             for (int j=0; j<td.numFields(); j++) {
                 Field f = tuples[i].getField(j);
@@ -242,7 +256,7 @@ public class HeapPage implements Page {
      *         already empty.
      * @param t The tuple to delete
      */
-    public void deleteTuple(Tuple t) throws DbException {
+    public synchronized void deleteTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
         if(getNumEmptySlots() == numSlots){
@@ -267,7 +281,7 @@ public class HeapPage implements Page {
      *         is mismatch.
      * @param t The tuple to add.
      */
-    public void insertTuple(Tuple t) throws DbException {
+    public synchronized void insertTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
         if(getNumEmptySlots() == 0){
@@ -351,20 +365,38 @@ public class HeapPage implements Page {
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
-        if(this.tuples == null){
-            return null;
-        }
-        /*
-        only add the tuples that are not null
-         */
-        LinkedList<Tuple> tmp = new LinkedList<Tuple>();
-        for(int i = 0; i < this.tuples.length; i++){
-            if(isSlotUsed(i)){
-                tmp.add(this.tuples[i]);
-            }
+        return iterator(new Predicate[0]);
+    }
+
+    /**
+     * Returns an iterator over the tuples on this page that satisfy all of
+     * the given predicates. Predicates on tuples that were not deserialized
+     * yet are evaluated against the page data at the field's offset, and only
+     * the matching tuples are deserialized.
+     *
+     * @param predicates
+     *            predicates over the fields of this page's TupleDesc
+     */
+    public Iterator<Tuple> iterator(Predicate[] predicates) {
+        return iterator(CompiledPredicate.compile(predicates, td));
+    }
+
+    /**
+     * Returns an iterator over the tuples on this page that satisfy a
+     * compiled conjunction of predicates over this page's TupleDesc.
+     *
+     * @see #iterator(Predicate[])
+     */
+    public synchronized Iterator<Tuple> iterator(CompiledPredicate predicate) {
+        ArrayList<Tuple> result = new ArrayList<Tuple>();
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i))
+                continue;
+            Tuple t = tuples[i];
+            if (t != null ? predicate.matches(t) : predicate.matches(data, header.length + i * tupleSize))
+                result.add(tupleAt(i));
         }
-        return tmp.iterator();
+        return Collections.unmodifiableList(result).iterator();
     }
 
 }
-
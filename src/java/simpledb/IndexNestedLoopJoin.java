@@ -0,0 +1,165 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * IndexNestedLoopJoin is an equality Join whose inner side is an
+ * {@link IndexScan} on the inner join field. For every outer tuple the inner
+ * scan looks up the tuples with an equal key, so the inner table is never
+ * read in full; this is the join to use when the outer input is small
+ * compared to the inner table.
+ * <p>
+ * The outer tuples are read in batches of {@link #BATCH_SIZE}, and the
+ * distinct keys of a batch are looked up in the index together, in ascending
+ * order: the index is descended once for keys close to each other rather
+ * than once per outer tuple. The tuples matching a batch are held in memory
+ * while it is joined.
+ * <p>
+ * The output is in the order of the outer input, with the tuples matching
+ * each outer tuple in the order the index returns them.
+ */
+public class IndexNestedLoopJoin extends Join {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Number of outer tuples whose keys are looked up together */
+    public static final int BATCH_SIZE = 256;
+
+    private static final Comparator<Field> KEY_ORDER = new Comparator<Field>() {
+        public int compare(Field a, Field b) {
+            if (a.compare(Predicate.Op.LESS_THAN, b))
+                return -1;
+            return a.compare(Predicate.Op.GREATER_THAN, b) ? 1 : 0;
+        }
+    };
+
+    private final TupleDesc comboTD;
+
+    transient private ArrayList<Tuple> batch = null;
+    transient private int next = 0; // the next outer tuple of the batch to join
+    transient private HashMap<Field, ArrayList<Tuple>> matches = null; // the inner tuples matching each key of the batch
+    transient private Tuple outer = null;
+    transient private Iterator<Tuple> inner = null; // the inner tuples matching outer
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to join the children on; its operator must be
+     *            EQUALS
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            An IndexScan of the right(inner) relation whose lookup
+     *            predicate is an equality on the field p.getField2(); it
+     *            is given the keys of each batch of outer tuples to look up
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, OpIterator child1, IndexScan child2) {
+        super(p, child1, child2);
+        if (p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException("IndexNestedLoopJoin only supports EQUALS");
+        Predicate lookup = child2.getLookup();
+        if (lookup.getOp() != Predicate.Op.EQUALS || lookup.getField() != p.getField2())
+            throw new IllegalArgumentException("the inner scan must look up the inner join field");
+        this.comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /**
+     * Build the inner side of an IndexNestedLoopJoin: an IndexScan of the
+     * table of an index looking up keys equal to the outer join field,
+     * returning the tuples that also satisfy the given predicates.
+     */
+    public static IndexScan innerScan(TransactionId tid, SecondaryIndex index, String tableAlias,
+            Predicate[] predicates) {
+        TupleDesc td = Database.getCatalog().getTupleDesc(index.getTableId());
+        Type keyType = td.getFieldType(index.getKeyField());
+        Field placeholder = keyType == Type.INT_TYPE ? new IntField(0) : new StringField("", Type.STRING_LEN);
+        return new IndexScan(tid, index, tableAlias,
+                new Predicate(index.getKeyField(), Predicate.Op.EQUALS, placeholder), predicates);
+    }
+
+    @Override
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public void open() throws DbException, NoSuchElementException, TransactionAbortedException {
+        super.open();
+        reset();
+    }
+
+    public void close() {
+        super.close();
+        reset();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        reset();
+    }
+
+    private void reset() {
+        batch = null;
+        next = 0;
+        matches = null;
+        outer = null;
+        inner = null;
+    }
+
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (inner != null && inner.hasNext())
+                return mergeTuples(outer, inner.next());
+            if ((batch == null || next == batch.size()) && !readBatch())
+                return null;
+            outer = batch.get(next++);
+            ArrayList<Tuple> found = matches.get(outer.getField(joinPredicate.getField1()));
+            inner = found == null ? null : found.iterator();
+        }
+    }
+
+    /**
+     * Read the next batch of outer tuples and look up the inner tuples
+     * matching their keys.
+     *
+     * @return false if there are no outer tuples left
+     */
+    private boolean readBatch() throws TransactionAbortedException, DbException {
+        batch = new ArrayList<Tuple>();
+        next = 0;
+        while (batch.size() < BATCH_SIZE && child1.hasNext())
+            batch.add(child1.next());
+        if (batch.isEmpty())
+            return false;
+
+        TreeSet<Field> keys = new TreeSet<Field>(KEY_ORDER);
+        for (Tuple t : batch)
+            keys.add(t.getField(joinPredicate.getField1()));
+        IndexScan scan = (IndexScan) child2;
+        scan.setKeys(new ArrayList<Field>(keys));
+        scan.rewind();
+        matches = new HashMap<Field, ArrayList<Tuple>>();
+        while (scan.hasNext()) {
+            Tuple t = scan.next();
+            Field key = t.getField(joinPredicate.getField2());
+            ArrayList<Tuple> found = matches.get(key);
+            if (found == null) {
+                found = new ArrayList<Tuple>();
+                matches.put(key, found);
+            }
+            found.add(t);
+        }
+        return true;
+    }
+
+    private Tuple mergeTuples(Tuple outer, Tuple inner) {
+        int n1 = child1.getTupleDesc().numFields();
+        int n2 = child2.getTupleDesc().numFields();
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < n1; i++)
+            t.setField(i, outer.getField(i));
+        for (int i = 0; i < n2; i++)
+            t.setField(n1 + i, inner.getField(i));
+        return t;
+    }
+}
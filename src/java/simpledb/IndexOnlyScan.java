@@ -0,0 +1,166 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * IndexOnlyScan answers a scan of a table from the entries of a covering
+ * {@link SecondaryIndex} alone, without reading the heap file.
+ * <p>
+ * The scan returns the fields held by the entries, the key first and then the
+ * included fields, named tableAlias.fieldName like the fields of a SeqScan,
+ * so it can replace the scan of a table in any plan that uses no other field
+ * of it. The predicates are over these fields. Tuples come back in ascending
+ * key order, so a lower bound on the key is used to start the scan at the
+ * first matching entry, and an upper bound to end it after the last one.
+ */
+public class IndexOnlyScan extends TableScan {
+
+    private static final long serialVersionUID = 1L;
+
+    private final SecondaryIndex index;
+    private final TupleDesc td;
+
+    transient private DbFileIterator it;
+    transient private CompiledPredicate predicate;
+    transient private Predicate[] upperBounds;
+    transient private Tuple nextTuple;
+    transient private boolean done;
+
+    /**
+     * Creates a scan of the entries of a covering index that satisfy every
+     * predicate.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param index
+     *            the index to read the entries of
+     * @param tableAlias
+     *            the alias of the indexed table
+     * @param predicates
+     *            predicates over the fields returned by the scan; their
+     *            operands are read every time the scan is opened or rewound
+     */
+    public IndexOnlyScan(TransactionId tid, SecondaryIndex index, String tableAlias, Predicate[] predicates) {
+        super(tid, index.getTableId(), tableAlias, predicates);
+        this.index = index;
+        TupleDesc entries = index.getIndexFile().getTupleDesc();
+        int n = index.getFields().length;
+        Type[] types = new Type[n];
+        String[] names = new String[n];
+        for (int i = 0; i < n; i++) {
+            types[i] = entries.getFieldType(i);
+            names[i] = tableAlias + "." + entries.getFieldName(i);
+        }
+        this.td = new TupleDesc(types, names);
+    }
+
+    /**
+     * @return the index the entries are read from
+     */
+    public SecondaryIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * @return true if a predicate with this operator on the key bounds the
+     *         key from below, so the scan can start at the first key that
+     *         satisfies it
+     */
+    private static boolean isLowerBound(Predicate.Op op) {
+        return op == Predicate.Op.EQUALS || op == Predicate.Op.GREATER_THAN
+                || op == Predicate.Op.GREATER_THAN_OR_EQ;
+    }
+
+    /**
+     * @return true if a predicate with this operator on the key bounds the
+     *         key from above, so no entry satisfies it after the first one
+     *         that does not
+     */
+    private static boolean isUpperBound(Predicate.Op op) {
+        return op == Predicate.Op.EQUALS || op == Predicate.Op.LESS_THAN
+                || op == Predicate.Op.LESS_THAN_OR_EQ;
+    }
+
+    @Override
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    @Override
+    public void open() throws DbException, TransactionAbortedException {
+        Predicate[] predicates = getPredicates();
+        Predicate start = null;
+        ArrayList<Predicate> upper = new ArrayList<Predicate>();
+        for (Predicate p : predicates) {
+            if (p.getField() != 0)
+                continue;
+            if (isUpperBound(p.getOp()))
+                upper.add(p);
+            if (isLowerBound(p.getOp()) && (start == null || !isLowerBound(start.getOp())))
+                start = p;
+            else if (start == null && isUpperBound(p.getOp()))
+                start = p;
+        }
+        IndexPredicate ipred = start == null ? null : new IndexPredicate(start.getOp(), start.getOperand());
+        predicate = CompiledPredicate.compile(predicates, index.getIndexFile().getTupleDesc());
+        upperBounds = upper.toArray(new Predicate[0]);
+        nextTuple = null;
+        done = false;
+        it = index.entries(getTransactionId(), ipred);
+        it.open();
+    }
+
+    @Override
+    public boolean hasNext() throws TransactionAbortedException, DbException {
+        if (it == null)
+            throw new IllegalStateException("Operator not yet open");
+        while (nextTuple == null && !done && it.hasNext()) {
+            Tuple entry = it.next();
+            for (Predicate p : upperBounds) {
+                // every later entry has a key at least as large
+                if (!p.filter(entry))
+                    done = true;
+            }
+            if (!done && predicate.matches(entry)) {
+                Tuple t = new Tuple(td);
+                for (int i = 0; i < td.numFields(); i++)
+                    t.setField(i, entry.getField(i));
+                nextTuple = t;
+            }
+        }
+        return nextTuple != null;
+    }
+
+    @Override
+    public Tuple next() throws NoSuchElementException, TransactionAbortedException, DbException {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        Tuple t = nextTuple;
+        nextTuple = null;
+        return t;
+    }
+
+    @Override
+    public void rewind() throws DbException, NoSuchElementException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    @Override
+    public void close() {
+        if (it != null)
+            it.close();
+        it = null;
+        predicate = null;
+        upperBounds = null;
+        nextTuple = null;
+    }
+
+    /**
+     * The entries are read in key order.
+     */
+    @Override
+    public SortOrder getSortOrder() {
+        return new SortOrder(0, true);
+    }
+}
@@ -0,0 +1,203 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * IndexScan reads the tuples of a HeapFile that satisfy a predicate on an
+ * indexed field through a {@link SecondaryIndex}, instead of reading every
+ * page of the file.
+ * <p>
+ * The scan looks up the entries matching the lookup predicate in the index and
+ * reads each tuple from its heap page, so it touches at most one heap page per
+ * matching tuple. The lookup predicate is kept among the predicates of the
+ * scan together with any others, and all of them are checked on the tuples
+ * read, so the scan returns the same tuples as a SeqScan with the same
+ * predicates. Tuples come back in ascending order of the indexed field.
+ */
+public class IndexScan extends TableScan {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Cost of descending the index to the first entry of a lookup, in tuples
+     * read: about one entry per level of the tree
+     */
+    public static final int LOOKUP_COST = 3;
+    /**
+     * Cost of reading a matching tuple through the index, in tuples read: the
+     * heap page it is on is read out of order, which is worth reading several
+     * tuples in sequence
+     */
+    public static final int FETCH_COST = 10;
+
+    private final SecondaryIndex index;
+    private final Predicate lookup;
+
+    transient private List<Field> keys = null;
+    transient private DbFileIterator it;
+    transient private CompiledPredicate predicate;
+    transient private Tuple nextTuple;
+
+    /**
+     * Creates a scan of the tuples of the indexed table satisfying lookup and
+     * every other predicate.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param index
+     *            the index to look the tuples up in
+     * @param tableAlias
+     *            the alias of the indexed table
+     * @param lookup
+     *            a predicate on the indexed field, with an operator the index
+     *            supports; its operand is read every time the scan is opened
+     *            or rewound
+     * @param predicates
+     *            other predicates over the fields of the table
+     */
+    public IndexScan(TransactionId tid, SecondaryIndex index, String tableAlias, Predicate lookup,
+            Predicate[] predicates) {
+        super(tid, index.getTableId(), tableAlias, withLookup(lookup, predicates));
+        if (lookup.getField() != index.getKeyField() || !SecondaryIndex.supports(lookup.getOp()))
+            throw new IllegalArgumentException("the index cannot answer " + lookup);
+        this.index = index;
+        this.lookup = lookup;
+    }
+
+    private static Predicate[] withLookup(Predicate lookup, Predicate[] predicates) {
+        Predicate[] all = Arrays.copyOf(predicates, predicates.length + 1);
+        all[predicates.length] = lookup;
+        return all;
+    }
+
+    /**
+     * @return the index the tuples are looked up in
+     */
+    public SecondaryIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the predicate answered by the index
+     */
+    public Predicate getLookup() {
+        return lookup;
+    }
+
+    /**
+     * Look up the tuples whose indexed field is equal to any of several keys,
+     * instead of those matching the lookup predicate, from the next time the
+     * scan is opened or rewound. The keys are looked up together, descending
+     * the index once for keys close to each other.
+     *
+     * @param keys
+     *            the keys to look up, in ascending order
+     */
+    void setKeys(List<Field> keys) {
+        this.keys = keys;
+    }
+
+    /**
+     * Estimate the cost of looking up tuples through an index, in tuples read,
+     * to compare with the number of tuples a scan of the table reads.
+     *
+     * @param lookups
+     *            the number of lookups
+     * @param matches
+     *            the number of tuples they match in total
+     */
+    public static double estimateCost(double lookups, double matches) {
+        return lookups * LOOKUP_COST + matches * FETCH_COST;
+    }
+
+    /**
+     * Estimate how many tuples satisfy a predicate.
+     *
+     * @param op
+     *            the operator of the predicate
+     * @param selectivity
+     *            the selectivity estimated from the table statistics. A value
+     *            outside (0, 1) means the statistics tell nothing, in which
+     *            case an equality is taken to match a single tuple, as on a
+     *            key, and any other comparison a third of the tuples.
+     * @param tuples
+     *            the number of tuples the predicate is applied to
+     */
+    public static double estimateMatches(Predicate.Op op, double selectivity, double tuples) {
+        if (selectivity > 0 && selectivity < 1)
+            return selectivity * tuples;
+        if (op == Predicate.Op.EQUALS)
+            return Math.min(1, tuples);
+        return tuples / 3;
+    }
+
+    /**
+     * The lookup is made by the first call to hasNext or next, so a scan that
+     * is opened and then rewound with a new key reads only what it returns.
+     */
+    @Override
+    public void open() throws DbException, TransactionAbortedException {
+        Predicate[] predicates = getPredicates();
+        if (keys != null) {
+            // the lookup predicate is answered by the keys instead
+            ArrayList<Predicate> others = new ArrayList<Predicate>();
+            for (Predicate p : predicates) {
+                if (p != lookup)
+                    others.add(p);
+            }
+            predicates = others.toArray(new Predicate[others.size()]);
+        }
+        predicate = CompiledPredicate.compile(predicates, Database.getCatalog().getTupleDesc(getTableId()));
+        it = null;
+        nextTuple = null;
+    }
+
+    @Override
+    public boolean hasNext() throws TransactionAbortedException, DbException {
+        if (predicate == null)
+            throw new IllegalStateException("Operator not yet open");
+        if (it == null) {
+            it = keys != null ? index.iterator(getTransactionId(), keys)
+                    : index.iterator(getTransactionId(), new IndexPredicate(lookup.getOp(), lookup.getOperand()));
+            it.open();
+        }
+        while (nextTuple == null && it.hasNext()) {
+            Tuple t = it.next();
+            if (predicate.matches(t))
+                nextTuple = t;
+        }
+        return nextTuple != null;
+    }
+
+    @Override
+    public Tuple next() throws NoSuchElementException, TransactionAbortedException, DbException {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        Tuple t = nextTuple;
+        nextTuple = null;
+        return t;
+    }
+
+    @Override
+    public void rewind() throws DbException, NoSuchElementException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    @Override
+    public void close() {
+        if (it != null)
+            it.close();
+        it = null;
+        predicate = null;
+        nextTuple = null;
+    }
+
+    /**
+     * The index returns its entries in key order.
+     */
+    @Override
+    public SortOrder getSortOrder() {
+        return new SortOrder(index.getKeyField(), true);
+    }
+}
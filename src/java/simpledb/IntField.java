@@ -50,27 +50,35 @@ public class IntField implements Field {
     public boolean compare(Predicate.Op op, Field val) {
 
         IntField iVal = (IntField) val;
+        return compare(value, op, iVal.value);
+    }
+
+    /**
+     * Compare two int values the way IntField.compare compares the fields
+     * holding them.
+     */
+    static boolean compare(int value, Predicate.Op op, int operand) {
 
         switch (op) {
         case EQUALS:
-            return value == iVal.value;
+            return value == operand;
         case NOT_EQUALS:
-            return value != iVal.value;
+            return value != operand;
 
         case GREATER_THAN:
-            return value > iVal.value;
+            return value > operand;
 
         case GREATER_THAN_OR_EQ:
-            return value >= iVal.value;
+            return value >= operand;
 
         case LESS_THAN:
-            return value < iVal.value;
+            return value < operand;
 
         case LESS_THAN_OR_EQ:
-            return value <= iVal.value;
+            return value <= operand;
 
     case LIKE:
-        return value == iVal.value;
+        return value == operand;
         }
 
         return false;
@@ -9,9 +9,9 @@ public class Join extends Operator {
 
     private static final long serialVersionUID = 1L;
 
-    private JoinPredicate joinPredicate;
-    private OpIterator child1;
-    private OpIterator child2;
+    protected JoinPredicate joinPredicate;
+    protected OpIterator child1;
+    protected OpIterator child2;
 
     /**
      * Constructor. Accepts two children to join and the predicate to join them
@@ -140,6 +140,14 @@ public class Join extends Operator {
         return null;
     }
 
+    /**
+     * Nested loops return the outer tuples in the order child1 produces them,
+     * and the outer fields come first in the output.
+     */
+    public SortOrder getSortOrder() {
+        return child1.getSortOrder();
+    }
+
     @Override
     public OpIterator[] getChildren() {
         // some code goes here
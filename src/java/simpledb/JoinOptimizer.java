@@ -68,7 +68,15 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        if (lj.p == Predicate.Op.EQUALS && SortMergeJoin.isSortedOn(plan1, t1id)
+                && SortMergeJoin.isSortedOn(plan2, t2id)) {
+            // both inputs already arrive in join key order
+            j = new SortMergeJoin(p,plan1,plan2);
+        } else if (lj.p == Predicate.Op.EQUALS) {
+            j = new HashEquiJoin(p,plan1,plan2);
+        } else {
+            j = new BlockNestedLoopJoin(p,plan1,plan2);
+        }
 
         return j;
 
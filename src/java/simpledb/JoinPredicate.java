@@ -13,6 +13,8 @@ public class JoinPredicate implements Serializable {
     private int field1;
     private int field2;
     private Predicate.Op op;
+    /** the comparison made when both fields are ints */
+    private final CompiledPredicate.IntComparison intComparison;
 
     /**
      * Constructor -- create a new predicate over two fields of two tuples.
@@ -33,6 +35,7 @@ public class JoinPredicate implements Serializable {
         this.field1 = field1;
         this.field2 = field2;
         this.op = op;
+        this.intComparison = CompiledPredicate.IntComparison.of(op);
     }
 
     /**
@@ -43,7 +46,11 @@ public class JoinPredicate implements Serializable {
      */
     public boolean filter(Tuple t1, Tuple t2) {
         // some code goes here
-        return t1.getField(field1).compare(op, t2.getField(field2));
+        Field f1 = t1.getField(field1);
+        Field f2 = t2.getField(field2);
+        if (f1 instanceof IntField && f2 instanceof IntField)
+            return intComparison.test(((IntField) f1).getValue(), ((IntField) f2).getValue());
+        return f1.compare(op, f2);
     }
     
     public int getField1()
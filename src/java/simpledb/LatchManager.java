@@ -0,0 +1,98 @@
+package simpledb;
+
+import java.util.HashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * LatchManager hands out short-duration read/write latches on pages.
+ * <p>
+ * Latches protect the physical structure of a page while a thread navigates
+ * through or modifies it, and are separate from the locks of
+ * {@link LockManager}: a latch belongs to a thread rather than a
+ * transaction, is released as soon as the thread is done with the page
+ * instead of at commit, and is never part of deadlock detection. Callers
+ * avoid deadlocks by acquiring latches in a fixed order, top-down in a tree
+ * and left to right within a level.
+ */
+public class LatchManager {
+
+    /**
+     * The latch of a page, with the number of threads holding or waiting for
+     * it. A latch is dropped once no thread uses it, so only the pages being
+     * latched at a time have one.
+     */
+    private static class Latch {
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        int users = 0;
+    }
+
+    private final HashMap<PageId, Latch> latches = new HashMap<PageId, Latch>();
+
+    /**
+     * @return the latch of a page, counting the calling thread as one of its
+     *         users until it calls unpin
+     */
+    private synchronized Latch pin(PageId pid) {
+        Latch latch = latches.get(pid);
+        if (latch == null) {
+            latch = new Latch();
+            latches.put(pid, latch);
+        }
+        latch.users++;
+        return latch;
+    }
+
+    private synchronized void unpin(PageId pid, Latch latch) {
+        if (--latch.users == 0)
+            latches.remove(pid);
+    }
+
+    /**
+     * Latch a page, blocking until the latch is available. A thread holding
+     * a read latch on a page must not ask for a write latch on it.
+     *
+     * @param pid the page to latch
+     * @param exclusive true for a write latch, false for a read latch
+     */
+    public void acquire(PageId pid, boolean exclusive) {
+        Latch latch = pin(pid);
+        if (exclusive)
+            latch.lock.writeLock().lock();
+        else
+            latch.lock.readLock().lock();
+    }
+
+    /**
+     * Release a latch the calling thread holds on a page.
+     *
+     * @param pid the latched page
+     * @param exclusive true if it is a write latch, false for a read latch
+     */
+    public void release(PageId pid, boolean exclusive) {
+        Latch latch;
+        synchronized (this) {
+            latch = latches.get(pid);
+        }
+        if (exclusive)
+            latch.lock.writeLock().unlock();
+        else
+            latch.lock.readLock().unlock();
+        unpin(pid, latch);
+    }
+
+    /**
+     * @return true if the calling thread holds a write latch on the page
+     */
+    public synchronized boolean holdsExclusive(PageId pid) {
+        Latch latch = latches.get(pid);
+        return latch != null && latch.lock.isWriteLockedByCurrentThread();
+    }
+
+    /**
+     * @return the number of pages that have a latch, held or waited for by
+     *         some thread
+     */
+    synchronized int size() {
+        return latches.size();
+    }
+}
@@ -0,0 +1,106 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Limit is an operator that returns at most a fixed number of tuples from its
+ * child. Once the limit is reached it stops pulling from the child and closes
+ * it, so scans, sort runs and hash tables underneath are released without
+ * reading the rest of the input. A rewind reopens the child.
+ */
+public class Limit extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private OpIterator child;
+    private final int limit;
+    transient private int returned = 0;
+    transient private boolean childOpen = false;
+
+    /**
+     * Constructor.
+     *
+     * @param limit
+     *            the maximum number of tuples to return
+     * @param child
+     *            the child operator
+     */
+    public Limit(int limit, OpIterator child) {
+        if (limit < 0)
+            throw new IllegalArgumentException("limit must not be negative");
+        this.limit = limit;
+        this.child = child;
+    }
+
+    /**
+     * @return the maximum number of tuples returned
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public SortOrder getSortOrder() {
+        return child.getSortOrder();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        childOpen = true;
+        returned = 0;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        if (childOpen)
+            child.close();
+        childOpen = false;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (childOpen) {
+            child.rewind();
+        } else {
+            child.open();
+            childOpen = true;
+        }
+        returned = 0;
+    }
+
+    /**
+     * Returns the next tuple of the child until limit tuples have been
+     * returned.
+     *
+     * @return The next tuple, or null once the limit is reached or the child
+     *         is exhausted
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (returned >= limit || !childOpen)
+            return null;
+        if (!child.hasNext())
+            return null;
+        Tuple t = child.next();
+        if (++returned == limit) {
+            // nothing more will be read; let the subtree free its resources
+            child.close();
+            childOpen = false;
+        }
+        return t;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+
+}
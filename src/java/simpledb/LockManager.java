@@ -205,6 +205,28 @@ public class LockManager {
         }
     }
 
+    /**
+     * release all the locks that belong to the transaction, including those on
+     * pages no longer in the buffer pool
+     * @param tid transaction id
+     */
+    public synchronized void releaseLocks(TransactionId tid){
+        Iterator<Map.Entry<PageId, LinkedList<Lock>>> iterator = pageLocks.entrySet().iterator();
+        while(iterator.hasNext()){
+            LinkedList<Lock> lockList = iterator.next().getValue();
+            Iterator<Lock> locks = lockList.iterator();
+            while(locks.hasNext()){
+                if(locks.next().getTid().equals(tid)){
+                    locks.remove();
+                }
+            }
+            if(lockList.size() == 0){
+                iterator.remove();
+            }
+        }
+        deleteDependency(tid);
+    }
+
     /**
      * get the lock of the specific transaction on the specific page
      * @param tid transaction id
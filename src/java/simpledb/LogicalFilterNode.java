@@ -20,6 +20,9 @@ public class LogicalFilterNode {
     public String fieldPureName;
     
     public String fieldQuantifiedName;
+
+    /** The index of the ? parameter on the right side of the filter, or -1 if it compares with c */
+    public int param = -1;
     
     public LogicalFilterNode(String table, String field, Predicate.Op pred, String constant) {
         tableAlias = table;
@@ -5,16 +5,19 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Set;
 
 /**
  * LogicalPlan represents a logical query plan that has been through
  * the parser and is ready to be processed by the optimizer.
  * <p>
  * A LogicalPlan consits of a collection of table scan nodes, join
- * nodes, filter nodes, a select list, and a group by field.
- * LogicalPlans can only represent queries with one aggregation field
- * and one group by field.
+ * nodes, filter nodes, a select list, and a list of group by fields.
+ * All aggregates of a query are computed together by a single
+ * {@link Aggregate} over any number of group by fields.
  * <p>
  * LogicalPlans can be converted to physical (optimized) plans using
  * the {@link #physicalPlan} method, which uses the
@@ -29,12 +32,17 @@ public class LogicalPlan {
     private HashMap<String,Integer> tableMap;
 
     private Vector<LogicalSelectListNode> selectList;
-    private String groupByField = null;
+    private Vector<String> groupByFields = new Vector<String>();
     private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
-    private boolean oByAsc, hasOrderBy = false;
-    private String oByField;
+    private Vector<String> aggOps = new Vector<String>();
+    private Vector<String> aggFields = new Vector<String>();
+    private boolean hasOrderBy = false;
+    private Vector<String> oByFields = new Vector<String>();
+    private Vector<Boolean> oByAscs = new Vector<Boolean>();
+    private int limit = 0;
+    private int numParameters = 0;
+    private Field[] parameterValues = new Field[0];
+    private Predicate[] parameterPredicates = new Predicate[0];
     private String query;
 //    private Query owner;
 
@@ -105,6 +113,46 @@ public class LogicalPlan {
         filters.addElement(lf);
     }
 
+    /** Add a new filter comparing a field with the next ? parameter of
+     *   the query. Parameters are numbered from 0 in the order they are
+     *   added, and their values are supplied with {@link #bindParameters}
+     *   before the physical plan is built.
+     *   @param field The name of the field over which the filter applies,
+     *   as for {@link #addFilter}
+     *   @param p The predicate for the filter
+     *   @return the index of the parameter
+     *   @throws ParsingException if field is unknown or ambiguous
+     */
+    public int addParameterFilter(String field, Predicate.Op p) throws ParsingException {
+        field = disambiguateName(field);
+        String table = field.split("[.]")[0];
+
+        LogicalFilterNode lf = new LogicalFilterNode(table, field.split("[.]")[1], p, null);
+        lf.param = numParameters++;
+        filters.addElement(lf);
+        return lf.param;
+    }
+
+    /** @return the number of ? parameters added via {@link #addParameterFilter} */
+    public int getNumParameters() {
+        return numParameters;
+    }
+
+    /** Supply the values of the ? parameters, in order, used to build and
+     *  optimize the physical plan.
+     */
+    public void bindParameters(Field[] values) {
+        parameterValues = values.clone();
+    }
+
+    /** @return the predicate of the physical plan comparing with each ?
+     *  parameter, whose operand can be replaced to run the plan with other
+     *  values. Only available after {@link #physicalPlan}.
+     */
+    public Predicate[] getParameterPredicates() {
+        return parameterPredicates.clone();
+    }
+
     /** Add a join between two fields of two different tables.  
      *  @param joinField1 The name of the first join field; this can
      *  be a fully qualified name (e.g., tableName.field or
@@ -186,36 +234,62 @@ public class LogicalPlan {
     }
     
     /** Add an aggregate over the field with the specified grouping to
-        the query.  SimpleDb only supports a single aggregate
-        expression and GROUP BY field.
+        the query.  All aggregates of a query are computed in the same
+        pass over its input.
         @param op the aggregation operator
         @param afield the field to aggregate over
-        @param gfield the field to group by
+        @param gfield a field to group by, or null
      * @throws ParsingException 
     */
     public void addAggregate(String op, String afield, String gfield) throws ParsingException {
         afield=disambiguateName(afield);
+        if (afield.equals("*"))
+            afield="null.*";
+        aggOps.addElement(op);
+        aggFields.addElement(afield);
         if (gfield!=null)
-            gfield=disambiguateName(gfield);
-        aggOp = op;
-        aggField = afield;
-        groupByField = gfield;
+            addGroupBy(gfield);
         hasAgg = true;
     }
 
-    /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
-        a single ORDER BY field.
+    /** Add a field to the GROUP BY list of the query.  Groups are
+        formed on the combination of all group by fields.
+        @param gfield the field to group by
+     * @throws ParsingException 
+    */
+    public void addGroupBy(String gfield) throws ParsingException {
+        gfield=disambiguateName(gfield);
+        if (!groupByFields.contains(gfield))
+            groupByFields.addElement(gfield);
+    }
+
+    /** Add an ORDER BY expression in the specified order on the specified field.  Each call
+        adds a sort key that breaks ties left by the keys added before it.
         @param field the field to order by
         @param asc true if should be ordered in ascending order, false for descending order
      * @throws ParsingException 
     */
     public void addOrderBy(String field, boolean asc) throws ParsingException {
         field=disambiguateName(field);
-        oByField = field;
-        oByAsc = asc;
+        oByFields.addElement(field);
+        oByAscs.addElement(asc);
         hasOrderBy = true;
     }
 
+    /** Limit the number of rows the query returns.
+        @param limit the maximum number of rows, or 0 for no limit
+    */
+    public void setLimit(int limit) {
+        if (limit < 0)
+            throw new IllegalArgumentException("LIMIT must not be negative");
+        this.limit = limit;
+    }
+
+    /** @return the maximum number of rows the query returns, or 0 for no limit */
+    public int getLimit() {
+        return limit;
+    }
+
     /** Given a name of a field, try to figure out what table it belongs to by looking
      *   through all of the tables added via {@link #addScan}. 
      *  @return A fully qualified name of the form tableAlias.name.  If the name parameter is already qualified
@@ -258,6 +332,10 @@ public class LogicalPlan {
 
     }
 
+    private static boolean isCountStar(String op, String fname) {
+        return op.toUpperCase().equals("COUNT") && fname.equals("null.*");
+    }
+
     /** Convert the aggregate operator name s into an Aggregator.op operation.
      *  @throws ParsingException if s is not a valid operator name 
      */
@@ -271,6 +349,192 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /**
+     * @return an estimate of the number of tuples in a file, from its size;
+     *         infinite if the file's size cannot be told
+     */
+    private static double estimateTuples(DbFile f) {
+        if (f instanceof HeapFile)
+            return ExternalSort.tuplesForPages(f.getTupleDesc(), ((HeapFile) f).numPages());
+        if (f instanceof BTreeFile)
+            return ExternalSort.tuplesForPages(f.getTupleDesc(), ((BTreeFile) f).numPages());
+        if (f instanceof HashFile)
+            return ExternalSort.tuplesForPages(f.getTupleDesc(), ((HashFile) f).numPages());
+        return Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Add the field of a table named by a field name of the query to a set,
+     * if the name refers to that table.
+     *
+     * @return false if the name refers to every field of the table
+     */
+    private static boolean addField(Set<Integer> fields, LogicalScanNode table, String name) {
+        String[] parts = name.split("[.]");
+        if (parts[parts.length - 1].equals("*"))
+            return !(parts[0].equals("null") || parts[0].equals(table.alias));
+        if (parts.length == 2 && parts[0].equals(table.alias)) {
+            try {
+                fields.add(Database.getCatalog().getTupleDesc(table.t).fieldNameToIndex(parts[1]));
+            } catch (NoSuchElementException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return a covering index of a heap file holding every field of it the
+     *         query uses, or null if there is none or reading it costs more
+     *         than reading the file. An index on a field with a filter is
+     *         preferred, then the one with the smallest entries; an index
+     *         with no filter on its key is only read if its entries are
+     *         smaller than the tuples of the file.
+     */
+    private SecondaryIndex coveringIndexFor(LogicalScanNode table) {
+        DbFile f = Database.getCatalog().getDatabaseFile(table.t);
+        if (!(f instanceof HeapFile))
+            return null;
+        HashSet<Integer> used = new HashSet<Integer>();
+        for (LogicalSelectListNode si : selectList) {
+            if (!(si.aggOp != null && isCountStar(si.aggOp, si.fname)) && !addField(used, table, si.fname))
+                return null;
+        }
+        for (int i = 0; i < aggFields.size(); i++) {
+            if (!isCountStar(aggOps.get(i), aggFields.get(i)) && !addField(used, table, aggFields.get(i)))
+                return null;
+        }
+        for (String name : groupByFields) {
+            if (!addField(used, table, name))
+                return null;
+        }
+        for (String name : oByFields) {
+            if (!addField(used, table, name))
+                return null;
+        }
+        HashSet<Integer> filtered = new HashSet<Integer>();
+        for (LogicalFilterNode lf : filters) {
+            if (!addField(used, table, lf.tableAlias + "." + lf.fieldPureName))
+                return null;
+            if (lf.tableAlias.equals(table.alias) && SecondaryIndex.supports(lf.p))
+                addField(filtered, table, lf.tableAlias + "." + lf.fieldPureName);
+        }
+        for (LogicalJoinNode lj : joins) {
+            if (!addField(used, table, lj.t1Alias + "." + lj.f1PureName))
+                return null;
+            if (!(lj instanceof LogicalSubplanJoinNode) && !addField(used, table, lj.t2Alias + "." + lj.f2PureName))
+                return null;
+        }
+
+        SecondaryIndex best = null;
+        int bestSize = f.getTupleDesc().getSize();
+        boolean bestFiltered = false;
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(table.t)) {
+            if (!index.covers(used))
+                continue;
+            boolean isFiltered = filtered.contains(index.getKeyField());
+            int size = index.getIndexFile().getTupleDesc().getSize();
+            if ((isFiltered && !bestFiltered) || (isFiltered == bestFiltered && size < bestSize)) {
+                best = index;
+                bestSize = size;
+                bestFiltered = isFiltered;
+            }
+        }
+        // reading a whole index is left to compete with the lookups of
+        // another index answering a filter
+        if (best != null && !bestFiltered) {
+            for (int field : filtered) {
+                if (Database.getCatalog().getIndex(table.t, field) != null)
+                    return null;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return a scan of a table answering the most selective of the given
+     *         filters that has an index through the index, or null if no
+     *         index lookup is cheaper than scanning the table
+     */
+    private IndexScan indexScanFor(TransactionId t, LogicalScanNode table, List<Predicate> predicates,
+            Map<Predicate,Double> selectivities) {
+        DbFile f = Database.getCatalog().getDatabaseFile(table.t);
+        if (!(f instanceof HeapFile))
+            return null;
+        double tuples = estimateTuples(f);
+        double bestCost = tuples;
+        Predicate best = null;
+        SecondaryIndex bestIndex = null;
+        for (Predicate p : predicates) {
+            SecondaryIndex index = Database.getCatalog().getIndex(table.t, p.getField());
+            if (index == null || !SecondaryIndex.supports(p.getOp()))
+                continue;
+            double cost = IndexScan.estimateCost(1, IndexScan.estimateMatches(p.getOp(), selectivities.get(p), tuples));
+            if (cost < bestCost) {
+                bestCost = cost;
+                best = p;
+                bestIndex = index;
+            }
+        }
+        if (best == null)
+            return null;
+        ArrayList<Predicate> others = new ArrayList<Predicate>(predicates);
+        others.remove(best);
+        return new IndexScan(t, bestIndex, table.alias, best, others.toArray(new Predicate[0]));
+    }
+
+    /**
+     * @return a scan of a hash file reading only the bucket of the key named
+     *         by an equality filter on its key, or null if there is no such
+     *         filter
+     */
+    private HashScan hashScanFor(TransactionId t, LogicalScanNode table, List<Predicate> predicates) {
+        for (Predicate p : predicates) {
+            if (HashScan.supports(table.t, p)) {
+                ArrayList<Predicate> others = new ArrayList<Predicate>(predicates);
+                others.remove(p);
+                return new HashScan(t, table.t, table.alias, p, others.toArray(new Predicate[0]));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return an IndexNestedLoopJoin for an equality join with a table that
+     *         has an index on its join field, or null if there is no such
+     *         index or looking up every outer tuple costs more than scanning
+     *         the table
+     */
+    private OpIterator indexJoinFor(TransactionId t, LogicalJoinNode lj, OpIterator outer, String innerAlias,
+            double outerCard, List<Predicate> innerPredicates) throws ParsingException {
+        // the predicates of a table read from a covering index are over the
+        // fields of the index
+        if (lj.p != Predicate.Op.EQUALS || TableScan.scanOf(subplanMap.get(innerAlias)) instanceof IndexOnlyScan)
+            return null;
+        int tableId = getTableId(innerAlias);
+        DbFile f = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(f instanceof HeapFile))
+            return null;
+        int innerField;
+        int outerField;
+        try {
+            innerField = f.getTupleDesc().fieldNameToIndex(lj.f2PureName);
+            outerField = outer.getTupleDesc().fieldNameToIndex(lj.f1QuantifiedName);
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+        SecondaryIndex index = Database.getCatalog().getIndex(tableId, innerField);
+        if (index == null)
+            return null;
+        double tuples = estimateTuples(f);
+        double matches = outerCard * IndexScan.estimateMatches(Predicate.Op.EQUALS, -1, tuples);
+        if (IndexScan.estimateCost(outerCard, matches) >= tuples)
+            return null;
+        IndexScan inner = IndexNestedLoopJoin.innerScan(t, index, innerAlias,
+                innerPredicates.toArray(new Predicate[0]));
+        return new IndexNestedLoopJoin(new JoinPredicate(outerField, Predicate.Op.EQUALS, innerField), outer, inner);
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned OpIterator will run as a part of
@@ -289,6 +553,8 @@ public class LogicalPlan {
         HashMap<String,String> equivMap = new HashMap<String,String>();
         HashMap<String,Double> filterSelectivities = new HashMap<String, Double>();
         HashMap<String,TableStats> statsMap = new HashMap<String,TableStats>();
+        HashMap<String,ArrayList<Predicate>> tablePredicates = new HashMap<String,ArrayList<Predicate>>();
+        HashMap<Predicate,Double> predicateSelectivities = new HashMap<Predicate,Double>();
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
@@ -299,13 +565,25 @@ public class LogicalPlan {
                 throw new ParsingException("Unknown table " + table.t);
             }
             
-            subplanMap.put(table.alias,ss);
+            // a table whose used fields are all held by a covering index is
+            // read from the index
+            SecondaryIndex covering = coveringIndexFor(table);
+            if (covering != null)
+                subplanMap.put(table.alias, new IndexOnlyScan(t, covering, table.alias, new Predicate[0]));
+            else
+                subplanMap.put(table.alias,ss);
             String baseTableName = Database.getCatalog().getTableName(table.t);
             statsMap.put(baseTableName, baseTableStats.get(baseTableName));
             filterSelectivities.put(table.alias, 1.0);
+            tablePredicates.put(table.alias, new ArrayList<Predicate>());
 
         }
 
+        if (parameterValues.length != numParameters)
+            throw new ParsingException("Query has " + numParameters + " parameters, but "
+                    + parameterValues.length + " values were supplied");
+        parameterPredicates = new Predicate[numParameters];
+
         Iterator<LogicalFilterNode> filterIt = filters.iterator();        
         while (filterIt.hasNext()) {
             LogicalFilterNode lf = filterIt.next();
@@ -323,7 +601,12 @@ public class LogicalPlan {
             } catch (java.util.NoSuchElementException e) {
                 throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
             }
-            if (ftyp == Type.INT_TYPE)
+            if (lf.param >= 0) {
+                f = parameterValues[lf.param];
+                if (f == null || f.getType() != ftyp)
+                    throw new ParsingException("Parameter " + lf.param + " of " + lf.fieldQuantifiedName
+                            + " must be of type " + ftyp);
+            } else if (ftyp == Type.INT_TYPE)
                 f = new IntField(new Integer(lf.c).intValue());
             else
                 f = new StringField(lf.c, Type.STRING_LEN);
@@ -335,20 +618,60 @@ public class LogicalPlan {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
             subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            if (lf.param >= 0)
+                parameterPredicates[lf.param] = p;
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
-            double sel= s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
+            double sel= s.estimateSelectivity(Database.getCatalog().getTupleDesc(getTableId(lf.tableAlias))
+                    .fieldNameToIndex(lf.fieldPureName), lf.p, f);
             filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
+            tablePredicates.get(lf.tableAlias).add(p);
+            predicateSelectivities.put(p, sel);
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
         
+        // a filter on an indexed field of a heap file is answered by the index
+        // when that is cheaper than scanning the file, and an equality on the
+        // key of a hash file by its bucket; the filters of a table read from a
+        // covering index are all evaluated on its entries
+        HashMap<String,Double> cardinalities = new HashMap<String,Double>();
+        for (LogicalScanNode table : tables) {
+            DbFile f = Database.getCatalog().getDatabaseFile(table.t);
+            double card = estimateTuples(f);
+            for (Predicate p : tablePredicates.get(table.alias))
+                card = IndexScan.estimateMatches(p.getOp(), predicateSelectivities.get(p), card);
+            cardinalities.put(table.alias, card);
+            TableScan indexOnly = TableScan.scanOf(subplanMap.get(table.alias));
+            if (indexOnly instanceof IndexOnlyScan) {
+                subplanMap.put(table.alias, new IndexOnlyScan(t, ((IndexOnlyScan) indexOnly).getIndex(),
+                        table.alias, tablePredicates.get(table.alias).toArray(new Predicate[0])));
+                continue;
+            }
+            TableScan scan = hashScanFor(t, table, tablePredicates.get(table.alias));
+            if (scan == null)
+                scan = indexScanFor(t, table, tablePredicates.get(table.alias), predicateSelectivities);
+            if (scan != null)
+                subplanMap.put(table.alias, scan);
+        }
+
+        // other filters on heap files are pushed into the scan and evaluated on
+        // the page data; large heap files are scanned by parallel workers
+        for (LogicalScanNode table : tables) {
+            OpIterator subplan = subplanMap.get(table.alias);
+            if (ParallelSeqScan.worthParallelizing(subplan))
+                subplanMap.put(table.alias, ParallelSeqScan.of(subplan));
+            else if (subplan instanceof Filter && SeqScan.heapScanOf(subplan) != null)
+                subplanMap.put(table.alias, SeqScan.pushDown(subplan));
+        }
+
         if (!joins.isEmpty()) {
             JoinOptimizer jo = new JoinOptimizer(this,joins);
 
             joins = jo.orderJoins(statsMap,filterSelectivities,explain);
 
+            HashSet<String> joined = new HashSet<String>();
             Iterator<LogicalJoinNode> joinIt = joins.iterator();
             while (joinIt.hasNext()) {
                 LogicalJoinNode lj = joinIt.next();
@@ -382,9 +705,16 @@ public class LogicalPlan {
                 if (plan2 == null)
                     throw new ParsingException("Unknown table in WHERE clause " + lj.t2Alias);
                 
-                OpIterator j;
-                j = jo.instantiateJoin(lj,plan1,plan2);
+                OpIterator j = null;
+                if (!isSubqueryJoin && !joined.contains(t2name))
+                    j = indexJoinFor(t, lj, plan1, t2name, cardinalities.get(t1name),
+                            tablePredicates.get(t2name));
+                if (j == null)
+                    j = jo.instantiateJoin(lj,plan1,plan2);
                 subplanMap.put(t1name, j);
+                joined.add(t1name);
+                if (!isSubqueryJoin)
+                    cardinalities.put(t1name, Math.max(cardinalities.get(t1name), cardinalities.get(t2name)));
 
                 if (!isSubqueryJoin) {
                     subplanMap.remove(t2name);
@@ -408,6 +738,9 @@ public class LogicalPlan {
         }
         
         OpIterator node =  (OpIterator)(subplanMap.entrySet().iterator().next().getValue());
+        // hash joins probed by a large heap scan are run on the worker pool
+        if (Exchange.worthParallelizing(node))
+            node = new Exchange(node);
 
         //walk the select list, to determine order in which to project output fields
         ArrayList<Integer> outFields = new ArrayList<Integer>();
@@ -415,28 +748,35 @@ public class LogicalPlan {
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.elementAt(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField!=null?1:0);
-                TupleDesc td = node.getTupleDesc();
-//                int  id;
-                try {
-//                    id = 
-                    td.fieldNameToIndex(si.fname);
-                } catch (NoSuchElementException e) {
-                    throw new ParsingException("Unknown field " +  si.fname + " in SELECT list");
+                int aggIndex = 0;
+                while (aggIndex < aggOps.size() && !(aggOps.elementAt(aggIndex).equals(si.aggOp)
+                        && aggFields.elementAt(aggIndex).equals(si.fname)))
+                    aggIndex++;
+                if (aggIndex == aggOps.size())
+                    throw new ParsingException("Aggregate " + si.aggOp + "(" + si.fname + ") was not added to the plan");
+                outFields.add(groupByFields.size() + aggIndex);
+                if (!isCountStar(si.aggOp, si.fname)) {
+                    TupleDesc td = node.getTupleDesc();
+                    try {
+                        td.fieldNameToIndex(si.fname);
+                    } catch (NoSuchElementException e) {
+                        throw new ParsingException("Unknown field " +  si.fname + " in SELECT list");
+                    }
                 }
                 outTypes.add(Type.INT_TYPE);  //the type of all aggregate functions is INT
 
             } else if (hasAgg) {
-                    if (groupByField == null) {
+                    int gIndex = groupByFields.indexOf(si.fname);
+                    if (gIndex < 0) {
                         throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
                     }
-                    outFields.add(0);
+                    outFields.add(gIndex);
                     TupleDesc td = node.getTupleDesc();
                     int  id;
                     try {
-                        id = td.fieldNameToIndex(groupByField);
+                        id = td.fieldNameToIndex(si.fname);
                     } catch (NoSuchElementException e) {
-                        throw new ParsingException("Unknown field " +  groupByField + " in GROUP BY statement");
+                        throw new ParsingException("Unknown field " +  si.fname + " in GROUP BY statement");
                     }
                     outTypes.add(td.getFieldType(id));
             } else if (si.fname.equals("null.*")) {
@@ -463,10 +803,22 @@ public class LogicalPlan {
             TupleDesc td = node.getTupleDesc();
             Aggregate aggNode;
             try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
+                int[] afields = new int[aggFields.size()];
+                Aggregator.Op[] aops = new Aggregator.Op[aggFields.size()];
+                for (int i = 0; i < afields.length; i++) {
+                    aops[i] = getAggOp(aggOps.elementAt(i));
+                    // COUNT(*) counts tuples, so any column will do
+                    afields[i] = isCountStar(aggOps.elementAt(i), aggFields.elementAt(i)) ? 0
+                            : td.fieldNameToIndex(aggFields.elementAt(i));
+                }
+                int[] gfields = new int[groupByFields.size()];
+                for (int i = 0; i < gfields.length; i++)
+                    gfields[i] = td.fieldNameToIndex(groupByFields.elementAt(i));
+                // large heap scans are aggregated by parallel workers
+                if (ParallelAggregate.worthParallelizing(node))
+                    aggNode = new ParallelAggregate(node, afields, gfields, aops);
+                else
+                    aggNode = new Aggregate(node, afields, gfields, aops);
             } catch (NoSuchElementException e) {
                 throw new simpledb.ParsingException(e);
             } catch (IllegalArgumentException e) {
@@ -476,10 +828,27 @@ public class LogicalPlan {
         }
 
         if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+            int[] oByIndexes = new int[oByFields.size()];
+            boolean[] asc = new boolean[oByFields.size()];
+            for (int i = 0; i < oByIndexes.length; i++) {
+                try {
+                    oByIndexes[i] = node.getTupleDesc().fieldNameToIndex(oByFields.get(i));
+                } catch (NoSuchElementException e) {
+                    throw new ParsingException("Unknown field " + oByFields.get(i) + " in ORDER BY");
+                }
+                asc[i] = oByAscs.get(i);
+            }
+            SortOrder order = node.getSortOrder();
+            // skip the sort if the plan already produces the requested order;
+            // with a limit the sort keeps only the first rows in a top-N heap
+            if (order == null || !order.satisfies(new SortOrder(oByIndexes, asc)))
+                node = new OrderBy(oByIndexes, asc, limit, node);
         }
 
-        return new Project(outFields, outTypes, node);
+        node = new Project(outFields, outTypes, node);
+        if (limit > 0)
+            node = new Limit(limit, node);
+        return node;
     }
 
     public static void main(String argv[]) {
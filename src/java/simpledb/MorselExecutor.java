@@ -0,0 +1,377 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * MorselExecutor runs query pipelines on a fixed pool of worker threads.
+ * <p>
+ * A pipeline is a scan of a HeapFile followed by stages that work on one tuple
+ * at a time: Filters, Projects and the probe side of HashEquiJoins whose build
+ * sides were read into memory before the scan started. The file is cut into
+ * morsels of MORSEL_PAGES pages. A worker takes a morsel, pushes its tuples
+ * through the stages, and hands the result to the consumers of the run as one
+ * batch per output through BoundedQueues.
+ * <p>
+ * The pool has one worker fewer than there are processors, so a query keeping
+ * every worker busy still leaves a core to transactions running on their own
+ * threads. Workers go back to the pool after every morsel, so concurrent
+ * queries share it at morsel granularity.
+ * <p>
+ * A run starts a morsel only while its slowest consumer is fewer than
+ * MAX_IN_FLIGHT batches behind, and every output queue holds MAX_IN_FLIGHT
+ * batches. A worker therefore never waits for a consumer, and several runs can
+ * share the pool, each feeding operators of another, without deadlocking.
+ */
+public class MorselExecutor {
+
+    /** Number of pages in a morsel */
+    public static final int MORSEL_PAGES = 16;
+    /** Number of worker threads shared by all runs */
+    public static final int NUM_WORKERS = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    /** Maximum number of morsels a run has started ahead of its slowest consumer */
+    public static final int MAX_IN_FLIGHT = 2 * NUM_WORKERS;
+
+    private static final ExecutorService POOL = Executors.newFixedThreadPool(NUM_WORKERS,
+            new ThreadFactory() {
+                private int n = 0;
+
+                public synchronized Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "simpledb-morsel-worker-" + n++);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    /**
+     * Run a task on the worker pool. The task must not wait for other tasks of
+     * the pool, or it could hold the last free worker while waiting.
+     */
+    static <T> Future<T> submit(Callable<T> task) {
+        return POOL.submit(task);
+    }
+
+    /**
+     * One step of a pipeline. A stage is applied to whole batches by several
+     * workers at once, so it must not change any state of its own.
+     */
+    interface Stage {
+        List<Tuple> apply(List<Tuple> in);
+    }
+
+    private static class FilterStage implements Stage {
+        private final CompiledPredicate predicate;
+
+        FilterStage(Filter f) {
+            this.predicate = CompiledPredicate.compile(new Predicate[] { f.getPredicate() }, f.getTupleDesc());
+        }
+
+        public List<Tuple> apply(List<Tuple> in) {
+            ArrayList<Tuple> out = new ArrayList<Tuple>(in.size());
+            for (Tuple t : in) {
+                if (predicate.matches(t))
+                    out.add(t);
+            }
+            return out;
+        }
+    }
+
+    private static class ProjectStage implements Stage {
+        private final int[] fields;
+        private final TupleDesc td;
+
+        ProjectStage(Project p) {
+            this.fields = p.outputFields();
+            this.td = p.getTupleDesc();
+        }
+
+        public List<Tuple> apply(List<Tuple> in) {
+            ArrayList<Tuple> out = new ArrayList<Tuple>(in.size());
+            for (Tuple t : in) {
+                Tuple p = new Tuple(td);
+                p.setRecordId(t.getRecordId());
+                for (int i = 0; i < fields.length; i++)
+                    p.setField(i, t.getField(fields[i]));
+                out.add(p);
+            }
+            return out;
+        }
+    }
+
+    private static class ProbeStage implements Stage {
+        private final HashEquiJoin join;
+        private final HashEquiJoin.BuildTable table;
+
+        ProbeStage(HashEquiJoin join, HashEquiJoin.BuildTable table) {
+            this.join = join;
+            this.table = table;
+        }
+
+        public List<Tuple> apply(List<Tuple> in) {
+            ArrayList<Tuple> out = new ArrayList<Tuple>();
+            for (Tuple t : in)
+                join.probe(table, t, out);
+            return out;
+        }
+    }
+
+    /**
+     * A plan that can be run by the workers: a scan of a HeapFile under a
+     * chain of Filters, Projects and HashEquiJoins, where the scan is on the
+     * probe side of every join.
+     */
+    static class Pipeline {
+        final HeapFile file;
+        final TransactionId tid;
+        private final SeqScan scan;
+        /** the predicates evaluated on the pages as they are scanned */
+        Predicate[] pushed;
+        /** the operators above the scan, lowest first */
+        private final List<OpIterator> ops;
+        private List<Stage> stages = null;
+
+        private Pipeline(HeapFile file, SeqScan scan, List<OpIterator> ops) {
+            this.file = file;
+            this.tid = scan.getTransactionId();
+            this.scan = scan;
+            this.pushed = scan.getPredicates();
+            this.ops = ops;
+        }
+
+        /**
+         * @return the pipeline returning the same tuples as op, or null if op
+         *         cannot be run as a pipeline
+         */
+        static Pipeline compile(OpIterator op) {
+            ArrayList<OpIterator> ops = new ArrayList<OpIterator>();
+            while (!(op instanceof SeqScan)) {
+                if (op instanceof Filter || op instanceof Project) {
+                    ops.add(op);
+                    op = ((Operator) op).getChildren()[0];
+                } else if (op instanceof HashEquiJoin) {
+                    ops.add(op);
+                    op = ((HashEquiJoin) op).getChildren()[1];
+                } else {
+                    return null;
+                }
+            }
+            SeqScan scan = (SeqScan) op;
+            DbFile f = Database.getCatalog().getDatabaseFile(scan.getTableId());
+            if (!(f instanceof HeapFile))
+                return null;
+            Collections.reverse(ops);
+            return new Pipeline((HeapFile) f, scan, ops);
+        }
+
+        /**
+         * @return the number of joins the workers probe
+         */
+        int numJoins() {
+            int n = 0;
+            for (OpIterator op : ops) {
+                if (op instanceof HashEquiJoin)
+                    n++;
+            }
+            return n;
+        }
+
+        /**
+         * Build the stages, reading the build side of every join into memory.
+         *
+         * @return false if a build side does not fit in its join's memory
+         *         budget, in which case the pipeline cannot be run
+         */
+        boolean prepare() throws DbException, TransactionAbortedException {
+            ArrayList<Stage> result = new ArrayList<Stage>();
+            for (OpIterator op : ops) {
+                if (op instanceof Filter) {
+                    result.add(new FilterStage((Filter) op));
+                } else if (op instanceof Project) {
+                    result.add(new ProjectStage((Project) op));
+                } else {
+                    HashEquiJoin join = (HashEquiJoin) op;
+                    HashEquiJoin.BuildTable table = join.buildInMemory();
+                    if (table == null)
+                        return false;
+                    result.add(new ProbeStage(join, table));
+                }
+            }
+            // the lowest join has pushed the Bloom filter of its build side
+            // into the scan
+            pushed = scan.getPredicates();
+            stages = result;
+            return true;
+        }
+
+        List<Tuple> apply(List<Tuple> batch) {
+            for (Stage s : stages)
+                batch = s.apply(batch);
+            return batch;
+        }
+    }
+
+    /**
+     * Distributes the output of a morsel among the outputs of a run.
+     */
+    interface Router {
+        /**
+         * @param batch
+         *            the tuples produced by one morsel
+         * @param outputs
+         *            one batch per output, to be filled in
+         */
+        void route(List<Tuple> batch, List<Tuple>[] outputs);
+    }
+
+    /** Sends every batch to the only output of a run */
+    static final Router GATHER = new Router() {
+        public void route(List<Tuple> batch, List<Tuple>[] outputs) {
+            outputs[0] = batch;
+        }
+    };
+
+    /**
+     * One execution of a prepared pipeline. Output i must be read by a
+     * single thread at a time with {@link #take}, and every output has to be
+     * read for the run to make progress.
+     */
+    static class Run {
+        private final Pipeline pipeline;
+        private final Router router;
+        private final BoundedQueue<Object>[] outputs;
+        private final int numPages;
+        private final int numMorsels;
+        private volatile boolean cancelled = false;
+        /** a failure of the run itself, reported to every consumer */
+        private volatile DbException failure = null;
+
+        // guarded by this
+        private int nextMorsel = 0;
+        private final int[] taken;
+        /** the number of morsels being scanned by a worker */
+        private int active = 0;
+
+        @SuppressWarnings("unchecked")
+        Run(Pipeline pipeline, Router router, int numOutputs) {
+            this.pipeline = pipeline;
+            this.router = router;
+            this.outputs = new BoundedQueue[numOutputs];
+            for (int i = 0; i < numOutputs; i++)
+                outputs[i] = new BoundedQueue<Object>(MAX_IN_FLIGHT);
+            this.taken = new int[numOutputs];
+            this.numPages = pipeline.file.numPages();
+            this.numMorsels = (numPages + MORSEL_PAGES - 1) / MORSEL_PAGES;
+        }
+
+        synchronized void start() {
+            submitReady();
+        }
+
+        /** Start morsels while the slowest consumer leaves room for them. */
+        private void submitReady() {
+            int slowest = Integer.MAX_VALUE;
+            for (int t : taken)
+                slowest = Math.min(slowest, t);
+            while (!cancelled && nextMorsel < numMorsels && nextMorsel - slowest < MAX_IN_FLIGHT) {
+                final int start = nextMorsel++ * MORSEL_PAGES;
+                POOL.submit(new Runnable() {
+                    public void run() {
+                        // a morsel still queued when the run is cancelled is
+                        // dropped here, so cancel never waits for a free worker
+                        synchronized (Run.this) {
+                            if (cancelled)
+                                return;
+                            active++;
+                        }
+                        try {
+                            scan(start, Math.min(start + MORSEL_PAGES, numPages));
+                        } finally {
+                            synchronized (Run.this) {
+                                active--;
+                                Run.this.notifyAll();
+                            }
+                        }
+                    }
+                });
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void scan(int start, int end) {
+            if (cancelled)
+                return;
+            Object[] result = new Object[outputs.length];
+            ArrayList<Tuple> batch = new ArrayList<Tuple>();
+            DbFileIterator it = pipeline.file.iterator(pipeline.tid, start, end, pipeline.pushed);
+            try {
+                it.open();
+                while (!cancelled && it.hasNext())
+                    batch.add(it.next());
+                List<Tuple>[] routed = new List[outputs.length];
+                router.route(pipeline.apply(batch), routed);
+                System.arraycopy(routed, 0, result, 0, routed.length);
+            } catch (DbException | TransactionAbortedException e) {
+                Arrays.fill(result, e);
+            } catch (RuntimeException e) {
+                Arrays.fill(result, new DbException("parallel pipeline failed: " + e));
+            } finally {
+                it.close();
+            }
+            // admission control leaves room for every started morsel; should
+            // it not, the consumers fail rather than wait for a lost batch
+            for (int i = 0; i < outputs.length; i++) {
+                if (!outputs[i].offer(result[i]))
+                    failure = new DbException("exchange queue overflow");
+            }
+        }
+
+        /**
+         * @return the next batch for output i, or null when every morsel has
+         *         been received
+         */
+        @SuppressWarnings("unchecked")
+        List<Tuple> take(int i) throws DbException, TransactionAbortedException {
+            synchronized (this) {
+                if (taken[i] == numMorsels)
+                    return null;
+            }
+            if (failure != null)
+                throw failure;
+            Object o;
+            try {
+                o = outputs[i].take();
+            } catch (InterruptedException e) {
+                throw new DbException("interrupted while waiting for morsel workers");
+            }
+            if (failure != null)
+                throw failure;
+            synchronized (this) {
+                taken[i]++;
+                submitReady();
+            }
+            if (o instanceof TransactionAbortedException)
+                throw (TransactionAbortedException) o;
+            if (o instanceof DbException)
+                throw (DbException) o;
+            return (List<Tuple>) o;
+        }
+
+        /**
+         * Stop the run and wait for the morsels being scanned, so that no
+         * worker reads a page for the transaction after this returns.
+         */
+        synchronized void cancel() {
+            cancelled = true;
+            boolean interrupted = false;
+            while (active > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -53,4 +53,14 @@ public interface OpIterator extends Serializable{
    */
   public void close();
 
+  /**
+   * Returns the order in which this OpIterator produces its tuples, for
+   * example the key order of a B+ tree scan. The optimizer uses it to avoid
+   * redundant sorts.
+   * @return the output order, or null if the order is unspecified.
+   */
+  public default SortOrder getSortOrder() {
+    return null;
+  }
+
 }
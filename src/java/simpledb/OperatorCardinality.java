@@ -41,9 +41,9 @@ public class OperatorCardinality {
                     hasJoinPK = updateOperatorCardinality(
                             (Operator) children[0], tableAliasToId, tableStats);
                     childC = ((Operator) children[0]).getEstimatedCardinality();
-                } else if (children[0] instanceof SeqScan) {
+                } else if (children[0] instanceof TableScan) {
                     childC = tableStats.get(
-                            ((SeqScan) children[0]).getTableName())
+                            ((TableScan) children[0]).getTableName())
                             .estimateTableCardinality(1.0);
                 }
             }
@@ -77,9 +77,9 @@ public class OperatorCardinality {
                 f.setEstimatedCardinality((int) (oChild
                         .getEstimatedCardinality() * selectivity) + 1);
                 return hasJoinPK;
-            } else if (child instanceof SeqScan) {
+            } else if (child instanceof TableScan) {
                 f.setEstimatedCardinality((int) (tableStats.get(
-                        ((SeqScan) child).getTableName())
+                        ((TableScan) child).getTableName())
                         .estimateTableCardinality(1.0) * selectivity) + 1);
                 return false;
             }
@@ -120,8 +120,8 @@ public class OperatorCardinality {
             child1HasJoinPK = pk || child1HasJoinPK;
             child1Card = child1O.getEstimatedCardinality();
             child1Card = child1Card > 0 ? child1Card : 1;
-        } else if (child1 instanceof SeqScan) {
-            child1Card = (int) (tableStats.get(((SeqScan) child1)
+        } else if (child1 instanceof TableScan) {
+            child1Card = (int) (tableStats.get(((TableScan) child1)
                     .getTableName()).estimateTableCardinality(1.0));
         }
 
@@ -132,8 +132,8 @@ public class OperatorCardinality {
             child2HasJoinPK = pk || child2HasJoinPK;
             child2Card = child2O.getEstimatedCardinality();
             child2Card = child2Card > 0 ? child2Card : 1;
-        } else if (child2 instanceof SeqScan) {
-            child2Card = (int) (tableStats.get(((SeqScan) child2)
+        } else if (child2 instanceof TableScan) {
+            child2Card = (int) (tableStats.get(((TableScan) child2)
                     .getTableName()).estimateTableCardinality(1.0));
         }
 
@@ -177,8 +177,8 @@ public class OperatorCardinality {
             child1HasJoinPK = pk || child1HasJoinPK;
             child1Card = child1O.getEstimatedCardinality();
             child1Card = child1Card > 0 ? child1Card : 1;
-        } else if (child1 instanceof SeqScan) {
-            child1Card = (int) (tableStats.get(((SeqScan) child1)
+        } else if (child1 instanceof TableScan) {
+            child1Card = (int) (tableStats.get(((TableScan) child1)
                     .getTableName()).estimateTableCardinality(1.0));
         }
 
@@ -189,8 +189,8 @@ public class OperatorCardinality {
             child2HasJoinPK = pk || child2HasJoinPK;
             child2Card = child2O.getEstimatedCardinality();
             child2Card = child2Card > 0 ? child2Card : 1;
-        } else if (child2 instanceof SeqScan) {
-            child2Card = (int) (tableStats.get(((SeqScan) child2)
+        } else if (child2 instanceof TableScan) {
+            child2Card = (int) (tableStats.get(((TableScan) child2)
                     .getTableName()).estimateTableCardinality(1.0));
         }
 
@@ -219,29 +219,34 @@ public class OperatorCardinality {
             return hasJoinPK;
         }
 
-        if (child instanceof SeqScan) {
-            childCard = (int) (tableStats.get(((SeqScan) child).getTableName())
+        if (child instanceof TableScan) {
+            childCard = (int) (tableStats.get(((TableScan) child).getTableName())
                     .estimateTableCardinality(1.0));
         }
 
-        String[] tmp = a.groupFieldName().split("[.]");
-        String tableAlias = tmp[0];
-        String pureFieldName = tmp[1];
-        Integer tableId = tableAliasToId.get(tableAlias);
+        // the number of groups is at most the product of the number of
+        // distinct values of each group by field
+        double groups = 1.0;
+        TupleDesc td = a.getTupleDesc();
+        for (int i = 0; i < a.groupFields().length; i++) {
+            String[] tmp = td.getFieldName(i).split("[.]");
+            String tableAlias = tmp[0];
+            String pureFieldName = tmp[1];
+            Integer tableId = tableAliasToId.get(tableAlias);
+            if (tableId == null) {
+                a.setEstimatedCardinality(childCard);
+                return hasJoinPK;
+            }
 
-        double groupFieldAvgSelectivity = 1.0;
-        if (tableId != null) {
-            groupFieldAvgSelectivity = tableStats.get(
+            double groupFieldAvgSelectivity = tableStats.get(
                     Database.getCatalog().getTableName(tableId))
                     .avgSelectivity(
                             Database.getCatalog().getTupleDesc(tableId)
                                     .fieldNameToIndex(pureFieldName),
                             Predicate.Op.EQUALS);
-            a.setEstimatedCardinality((int) (Math.min(childCard,
-                    1.0 / groupFieldAvgSelectivity)));
-            return hasJoinPK;
+            groups *= 1.0 / groupFieldAvgSelectivity;
         }
-        a.setEstimatedCardinality(childCard);
+        a.setEstimatedCardinality((int) Math.min(childCard, groups));
         return hasJoinPK;
     }
 }
@@ -8,13 +8,21 @@ import java.util.*;
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** Default number of pages worth of tuples the sort may hold in memory */
+    public static final int DEFAULT_SORT_PAGES = 100;
+
     private OpIterator child;
     private TupleDesc td;
-    private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
+    private SortOrder order;
     private int orderByField;
     private String orderByFieldName;
-    private Iterator<Tuple> it;
     private boolean asc;
+    private final int limit;
+    private final int memoryPages;
+    transient private ExternalSort sorter;
+    transient private OpIterator it;
+    transient private int returned = 0;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
@@ -27,11 +35,93 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, OpIterator child) {
+        this(orderbyField, asc, 0, child);
+    }
+
+    /**
+     * Creates a new OrderBy node that returns only the first limit tuples
+     * of the ordering. A positive limit is evaluated with a top-k heap, so
+     * at most limit tuples are held in memory.
+     *
+     * @param orderbyField
+     *            the field to which the sort is applied.
+     * @param asc
+     *            true if the sort order is ascending.
+     * @param limit
+     *            the number of tuples to return, or 0 for all of them
+     * @param child
+     *            the tuples to sort.
+     */
+    public OrderBy(int orderbyField, boolean asc, int limit, OpIterator child) {
+        this(orderbyField, asc, limit, DEFAULT_SORT_PAGES, child);
+    }
+
+    /**
+     * Creates a new OrderBy node with an explicit memory budget. Inputs
+     * larger than memoryPages pages are sorted externally.
+     *
+     * @param orderbyField
+     *            the field to which the sort is applied.
+     * @param asc
+     *            true if the sort order is ascending.
+     * @param limit
+     *            the number of tuples to return, or 0 for all of them
+     * @param memoryPages
+     *            the number of pages worth of tuples to sort in memory
+     * @param child
+     *            the tuples to sort.
+     */
+    public OrderBy(int orderbyField, boolean asc, int limit, int memoryPages, OpIterator child) {
+        this(new int[] { orderbyField }, new boolean[] { asc }, limit, memoryPages, child);
+    }
+
+    /**
+     * Creates a new OrderBy node on several sort keys. Ties on the first key
+     * are broken by the second one, and so on.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param asc
+     *            for each sort field, true if it is sorted ascending.
+     * @param limit
+     *            the number of tuples to return, or 0 for all of them
+     * @param child
+     *            the tuples to sort.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, int limit, OpIterator child) {
+        this(orderbyFields, asc, limit, DEFAULT_SORT_PAGES, child);
+    }
+
+    /**
+     * Creates a new OrderBy node on several sort keys with an explicit
+     * memory budget.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param asc
+     *            for each sort field, true if it is sorted ascending.
+     * @param limit
+     *            the number of tuples to return, or 0 for all of them
+     * @param memoryPages
+     *            the number of pages worth of tuples to sort in memory
+     * @param child
+     *            the tuples to sort.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, int limit, int memoryPages, OpIterator child) {
+        if (limit < 0)
+            throw new IllegalArgumentException("limit must not be negative");
+        if (memoryPages <= 0)
+            throw new IllegalArgumentException("sort memory must hold at least one page");
         this.child = child;
         td = child.getTupleDesc();
-        this.orderByField = orderbyField;
-        this.orderByFieldName = td.getFieldName(orderbyField);
-        this.asc = asc;
+        this.order = new SortOrder(orderbyFields, asc);
+        this.orderByField = orderbyFields[0];
+        this.orderByFieldName = td.getFieldName(orderByField);
+        this.asc = asc[0];
+        this.limit = limit;
+        this.memoryPages = memoryPages;
     }
     
     public boolean isASC()
@@ -53,24 +143,58 @@ public class OrderBy extends Operator {
         return td;
     }
 
+    public SortOrder getSortOrder() {
+        return order;
+    }
+
+    /**
+     * @return the maximum number of tuples returned, or 0 if there is no limit
+     */
+    public int getLimit() {
+        return this.limit;
+    }
+
+    /**
+     * @return the number of sorted runs spilled to disk by the last open,
+     *         0 if the sort was done in memory
+     */
+    public int numSpilledRuns() {
+        return sorter == null ? 0 : sorter.numRuns();
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add((Tuple) child.next());
-        Collections.sort(childTups, new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        Comparator<Tuple> cmp = new TupleComparator(order);
+        int memoryTuples = ExternalSort.tuplesForPages(td, memoryPages);
+        if (limit > 0 && limit <= memoryTuples) {
+            // the answer fits in memory: keep only the best limit tuples
+            sorter = null;
+            it = new TupleIterator(td, ExternalSort.topK(child, cmp, limit));
+        } else {
+            sorter = new ExternalSort(td, cmp, memoryTuples);
+            sorter.sort(child);
+            it = sorter.iterator();
+        }
+        it.open();
+        returned = 0;
         super.open();
     }
 
     public void close() {
         super.close();
+        if (it != null)
+            it.close();
         it = null;
+        if (sorter != null)
+            sorter.discard();
+        sorter = null;
+        child.close();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        it = childTups.iterator();
+        it.rewind();
+        returned = 0;
     }
 
     /**
@@ -82,7 +206,8 @@ public class OrderBy extends Operator {
      */
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
-        if (it != null && it.hasNext()) {
+        if (it != null && (limit == 0 || returned < limit) && it.hasNext()) {
+            returned++;
             return it.next();
         } else
             return null;
@@ -101,23 +226,35 @@ public class OrderBy extends Operator {
 }
 
 class TupleComparator implements Comparator<Tuple> {
-    int field;
-    boolean asc;
+    int[] fields;
+    boolean[] asc;
 
     public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
+        this.fields = new int[] { field };
+        this.asc = new boolean[] { asc };
+    }
+
+    public TupleComparator(SortOrder order) {
+        this.fields = new int[order.numKeys()];
+        this.asc = new boolean[order.numKeys()];
+        for (int i = 0; i < fields.length; i++) {
+            this.fields[i] = order.getField(i);
+            this.asc[i] = order.isAscending(i);
+        }
     }
 
     public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
+        for (int i = 0; i < fields.length; i++) {
+            Field t1 = (o1).getField(fields[i]);
+            Field t2 = (o2).getField(fields[i]);
+            if (t1.compare(Predicate.Op.EQUALS, t2))
+                continue;
+            if (t1.compare(Predicate.Op.GREATER_THAN, t2))
+                return asc[i] ? 1 : -1;
+            else
+                return asc[i] ? -1 : 1;
+        }
+        return 0;
     }
     
 }
@@ -0,0 +1,178 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * ParallelAggregate computes the same result as {@link Aggregate} with
+ * several threads, when its child is a SeqScan (or ParallelSeqScan) of a
+ * HeapFile, possibly under a chain of Filters.
+ * <p>
+ * The page range of the file is split on a fork/join pool until each task
+ * covers at most MORSEL_PAGES pages. Each task reads its pages through the
+ * BufferPool under the query's TransactionId, with the filter predicates
+ * evaluated on the pages, and builds a partial aggregate. Partials are merged on the way back
+ * up the task tree; AVG is carried as a sum and a count until the end.
+ * <p>
+ * Partials are never spilled. If any of them grows past the memory budget,
+ * the parallel attempt is abandoned and the input is aggregated by the serial
+ * spilling path instead.
+ */
+public class ParallelAggregate extends Aggregate {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Maximum number of pages scanned by a single task */
+    public static final int MORSEL_PAGES = 16;
+    /** Files with fewer pages than this are aggregated serially */
+    public static final int MIN_PARALLEL_PAGES = 4 * MORSEL_PAGES;
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    transient private boolean ranParallel = false;
+
+    /**
+     * Constructor.
+     *
+     * @see Aggregate#Aggregate(OpIterator, int[], int[], Aggregator.Op[])
+     */
+    public ParallelAggregate(OpIterator child, int[] afields, int[] gfields, Aggregator.Op[] aops) {
+        this(child, afields, gfields, aops, HashAggregator.DEFAULT_MEMORY_GROUPS);
+    }
+
+    /**
+     * Constructor with an explicit memory budget.
+     *
+     * @see Aggregate#Aggregate(OpIterator, int[], int[], Aggregator.Op[], int)
+     */
+    public ParallelAggregate(OpIterator child, int[] afields, int[] gfields, Aggregator.Op[] aops,
+            int memoryGroups) {
+        super(child, afields, gfields, aops, memoryGroups);
+    }
+
+    /**
+     * @return true if child is a (filtered) scan of a HeapFile large enough
+     *         to be worth aggregating in parallel
+     */
+    public static boolean worthParallelizing(OpIterator child) {
+        SeqScan scan = SeqScan.heapScanOf(child);
+        if (scan == null)
+            return false;
+        HeapFile f = (HeapFile) Database.getCatalog().getDatabaseFile(scan.getTableId());
+        return f.numPages() >= MIN_PARALLEL_PAGES;
+    }
+
+    /**
+     * @return true if the last open() aggregated in parallel, false if it
+     *         fell back to the serial path
+     */
+    public boolean ranParallel() {
+        return ranParallel;
+    }
+
+    @Override
+    protected HashAggregator computeAggregate() throws DbException, TransactionAbortedException {
+        ranParallel = false;
+        OpIterator child = getChildren()[0];
+        SeqScan scan = SeqScan.heapScanOf(child);
+        if (scan == null)
+            return super.computeAggregate();
+        HeapFile file = (HeapFile) Database.getCatalog().getDatabaseFile(scan.getTableId());
+        Job job = new Job(file, scan.getTransactionId(), SeqScan.predicatesOf(child));
+        HashAggregator result = POOL.invoke(job.new ScanTask(0, file.numPages()));
+
+        Exception error = job.error.get();
+        if (error instanceof TransactionAbortedException)
+            throw (TransactionAbortedException) error;
+        if (error instanceof DbException)
+            throw (DbException) error;
+        if (error != null)
+            throw new DbException("parallel aggregation failed: " + error);
+        if (result == null)
+            return super.computeAggregate();
+        ranParallel = true;
+        return result;
+    }
+
+    /**
+     * The state shared by the tasks of one parallel aggregation.
+     */
+    private class Job {
+        final HeapFile file;
+        final TransactionId tid;
+        final Predicate[] predicates;
+        /** set when a partial outgrows the budget; the remaining tasks stop early */
+        final AtomicBoolean overflow = new AtomicBoolean(false);
+        final AtomicReference<Exception> error = new AtomicReference<Exception>();
+
+        Job(HeapFile file, TransactionId tid, Predicate[] predicates) {
+            this.file = file;
+            this.tid = tid;
+            this.predicates = predicates;
+        }
+
+        boolean failed() {
+            return overflow.get() || error.get() != null;
+        }
+
+        /**
+         * Aggregate pages [start, end), returning null if the aggregation had
+         * to be abandoned.
+         */
+        private class ScanTask extends RecursiveTask<HashAggregator> {
+
+            private static final long serialVersionUID = 1L;
+
+            private final int start;
+            private final int end;
+
+            ScanTask(int start, int end) {
+                this.start = start;
+                this.end = end;
+            }
+
+            @Override
+            protected HashAggregator compute() {
+                if (failed())
+                    return null;
+                if (end - start > MORSEL_PAGES) {
+                    int mid = (start + end) >>> 1;
+                    ScanTask left = new ScanTask(start, mid);
+                    left.fork();
+                    HashAggregator right = new ScanTask(mid, end).compute();
+                    HashAggregator partial = left.join();
+                    if (partial == null || right == null)
+                        return null;
+                    partial.merge(right);
+                    if (partial.numGroupsInMemory() > memoryGroups()) {
+                        overflow.set(true);
+                        return null;
+                    }
+                    return partial;
+                }
+                HashAggregator partial = newAggregator(memoryGroups());
+                DbFileIterator it = file.iterator(tid, start, end, predicates);
+                try {
+                    it.open();
+                    while (it.hasNext() && !failed()) {
+                        partial.mergeTupleIntoGroup(it.next());
+                        if (partial.hasSpilled())
+                            overflow.set(true);
+                    }
+                } catch (DbException | TransactionAbortedException e) {
+                    error.compareAndSet(null, e);
+                } finally {
+                    it.close();
+                }
+                if (failed()) {
+                    partial.discard();
+                    return null;
+                }
+                return partial;
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * ParallelSeqScan scans a HeapFile on the {@link MorselExecutor} worker pool.
+ * <p>
+ * Each morsel of the file is scanned by a worker, which reads its pages
+ * through the BufferPool under the scan's TransactionId, keeps the tuples that
+ * satisfy the pushed down predicates, and hands them to the consumer as one
+ * batch. The consumer sees an ordinary OpIterator; tuples come back in no
+ * particular order.
+ */
+public class ParallelSeqScan extends SeqScan {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Files with fewer pages than this are not worth scanning in parallel */
+    public static final int MIN_PARALLEL_PAGES = 4 * MorselExecutor.MORSEL_PAGES;
+
+    transient private MorselExecutor.Run run;
+    transient private List<Tuple> batch;
+    transient private int pos;
+
+    /**
+     * Creates a parallel scan over the specified heap file.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of; all
+     *            workers acquire their page locks for it.
+     * @param tableid
+     *            the table to scan; it must be stored in a HeapFile
+     * @param tableAlias
+     *            the alias of this table
+     * @param predicates
+     *            predicates over the fields of the table that every returned
+     *            tuple must satisfy; they are evaluated by the workers
+     */
+    public ParallelSeqScan(TransactionId tid, int tableid, String tableAlias, Predicate[] predicates) {
+        super(tid, tableid, tableAlias, predicates);
+    }
+
+    /**
+     * Creates a parallel scan returning every tuple of the table.
+     */
+    public ParallelSeqScan(TransactionId tid, int tableid, String tableAlias) {
+        this(tid, tableid, tableAlias, new Predicate[0]);
+    }
+
+    /**
+     * @return true if op is a (filtered) scan of a HeapFile with at least
+     *         MIN_PARALLEL_PAGES pages
+     */
+    public static boolean worthParallelizing(OpIterator op) {
+        SeqScan scan = SeqScan.heapScanOf(op);
+        if (scan == null)
+            return false;
+        return ((HeapFile) Database.getCatalog().getDatabaseFile(scan.getTableId())).numPages() >= MIN_PARALLEL_PAGES;
+    }
+
+    /**
+     * Build a parallel scan returning the same tuples as a chain of Filters
+     * over a SeqScan of a HeapFile, with the filters pushed into the workers.
+     *
+     * @throws IllegalArgumentException
+     *             if op is not such a chain
+     */
+    public static ParallelSeqScan of(OpIterator op) {
+        SeqScan scan = SeqScan.heapScanOf(op);
+        if (scan == null)
+            throw new IllegalArgumentException("not a scan of a heap file");
+        return new ParallelSeqScan(scan.getTransactionId(), scan.getTableId(), scan.getAlias(),
+                SeqScan.predicatesOf(op));
+    }
+
+    @Override
+    public void open() throws DbException, TransactionAbortedException {
+        if (run != null)
+            close();
+        MorselExecutor.Pipeline pipeline = MorselExecutor.Pipeline.compile(this);
+        if (pipeline == null)
+            throw new DbException("table " + getTableName() + " is not stored in a heap file");
+        pipeline.prepare();
+        run = new MorselExecutor.Run(pipeline, MorselExecutor.GATHER, 1);
+        run.start();
+        batch = Collections.emptyList();
+        pos = 0;
+    }
+
+    @Override
+    public boolean hasNext() throws TransactionAbortedException, DbException {
+        if (run == null)
+            throw new IllegalStateException("scan not open");
+        while (pos >= batch.size()) {
+            batch = run.take(0);
+            if (batch == null) {
+                batch = Collections.emptyList();
+                return false;
+            }
+            pos = 0;
+        }
+        return true;
+    }
+
+    @Override
+    public Tuple next() throws NoSuchElementException, TransactionAbortedException, DbException {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return batch.get(pos++);
+    }
+
+    /**
+     * Stops the workers and waits for those still scanning, so that no page
+     * is locked for the transaction after the scan is closed.
+     */
+    @Override
+    public void close() {
+        if (run != null)
+            run.cancel();
+        run = null;
+        batch = null;
+    }
+
+    @Override
+    public SortOrder getSortOrder() {
+        return null;
+    }
+
+    @Override
+    public void rewind() throws DbException, NoSuchElementException, TransactionAbortedException {
+        close();
+        open();
+    }
+}
@@ -4,6 +4,8 @@ import Zql.*;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -12,6 +14,38 @@ import jline.SimpleCompletor;
 public class Parser {
     static boolean explain = false;
 
+    /** ZQL has no LIMIT clause, so a trailing "LIMIT n" is cut off before parsing */
+    private static final Pattern LIMIT_CLAUSE = Pattern.compile(
+            "(?is)^(.*\\S)\\s+LIMIT\\s+(\\d+)\\s*;?\\s*$");
+
+    /** ZQL cannot parse CREATE INDEX, so it is matched before parsing */
+    private static final Pattern CREATE_INDEX = Pattern.compile(
+            "(?is)^\\s*CREATE\\s+INDEX\\s+(\\w+)\\s+ON\\s+(\\w+)\\s*\\(\\s*(\\w+)\\s*\\)"
+            + "(?:\\s*INCLUDE\\s*\\(\\s*(\\w+(?:\\s*,\\s*\\w+)*)\\s*\\))?\\s*;?\\s*$");
+
+    /**
+     * Remove a trailing LIMIT clause from a statement.
+     *
+     * @param sql
+     *            the statement text; the clause is cut off in place
+     * @return the limit, or 0 if the statement has none
+     */
+    static int extractLimit(StringBuilder sql) throws simpledb.ParsingException {
+        Matcher m = LIMIT_CLAUSE.matcher(sql);
+        if (!m.matches())
+            return 0;
+        int limit;
+        try {
+            limit = Integer.parseInt(m.group(2));
+        } catch (NumberFormatException e) {
+            throw new simpledb.ParsingException("Invalid LIMIT " + m.group(2));
+        }
+        String rest = m.group(1);
+        sql.setLength(0);
+        sql.append(rest).append(';');
+        return limit;
+    }
+
     public static Predicate.Op getOp(String s) throws simpledb.ParsingException {
         if (s.equals("="))
             return Predicate.Op.EQUALS;
@@ -35,6 +69,15 @@ public class Parser {
         throw new simpledb.ParsingException("Unknown predicate " + s);
     }
 
+    /**
+     * @return true if e is a ? parameter; ZQL parses it as an expression with
+     *         operator "?" and no operands
+     */
+    private static boolean isParameter(ZExp e) {
+        return e instanceof ZExpression && ((ZExpression) e).getOperator().equals("?")
+                && ((ZExpression) e).nbOperands() == 0;
+    }
+
     void processExpression(TransactionId tid, ZExpression wx, LogicalPlan lp)
             throws simpledb.ParsingException {
         if (wx.getOperator().equals("AND")) {
@@ -50,6 +93,25 @@ public class Parser {
         } else if (wx.getOperator().equals("OR")) {
             throw new simpledb.ParsingException(
                     "OR expressions currently unsupported.");
+        } else if (wx.getOperator().equals("BETWEEN")) {
+            // A BETWEEN B AND C is A >= B AND A <= C
+            @SuppressWarnings("unchecked")
+            Vector<ZExp> ops = wx.getOperands();
+            for (ZExp e : ops) {
+                if (!(e instanceof ZConstant))
+                    throw new simpledb.ParsingException(
+                            "Only fields and constants are supported in BETWEEN expressions.");
+            }
+            ZConstant field = (ZConstant) ops.elementAt(0);
+            if (field.getType() != ZConstant.COLUMNNAME
+                    || ((ZConstant) ops.elementAt(1)).getType() == ZConstant.COLUMNNAME
+                    || ((ZConstant) ops.elementAt(2)).getType() == ZConstant.COLUMNNAME)
+                throw new simpledb.ParsingException(
+                        "BETWEEN expressions must compare a field with two constants.");
+            lp.addFilter(field.getValue(), Predicate.Op.GREATER_THAN_OR_EQ,
+                    ((ZConstant) ops.elementAt(1)).getValue());
+            lp.addFilter(field.getValue(), Predicate.Op.LESS_THAN_OR_EQ,
+                    ((ZConstant) ops.elementAt(2)).getValue());
         } else {
             // this is a binary expression comparing two constants
             @SuppressWarnings("unchecked")
@@ -62,6 +124,17 @@ public class Parser {
             boolean isJoin = false;
             Predicate.Op op = getOp(wx.getOperator());
 
+            if (isParameter(ops.elementAt(0)) || isParameter(ops.elementAt(1))) {
+                // a field compared with a ? parameter of a prepared query
+                ZExp other = isParameter(ops.elementAt(0)) ? ops.elementAt(1) : ops.elementAt(0);
+                if (!(other instanceof ZConstant)
+                        || ((ZConstant) other).getType() != ZConstant.COLUMNNAME)
+                    throw new simpledb.ParsingException(
+                            "Parameters may only be compared with fields: " + wx);
+                lp.addParameterFilter(((ZConstant) other).getValue(), op);
+                return;
+            }
+
             boolean op1const = ops.elementAt(0) instanceof ZConstant; // otherwise
                                                                       // is a
                                                                       // Query
@@ -97,6 +170,9 @@ public class Parser {
                     try {
                         LogicalPlan sublp = parseQueryLogicalPlan(tid,
                                 (ZQuery) ops.elementAt(1));
+                        if (sublp.getNumParameters() > 0)
+                            throw new simpledb.ParsingException(
+                                    "Parameters are unsupported in subqueries.");
                         OpIterator pp = sublp.physicalPlan(tid,
                                 TableStats.getStatsMap(), explain);
                         lp.addJoin(tab1field, pp, op);
@@ -134,6 +210,17 @@ public class Parser {
 
     public LogicalPlan parseQueryLogicalPlan(TransactionId tid, ZQuery q)
             throws IOException, Zql.ParseException, simpledb.ParsingException {
+        return parseQueryLogicalPlan(tid, q, 0);
+    }
+
+    /**
+     * Build the logical plan of a query that returns at most limit rows.
+     *
+     * @param limit
+     *            the LIMIT of the query, or 0 if it has none
+     */
+    public LogicalPlan parseQueryLogicalPlan(TransactionId tid, ZQuery q, int limit)
+            throws IOException, Zql.ParseException, simpledb.ParsingException {
         @SuppressWarnings("unchecked")
         Vector<ZFromItem> from = q.getFrom();
         LogicalPlan lp = new LogicalPlan();
@@ -182,23 +269,19 @@ public class Parser {
 
         // now look for group by fields
         ZGroupBy gby = q.getGroupBy();
-        String groupByField = null;
+        Vector<String> groupByFields = new Vector<String>();
         if (gby != null) {
             @SuppressWarnings("unchecked")
             Vector<ZExp> gbs = gby.getGroupBy();
-            if (gbs.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "At most one grouping field expression supported.");
-            }
-            if (gbs.size() == 1) {
-                ZExp gbe = gbs.elementAt(0);
+            for (ZExp gbe : gbs) {
                 if (!(gbe instanceof ZConstant)) {
                     throw new simpledb.ParsingException(
                             "Complex grouping expressions (" + gbe
                                     + ") not supported.");
                 }
-                groupByField = ((ZConstant) gbe).getValue();
+                String groupByField = ((ZConstant) gbe).getValue();
                 System.out.println("GROUP BY FIELD : " + groupByField);
+                groupByFields.addElement(groupByField);
             }
 
         }
@@ -207,8 +290,8 @@ public class Parser {
         // validity
         @SuppressWarnings("unchecked")
         Vector<ZSelectItem> selectList = q.getSelect();
-        String aggField = null;
-        String aggFun = null;
+        Vector<String> aggFields = new Vector<String>();
+        Vector<String> aggFuns = new Vector<String>();
 
         for (int i = 0; i < selectList.size(); i++) {
             ZSelectItem si = selectList.elementAt(i);
@@ -218,20 +301,18 @@ public class Parser {
                         "Expressions in SELECT list are not supported.");
             }
             if (si.getAggregate() != null) {
-                if (aggField != null) {
-                    throw new simpledb.ParsingException(
-                            "Aggregates over multiple fields not supported.");
-                }
-                aggField = ((ZConstant) ((ZExpression) si.getExpression())
+                String aggField = ((ZConstant) ((ZExpression) si.getExpression())
                         .getOperand(0)).getValue();
-                aggFun = si.getAggregate();
+                String aggFun = si.getAggregate();
                 System.out.println("Aggregate field is " + aggField
                         + ", agg fun is : " + aggFun);
                 lp.addProjectField(aggField, aggFun);
+                aggFields.addElement(aggField);
+                aggFuns.addElement(aggFun);
             } else {
-                if (groupByField != null
-                        && !(groupByField.equals(si.getTable() + "."
-                                + si.getColumn()) || groupByField.equals(si
+                if (!groupByFields.isEmpty()
+                        && !(groupByFields.contains(si.getTable() + "."
+                                + si.getColumn()) || groupByFields.contains(si
                                 .getColumn()))) {
                     throw new simpledb.ParsingException("Non-aggregate field "
                             + si.getColumn()
@@ -241,48 +322,68 @@ public class Parser {
             }
         }
 
-        if (groupByField != null && aggFun == null) {
+        if (!groupByFields.isEmpty() && aggFuns.isEmpty()) {
             throw new simpledb.ParsingException("GROUP BY without aggregation.");
         }
 
-        if (aggFun != null) {
-            lp.addAggregate(aggFun, aggField, groupByField);
-        }
+        for (String groupByField : groupByFields)
+            lp.addGroupBy(groupByField);
+        for (int i = 0; i < aggFuns.size(); i++)
+            lp.addAggregate(aggFuns.elementAt(i), aggFields.elementAt(i), null);
         // sort the data
 
         if (q.getOrderBy() != null) {
             @SuppressWarnings("unchecked")
             Vector<ZOrderBy> obys = q.getOrderBy();
-            if (obys.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "Multi-attribute ORDER BY is not supported.");
-            }
-            ZOrderBy oby = obys.elementAt(0);
-            if (!(oby.getExpression() instanceof ZConstant)) {
-                throw new simpledb.ParsingException(
-                        "Complex ORDER BY's are not supported");
-            }
-            ZConstant f = (ZConstant) oby.getExpression();
+            for (ZOrderBy oby : obys) {
+                if (!(oby.getExpression() instanceof ZConstant)) {
+                    throw new simpledb.ParsingException(
+                            "Complex ORDER BY's are not supported");
+                }
+                ZConstant f = (ZConstant) oby.getExpression();
 
-            lp.addOrderBy(f.getValue(), oby.getAscOrder());
+                lp.addOrderBy(f.getValue(), oby.getAscOrder());
+            }
 
         }
+        if (limit > 0)
+            lp.setLimit(limit);
         return lp;
     }
 
     private Transaction curtrans = null;
     private boolean inUserTrans = false;
+    private final QueryCache queryCache = new QueryCache();
 
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws TransactionAbortedException, DbException, IOException,
             simpledb.ParsingException, Zql.ParseException {
+        return handleQueryStatement(s, tId, 0);
+    }
+
+    public Query handleQueryStatement(ZQuery s, TransactionId tId, int limit)
+            throws TransactionAbortedException, DbException, IOException,
+            simpledb.ParsingException, Zql.ParseException {
+        return handleQueryStatement(s, tId, limit, new Field[0]);
+    }
+
+    /**
+     * Plan a query whose ? parameters take the given values. The plan is
+     * optimized for these values, and can be run with others via
+     * {@link Query#bind}.
+     */
+    public Query handleQueryStatement(ZQuery s, TransactionId tId, int limit, Field[] params)
+            throws TransactionAbortedException, DbException, IOException,
+            simpledb.ParsingException, Zql.ParseException {
         Query query = new Query(tId);
 
-        LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        LogicalPlan lp = parseQueryLogicalPlan(tId, s, limit);
+        lp.bindParameters(params);
         OpIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
         query.setLogicalPlan(lp);
+        query.setParameters(lp.getParameterPredicates());
 
         if (physicalPlan != null) {
             Class<?> c;
@@ -427,6 +528,90 @@ public class Parser {
 
     }
 
+    /**
+     * Build a {@link SecondaryIndex} named index on a column of a heap file
+     * table with a {@link BTreeBulkLoader}. The index is stored in the
+     * directory of the table, in a file named after it, and is added to the
+     * catalog under its name, so that later statements maintain it and the
+     * planner can use it. The tuples of the table are read as a part of the
+     * transaction, but the index file is written directly and is not removed
+     * if the transaction later aborts.
+     */
+    public void handleCreateIndexStatement(String index, String table, String column, TransactionId tid)
+            throws TransactionAbortedException, DbException, IOException,
+            simpledb.ParsingException {
+        handleCreateIndexStatement(index, table, column, new String[0], tid);
+    }
+
+    /**
+     * Build a covering index, which also holds the included columns of the
+     * table, as for CREATE INDEX index ON table (column) INCLUDE (include...).
+     *
+     * @see #handleCreateIndexStatement(String, String, String, TransactionId)
+     */
+    public void handleCreateIndexStatement(String index, String table, String column, String[] include,
+            TransactionId tid) throws TransactionAbortedException, DbException, IOException,
+            simpledb.ParsingException {
+        Catalog catalog = Database.getCatalog();
+        int tableId;
+        try {
+            tableId = catalog.getTableId(table);
+        } catch (NoSuchElementException e) {
+            throw new simpledb.ParsingException("Unknown table " + table);
+        }
+        try {
+            catalog.getTableId(index);
+            throw new simpledb.ParsingException("A table named " + index + " already exists");
+        } catch (NoSuchElementException e) {
+            // the name is free
+        }
+        DbFile source = catalog.getDatabaseFile(tableId);
+        if (!(source instanceof HeapFile))
+            throw new simpledb.ParsingException("Indexes can only be built on heap file tables");
+        HeapFile heapFile = (HeapFile) source;
+        TupleDesc td = heapFile.getTupleDesc();
+        int keyField;
+        try {
+            keyField = td.fieldNameToIndex(column);
+        } catch (NoSuchElementException e) {
+            throw new simpledb.ParsingException("Unknown field " + column + " in table " + table);
+        }
+        int[] included = new int[include.length];
+        for (int i = 0; i < include.length; i++) {
+            try {
+                included[i] = td.fieldNameToIndex(include[i]);
+            } catch (NoSuchElementException e) {
+                throw new simpledb.ParsingException("Unknown field " + include[i] + " in table " + table);
+            }
+            if (included[i] == keyField)
+                throw new simpledb.ParsingException("Field " + include[i] + " is the key of the index");
+            for (int j = 0; j < i; j++) {
+                if (included[j] == included[i])
+                    throw new simpledb.ParsingException("Field " + include[i] + " is included twice");
+            }
+        }
+        File file = new File(heapFile.getFile().getAbsoluteFile().getParentFile(), index + ".dat");
+        if (file.exists())
+            throw new simpledb.ParsingException("The file " + file + " already exists");
+
+        SecondaryIndex secondary = new SecondaryIndex(file, heapFile, keyField, included);
+        BTreeFile bf = secondary.getIndexFile();
+        catalog.addIndex(secondary, index);
+        boolean built = false;
+        try {
+            int n = new BTreeBulkLoader().load(tid, secondary);
+            built = true;
+            System.out.println("Created index " + index + " on " + table + "(" + column + ") with " + n
+                    + " entries.");
+        } finally {
+            if (!built) {
+                catalog.removeTable(bf.getId());
+                file.delete();
+            }
+        }
+        TableStats.setTableStats(index, new TableStats(bf.getId(), TableStats.IOCOSTPERPAGE));
+    }
+
     public void handleTransactStatement(ZTransactStmt s)
             throws TransactionAbortedException, DbException, IOException,
             simpledb.ParsingException, Zql.ParseException {
@@ -465,12 +650,14 @@ public class Parser {
 
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
+        StringBuilder sql = new StringBuilder(s);
+        int limit = extractLimit(sql);
+        ByteArrayInputStream bis = new ByteArrayInputStream(sql.toString().getBytes());
         ZqlParser p = new ZqlParser(bis);
         try {
             ZStatement stmt = p.readStatement();
             if (stmt instanceof ZQuery) {
-                LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery) stmt, limit);
                 return lp;
             }
         } catch (Zql.ParseException e) {
@@ -484,6 +671,54 @@ public class Parser {
                 "Cannot generate logical plan for expression : " + s);
     }
 
+    /**
+     * Prepare a SELECT statement, whose WHERE clause may compare fields with
+     * ? parameters, to run as a part of the given transaction with the given
+     * parameter values. Plans are cached by statement text, so preparing the
+     * same statement again, with the same or other values, skips parsing
+     * and optimization until the catalog or the table statistics change.
+     * The query must be closed before this statement can reuse its plan.
+     *
+     * @param sql
+     *            the statement
+     * @param tid
+     *            the transaction the query runs as a part of
+     * @param params
+     *            the value of each ? parameter, in order
+     * @return the query, ready to start
+     */
+    public Query prepareQuery(String sql, TransactionId tid, Field... params)
+            throws TransactionAbortedException, DbException, IOException,
+            simpledb.ParsingException, Zql.ParseException {
+        Query query = queryCache.get(sql, true);
+        if (query != null) {
+            try {
+                query.bind(tid, params);
+            } catch (IllegalArgumentException e) {
+                query.inUse = false;
+                throw new simpledb.ParsingException(e.getMessage());
+            }
+            return query;
+        }
+        StringBuilder text = new StringBuilder(sql);
+        int limit = extractLimit(text);
+        ZqlParser p = new ZqlParser(new ByteArrayInputStream(text.toString().getBytes("UTF-8")));
+        ZStatement s = p.readStatement();
+        if (!(s instanceof ZQuery))
+            throw new simpledb.ParsingException("Only SELECT statements can be prepared");
+        query = handleQueryStatement((ZQuery) s, tid, limit, params);
+        queryCache.put(sql, true, query);
+        return query;
+    }
+
+    /**
+     * @return the cache of query plans used by {@link #prepareQuery} and
+     *         {@link #processNextStatement}
+     */
+    public QueryCache getQueryCache() {
+        return queryCache;
+    }
+
     public void setTransaction(Transaction t) {
         curtrans = t;
     }
@@ -503,10 +738,23 @@ public class Parser {
 
     public void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
-            ZStatement s = p.readStatement();
+            String text = readStatementText(is);
+            // a cached plan for the statement saves parsing and planning it
+            Query query = queryCache.get(text);
+            ZStatement s = null;
+            int limit = 0;
+            Matcher createIndex = CREATE_INDEX.matcher(text);
+            if (!createIndex.matches())
+                createIndex = null;
+            if (query == null && createIndex == null) {
+                StringBuilder sql = new StringBuilder(text);
+                limit = extractLimit(sql);
+                ZqlParser p = new ZqlParser(new ByteArrayInputStream(sql.toString().getBytes("UTF-8")));
+                s = p.readStatement();
+                if (limit > 0 && !(s instanceof ZQuery))
+                    throw new simpledb.ParsingException("LIMIT is only supported on SELECT statements");
+            }
 
-            Query query = null;
             if (s instanceof ZTransactStmt)
                 handleTransactStatement((ZTransactStmt) s);
             else {
@@ -517,16 +765,24 @@ public class Parser {
                             + curtrans.getId().getId());
                 }
                 try {
-                    if (s instanceof ZInsert)
+                    if (query != null)
+                        query.bind(curtrans.getId());
+                    else if (createIndex != null)
+                        handleCreateIndexStatement(createIndex.group(1), createIndex.group(2),
+                                createIndex.group(3), createIndex.group(4) == null ? new String[0]
+                                        : createIndex.group(4).trim().split("\\s*,\\s*"),
+                                curtrans.getId());
+                    else if (s instanceof ZInsert)
                         query = handleInsertStatement((ZInsert) s,
                                 curtrans.getId());
                     else if (s instanceof ZDelete)
                         query = handleDeleteStatement((ZDelete) s,
                                 curtrans.getId());
-                    else if (s instanceof ZQuery)
+                    else if (s instanceof ZQuery) {
                         query = handleQueryStatement((ZQuery) s,
-                                curtrans.getId());
-                    else {
+                                curtrans.getId(), limit);
+                        queryCache.put(text, query);
+                    } else {
                         System.out
                                 .println("Can't parse "
                                         + s
@@ -557,6 +813,10 @@ public class Parser {
                         throw (Zql.TokenMgrError) a;
                     throw new DbException(a.getMessage());
                 } finally {
+                    // a plan from the cache is free again even if binding or
+                    // running it failed
+                    if (query != null)
+                        query.inUse = false;
                     if (!inUserTrans)
                         curtrans = null;
                 }
@@ -578,10 +838,19 @@ public class Parser {
         }
     }
 
+    private static String readStatementText(InputStream is) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = is.read(buf)) > 0)
+            out.write(buf, 0, n);
+        return out.toString("UTF-8");
+    }
+
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "order by", "limit", "create index", "on", "include" };
 
     public static void main(String argv[]) throws IOException {
 
@@ -92,6 +92,15 @@ public class Predicate implements Serializable {
         return this.operand;
     }
     
+    /**
+     * Replace the operand, so that a plan holding this predicate can be run
+     * again with another value for a query parameter. Takes effect the next
+     * time the plan is opened.
+     */
+    void setOperand(Field operand) {
+        this.operand = operand;
+    }
+
     /**
      * Compares the field number of t specified in the constructor to the
      * operand field specified in the constructor using the operator specific in
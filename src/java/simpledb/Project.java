@@ -11,6 +11,7 @@ public class Project extends Operator {
     private OpIterator child;
     private TupleDesc td;
     private ArrayList<Integer> outFieldIds;
+    private final int[] outFields;
 
     /**
      * Constructor accepts a child operator to read tuples to apply projection
@@ -39,6 +40,7 @@ public class Project extends Operator {
             fieldAr[i] = childtd.getFieldName(fieldList.get(i));
         }
         td = new TupleDesc(types, fieldAr);
+        outFields = outputFields();
     }
 
     public TupleDesc getTupleDesc() {
@@ -72,14 +74,31 @@ public class Project extends Operator {
             Tuple t = child.next();
             Tuple newTuple = new Tuple(td);
             newTuple.setRecordId(t.getRecordId());
-            for (int i = 0; i < td.numFields(); i++) {
-                newTuple.setField(i, t.getField(outFieldIds.get(i)));
+            for (int i = 0; i < outFields.length; i++) {
+                newTuple.setField(i, t.getField(outFields[i]));
             }
             return newTuple;
         }
         return null;
     }
 
+    /**
+     * @return the index in the child's tuples of each output field
+     */
+    int[] outputFields() {
+        int[] outFields = new int[outFieldIds.size()];
+        for (int i = 0; i < outFields.length; i++)
+            outFields[i] = outFieldIds.get(i);
+        return outFields;
+    }
+
+    public SortOrder getSortOrder() {
+        SortOrder childOrder = child.getSortOrder();
+        if (childOrder == null)
+            return null;
+        return childOrder.project(outputFields());
+    }
+
     @Override
     public OpIterator[] getChildren() {
         return new OpIterator[] { this.child };
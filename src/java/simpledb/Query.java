@@ -20,6 +20,9 @@ public class Query implements Serializable {
     transient private LogicalPlan logicalPlan;
     TransactionId tid;
     transient private boolean started = false;
+    transient private Predicate[] parameters = new Predicate[0];
+    /** set while a QueryCache has handed this query out, until it is closed */
+    transient boolean inUse = false;
 
     public TransactionId getTransactionId() {
         return this.tid;
@@ -45,6 +48,63 @@ public class Query implements Serializable {
         tid = t;
     }
 
+    /**
+     * Set the predicates of the physical plan that compare with the ?
+     * parameters of the query, in parameter order.
+     */
+    public void setParameters(Predicate[] parameters) {
+        this.parameters = parameters.clone();
+    }
+
+    /**
+     * @return the number of ? parameters of the query
+     */
+    public int getNumParameters() {
+        return parameters.length;
+    }
+
+    /**
+     * Prepare the physical plan to run again, as a part of another
+     * transaction and with new values for the ? parameters, without parsing
+     * or optimizing the query again. The plan keeps the shape it was given
+     * for the values it was optimized with.
+     *
+     * @param t
+     *            the transaction the query runs as a part of from now on
+     * @param values
+     *            the value of each parameter, in order
+     * @throws DbException
+     *             if the query is running
+     * @throws IllegalArgumentException
+     *             if the values do not match the parameters in number or
+     *             type
+     */
+    public void bind(TransactionId t, Field... values) throws DbException {
+        if (started)
+            throw new DbException("cannot rebind a running query");
+        if (values.length != parameters.length)
+            throw new IllegalArgumentException("query has " + parameters.length
+                    + " parameters, but " + values.length + " values were supplied");
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == null || values[i].getType() != parameters[i].getOperand().getType())
+                throw new IllegalArgumentException("parameter " + i + " must be of type "
+                        + parameters[i].getOperand().getType());
+        }
+        for (int i = 0; i < values.length; i++)
+            parameters[i].setOperand(values[i]);
+        tid = t;
+        setTransaction(op, t);
+    }
+
+    private static void setTransaction(OpIterator op, TransactionId t) {
+        if (op instanceof TableScan)
+            ((TableScan) op).setTransactionId(t);
+        if (op instanceof Operator) {
+            for (OpIterator child : ((Operator) op).getChildren())
+                setTransaction(child, t);
+        }
+    }
+
     public Query(OpIterator root, TransactionId t) {
         op = root;
         tid = t;
@@ -90,6 +150,7 @@ public class Query implements Serializable {
     public void close() throws IOException {
         op.close();
         started = false;
+        inUse = false;
     }
 
     public void execute() throws IOException, DbException, TransactionAbortedException {
@@ -105,14 +166,17 @@ public class Query implements Serializable {
         }
         System.out.println("");
 
-        this.start();
         int cnt = 0;
-        while (this.hasNext()) {
-            Tuple tup = this.next();
-            System.out.println(tup);
-            cnt++;
+        try {
+            this.start();
+            while (this.hasNext()) {
+                Tuple tup = this.next();
+                System.out.println(tup);
+                cnt++;
+            }
+        } finally {
+            this.close();
         }
         System.out.println("\n " + cnt + " rows.");
-        this.close();
     }
 }
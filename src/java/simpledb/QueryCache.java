@@ -0,0 +1,149 @@
+package simpledb;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * QueryCache holds the physical plans of recently run SELECT statements, so
+ * that running a statement again, perhaps with other values for its ?
+ * parameters, skips parsing and optimizing it.
+ * <p>
+ * Plans are keyed on the statement text with whitespace normalized, on
+ * whether the statement was prepared with values for its ? parameters or
+ * run as it is, so a plan with parameters is never run without values, and
+ * on the versions of the catalog and of the table statistics the plan was
+ * built against, so adding tables or recomputing statistics makes older
+ * plans unreachable; they age out of the cache, which evicts the least
+ * recently used plan once it holds more than its capacity. A plan is handed
+ * out to one caller at a time, until its query is closed.
+ */
+public class QueryCache {
+
+    /** The number of plans a cache holds by default */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private final LinkedHashMap<String, Query> plans;
+    private int hits = 0;
+    private int misses = 0;
+
+    public QueryCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity
+     *            the number of plans to hold
+     */
+    public QueryCache(final int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive");
+        plans = new LinkedHashMap<String, Query>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<String, Query> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @return the statement with runs of whitespace outside quoted strings
+     *         replaced by a single space, and without surrounding whitespace
+     *         or a trailing semicolon
+     */
+    static String normalize(String sql) {
+        StringBuilder sb = new StringBuilder(sql.length());
+        boolean quoted = false;
+        boolean space = false;
+        for (int i = 0; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if (!quoted && Character.isWhitespace(c)) {
+                space = true;
+                continue;
+            }
+            if (space && sb.length() > 0)
+                sb.append(' ');
+            space = false;
+            if (c == '\'')
+                quoted = !quoted;
+            sb.append(c);
+        }
+        int end = sb.length();
+        while (end > 0 && (sb.charAt(end - 1) == ';' || sb.charAt(end - 1) == ' '))
+            end--;
+        sb.setLength(end);
+        return sb.toString();
+    }
+
+    private static String keyOf(String sql, boolean prepared) {
+        return (prepared ? "P/" : "Q/") + Database.getCatalog().getVersion() + "/"
+                + TableStats.getVersion() + "/" + normalize(sql);
+    }
+
+    /**
+     * @return the cached plan of the statement run as it is, as by
+     *         {@link #get(String, boolean)}
+     */
+    public Query get(String sql) {
+        return get(sql, false);
+    }
+
+    /**
+     * @param prepared
+     *            whether the statement is prepared with values for its ?
+     *            parameters
+     * @return the cached plan of the statement, which must be bound with
+     *         {@link Query#bind} before it is started, or null if there is
+     *         none for the current catalog and statistics or it is in use
+     */
+    public synchronized Query get(String sql, boolean prepared) {
+        Query query = plans.get(keyOf(sql, prepared));
+        if (query == null || query.inUse) {
+            misses++;
+            return null;
+        }
+        hits++;
+        query.inUse = true;
+        return query;
+    }
+
+    /**
+     * Cache the plan of the statement run as it is, as by
+     * {@link #put(String, boolean, Query)}.
+     */
+    public void put(String sql, Query query) {
+        put(sql, false, query);
+    }
+
+    /**
+     * Cache the plan of the statement, which the caller is about to run.
+     *
+     * @param prepared
+     *            whether the statement is prepared with values for its ?
+     *            parameters
+     */
+    public synchronized void put(String sql, boolean prepared, Query query) {
+        query.inUse = true;
+        plans.put(keyOf(sql, prepared), query);
+    }
+
+    /** @return the number of plans in the cache */
+    public synchronized int size() {
+        return plans.size();
+    }
+
+    /** @return the number of lookups that found a plan */
+    public synchronized int numHits() {
+        return hits;
+    }
+
+    /** @return the number of lookups that found no usable plan */
+    public synchronized int numMisses() {
+        return misses;
+    }
+
+    /** Drop every plan */
+    public synchronized void clear() {
+        plans.clear();
+    }
+}
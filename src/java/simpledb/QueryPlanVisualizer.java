@@ -13,8 +13,12 @@ public class QueryPlanVisualizer {
     static final String PROJECT = "π";
     static final String RENAME = "ρ";
     static final String SCAN = "scan";
+    static final String PARALLEL_SCAN = "pscan";
+    static final String INDEX_SCAN = "iscan";
+    static final String INDEX_ONLY_SCAN = "ioscan";
     static final String ORDERBY = "o";
     static final String GROUPBY = "g";
+    static final String LIMIT = "limit";
     static final String SPACE = "  ";
 
     private int calculateQueryPlanTreeDepth(OpIterator root) {
@@ -65,8 +69,8 @@ public class QueryPlanVisualizer {
         int adjustDepth = currentDepth == 0 ? -1 : 0;
         SubTreeDescriptor thisNode = new SubTreeDescriptor(null, null);
 
-        if (queryPlan instanceof SeqScan) {
-            SeqScan s = (SeqScan) queryPlan;
+        if (queryPlan instanceof TableScan) {
+            TableScan s = (TableScan) queryPlan;
             String tableName = s.getTableName();
             String alias = s.getAlias();
 //            TupleDesc td = s.getTupleDesc();
@@ -74,8 +78,17 @@ public class QueryPlanVisualizer {
                 alias = " " + alias;
             else
                 alias = "";
-            thisNode.text = String
-                    .format("%1$s(%2$s)", SCAN, tableName + alias);
+            // filters pushed into the scan are evaluated on the pages
+            TupleDesc td = s.getTupleDesc();
+            String preds = "";
+            for (Predicate p : s.getPredicates())
+                preds += (preds.isEmpty() ? "" : ",") + td.getFieldName(p.getField())
+                        + (p instanceof BloomPredicate ? " in bloom" : p.getOp() + "" + p.getOperand());
+            thisNode.text = String.format("%1$s(%2$s)",
+                    s instanceof ParallelSeqScan ? PARALLEL_SCAN : s instanceof IndexScan ? INDEX_SCAN
+                            : s instanceof IndexOnlyScan ? INDEX_ONLY_SCAN : SCAN,
+                    tableName + alias)
+                    + (preds.isEmpty() ? "" : String.format(",%1$s(%2$s)", SELECT, preds));
             if (SCAN.length() / 2 < parentUpperBarStartShift) {
                 thisNode.upBarPosition = currentStartPosition
                         + parentUpperBarStartShift;
@@ -170,16 +183,22 @@ public class QueryPlanVisualizer {
                 int upBarShift = parentUpperBarStartShift;
                 String alignTxt;
                 TupleDesc td = a.getTupleDesc();
-                int gfield = a.groupField();
+                int numGroups = a.groupFields().length;
+                String groups = "";
+                for (int i = 0; i < numGroups; i++)
+                    groups += (i > 0 ? "," : "") + td.getFieldName(i);
+                String aggs = "";
+                for (int i = numGroups; i < td.numFields(); i++)
+                    aggs += (i > numGroups ? ", " : "") + td.getFieldName(i);
 
-                if (gfield == Aggregator.NO_GROUPING) {
-                    thisNode.text = String.format("%1$s(%2$s),card:%3$d",
-                            a.aggregateOp(), a.aggregateFieldName(),a.getEstimatedCardinality());
+                if (numGroups == 0) {
+                    thisNode.text = String.format("%1$s,card:%2$d",
+                            aggs,a.getEstimatedCardinality());
                     alignTxt = td.getFieldName(00);
                 } else {
-                    thisNode.text = String.format("%1$s(%2$s), %3$s(%4$s),card:%5$d",
-                            GROUPBY, a.groupFieldName(), a.aggregateOp(),
-                            a.aggregateFieldName(),a.getEstimatedCardinality());
+                    thisNode.text = String.format("%1$s(%2$s), %3$s,card:%4$d",
+                            GROUPBY, groups,
+                            aggs,a.getEstimatedCardinality());
                     alignTxt = GROUPBY;
                 }
                 if (alignTxt.length() / 2 > parentUpperBarStartShift)
@@ -238,6 +257,24 @@ public class QueryPlanVisualizer {
                                 - currentStartPosition);
                 thisNode.leftChild = child;
                 thisNode.height = currentDepth;
+            } else if (plan instanceof Limit) {
+                Limit l = (Limit) plan;
+                thisNode.text = String.format("%1$s(%2$d),card:%3$d", LIMIT,
+                        l.getLimit(), l.getEstimatedCardinality());
+                int upBarShift = parentUpperBarStartShift;
+                if (LIMIT.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = LIMIT.length() / 2;
+                SubTreeDescriptor child = this.buildTree(queryPlanDepth,
+                        currentDepth + 2 + adjustDepth, children[0],
+                        currentStartPosition, upBarShift);
+                thisNode.upBarPosition = child.upBarPosition;
+                thisNode.textStartPosition = thisNode.upBarPosition
+                        - LIMIT.length() / 2;
+                thisNode.width = Math.max(child.width,
+                        thisNode.textStartPosition + thisNode.text.length()
+                                - currentStartPosition);
+                thisNode.leftChild = child;
+                thisNode.height = currentDepth;
             } else if (plan instanceof Project) {
                 Project p = (Project) plan;
                 String fields = "";
@@ -261,7 +298,8 @@ public class QueryPlanVisualizer {
                 thisNode.leftChild = child;
                 thisNode.height = currentDepth;
             }
-            else if (plan.getClass().getSuperclass().getSuperclass().getSimpleName().equals("Exchange")) {
+            else if (plan instanceof Exchange
+                    || plan.getClass().getSuperclass().getSuperclass().getSimpleName().equals("Exchange")) {
                 String name="Exchange";
                 int card=0;
                 try {
@@ -0,0 +1,285 @@
+package simpledb;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * SecondaryIndex is a non-clustered index on one field of a HeapFile.
+ * <p>
+ * The index is a BTreeFile of entries (key, page number, slot), keyed on the
+ * key, with one entry for every tuple of the heap file. The page number and
+ * slot locate the tuple in the heap file, so a lookup finds the matching
+ * entries in the tree and then reads each tuple from its heap page.
+ * <p>
+ * A covering index also copies some other fields of the tuple into its
+ * entries, between the key and the page number: (key, included..., page,
+ * slot). A query that reads only the key and the included fields of a table
+ * can then be answered from the entries alone by an {@link IndexOnlyScan},
+ * without reading the heap file.
+ * <p>
+ * The leaves of the tree are compressed: the entries of the tuples sharing a
+ * key hold the key once, followed by the location of each tuple.
+ * <p>
+ * Indexes are registered with {@link Catalog#addIndex} and kept up to date by
+ * {@link BufferPool#insertTuple} and {@link BufferPool#deleteTuple}. Their
+ * pages are locked, logged and rolled back like those of any other file, so
+ * an index always agrees with the committed state of its table.
+ */
+public class SecondaryIndex {
+
+    private final int tableid;
+    private final int keyField;
+    private final int[] included;
+    private final BTreeFile index;
+
+    /**
+     * Create an index on a field of a heap file, stored in the given file.
+     * The index starts out empty; an index of a table that already has
+     * tuples is filled with {@link BTreeBulkLoader#load(TransactionId, SecondaryIndex)}.
+     *
+     * @param f
+     *            the file the index is stored in
+     * @param table
+     *            the indexed table
+     * @param keyField
+     *            the indexed field of the table
+     */
+    public SecondaryIndex(File f, HeapFile table, int keyField) {
+        this(f, table, keyField, new int[0]);
+    }
+
+    /**
+     * Create a covering index on a field of a heap file, whose entries also
+     * hold the values of the included fields.
+     *
+     * @param included
+     *            the fields of the table copied into the entries, other than
+     *            the key
+     * @see #SecondaryIndex(File, HeapFile, int)
+     */
+    public SecondaryIndex(File f, HeapFile table, int keyField, int[] included) {
+        TupleDesc td = table.getTupleDesc();
+        for (int field : included) {
+            if (field == keyField || field < 0 || field >= td.numFields())
+                throw new IllegalArgumentException("cannot include field " + field + " in an index on field "
+                        + keyField);
+        }
+        this.tableid = table.getId();
+        this.keyField = keyField;
+        this.included = included.clone();
+        this.index = new BTreeFile(f, new int[] { 0 }, entryDesc(td, keyField, included), true);
+    }
+
+    /**
+     * @return the schema of the entries of an index on a field of a table
+     *         with the given schema, which includes the given other fields
+     */
+    public static TupleDesc entryDesc(TupleDesc td, int keyField, int[] included) {
+        int n = included.length + 3;
+        Type[] types = new Type[n];
+        String[] names = new String[n];
+        types[0] = td.getFieldType(keyField);
+        names[0] = td.getFieldName(keyField);
+        for (int i = 0; i < included.length; i++) {
+            types[i + 1] = td.getFieldType(included[i]);
+            names[i + 1] = td.getFieldName(included[i]);
+        }
+        types[n - 2] = Type.INT_TYPE;
+        names[n - 2] = "page";
+        types[n - 1] = Type.INT_TYPE;
+        names[n - 1] = "slot";
+        return new TupleDesc(types, names);
+    }
+
+    /**
+     * @return the id of the indexed table
+     */
+    public int getTableId() {
+        return tableid;
+    }
+
+    /**
+     * @return the indexed field of the table
+     */
+    public int getKeyField() {
+        return keyField;
+    }
+
+    /**
+     * @return the fields of the table held by the entries: the key first,
+     *         then the included fields. Field i of the table is held in field
+     *         j of the entries if getFields()[j] == i.
+     */
+    public int[] getFields() {
+        int[] fields = new int[included.length + 1];
+        fields[0] = keyField;
+        System.arraycopy(included, 0, fields, 1, included.length);
+        return fields;
+    }
+
+    /**
+     * @return true if the entries hold every one of the given fields of the
+     *         table
+     */
+    public boolean covers(Collection<Integer> fields) {
+        for (int field : fields) {
+            boolean held = field == keyField;
+            for (int i = 0; !held && i < included.length; i++)
+                held = included[i] == field;
+            if (!held)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the BTreeFile holding the entries of the index
+     */
+    public BTreeFile getIndexFile() {
+        return index;
+    }
+
+    /**
+     * @return the index entry for a tuple stored in the indexed table
+     */
+    Tuple entryFor(Tuple t) {
+        RecordId rid = t.getRecordId();
+        Tuple entry = new Tuple(index.getTupleDesc());
+        entry.setField(0, t.getField(keyField));
+        for (int i = 0; i < included.length; i++)
+            entry.setField(i + 1, t.getField(included[i]));
+        entry.setField(included.length + 1, new IntField(rid.getPageId().getPageNumber()));
+        entry.setField(included.length + 2, new IntField(rid.getTupleNumber()));
+        return entry;
+    }
+
+    /**
+     * Add the entry for a tuple just inserted into the indexed table.
+     *
+     * @return the index pages that were dirtied
+     */
+    ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, java.io.IOException, TransactionAbortedException {
+        return index.insertTuple(tid, entryFor(t));
+    }
+
+    /**
+     * Remove the entry for a tuple deleted from the indexed table.
+     *
+     * @param t
+     *            the deleted tuple, with the record id it was stored at
+     * @return the index pages that were dirtied
+     */
+    ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+            throws DbException, java.io.IOException, TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        DbFileIterator it = index.indexIterator(tid,
+                new IndexPredicate(Predicate.Op.EQUALS, t.getField(keyField)));
+        Tuple found = null;
+        it.open();
+        try {
+            while (found == null && it.hasNext()) {
+                Tuple entry = it.next();
+                if (((IntField) entry.getField(included.length + 1)).getValue() == rid.getPageId().getPageNumber()
+                        && ((IntField) entry.getField(included.length + 2)).getValue() == rid.getTupleNumber())
+                    found = entry;
+            }
+        } finally {
+            it.close();
+        }
+        if (found == null)
+            throw new DbException("no index entry for tuple " + rid.getPageId() + ":" + rid.getTupleNumber());
+        return index.deleteTuple(tid, found);
+    }
+
+    /**
+     * Look up the tuples of the indexed table whose key satisfies a
+     * predicate. The tuples are returned in ascending key order; their heap
+     * pages are read-locked by tid.
+     *
+     * @param ipred
+     *            the predicate on the key; LIKE and NOT_EQUALS cannot use the
+     *            index
+     */
+    public DbFileIterator iterator(TransactionId tid, IndexPredicate ipred) {
+        return new LookupIterator(tid, index.indexIterator(tid, ipred));
+    }
+
+    /**
+     * Look up the tuples of the indexed table whose key is equal to any of
+     * several keys, descending the index once for keys close together. The
+     * tuples are returned in ascending key order; their heap pages are
+     * read-locked by tid.
+     *
+     * @param keys
+     *            the keys to look up, in ascending order
+     * @see BTreeFile#indexIterator(TransactionId, List)
+     */
+    public DbFileIterator iterator(TransactionId tid, List<Field> keys) {
+        return new LookupIterator(tid, index.indexIterator(tid, keys));
+    }
+
+    /**
+     * Read the entries whose key satisfies a predicate, in ascending key
+     * order, without reading the indexed table.
+     *
+     * @param ipred
+     *            the predicate on the key, or null to read every entry
+     */
+    DbFileIterator entries(TransactionId tid, IndexPredicate ipred) {
+        return ipred == null ? index.iterator(tid) : index.indexIterator(tid, ipred);
+    }
+
+    /**
+     * @return true if a predicate with this operator can be answered by an
+     *         index lookup
+     */
+    public static boolean supports(Predicate.Op op) {
+        return op != Predicate.Op.LIKE && op != Predicate.Op.NOT_EQUALS;
+    }
+
+    /**
+     * Reads the tuples named by a stream of index entries from the heap file.
+     */
+    private class LookupIterator extends AbstractDbFileIterator {
+        private final TransactionId tid;
+        private final DbFileIterator entries;
+        private HeapPage page = null;
+
+        LookupIterator(TransactionId tid, DbFileIterator entries) {
+            this.tid = tid;
+            this.entries = entries;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            entries.open();
+        }
+
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            while (entries.hasNext()) {
+                Tuple entry = entries.next();
+                int pgNo = ((IntField) entry.getField(included.length + 1)).getValue();
+                int slot = ((IntField) entry.getField(included.length + 2)).getValue();
+                // consecutive entries often point into the same page
+                if (page == null || page.getId().getPageNumber() != pgNo)
+                    page = (HeapPage) Database.getBufferPool().getPage(tid,
+                            new HeapPageId(tableid, pgNo), Permissions.READ_ONLY);
+                Tuple t = page.getTuple(slot);
+                if (t != null)
+                    return t;
+            }
+            return null;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            super.close();
+            entries.rewind();
+        }
+
+        public void close() {
+            super.close();
+            entries.close();
+            page = null;
+        }
+    }
+}
@@ -7,14 +7,10 @@ import java.util.*;
  * each tuple of a table in no particular order (e.g., as they are laid out on
  * disk).
  */
-public class SeqScan implements OpIterator {
+public class SeqScan extends TableScan {
 
     private static final long serialVersionUID = 1L;
 
-    private TransactionId transactionId;
-    private int tableId;
-    private String tableAlias;
-
     private DbFileIterator dbFileIterator;
 
     /**
@@ -34,46 +30,63 @@ public class SeqScan implements OpIterator {
      *            tableAlias.null, or null.null).
      */
     public SeqScan(TransactionId tid, int tableid, String tableAlias) {
+        this(tid, tableid, tableAlias, new Predicate[0]);
+    }
+
+    /**
+     * Creates a sequential scan returning only the tuples that satisfy all
+     * of the given predicates. Scans of a HeapFile evaluate them on the page
+     * data, before the tuples are deserialized.
+     *
+     * @param predicates
+     *            predicates over the fields of the table
+     * @see #SeqScan(TransactionId, int, String)
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, Predicate[] predicates) {
         // some code goes here
-        this.transactionId = tid;
-        this.tableId = tableid;
-        this.tableAlias = tableAlias;
+        super(tid, tableid, tableAlias, predicates);
     }
 
     /**
-     * @return
-     *       return the table name of the table the operator scans. This should
-     *       be the actual name of the table in the catalog of the database
-     * */
-    public String getTableName() {
-        return null;
+     * @return the SeqScan of a HeapFile at the bottom of a chain of Filters,
+     *         or null if op is not such a chain
+     */
+    static SeqScan heapScanOf(OpIterator op) {
+        TableScan scan = scanOf(op);
+        if (!(scan instanceof SeqScan))
+            return null;
+        if (!(Database.getCatalog().getDatabaseFile(scan.getTableId()) instanceof HeapFile))
+            return null;
+        return (SeqScan) scan;
     }
 
     /**
-     * @return Return the alias of the table this operator scans.
-     * */
-    public String getAlias()
-    {
-        // some code goes here
-        return this.tableAlias;
+     * @return the predicates of a chain of Filters over a scan, including
+     *         those already pushed into the scan
+     */
+    static Predicate[] predicatesOf(OpIterator op) {
+        ArrayList<Predicate> result = new ArrayList<Predicate>();
+        while (op instanceof Filter) {
+            result.add(((Filter) op).getPredicate());
+            op = ((Filter) op).getChildren()[0];
+        }
+        if (op instanceof TableScan)
+            result.addAll(Arrays.asList(((TableScan) op).getPredicates()));
+        return result.toArray(new Predicate[0]);
     }
 
     /**
-     * Reset the tableid, and tableAlias of this operator.
-     * @param tableid
-     *            the table to scan.
-     * @param tableAlias
-     *            the alias of this table (needed by the parser); the returned
-     *            tupleDesc should have fields with name tableAlias.fieldName
-     *            (note: this class is not responsible for handling a case where
-     *            tableAlias or fieldName are null. It shouldn't crash if they
-     *            are, but the resulting name can be null.fieldName,
-     *            tableAlias.null, or null.null).
+     * Build a scan returning the same tuples as a chain of Filters over a
+     * SeqScan of a HeapFile, with the filters evaluated on the pages.
+     *
+     * @throws IllegalArgumentException
+     *             if op is not such a chain
      */
-    public void reset(int tableid, String tableAlias) {
-        // some code goes here
-        this.tableId = tableid;
-        this.tableAlias = tableAlias;
+    public static SeqScan pushDown(OpIterator op) {
+        SeqScan scan = heapScanOf(op);
+        if (scan == null)
+            throw new IllegalArgumentException("not a scan of a heap file");
+        return new SeqScan(scan.getTransactionId(), scan.getTableId(), scan.getAlias(), predicatesOf(op));
     }
 
     public SeqScan(TransactionId tid, int tableId) {
@@ -84,25 +97,18 @@ public class SeqScan implements OpIterator {
 
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
-        this.dbFileIterator = Database.getCatalog().getDatabaseFile(tableId).iterator(transactionId);
+        DbFile file = Database.getCatalog().getDatabaseFile(getTableId());
+        Predicate[] predicates = getPredicates();
+        if (file instanceof HeapFile)
+            this.dbFileIterator = ((HeapFile) file).iterator(getTransactionId(), predicates);
+        else if (predicates.length > 0)
+            this.dbFileIterator = new FilteringIterator(file.iterator(getTransactionId()),
+                    CompiledPredicate.compile(predicates, file.getTupleDesc()));
+        else
+            this.dbFileIterator = file.iterator(getTransactionId());
         this.dbFileIterator.open();
     }
 
-    /**
-     * Returns the TupleDesc with field names from the underlying HeapFile,
-     * prefixed with the tableAlias string from the constructor. This prefix
-     * becomes useful when joining tables containing a field(s) with the same
-     * name.  The alias and name should be separated with a "." character
-     * (e.g., "alias.fieldName").
-     *
-     * @return the TupleDesc with field names from the underlying HeapFile,
-     *         prefixed with the tableAlias string from the constructor.
-     */
-    public TupleDesc getTupleDesc() {
-        // some code goes here
-        return Database.getCatalog().getTupleDesc(tableId);
-    }
-
     public boolean hasNext() throws TransactionAbortedException, DbException {
         // some code goes here
         return dbFileIterator.hasNext();
@@ -119,9 +125,57 @@ public class SeqScan implements OpIterator {
         this.dbFileIterator = null;
     }
 
+    /**
+     * A scan of a BTreeFile walks the leaves left to right, so it returns the
+     * tuples in ascending key order.
+     */
+    public SortOrder getSortOrder() {
+        DbFile f = Database.getCatalog().getDatabaseFile(getTableId());
+        if (f instanceof BTreeFile)
+            return new SortOrder(((BTreeFile) f).keyField(), true);
+        return null;
+    }
+
     public void rewind() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
         this.dbFileIterator.rewind();
     }
+
+    /**
+     * Applies the pushed predicates to the tuples of a file that cannot
+     * evaluate them itself.
+     */
+    private static class FilteringIterator extends AbstractDbFileIterator {
+        private final DbFileIterator child;
+        private final CompiledPredicate predicate;
+
+        FilteringIterator(DbFileIterator child, CompiledPredicate predicate) {
+            this.child = child;
+            this.predicate = predicate;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            child.open();
+        }
+
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            while (child.hasNext()) {
+                Tuple t = child.next();
+                if (predicate.matches(t))
+                    return t;
+            }
+            return null;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            super.close();
+            child.rewind();
+        }
+
+        public void close() {
+            super.close();
+            child.close();
+        }
+    }
 }
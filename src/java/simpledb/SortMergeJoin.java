@@ -0,0 +1,168 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * SortMergeJoin is an equality Join that merges two inputs sorted on their
+ * join fields. An input whose {@link OpIterator#getSortOrder()} already
+ * delivers ascending order on its join field (for example a scan of a
+ * BTreeFile keyed on that field) is used as is; any other input is wrapped in
+ * an OrderBy.
+ * <p>
+ * Runs of equal keys on the inner side are buffered, so duplicate keys on
+ * both sides produce their full cross product. The output is in ascending
+ * order of the join key.
+ */
+public class SortMergeJoin extends Join {
+
+    private static final long serialVersionUID = 1L;
+
+    private final TupleDesc comboTD;
+
+    transient private Tuple left = null;
+    transient private Tuple right = null;
+    transient private ArrayList<Tuple> run = new ArrayList<Tuple>();
+    transient private int runPos = 0;
+    transient private Field runKey = null;
+
+    /**
+     * Constructor. Accepts two children to join and the equality predicate to
+     * join them on.
+     *
+     * @param p
+     *            The predicate to use to join the children; its operator must
+     *            be EQUALS
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        super(p, sorted(child1, p.getField1()), sorted(child2, p.getField2()));
+        if (p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException("SortMergeJoin only supports EQUALS");
+        this.comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /**
+     * @return true if it already returns tuples in ascending order of field
+     */
+    static boolean isSortedOn(OpIterator it, int field) {
+        SortOrder order = it.getSortOrder();
+        return order != null && order.satisfies(new SortOrder(field, true));
+    }
+
+    private static OpIterator sorted(OpIterator it, int field) {
+        if (isSortedOn(it, field))
+            return it;
+        return new OrderBy(field, true, it);
+    }
+
+    @Override
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    @Override
+    public SortOrder getSortOrder() {
+        return new SortOrder(joinPredicate.getField1(), true);
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        super.open();
+        resetMerge();
+    }
+
+    public void close() {
+        super.close();
+        resetMerge();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        super.rewind();
+        resetMerge();
+    }
+
+    private void resetMerge() {
+        left = null;
+        right = null;
+        run = new ArrayList<Tuple>();
+        runPos = 0;
+        runKey = null;
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        super.setChildren(new OpIterator[] {
+                sorted(children[0], joinPredicate.getField1()),
+                sorted(children[1], joinPredicate.getField2()) });
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. Both inputs are advanced in key order; when the keys meet,
+     * the run of inner tuples with that key is buffered and paired with every
+     * outer tuple carrying the same key.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        int f1 = joinPredicate.getField1();
+        int f2 = joinPredicate.getField2();
+        while (true) {
+            if (runKey != null) {
+                if (runPos < run.size())
+                    return mergeTuples(left, run.get(runPos++));
+                // this outer tuple has seen the whole run; try the next one
+                left = child1.hasNext() ? child1.next() : null;
+                if (left == null)
+                    return null;
+                if (left.getField(f1).equals(runKey)) {
+                    runPos = 0;
+                    continue;
+                }
+                runKey = null;
+                run.clear();
+            }
+
+            if (left == null) {
+                if (!child1.hasNext())
+                    return null;
+                left = child1.next();
+            }
+            if (right == null) {
+                if (!child2.hasNext())
+                    return null;
+                right = child2.next();
+            }
+
+            Field lk = left.getField(f1);
+            Field rk = right.getField(f2);
+            if (lk.compare(Predicate.Op.LESS_THAN, rk)) {
+                left = null;
+            } else if (lk.compare(Predicate.Op.GREATER_THAN, rk)) {
+                right = null;
+            } else {
+                runKey = rk;
+                while (right != null && right.getField(f2).equals(runKey)) {
+                    run.add(right);
+                    right = child2.hasNext() ? child2.next() : null;
+                }
+                runPos = 0;
+            }
+        }
+    }
+
+    private Tuple mergeTuples(Tuple outer, Tuple inner) {
+        int n1 = child1.getTupleDesc().numFields();
+        int n2 = child2.getTupleDesc().numFields();
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < n1; i++)
+            t.setField(i, outer.getField(i));
+        for (int i = 0; i < n2; i++)
+            t.setField(n1 + i, inner.getField(i));
+        return t;
+    }
+
+}
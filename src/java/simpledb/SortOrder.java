@@ -0,0 +1,141 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * SortOrder describes an ordering of tuples as a list of sort keys, each a
+ * field index with an ascending or descending direction. Earlier keys take
+ * precedence over later ones.
+ * <p>
+ * OpIterators report the order they produce through
+ * {@link OpIterator#getSortOrder()}, which lets the optimizer pick a
+ * SortMergeJoin or drop an OrderBy when its input is already sorted.
+ */
+public class SortOrder implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int[] fields;
+    private final boolean[] asc;
+
+    /**
+     * Create a single-key order.
+     *
+     * @param field
+     *            the index of the field the tuples are sorted on
+     * @param asc
+     *            true if the tuples are in ascending order
+     */
+    public SortOrder(int field, boolean asc) {
+        this(new int[] { field }, new boolean[] { asc });
+    }
+
+    /**
+     * Create a multi-key order.
+     *
+     * @param fields
+     *            the indexes of the sort fields, most significant first
+     * @param asc
+     *            the direction of each sort field
+     */
+    public SortOrder(int[] fields, boolean[] asc) {
+        if (fields.length == 0 || fields.length != asc.length)
+            throw new IllegalArgumentException("need one direction per sort field");
+        this.fields = fields.clone();
+        this.asc = asc.clone();
+    }
+
+    /**
+     * @return the number of sort keys
+     */
+    public int numKeys() {
+        return fields.length;
+    }
+
+    /**
+     * @return the field index of the ith sort key
+     */
+    public int getField(int i) {
+        return fields[i];
+    }
+
+    /**
+     * @return true if the ith sort key is ascending
+     */
+    public boolean isAscending(int i) {
+        return asc[i];
+    }
+
+    /**
+     * Returns true if tuples in this order are also in the required order,
+     * that is, if the required order is a prefix of this one.
+     *
+     * @param required
+     *            the order that is needed
+     */
+    public boolean satisfies(SortOrder required) {
+        if (required == null)
+            return true;
+        if (required.numKeys() > numKeys())
+            return false;
+        for (int i = 0; i < required.numKeys(); i++) {
+            if (required.fields[i] != fields[i] || required.asc[i] != asc[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Translate this order through a projection.
+     *
+     * @param outFields
+     *            for each output field, the input field it is copied from
+     * @return the order of the projected tuples, or null if the leading sort
+     *         key is projected away. Keys after the first one that is
+     *         projected away are dropped.
+     */
+    public SortOrder project(int[] outFields) {
+        int n = 0;
+        int[] newFields = new int[fields.length];
+        for (int k = 0; k < fields.length; k++) {
+            int out = -1;
+            for (int i = 0; i < outFields.length; i++) {
+                if (outFields[i] == fields[k]) {
+                    out = i;
+                    break;
+                }
+            }
+            if (out < 0)
+                break;
+            newFields[n++] = out;
+        }
+        if (n == 0)
+            return null;
+        return new SortOrder(Arrays.copyOf(newFields, n), Arrays.copyOf(asc, n));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof SortOrder))
+            return false;
+        SortOrder other = (SortOrder) o;
+        return Arrays.equals(fields, other.fields) && Arrays.equals(asc, other.asc);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(fields) + Arrays.hashCode(asc);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0)
+                sb.append(", ");
+            sb.append(fields[i]).append(asc[i] ? " ASC" : " DESC");
+        }
+        return sb.toString();
+    }
+}
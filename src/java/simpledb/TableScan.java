@@ -0,0 +1,144 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * TableScan is the base of the access methods that read the tuples of one
+ * table of the catalog: a {@link SeqScan} reading every tuple of its file, and
+ * the scans answering some of their predicates through an index, such as
+ * {@link IndexScan}, {@link IndexOnlyScan} and {@link HashScan}.
+ * <p>
+ * A scan returns only the tuples that satisfy all of its predicates, with
+ * fields named tableAlias.fieldName.
+ */
+public abstract class TableScan implements OpIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private TransactionId transactionId;
+    private int tableId;
+    private String tableAlias;
+    private Predicate[] predicates;
+
+    /**
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan.
+     * @param tableAlias
+     *            the alias of this table (needed by the parser)
+     * @param predicates
+     *            predicates over the fields of the table
+     */
+    protected TableScan(TransactionId tid, int tableid, String tableAlias, Predicate[] predicates) {
+        this.transactionId = tid;
+        this.tableId = tableid;
+        this.tableAlias = tableAlias;
+        this.predicates = predicates.clone();
+    }
+
+    /**
+     * @return
+     *       return the table name of the table the operator scans. This should
+     *       be the actual name of the table in the catalog of the database
+     * */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(tableId);
+    }
+
+    /**
+     * @return Return the alias of the table this operator scans.
+     * */
+    public String getAlias() {
+        return this.tableAlias;
+    }
+
+    /**
+     * @return the id of the table this operator scans
+     */
+    public int getTableId() {
+        return this.tableId;
+    }
+
+    /**
+     * @return the transaction this scan is running as a part of
+     */
+    public TransactionId getTransactionId() {
+        return this.transactionId;
+    }
+
+    /**
+     * Run the scan as a part of another transaction from the next time it is
+     * opened.
+     */
+    void setTransactionId(TransactionId tid) {
+        this.transactionId = tid;
+    }
+
+    /**
+     * @return the predicates pushed into this scan
+     */
+    public Predicate[] getPredicates() {
+        return this.predicates.clone();
+    }
+
+    /**
+     * Add a predicate to the ones evaluated by this scan, from the next time
+     * it is opened. Adding a predicate already pushed into the scan does
+     * nothing.
+     */
+    void addPredicate(Predicate p) {
+        if (Arrays.asList(predicates).contains(p))
+            return;
+        predicates = Arrays.copyOf(predicates, predicates.length + 1);
+        predicates[predicates.length - 1] = p;
+    }
+
+    /**
+     * Reset the tableid, and tableAlias of this operator.
+     * @param tableid
+     *            the table to scan.
+     * @param tableAlias
+     *            the alias of this table (needed by the parser); the returned
+     *            tupleDesc should have fields with name tableAlias.fieldName
+     *            (note: this class is not responsible for handling a case where
+     *            tableAlias or fieldName are null. It shouldn't crash if they
+     *            are, but the resulting name can be null.fieldName,
+     *            tableAlias.null, or null.null).
+     */
+    public void reset(int tableid, String tableAlias) {
+        this.tableId = tableid;
+        this.tableAlias = tableAlias;
+    }
+
+    /**
+     * @return the scan at the bottom of a chain of Filters, or null if op is
+     *         not such a chain
+     */
+    static TableScan scanOf(OpIterator op) {
+        while (op instanceof Filter)
+            op = ((Filter) op).getChildren()[0];
+        return op instanceof TableScan ? (TableScan) op : null;
+    }
+
+    /**
+     * Returns the TupleDesc with field names from the underlying file,
+     * prefixed with the tableAlias string from the constructor. This prefix
+     * becomes useful when joining tables containing a field(s) with the same
+     * name.  The alias and name should be separated with a "." character
+     * (e.g., "alias.fieldName").
+     *
+     * @return the TupleDesc with field names from the underlying file,
+     *         prefixed with the tableAlias string from the constructor.
+     */
+    public TupleDesc getTupleDesc() {
+        TupleDesc td = Database.getCatalog().getTupleDesc(tableId);
+        String[] names = new String[td.numFields()];
+        Type[] types = new Type[td.numFields()];
+        for (int i = 0; i < td.numFields(); i++) {
+            names[i] = tableAlias + "." + td.getFieldName(i);
+            types[i] = td.getFieldType(i);
+        }
+        return new TupleDesc(types, names);
+    }
+}
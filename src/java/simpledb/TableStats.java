@@ -4,6 +4,7 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * TableStats represents statistics (e.g., histograms) about base tables in a
@@ -17,12 +18,23 @@ public class TableStats {
 
     static final int IOCOSTPERPAGE = 1000;
 
+    /** changed whenever statistics are replaced, so cached plans can tell they are stale */
+    private static final AtomicInteger version = new AtomicInteger();
+
+    /**
+     * @return a number that changes whenever any table's statistics change
+     */
+    public static int getVersion() {
+        return version.get();
+    }
+
     public static TableStats getTableStats(String tablename) {
         return statsMap.get(tablename);
     }
 
     public static void setTableStats(String tablename, TableStats stats) {
         statsMap.put(tablename, stats);
+        version.incrementAndGet();
     }
     
     public static void setStatsMap(HashMap<String,TableStats> s)
@@ -31,6 +43,7 @@ public class TableStats {
             java.lang.reflect.Field statsMapF = TableStats.class.getDeclaredField("statsMap");
             statsMapF.setAccessible(true);
             statsMapF.set(null, s);
+            version.incrementAndGet();
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
         } catch (SecurityException e) {
@@ -3,7 +3,6 @@ package simpledb;
 import java.io.Serializable;
 import java.util.Arrays;
 import java.util.Iterator;
-import java.util.LinkedList;
 
 /**
  * Tuple maintains information about the contents of a tuple. Tuples have a
@@ -56,7 +55,7 @@ public class Tuple implements Serializable {
         this.recordId = rid;
     }
 
-    private LinkedList<Field> fields;
+    private Field[] fields;
 
     /**
      * Change the value of the ith field of this tuple.
@@ -67,10 +66,10 @@ public class Tuple implements Serializable {
     public void setField(int i, Field f) {
         // some code goes here
         if (fields == null) {
-            fields = new LinkedList<>(Arrays.asList(new Field[tupleDesc.getSize()]));
+            fields = new Field[tupleDesc.numFields()];
         }
-        if (i >= 0 && i < fields.size()) {
-            fields.set(i, f);
+        if (i >= 0 && i < fields.length) {
+            fields[i] = f;
         }
     }
 
@@ -80,8 +79,8 @@ public class Tuple implements Serializable {
      */
     public Field getField(int i) {
         // some code goes here
-        if (i >= 0 && i < fields.size()) {
-            return fields.get(i);
+        if (fields != null && i >= 0 && i < fields.length) {
+            return fields[i];
         }
         return null;
     }
@@ -99,10 +98,10 @@ public class Tuple implements Serializable {
         // some code goes here
 //        throw new UnsupportedOperationException("Implement this");
         StringBuilder builder = new StringBuilder();
-        Iterator<Field> it = fields.iterator();
-        builder.append(it.next());
-        while (it.hasNext()) {
-            builder.append("\t").append(it.next());
+        for (int i = 0; i < tupleDesc.numFields(); i++) {
+            if (i > 0)
+                builder.append("\t");
+            builder.append(getField(i));
         }
         return builder.toString();
     }
@@ -115,7 +114,7 @@ public class Tuple implements Serializable {
         if (fields == null) {
             return null;
         } else {
-            return fields.iterator();
+            return Arrays.asList(fields).iterator();
         }
     }
 
@@ -155,6 +155,22 @@ public class TupleDesc implements Serializable {
         return sum;
     }
 
+    /**
+     * @param i index of the field. It must be a valid index.
+     * @return the offset in bytes of the ith field from the start of a
+     *         serialized tuple
+     */
+    public int getFieldOffset(int i) throws NoSuchElementException {
+        if (i < 0 || i >= numFields()) {
+            throw new NoSuchElementException();
+        }
+        int offset = 0;
+        for (int j = 0; j < i; j++) {
+            offset += getFieldType(j).getLen();
+        }
+        return offset;
+    }
+
     /**
      * Merge two TupleDescs into one, with td1.numFields + td2.numFields fields,
      * with the first td1.numFields coming from td1 and the remaining from td2.
@@ -0,0 +1,221 @@
+package simpledb;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.NoSuchElementException;
+
+/**
+ * TupleSpillFile is an append-only temporary file of tuples used by operators
+ * that have to spill intermediate results to disk (hash join partitions, sort
+ * runs, aggregation partitions).
+ * <p>
+ * Tuples are written in page-sized blocks of BufferPool.getPageSize() bytes.
+ * Each block starts with the number of tuples it holds, followed by the
+ * fixed-size serialized tuples, the same per-field format HeapPage uses. The
+ * file is deleted when it is discarded or when the JVM exits.
+ * <p>
+ * Usage: add() any number of tuples, then iterator() to read them back in
+ * insertion order. Adding after the first iterator() call is not allowed.
+ */
+public class TupleSpillFile {
+
+    private final TupleDesc td;
+    private final File file;
+    private final int tuplesPerPage;
+    private final int pageSize;
+
+    private DataOutputStream out;
+    private ByteArrayOutputStream pageBuf;
+    private DataOutputStream pageOut;
+    private int pageCount = 0;
+    private int numTuples = 0;
+    private int numPages = 0;
+
+    /**
+     * Create an empty spill file for tuples of the given schema.
+     *
+     * @param td the schema of the tuples that will be spilled
+     * @throws DbException if the temp file could not be created or a tuple
+     *         does not fit in a page
+     */
+    public TupleSpillFile(TupleDesc td) throws DbException {
+        this.td = td;
+        this.pageSize = BufferPool.getPageSize();
+        this.tuplesPerPage = (pageSize - 4) / td.getSize();
+        if (tuplesPerPage <= 0)
+            throw new DbException("tuple of " + td.getSize() + " bytes does not fit in a spill page");
+        try {
+            file = File.createTempFile("simpledb-spill", ".tmp");
+            file.deleteOnExit();
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), pageSize));
+        } catch (IOException e) {
+            throw new DbException("could not create spill file: " + e.getMessage());
+        }
+        pageBuf = new ByteArrayOutputStream(pageSize);
+        pageOut = new DataOutputStream(pageBuf);
+    }
+
+    /**
+     * @return the schema of the spilled tuples
+     */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return the number of tuples added to this file
+     */
+    public int numTuples() {
+        return numTuples;
+    }
+
+    /**
+     * @return the number of pages written so far
+     */
+    public int numPages() {
+        return numPages;
+    }
+
+    /**
+     * Append a tuple to the file.
+     */
+    public void add(Tuple t) throws DbException {
+        if (out == null)
+            throw new DbException("spill file is no longer writable");
+        try {
+            for (int i = 0; i < td.numFields(); i++)
+                t.getField(i).serialize(pageOut);
+            numTuples++;
+            if (++pageCount == tuplesPerPage)
+                flushPage();
+        } catch (IOException e) {
+            throw new DbException("could not write spill file: " + e.getMessage());
+        }
+    }
+
+    private void flushPage() throws IOException {
+        if (pageCount == 0)
+            return;
+        pageOut.flush();
+        out.writeInt(pageCount);
+        pageBuf.writeTo(out);
+        int pad = pageSize - 4 - pageBuf.size();
+        for (int i = 0; i < pad; i++)
+            out.write(0);
+        pageBuf.reset();
+        pageCount = 0;
+        numPages++;
+    }
+
+    private void finishWriting() throws DbException {
+        if (out == null)
+            return;
+        try {
+            flushPage();
+            out.close();
+        } catch (IOException e) {
+            throw new DbException("could not write spill file: " + e.getMessage());
+        }
+        out = null;
+        pageBuf = null;
+        pageOut = null;
+    }
+
+    /**
+     * Seal the file and return an iterator over its tuples in insertion
+     * order. The file can be iterated any number of times.
+     */
+    public OpIterator iterator() throws DbException {
+        finishWriting();
+        return new SpillIterator();
+    }
+
+    /**
+     * Remove the file from disk. The spill file can not be used afterwards.
+     */
+    public void discard() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // ignored, the file is going away anyway
+            }
+            out = null;
+        }
+        file.delete();
+    }
+
+    private class SpillIterator implements OpIterator {
+
+        private static final long serialVersionUID = 1L;
+
+        private DataInputStream in;
+        private byte[] page = new byte[pageSize];
+        private DataInputStream pageIn;
+        private int remainingInPage = 0;
+        private int remainingPages = 0;
+
+        public void open() throws DbException {
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), pageSize));
+            } catch (FileNotFoundException e) {
+                throw new DbException("spill file is gone: " + e.getMessage());
+            }
+            remainingPages = numPages;
+            remainingInPage = 0;
+        }
+
+        public boolean hasNext() throws DbException {
+            if (in == null)
+                throw new IllegalStateException("iterator not open");
+            if (remainingInPage > 0)
+                return true;
+            if (remainingPages == 0)
+                return false;
+            try {
+                in.readFully(page);
+                pageIn = new DataInputStream(new ByteArrayInputStream(page));
+                remainingInPage = pageIn.readInt();
+                remainingPages--;
+            } catch (IOException e) {
+                throw new DbException("could not read spill file: " + e.getMessage());
+            }
+            return remainingInPage > 0;
+        }
+
+        public Tuple next() throws DbException, NoSuchElementException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Tuple t = new Tuple(td);
+            try {
+                for (int i = 0; i < td.numFields(); i++)
+                    t.setField(i, td.getFieldType(i).parse(pageIn));
+            } catch (ParseException e) {
+                throw new DbException("corrupt spill file: " + e.getMessage());
+            }
+            remainingInPage--;
+            return t;
+        }
+
+        public void rewind() throws DbException {
+            close();
+            open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public void close() {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing left to do with a read-only stream
+                }
+            }
+            in = null;
+            pageIn = null;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * ZoneMap records, for every page of a HeapFile, the number of tuples on the
+ * page and the minimum and maximum of each int column, so that scans with
+ * pushed-down predicates can skip pages that cannot hold a match.
+ * <p>
+ * The map describes the pages as they are on disk. It is kept in memory,
+ * updated every time the HeapFile writes a page, and saved to a sidecar file
+ * next to the heap file (the same name with ".zm" appended) when the buffer
+ * pool flushes all of its pages. The sidecar records whether it was saved
+ * since the last page write: a sidecar that is open, because its map has
+ * pages written since or was never saved, may be out of date and is rebuilt
+ * by reading the heap file, as is a missing one. Writing the heap file some
+ * other way, as HeapFileEncoder does, must delete the sidecar. Pages the map
+ * does not cover yet can never be skipped, and callers must not skip a page
+ * whose BufferPool copy has unwritten changes, or that another transaction
+ * may be changing.
+ * <p>
+ * Sidecar layout: the int MAGIC, the number of int columns, the int state
+ * (CLOSED or OPEN) and the number of pages, then one record per page holding
+ * the tuple count and the min and max of each int column.
+ */
+public class ZoneMap {
+
+    private static final int MAGIC = 0x5A4D4150;
+    private static final int HEADER_SIZE = 16;
+    private static final int STATE_OFFSET = 8;
+    /** state of a sidecar saved since the last page write */
+    private static final int CLOSED = 0;
+    /** state of a sidecar that may be out of date */
+    private static final int OPEN = 1;
+    /** tuple count of a page the map knows nothing about */
+    private static final int UNKNOWN = -1;
+
+    private final HeapFile heapFile;
+    private final File sidecar;
+    /** the position of each field among the int columns, or -1 */
+    private final int[] column;
+    private final int numIntColumns;
+    private final int recordInts;
+
+    // guarded by this
+    private int numPages = 0;
+    private int[] records = new int[0];
+    /** whether the sidecar is marked open */
+    private boolean open = false;
+
+    /**
+     * Load the zone map of a heap file from its sidecar, rebuilding it if the
+     * sidecar is missing or may be out of date.
+     */
+    ZoneMap(HeapFile heapFile) {
+        this.heapFile = heapFile;
+        this.sidecar = sidecarOf(heapFile.getFile());
+        TupleDesc td = heapFile.getTupleDesc();
+        column = new int[td.numFields()];
+        int n = 0;
+        for (int i = 0; i < column.length; i++)
+            column[i] = td.getFieldType(i) == Type.INT_TYPE ? n++ : -1;
+        numIntColumns = n;
+        recordInts = 1 + 2 * n;
+        if (!load())
+            rebuild();
+    }
+
+    /**
+     * @return the sidecar file holding the zone map of a heap file
+     */
+    public static File sidecarOf(File heapFile) {
+        return new File(heapFile.getPath() + ".zm");
+    }
+
+    private boolean load() {
+        if (!sidecar.exists())
+            return false;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar)))) {
+            if (in.readInt() != MAGIC || in.readInt() != numIntColumns || in.readInt() != CLOSED)
+                return false;
+            int pages = in.readInt();
+            if (pages != heapFile.numPages()
+                    || sidecar.length() != HEADER_SIZE + 4L * pages * recordInts)
+                return false;
+            int[] r = new int[pages * recordInts];
+            for (int i = 0; i < r.length; i++)
+                r[i] = in.readInt();
+            records = r;
+            numPages = pages;
+        } catch (IOException e) {
+            return false;
+        }
+        // pages may be written before the map is saved again
+        try {
+            markOpen();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Read every page of the heap file from disk and write a new, open
+     * sidecar.
+     */
+    private void rebuild() {
+        int pages = heapFile.numPages();
+        records = new int[pages * recordInts];
+        numPages = pages;
+        for (int p = 0; p < pages; p++) {
+            HeapPage page = (HeapPage) heapFile.readPage(new HeapPageId(heapFile.getId(), p));
+            if (page == null)
+                Arrays.fill(records, p * recordInts, (p + 1) * recordInts, UNKNOWN);
+            else
+                summarize(page, records, p * recordInts);
+        }
+        try {
+            write(OPEN);
+        } catch (IOException e) {
+            // the map still works from memory; the next load rebuilds it
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Write the whole map to the sidecar in the given state.
+     */
+    private void write(int state) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(sidecar)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(numIntColumns);
+            out.writeInt(state);
+            out.writeInt(numPages);
+            for (int v : records)
+                out.writeInt(v);
+        }
+        open = state == OPEN;
+    }
+
+    /**
+     * Mark the sidecar as possibly out of date.
+     */
+    private void markOpen() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(sidecar, "rw")) {
+            raf.seek(STATE_OFFSET);
+            raf.writeInt(OPEN);
+        }
+        open = true;
+    }
+
+    /**
+     * Write the tuple count and per-column ranges of a page into r at off.
+     */
+    private void summarize(HeapPage page, int[] r, int off) {
+        int count = 0;
+        for (int c = 0; c < numIntColumns; c++) {
+            r[off + 1 + 2 * c] = Integer.MAX_VALUE;
+            r[off + 2 + 2 * c] = Integer.MIN_VALUE;
+        }
+        Iterator<Tuple> it = page.iterator();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            count++;
+            for (int i = 0; i < column.length; i++) {
+                int c = column[i];
+                if (c < 0)
+                    continue;
+                int v = ((IntField) t.getField(i)).getValue();
+                r[off + 1 + 2 * c] = Math.min(r[off + 1 + 2 * c], v);
+                r[off + 2 + 2 * c] = Math.max(r[off + 2 + 2 * c], v);
+            }
+        }
+        r[off] = count;
+    }
+
+    /**
+     * Record the contents of a page that has just been written to the heap
+     * file. Only the first write since the map was saved touches the
+     * sidecar, to mark it open.
+     */
+    synchronized void update(HeapPage page) throws IOException {
+        if (!open)
+            markOpen();
+        int p = page.getId().getPageNumber();
+        if (p >= numPages) {
+            int[] grown = Arrays.copyOf(records, (p + 1) * recordInts);
+            Arrays.fill(grown, numPages * recordInts, grown.length, UNKNOWN);
+            records = grown;
+            numPages = p + 1;
+        }
+        summarize(page, records, p * recordInts);
+    }
+
+    /**
+     * Save the map to the sidecar, which a later load can then use instead of
+     * reading the heap file. Pages of the heap file must not be written
+     * meanwhile.
+     */
+    synchronized void save() throws IOException {
+        if (open)
+            write(CLOSED);
+    }
+
+    /**
+     * @return the number of tuples on a page as of its last write, or -1 if
+     *         the map does not cover the page
+     */
+    public synchronized int tupleCount(int pageNo) {
+        return pageNo < numPages ? records[pageNo * recordInts] : UNKNOWN;
+    }
+
+    /**
+     * @return false if no tuple of the page, as it is on disk, can satisfy
+     *         all of the predicates
+     */
+    public synchronized boolean mayMatch(int pageNo, Predicate[] predicates) {
+        if (pageNo >= numPages)
+            return true;
+        int off = pageNo * recordInts;
+        if (records[off] == UNKNOWN)
+            return true;
+        if (records[off] == 0)
+            return false;
+        for (Predicate p : predicates) {
+            int c = p.getField() < column.length ? column[p.getField()] : -1;
+            if (c < 0 || !(p.getOperand() instanceof IntField))
+                continue;
+            int min = records[off + 1 + 2 * c];
+            int max = records[off + 2 + 2 * c];
+            int v = ((IntField) p.getOperand()).getValue();
+            boolean possible;
+            switch (p.getOp()) {
+            case EQUALS:
+            case LIKE:
+                possible = min <= v && v <= max;
+                break;
+            case NOT_EQUALS:
+                possible = min != v || max != v;
+                break;
+            case GREATER_THAN:
+                possible = max > v;
+                break;
+            case GREATER_THAN_OR_EQ:
+                possible = max >= v;
+                break;
+            case LESS_THAN:
+                possible = min < v;
+                break;
+            case LESS_THAN_OR_EQ:
+                possible = min <= v;
+                break;
+            default:
+                possible = true;
+            }
+            if (!possible)
+                return false;
+        }
+        return true;
+    }
+}
@@ -176,6 +176,30 @@ public class AggregateTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(min, op);
   }
 
+  /**
+   * Unit test for Aggregate.getNext() computing several aggregates grouped
+   * by two fields
+   */
+  @Test public void multipleAggregatesAndGroups() throws Exception {
+    OpIterator scan = TestUtil.createTupleList(3,
+        new int[] { 1, 1, 2,
+                    1, 1, 4,
+                    1, 2, 6,
+                    3, 1, 2,
+                    3, 1, 8 });
+    Aggregate op = new Aggregate(scan, new int[] { 2, 2, 2 }, new int[] { 0, 1 },
+        new Aggregator.Op[] { Aggregator.Op.COUNT, Aggregator.Op.SUM, Aggregator.Op.MAX });
+    assertEquals(Utility.getTupleDesc(5), op.getTupleDesc());
+    assertEquals(2, op.groupFields().length);
+    OpIterator expected = TestUtil.createTupleList(5,
+        new int[] { 1, 1, 2, 6, 4,
+                    1, 2, 1, 6, 6,
+                    3, 1, 2, 10, 8 });
+    op.open();
+    expected.open();
+    TestUtil.matchAllTuples(expected, op);
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,208 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeBulkLoaderTest extends SimpleDbTestBase {
+
+	@After
+	public void tearDown() throws Exception {
+		// set the page size back to the default
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	/**
+	 * @return an empty B+ tree over the schema of f, keyed on field 0, added to the catalog
+	 */
+	private BTreeFile emptyIndex(HeapFile f) throws Exception {
+		File file = File.createTempFile("bulk", ".dat");
+		file.deleteOnExit();
+		BTreeFile bf = new BTreeFile(file, 0, f.getTupleDesc());
+		Database.getCatalog().addTable(bf);
+		return bf;
+	}
+
+	/**
+	 * Check that bf is a valid tree holding exactly the given tuples, in key order,
+	 * and that every key can be found through the index
+	 */
+	private void checkContents(BTreeFile bf, ArrayList<ArrayList<Integer>> tuples) throws Exception {
+		TransactionId tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+
+		ArrayList<Integer> keys = new ArrayList<Integer>();
+		for(ArrayList<Integer> t : tuples)
+			keys.add(t.get(0));
+		Collections.sort(keys);
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		int i = 0;
+		while(it.hasNext()) {
+			assertEquals((int) keys.get(i), ((IntField) it.next().getField(0)).getValue());
+			i++;
+		}
+		it.close();
+		assertEquals(keys.size(), i);
+
+		for(int j = 0; j < keys.size(); j += 97) {
+			it = bf.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, new IntField(keys.get(j))));
+			it.open();
+			assertTrue(it.hasNext());
+			it.close();
+		}
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * A tree several levels deep, loaded by several workers with little memory
+	 */
+	@Test
+	public void load() throws Exception {
+		BufferPool.setPageSize(1024);
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		HeapFile f = SystemTestUtil.createRandomHeapFile(2, 20000, null, tuples);
+		Database.getCatalog().addTable(f);
+		BTreeFile bf = emptyIndex(f);
+
+		TransactionId tid = new TransactionId();
+		assertEquals(tuples.size(), new BTreeBulkLoader(1.0, 10, 4).load(tid, f, bf));
+		Database.getBufferPool().transactionComplete(tid);
+		checkContents(bf, tuples);
+
+		// leaves are filled to capacity, so inserting into one splits it
+		int maxTuples = BTreeUtility.getNumTuplesPerPage(2);
+		assertTrue(bf.numPages() <= (tuples.size() + maxTuples - 1) / maxTuples + 20);
+		tid = new TransactionId();
+		Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(new int[] { 7, 7 }));
+		Database.getBufferPool().transactionComplete(tid);
+		tuples.add(new ArrayList<Integer>(Arrays.asList(7, 7)));
+		checkContents(bf, tuples);
+	}
+
+	/**
+	 * Leaving room on the pages takes more of them; tables which are empty, or which
+	 * fit on one page, give a tree with only a root leaf
+	 */
+	@Test
+	public void fillFactorAndSmallTables() throws Exception {
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		HeapFile f = SystemTestUtil.createRandomHeapFile(2, 5000, null, tuples);
+		Database.getCatalog().addTable(f);
+		BTreeFile full = emptyIndex(f);
+		BTreeFile sparse = emptyIndex(f);
+		TransactionId tid = new TransactionId();
+		new BTreeBulkLoader().load(tid, f, full);
+		new BTreeBulkLoader(0.7, BTreeBulkLoader.DEFAULT_MEMORY_PAGES, 2).load(tid, f, sparse);
+		Database.getBufferPool().transactionComplete(tid);
+		checkContents(full, tuples);
+		checkContents(sparse, tuples);
+		assertTrue(sparse.numPages() > full.numPages());
+
+		for(int rows : new int[] { 0, 1, 100 }) {
+			f = SystemTestUtil.createRandomHeapFile(2, rows, null, tuples);
+			Database.getCatalog().addTable(f);
+			BTreeFile bf = emptyIndex(f);
+			tid = new TransactionId();
+			assertEquals(rows, new BTreeBulkLoader().load(tid, f, bf));
+			Database.getBufferPool().transactionComplete(tid);
+			assertEquals(1, bf.numPages());
+			checkContents(bf, tuples);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void badFillFactor() {
+		new BTreeBulkLoader(0.3, BTreeBulkLoader.DEFAULT_MEMORY_PAGES, 1);
+	}
+
+	/**
+	 * CREATE INDEX builds a secondary index on a heap file table and adds it to the catalog
+	 */
+	@Test
+	public void createIndex() throws Exception {
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		HeapFile f = SystemTestUtil.createRandomHeapFile(2, 3000, null, tuples, "c");
+		Database.getCatalog().addTable(f, "t");
+		String name = "t_c1_" + System.nanoTime();
+		File file = new File(f.getFile().getAbsoluteFile().getParentFile(), name + ".dat");
+		file.deleteOnExit();
+
+		new Parser().processNextStatement("CREATE INDEX " + name + " ON t (c1);");
+		assertTrue(file.exists());
+		SecondaryIndex index = Database.getCatalog().getIndex(f.getId(), 1);
+		assertNotNull(index);
+		assertEquals(Database.getCatalog().getTableId(name), index.getIndexFile().getId());
+
+		// every tuple has an entry, in order of c1, pointing at a tuple with that c1
+		TransactionId tid = new TransactionId();
+		BTreeChecker.checkRep(index.getIndexFile(), tid, new HashMap<PageId, Page>(), true);
+		DbFileIterator it = index.iterator(tid, new IndexPredicate(Predicate.Op.GREATER_THAN_OR_EQ,
+				new IntField(Integer.MIN_VALUE)));
+		it.open();
+		int n = 0;
+		int prev = Integer.MIN_VALUE;
+		while(it.hasNext()) {
+			int key = ((IntField) it.next().getField(1)).getValue();
+			assertTrue(key >= prev);
+			prev = key;
+			n++;
+		}
+		it.close();
+		Database.getBufferPool().transactionComplete(tid);
+		assertEquals(tuples.size(), n);
+
+		// an unknown column leaves no index behind
+		String bad = name + "_bad";
+		new Parser().processNextStatement("CREATE INDEX " + bad + " ON t (c9);");
+		assertFalse(new File(file.getParentFile(), bad + ".dat").exists());
+		try {
+			Database.getCatalog().getTableId(bad);
+			fail("index added for an unknown column");
+		} catch(NoSuchElementException e) {
+			// expected
+		}
+
+		// a covering index holds the included columns after the key
+		String covering = name + "_covering";
+		new File(file.getParentFile(), covering + ".dat").deleteOnExit();
+		new Parser().processNextStatement("CREATE INDEX " + covering + " ON t (c1) INCLUDE (c0);");
+		assertEquals(2, Database.getCatalog().getIndexes(f.getId()).size());
+		SecondaryIndex index2 = Database.getCatalog().getIndexes(f.getId()).get(1);
+		assertArrayEquals(new int[] { 1, 0 }, index2.getFields());
+		assertEquals(tuples.size(), count(index2));
+	}
+
+	/**
+	 * @return the number of entries of an index
+	 */
+	private static int count(SecondaryIndex index) throws Exception {
+		TransactionId tid = new TransactionId();
+		DbFileIterator it = index.getIndexFile().iterator(tid);
+		it.open();
+		int n = 0;
+		while(it.hasNext()) {
+			it.next();
+			n++;
+		}
+		it.close();
+		Database.getBufferPool().transactionComplete(tid);
+		return n;
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeBulkLoaderTest.class);
+	}
+}
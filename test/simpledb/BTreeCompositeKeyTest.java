@@ -0,0 +1,206 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.Predicate.Op;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeCompositeKeyTest extends SimpleDbTestBase {
+
+	@After
+	public void tearDown() throws Exception {
+		Database.reset();
+	}
+
+	/**
+	 * @return an empty B+ tree over the given schema, keyed on the given fields, added to the catalog
+	 */
+	private BTreeFile emptyIndex(TupleDesc td, int[] keyFields) throws Exception {
+		File file = File.createTempFile("composite", ".dat");
+		file.deleteOnExit();
+		BTreeFile bf = new BTreeFile(file, keyFields, td);
+		Database.getCatalog().addTable(bf);
+		return bf;
+	}
+
+	private static Field string(String s) {
+		return new StringField(s, Type.STRING_LEN);
+	}
+
+	private static Field composite(int... values) {
+		Field[] fields = new Field[values.length];
+		for(int i = 0; i < values.length; i++)
+			fields[i] = new IntField(values[i]);
+		return new CompositeField(fields);
+	}
+
+	private static int count(DbFileIterator it) throws Exception {
+		it.open();
+		int n = 0;
+		while(it.hasNext()) {
+			it.next();
+			n++;
+		}
+		it.close();
+		return n;
+	}
+
+	/**
+	 * Separators are the shortest keys between the keys on either side
+	 */
+	@Test
+	public void separator() {
+		assertEquals(string("b"), BTreeFile.separator(string("apple"), string("banana")));
+		assertEquals(string("abz"), BTreeFile.separator(string("abcd"), string("abzz")));
+		assertEquals(string("ab"), BTreeFile.separator(string("a"), string("ab")));
+		assertEquals(string("same"), BTreeFile.separator(string("same"), string("same")));
+		assertEquals(new IntField(7), BTreeFile.separator(new IntField(3), new IntField(7)));
+		assertEquals(composite(2), BTreeFile.separator(composite(1, 5), composite(2, 3)));
+		assertEquals(composite(1, 6), BTreeFile.separator(composite(1, 5, 9), composite(1, 6, 0)));
+		assertEquals(composite(1, 5), BTreeFile.separator(composite(1, 5), composite(1, 5)));
+
+		// a prefix sorts before the keys that extend it
+		assertTrue(composite(2).compare(Op.GREATER_THAN, composite(1, 5)));
+		assertTrue(composite(2).compare(Op.LESS_THAN, composite(2, 3)));
+	}
+
+	/**
+	 * Truncated string separators let one internal page index many more leaves
+	 * than keys of full size would fit on it
+	 */
+	@Test
+	public void stringKeys() throws Exception {
+		TupleDesc td = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE });
+		BTreeFile bf = emptyIndex(td, new int[] { 0 });
+		Random rand = new Random(46);
+		ArrayList<String> keys = new ArrayList<String>();
+		ArrayList<Tuple> inserted = new ArrayList<Tuple>();
+		TransactionId tid = new TransactionId();
+		for(int i = 0; i < 3000; i++) {
+			StringBuilder sb = new StringBuilder();
+			for(int j = 0; j < 20; j++)
+				sb.append((char) ('a' + rand.nextInt(26)));
+			Tuple t = new Tuple(td);
+			t.setField(0, string(sb.toString()));
+			t.setField(1, new IntField(i));
+			Database.getBufferPool().insertTuple(tid, bf.getId(), t);
+			keys.add(sb.toString());
+			inserted.add(t);
+			if(i % 10 == 9) {
+				Database.getBufferPool().transactionComplete(tid);
+				tid = new TransactionId();
+			}
+		}
+		Database.getBufferPool().transactionComplete(tid);
+
+		tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		BTreeRootPtrPage rootPtr = bf.getRootPtrPage(tid, new HashMap<PageId, Page>());
+		BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(tid,
+				rootPtr.getRootId(), Permissions.READ_ONLY);
+		assertEquals(BTreePageId.LEAF, root.iterator().next().getLeftChild().pgcateg());
+		assertTrue(root.getNumEntries() > root.getMaxEntries());
+
+		Collections.sort(keys);
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		for(String key : keys)
+			assertEquals(key, ((StringField) it.next().getField(0)).getValue());
+		assertFalse(it.hasNext());
+		it.close();
+		for(int i = 0; i < keys.size(); i += 97)
+			assertEquals(1, count(bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, string(keys.get(i))))));
+		Database.getBufferPool().transactionComplete(tid);
+
+		// deletes steal and merge pages with keys of different sizes
+		for(int i = 0; i < 2000; i++) {
+			if(i % 10 == 0)
+				tid = new TransactionId();
+			// tuples move between pages, so find each one where it is now
+			DbFileIterator found = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, inserted.get(i).getField(0)));
+			found.open();
+			Database.getBufferPool().deleteTuple(tid, found.next());
+			found.close();
+			if(i % 10 == 9)
+				Database.getBufferPool().transactionComplete(tid);
+		}
+		tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		assertEquals(1000, count(bf.iterator(tid)));
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * A tree keyed on two fields holds its tuples in the order of both, and
+	 * answers searches on the first field alone
+	 */
+	@Test
+	public void compositeKeys() throws Exception {
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		HeapFile f = SystemTestUtil.createRandomHeapFile(3, 5000, 100, null, tuples);
+		Database.getCatalog().addTable(f);
+		BTreeFile bf = emptyIndex(f.getTupleDesc(), new int[] { 1, 0 });
+		TransactionId tid = new TransactionId();
+		assertEquals(5000, new BTreeBulkLoader().load(tid, f, bf));
+		Database.getBufferPool().transactionComplete(tid);
+
+		tid = new TransactionId();
+		for(int i = 0; i < 300; i++) {
+			Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(new int[] { i, 42, i }));
+			tuples.add(new ArrayList<Integer>(Arrays.asList(i, 42, i)));
+		}
+		Database.getBufferPool().transactionComplete(tid);
+
+		tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		int prev1 = Integer.MIN_VALUE;
+		int prev0 = Integer.MIN_VALUE;
+		int n = 0;
+		while(it.hasNext()) {
+			Tuple t = it.next();
+			int c1 = ((IntField) t.getField(1)).getValue();
+			int c0 = ((IntField) t.getField(0)).getValue();
+			assertTrue(c1 > prev1 || (c1 == prev1 && c0 >= prev0));
+			prev1 = c1;
+			prev0 = c0;
+			n++;
+		}
+		it.close();
+		assertEquals(tuples.size(), n);
+
+		int equal = 0, less = 0, greater = 0, both = 0;
+		for(ArrayList<Integer> t : tuples) {
+			if(t.get(1) == 42) {
+				equal++;
+				if(t.get(0) == 7)
+					both++;
+			}
+			else if(t.get(1) < 42)
+				less++;
+			else
+				greater++;
+		}
+		assertEquals(equal, count(bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(42)))));
+		assertEquals(less, count(bf.indexIterator(tid, new IndexPredicate(Op.LESS_THAN, new IntField(42)))));
+		assertEquals(greater, count(bf.indexIterator(tid, new IndexPredicate(Op.GREATER_THAN, new IntField(42)))));
+		assertEquals(both, count(bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, composite(42, 7)))));
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeCompositeKeyTest.class);
+	}
+}
@@ -0,0 +1,220 @@
+package simpledb;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.Predicate.Op;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeCompressedLeafTest extends SimpleDbTestBase {
+
+	@After
+	public void tearDown() throws Exception {
+		Database.reset();
+	}
+
+	/**
+	 * @return an empty leaf page of a table with the given schema, keyed on field 0
+	 */
+	private static BTreeLeafPage emptyPage(TupleDesc td, boolean compressed) throws Exception {
+		int tableid = new Random().nextInt(1 << 20) + 1;
+		Database.getCatalog().addTable(new SkeletonFile(tableid, td), SystemTestUtil.getUUID());
+		return new BTreeLeafPage(new BTreePageId(tableid, 1, BTreePageId.LEAF),
+				BTreePage.createEmptyPageData(), new int[] { 0 }, compressed);
+	}
+
+	private static Tuple tuple(TupleDesc td, Field... fields) {
+		Tuple t = new Tuple(td);
+		for(int i = 0; i < fields.length; i++)
+			t.setField(i, fields[i]);
+		return t;
+	}
+
+	/**
+	 * Insert copies of the given tuples until the page is full
+	 * @return the number of tuples inserted
+	 */
+	private static int fill(BTreeLeafPage page, List<Tuple> tuples) throws Exception {
+		int n = 0;
+		while(page.getNumEmptySlots() > 0 && n < tuples.size()) {
+			Tuple t = tuples.get(n);
+			Tuple copy = new Tuple(t.getTupleDesc());
+			for(int i = 0; i < copy.getTupleDesc().numFields(); i++)
+				copy.setField(i, t.getField(i));
+			page.insertTuple(copy);
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * A page read back from its data holds the same tuples in the same slots,
+	 * and writes the same data
+	 */
+	private static void checkRoundTrip(BTreeLeafPage page) throws Exception {
+		byte[] data = page.getPageData();
+		BTreeLeafPage read = new BTreeLeafPage(page.getId(), data, new int[] { 0 }, true);
+		Iterator<Tuple> expected = page.iterator();
+		Iterator<Tuple> actual = read.iterator();
+		while(expected.hasNext()) {
+			Tuple e = expected.next();
+			Tuple a = actual.next();
+			assertEquals(e.toString(), a.toString());
+			assertEquals(e.getRecordId(), a.getRecordId());
+		}
+		assertFalse(actual.hasNext());
+		assertEquals(page.getNumEmptySlots(), read.getNumEmptySlots());
+		assertArrayEquals(data, read.getPageData());
+	}
+
+	/**
+	 * Tuples sharing a key store it once, so a compressed page holds many more of them
+	 */
+	@Test
+	public void postingLists() throws Exception {
+		TupleDesc td = Utility.getTupleDesc(2);
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		for(int i = 0; i < 2000; i++)
+			tuples.add(tuple(td, new IntField(i / 10), new IntField(i)));
+		BTreeLeafPage plain = emptyPage(td, false);
+		BTreeLeafPage compressed = emptyPage(td, true);
+		int n = fill(compressed, tuples);
+		assertEquals(plain.getMaxTuples(), fill(plain, tuples));
+		assertTrue(n > plain.getMaxTuples() * 3 / 2);
+		checkRoundTrip(compressed);
+
+		// deleting tuples from posting lists and inserting one keeps the order
+		ArrayList<Tuple> stored = new ArrayList<Tuple>();
+		Iterator<Tuple> it = compressed.iterator();
+		while(it.hasNext())
+			stored.add(it.next());
+		for(int i = 0; i < n; i += 3)
+			compressed.deleteTuple(stored.get(i));
+		compressed.insertTuple(tuple(td, new IntField(5), new IntField(-1)));
+		int prev = Integer.MIN_VALUE;
+		it = compressed.iterator();
+		while(it.hasNext()) {
+			int key = ((IntField) it.next().getField(0)).getValue();
+			assertTrue(key >= prev);
+			prev = key;
+		}
+		checkRoundTrip(compressed);
+	}
+
+	/**
+	 * Strings are stored in as many bytes as they need, and string keys without
+	 * the characters they share with the key before them
+	 */
+	@Test
+	public void stringPrefixes() throws Exception {
+		TupleDesc td = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE, Type.STRING_TYPE });
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		for(int i = 0; i < 1000; i++) {
+			tuples.add(tuple(td, new StringField(String.format("customer-%06d", i), Type.STRING_LEN),
+					new IntField(i), new StringField(i % 2 == 0 ? "" : "x", Type.STRING_LEN)));
+		}
+		BTreeLeafPage plain = emptyPage(td, false);
+		BTreeLeafPage compressed = emptyPage(td, true);
+		int n = fill(compressed, tuples);
+		assertEquals(plain.getMaxTuples(), fill(plain, tuples));
+		assertTrue(n > plain.getMaxTuples() * 5);
+		checkRoundTrip(compressed);
+
+		// a full page has no room for a tuple of the largest size
+		char[] longest = new char[Type.STRING_LEN];
+		Arrays.fill(longest, 'z');
+		try {
+			compressed.insertTuple(tuple(td, new StringField(new String(longest), Type.STRING_LEN),
+					new IntField(0), new StringField(new String(longest), Type.STRING_LEN)));
+			fail("inserted a tuple into a full page");
+		} catch(DbException e) {
+			// expected
+		}
+		assertEquals(n, compressed.getNumTuples());
+	}
+
+	/**
+	 * @return the number of tuples in the tree with the given key
+	 */
+	private static ArrayList<Tuple> lookup(BTreeFile bf, TransactionId tid, int key) throws Exception {
+		ArrayList<Tuple> found = new ArrayList<Tuple>();
+		DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+		it.open();
+		while(it.hasNext())
+			found.add(it.next());
+		it.close();
+		return found;
+	}
+
+	/**
+	 * A tree with compressed leaves splits, steals from and merges pages holding
+	 * different numbers of tuples, and takes fewer pages than one without
+	 */
+	@Test
+	public void compressedTree() throws Exception {
+		TupleDesc td = Utility.getTupleDesc(2);
+		File file = File.createTempFile("compressed", ".dat");
+		file.deleteOnExit();
+		BTreeFile bf = new BTreeFile(file, new int[] { 0 }, td, true);
+		Database.getCatalog().addTable(bf);
+		File plainFile = File.createTempFile("plain", ".dat");
+		plainFile.deleteOnExit();
+		BTreeFile plain = BTreeUtility.createEmptyBTreeFile(plainFile.getAbsolutePath(), 2, 0);
+
+		TransactionId tid = new TransactionId();
+		for(int i = 0; i < 6000; i++) {
+			Tuple t = BTreeUtility.getBTreeTuple(new int[] { i % 50, i });
+			Database.getBufferPool().insertTuple(tid, bf.getId(), t);
+			Database.getBufferPool().insertTuple(tid, plain.getId(), BTreeUtility.getBTreeTuple(new int[] { i % 50, i }));
+			if(i % 500 == 499) {
+				Database.getBufferPool().transactionComplete(tid);
+				tid = new TransactionId();
+			}
+		}
+		Database.getBufferPool().transactionComplete(tid);
+		assertTrue(bf.numPages() * 3 / 2 < plain.numPages());
+
+		tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		for(int key = 0; key < 50; key += 7)
+			assertEquals(120, lookup(bf, tid, key).size());
+		Database.getBufferPool().transactionComplete(tid);
+
+		// delete most of the tuples, a key at a time
+		for(int key = 0; key < 45; key++) {
+			tid = new TransactionId();
+			for(Tuple t : lookup(bf, tid, key))
+				Database.getBufferPool().deleteTuple(tid, t);
+			Database.getBufferPool().transactionComplete(tid);
+		}
+		tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		assertEquals(0, lookup(bf, tid, 44).size());
+		assertEquals(120, lookup(bf, tid, 45).size());
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		int n = 0;
+		while(it.hasNext()) {
+			it.next();
+			n++;
+		}
+		it.close();
+		assertEquals(600, n);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeCompressedLeafTest.class);
+	}
+}
@@ -172,6 +172,75 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 		assertTrue(page.getId().getPageNumber() == 2 || otherPage.getId().getPageNumber() == 2);
 	}
 
+	/**
+	 * @return the tuples of bf, read by a new transaction
+	 */
+	private static ArrayList<Tuple> contents(BTreeFile bf) throws Exception {
+		TransactionId reader = new TransactionId();
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		DbFileIterator it = bf.iterator(reader);
+		it.open();
+		while(it.hasNext())
+			tuples.add(it.next());
+		it.close();
+		Database.getBufferPool().transactionComplete(reader);
+		return tuples;
+	}
+
+	/**
+	 * New pages extend the file several at a time, of which numPages() only counts
+	 * those in use; pages freed by a transaction are reused once it commits, but
+	 * not if it aborts
+	 */
+	@Test
+	public void testFreePages() throws Exception {
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		Database.reset();
+		BTreeFile empty = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0, 3);
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		assertEquals(4, empty.getEmptyPageNo(tid, dirtypages));
+		assertEquals(5, empty.getEmptyPageNo(tid, dirtypages));
+		assertEquals(5, empty.numPages());
+		assertEquals(BTreeRootPtrPage.getPageSize() + (3 + BTreeFile.EXTEND_PAGES) * BufferPool.getPageSize(),
+				emptyFile.length());
+
+		File treeFile = File.createTempFile("tree", ".dat");
+		treeFile.deleteOnExit();
+		BTreeFile bf = BTreeUtility.createEmptyBTreeFile(treeFile.getAbsolutePath(), 2, 0);
+		TransactionId t = new TransactionId();
+		for(int i = 0; i < 3000; i++)
+			Database.getBufferPool().insertTuple(t, bf.getId(), BTreeUtility.getBTreeTuple(new int[] { i, i }));
+		Database.getBufferPool().transactionComplete(t);
+
+		// the pages freed by an aborted transaction are still in use
+		t = new TransactionId();
+		for(Tuple tup : contents(bf))
+			Database.getBufferPool().deleteTuple(t, tup);
+		Database.getBufferPool().transactionComplete(t, false);
+		t = new TransactionId();
+		for(int i = 3000; i < 4000; i++)
+			Database.getBufferPool().insertTuple(t, bf.getId(), BTreeUtility.getBTreeTuple(new int[] { i, i }));
+		Database.getBufferPool().transactionComplete(t);
+		t = new TransactionId();
+		BTreeChecker.checkRep(bf, t, new HashMap<PageId, Page>(), true);
+		Database.getBufferPool().transactionComplete(t);
+		assertEquals(4000, contents(bf).size());
+
+		// those freed by a committed one are reused
+		t = new TransactionId();
+		for(Tuple tup : contents(bf))
+			Database.getBufferPool().deleteTuple(t, tup);
+		Database.getBufferPool().transactionComplete(t);
+		int numPages = bf.numPages();
+		t = new TransactionId();
+		for(int i = 0; i < 2000; i++)
+			Database.getBufferPool().insertTuple(t, bf.getId(), BTreeUtility.getBTreeTuple(new int[] { i, i }));
+		Database.getBufferPool().transactionComplete(t);
+		assertEquals(numPages, bf.numPages());
+		assertEquals(2000, contents(bf).size());
+	}
+
 	/**
 	 * JUnit suite target
 	 */
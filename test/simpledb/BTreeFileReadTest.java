@@ -201,6 +201,54 @@ public class BTreeFileReadTest extends SimpleDbTestBase {
 
 	}
 
+	/**
+	 * @return the first fields of the tuples returned by an iterator, in order
+	 */
+	private static ArrayList<Integer> keys(DbFileIterator it) throws Exception {
+		ArrayList<Integer> keys = new ArrayList<Integer>();
+		it.open();
+		while(it.hasNext())
+			keys.add(((IntField) it.next().getField(0)).getValue());
+		it.close();
+		return keys;
+	}
+
+	/**
+	 * Unit test for BTreeFile.indexIterator() with several keys or ranges
+	 */
+	@Test public void batchIndexIterator() throws Exception {
+		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 20000, 5000,
+				null, null, 0);
+
+		// keys close together, far apart, missing, and past the last key
+		ArrayList<Field> keys = new ArrayList<Field>();
+		ArrayList<Integer> expected = new ArrayList<Integer>();
+		for(int k : new int[] { -1, 3, 4, 5, 100, 101, 2500, 2501, 4999, 5000, 9000 }) {
+			keys.add(new IntField(k));
+			expected.addAll(keys(bigFile.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(k)))));
+		}
+		assertTrue(expected.size() > 10);
+		DbFileIterator it = bigFile.indexIterator(tid, keys);
+		assertEquals(expected, keys(it));
+		assertEquals(expected, keys(it));
+
+		// overlapping ranges return each tuple once
+		List<Field> lows = Arrays.<Field>asList(new IntField(10), new IntField(15), new IntField(3000));
+		List<Field> highs = Arrays.<Field>asList(new IntField(20), new IntField(30), new IntField(3000));
+		expected = keys(bigFile.indexIterator(tid, new IndexPredicate(Op.LESS_THAN_OR_EQ, new IntField(30))));
+		expected.removeAll(keys(bigFile.indexIterator(tid, new IndexPredicate(Op.LESS_THAN, new IntField(10)))));
+		expected.addAll(keys(bigFile.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(3000)))));
+		assertEquals(expected, keys(bigFile.indexIterator(tid, lows, highs)));
+
+		assertEquals(0, keys(bigFile.indexIterator(tid, new ArrayList<Field>())).size());
+		try {
+			bigFile.indexIterator(tid, Arrays.<Field>asList(new IntField(2), new IntField(1)));
+			fail("keys out of order");
+		} catch(IllegalArgumentException e) {
+			// expected
+		}
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -0,0 +1,336 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeLatchTest extends SimpleDbTestBase {
+
+	@After
+	public void tearDown() throws Exception {
+		// set the page size back to the default
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	/**
+	 * Inserting into a leaf page with room locks the leaf page only, not the
+	 * root pointer page or the internal pages on the path to it
+	 */
+	@Test
+	public void internalPagesNotLocked() throws Exception {
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 10000, null, null, 0);
+
+		// the leaf pages start out full, so make room by splitting one
+		TransactionId tid = new TransactionId();
+		Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(new int[] { 17, 3 }));
+		Database.getBufferPool().transactionComplete(tid);
+
+		tid = new TransactionId();
+		Tuple t = BTreeUtility.getBTreeTuple(new int[] { 17, 4 });
+		Database.getBufferPool().insertTuple(tid, bf.getId(), t);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().fetchPage(
+				BTreeRootPtrPage.getId(bf.getId()));
+		BTreePageId rootId = rootPtr.getRootId();
+		assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+		BTreePageId leafId = (BTreePageId) t.getRecordId().getPageId();
+		assertTrue(Database.getBufferPool().holdsLock(tid, leafId));
+		assertFalse(Database.getBufferPool().holdsLock(tid, rootPtr.getId()));
+		assertFalse(Database.getBufferPool().holdsLock(tid, rootId));
+
+		// searching does not lock internal pages either
+		TransactionId reader = new TransactionId();
+		DbFileIterator it = bf.indexIterator(reader, new IndexPredicate(Predicate.Op.EQUALS, new IntField(17)));
+		it.open();
+		it.close();
+		assertFalse(Database.getBufferPool().holdsLock(reader, rootId));
+		Database.getBufferPool().transactionComplete(tid);
+		Database.getBufferPool().transactionComplete(reader);
+	}
+
+	/**
+	 * A latch is dropped once no thread holds or waits for it, so the latches
+	 * kept are those of the pages latched at the time
+	 */
+	@Test
+	public void latchesDropped() throws Exception {
+		final LatchManager latches = new LatchManager();
+		for(int i = 0; i < 1000; i++) {
+			BTreePageId pid = new BTreePageId(1, i, BTreePageId.LEAF);
+			latches.acquire(pid, false);
+			latches.acquire(pid, false);
+			latches.release(pid, false);
+			assertEquals(1, latches.size());
+			latches.release(pid, false);
+		}
+		assertEquals(0, latches.size());
+
+		// a thread waiting for a latch keeps it alive after its holder is done
+		final BTreePageId pid = new BTreePageId(1, 0, BTreePageId.LEAF);
+		latches.acquire(pid, true);
+		Thread waiter = new Thread() {
+			public void run() {
+				latches.acquire(pid, false);
+				latches.release(pid, false);
+			}
+		};
+		waiter.start();
+		while(waiter.getState() != Thread.State.WAITING)
+			Thread.sleep(1);
+		latches.release(pid, true);
+		waiter.join();
+		assertEquals(0, latches.size());
+	}
+
+	/**
+	 * Threads inserting into different key ranges at once, splitting leaf and
+	 * internal pages as they go, leave a consistent tree holding every tuple
+	 */
+	@Test
+	public void concurrentInserts() throws Exception {
+		BufferPool.setPageSize(1024);
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		final BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 2000, null, tuples, 0);
+		Database.resetBufferPool(1000);
+
+		final int numThreads = 8;
+		final int perThread = 1500;
+		final Vector<Exception> errors = new Vector<Exception>();
+		Thread[] threads = new Thread[numThreads];
+		for(int i = 0; i < numThreads; i++) {
+			final int range = i;
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						for(int j = 0; j < perThread; j++) {
+							TransactionId tid = new TransactionId();
+							int key = range * BTreeUtility.MAX_RAND_VALUE / numThreads + j;
+							Tuple t = BTreeUtility.getBTreeTuple(new int[] { key, range });
+							Database.getBufferPool().insertTuple(tid, bf.getId(), t);
+							Database.getBufferPool().transactionComplete(tid);
+						}
+					} catch(Exception e) {
+						errors.add(e);
+					}
+				}
+			};
+		}
+		for(Thread thread : threads)
+			thread.start();
+		for(Thread thread : threads)
+			thread.join();
+		assertTrue(errors.toString(), errors.isEmpty());
+
+		TransactionId tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+
+		// every inserted key can be found, and the tuples are in order
+		for(int i = 0; i < numThreads; i++) {
+			int key = i * BTreeUtility.MAX_RAND_VALUE / numThreads + perThread / 2;
+			DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, new IntField(key)));
+			it.open();
+			boolean found = false;
+			while(it.hasNext())
+				found |= ((IntField) it.next().getField(1)).getValue() == i;
+			it.close();
+			assertTrue(found);
+		}
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		int count = 0;
+		int prev = Integer.MIN_VALUE;
+		while(it.hasNext()) {
+			int key = ((IntField) it.next().getField(0)).getValue();
+			assertTrue(key >= prev);
+			prev = key;
+			count++;
+		}
+		it.close();
+		assertEquals(tuples.size() + numThreads * perThread, count);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * Searches running while other threads split the leaf pages they are looking for
+	 * still find every key that was already in the tree
+	 */
+	@Test
+	public void searchesDuringSplits() throws Exception {
+		BufferPool.setPageSize(1024);
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		final BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 2000, null, tuples, 0);
+		Database.resetBufferPool(1000);
+		final ArrayList<Integer> keys = new ArrayList<Integer>();
+		for(ArrayList<Integer> tuple : tuples)
+			keys.add(tuple.get(0));
+
+		final int numWriters = 4;
+		final int numReaders = 4;
+		final Vector<Exception> errors = new Vector<Exception>();
+		final Vector<Integer> missing = new Vector<Integer>();
+		Thread[] threads = new Thread[numWriters + numReaders];
+		for(int i = 0; i < numWriters; i++) {
+			final Random rand = new Random(i);
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						for(int j = 0; j < 1000; j++) {
+							TransactionId tid = new TransactionId();
+							Tuple t = BTreeUtility.getBTreeTuple(new int[] { rand.nextInt(BTreeUtility.MAX_RAND_VALUE), -1 });
+							Database.getBufferPool().insertTuple(tid, bf.getId(), t);
+							Database.getBufferPool().transactionComplete(tid);
+						}
+					} catch(Exception e) {
+						errors.add(e);
+					}
+				}
+			};
+		}
+		for(int i = 0; i < numReaders; i++) {
+			final Random rand = new Random(numWriters + i);
+			threads[numWriters + i] = new Thread() {
+				public void run() {
+					try {
+						for(int j = 0; j < 1000; j++) {
+							TransactionId tid = new TransactionId();
+							int key = keys.get(rand.nextInt(keys.size()));
+							DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, new IntField(key)));
+							it.open();
+							if(!it.hasNext())
+								missing.add(key);
+							it.close();
+							Database.getBufferPool().transactionComplete(tid);
+						}
+					} catch(Exception e) {
+						errors.add(e);
+					}
+				}
+			};
+		}
+		for(Thread thread : threads)
+			thread.start();
+		for(Thread thread : threads)
+			thread.join();
+		assertTrue(errors.toString(), errors.isEmpty());
+		assertTrue(missing.toString(), missing.isEmpty());
+
+		// the high keys were kept up to date by the splits
+		TransactionId tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * @return a full leaf page from the middle of a B+ tree
+	 */
+	private static BTreeLeafPage middleLeafPage(BTreeFile bf) throws Exception {
+		TransactionId tid = new TransactionId();
+		BTreeLeafPage leafPage = bf.findLeafPage(tid, Permissions.READ_ONLY, new IntField(BTreeUtility.MAX_RAND_VALUE / 2));
+		Database.getBufferPool().transactionComplete(tid);
+		assertEquals(0, leafPage.getNumEmptySlots());
+		return leafPage;
+	}
+
+	/**
+	 * @return the key of the next tuple of an iterator over a leaf page
+	 */
+	private static int keyOf(Iterator<Tuple> it) {
+		return ((IntField) it.next().getField(0)).getValue();
+	}
+
+	/**
+	 * @return a thread looking up key in a new transaction, adding it to found if it is there
+	 */
+	private static Thread searcher(final BTreeFile bf, final int key, final Vector<Integer> found,
+			final Vector<Exception> errors) {
+		return new Thread() {
+			public void run() {
+				try {
+					TransactionId tid = new TransactionId();
+					DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, new IntField(key)));
+					it.open();
+					if(it.hasNext())
+						found.add(key);
+					it.close();
+					Database.getBufferPool().transactionComplete(tid);
+				} catch(Exception e) {
+					errors.add(e);
+				}
+			}
+		};
+	}
+
+	/**
+	 * A search sent to the page a split moved its key to finds the key back on the page it
+	 * was split from when the transaction that split the page aborts meanwhile
+	 */
+	@Test
+	public void searchDuringAbortedSplit() throws Exception {
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 10000, null, null, 0);
+		BTreeLeafPage leafPage = middleLeafPage(bf);
+		BTreePageId leafId = leafPage.getId();
+		int key = keyOf(leafPage.reverseIterator());
+
+		// split the leaf page, which moves the key to a new page on its right
+		TransactionId writer = new TransactionId();
+		Database.getBufferPool().insertTuple(writer, bf.getId(), BTreeUtility.getBTreeTuple(new int[] { key, -1 }));
+		BTreePageId rightId = ((BTreeLeafPage) Database.getBufferPool().fetchPage(leafId)).getRightSiblingId();
+		assertEquals(key, keyOf(((BTreeLeafPage) Database.getBufferPool().fetchPage(rightId)).reverseIterator()));
+
+		// abort while the search waits for the lock on the new page
+		Vector<Integer> found = new Vector<Integer>();
+		Vector<Exception> errors = new Vector<Exception>();
+		Thread search = searcher(bf, key, found, errors);
+		search.start();
+		while(search.getState() != Thread.State.TIMED_WAITING)
+			Thread.sleep(1);
+		Database.getBufferPool().transactionComplete(writer, false);
+		search.join();
+		assertTrue(errors.toString(), errors.isEmpty());
+		assertEquals(Arrays.asList(key), found);
+	}
+
+	/**
+	 * A search that moves right from a page split after it left the parent page finds the key
+	 * back on the page it came from when the transaction that split the page aborts while the
+	 * search waits for the new page
+	 */
+	@Test
+	public void moveRightDuringAbortedSplit() throws Exception {
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 10000, null, null, 0);
+		BTreeLeafPage leafPage = middleLeafPage(bf);
+		int key = keyOf(leafPage.reverseIterator());
+
+		// the search finds the leaf page from its parent, then waits for the lock on it
+		TransactionId writer = new TransactionId();
+		Database.getBufferPool().getPage(writer, leafPage.getId(), Permissions.READ_WRITE);
+		Vector<Integer> found = new Vector<Integer>();
+		Vector<Exception> errors = new Vector<Exception>();
+		Thread search = searcher(bf, key, found, errors);
+		search.start();
+		while(search.getState() != Thread.State.TIMED_WAITING)
+			Thread.sleep(1);
+
+		// split the leaf page, which moves the key to a new page on its right; the search
+		// follows it there once it has the leaf page, and waits again
+		Database.getBufferPool().insertTuple(writer, bf.getId(), BTreeUtility.getBTreeTuple(new int[] { key, -1 }));
+		Thread.sleep(150);
+		Database.getBufferPool().transactionComplete(writer, false);
+		search.join();
+		assertTrue(errors.toString(), errors.isEmpty());
+		assertEquals(Arrays.asList(key), found);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeLatchTest.class);
+	}
+}
@@ -158,6 +158,32 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeLeafPage.setHighKey()
+	 */
+	@Test public void setHighKey() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+		assertEquals(null, page.getHighKey());
+
+		// the high key is written out with the page while it has a right sibling
+		page.setRightSiblingId(new BTreePageId(pid.getTableId(), 1, BTreePageId.LEAF));
+		page.setHighKey(new IntField(60000));
+		BTreeLeafPage copy = new BTreeLeafPage(pid, page.getPageData(), 0);
+		assertEquals(new IntField(60000), copy.getHighKey());
+
+		// the right-most page on a level has no high key
+		copy.setRightSiblingId(null);
+		assertEquals(null, copy.getHighKey());
+		assertEquals(null, new BTreeLeafPage(pid, copy.getPageData(), 0).getHighKey());
+
+		try {
+			page.setHighKey(new StringField("a", Type.STRING_LEN));
+			throw new Exception("should not be able to set a high key of the wrong type; expected DbException");
+		} catch (DbException e) {
+			// explicitly ignored
+		}
+	}
+
 	/**
 	 * Unit test for BTreeLeafPage.iterator()
 	 */
@@ -0,0 +1,155 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class BlockNestedLoopJoinTest extends SimpleDbTestBase {
+
+  int width1 = 2;
+  int width2 = 3;
+  OpIterator scan1;
+  OpIterator scan2;
+  OpIterator eqJoin;
+  OpIterator gtJoin;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before public void createTupleLists() throws Exception {
+    // 32 byte pages hold three 2-int tuples, so the outer spans two blocks
+    BufferPool.setPageSize(32);
+    this.scan1 = TestUtil.createTupleList(width1,
+        new int[] { 1, 2,
+                    3, 4,
+                    5, 6,
+                    7, 8 });
+    this.scan2 = TestUtil.createTupleList(width2,
+        new int[] { 1, 2, 3,
+                    2, 3, 4,
+                    3, 4, 5,
+                    4, 5, 6,
+                    5, 6, 7 });
+    this.eqJoin = TestUtil.createTupleList(width1 + width2,
+        new int[] { 1, 2, 1, 2, 3,
+                    3, 4, 3, 4, 5,
+                    5, 6, 5, 6, 7 });
+    this.gtJoin = TestUtil.createTupleList(width1 + width2,
+        new int[] {
+                    3, 4, 1, 2, 3, // 1, 2 < 3
+                    3, 4, 2, 3, 4,
+                    5, 6, 1, 2, 3, // 1, 2, 3, 4 < 5
+                    5, 6, 2, 3, 4,
+                    5, 6, 3, 4, 5,
+                    5, 6, 4, 5, 6,
+                    7, 8, 1, 2, 3, // 1, 2, 3, 4, 5 < 7
+                    7, 8, 2, 3, 4,
+                    7, 8, 3, 4, 5,
+                    7, 8, 4, 5, 6,
+                    7, 8, 5, 6, 7 });
+  }
+
+  @After public void resetPageSize() {
+    BufferPool.resetPageSize();
+  }
+
+  private static int count(OpIterator it) throws Exception {
+    int n = 0;
+    it.rewind();
+    while (it.hasNext()) {
+      assertNotNull(it.next());
+      n++;
+    }
+    return n;
+  }
+
+  /**
+   * Unit test for BlockNestedLoopJoin.getTupleDesc()
+   */
+  @Test public void getTupleDesc() {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    BlockNestedLoopJoin op = new BlockNestedLoopJoin(pred, scan1, scan2);
+    TupleDesc expected = Utility.getTupleDesc(width1 + width2);
+    TupleDesc actual = op.getTupleDesc();
+    assertEquals(expected, actual);
+  }
+
+  /**
+   * Unit test for BlockNestedLoopJoin.getBlockSize()
+   */
+  @Test public void getBlockSize() {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    assertEquals(3, new BlockNestedLoopJoin(pred, scan1, scan2, 1).getBlockSize());
+    assertEquals(6, new BlockNestedLoopJoin(pred, scan1, scan2, 2).getBlockSize());
+  }
+
+  /**
+   * Unit test for BlockNestedLoopJoin.rewind()
+   */
+  @Test public void rewind() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    BlockNestedLoopJoin op = new BlockNestedLoopJoin(pred, scan1, scan2, 1);
+    op.open();
+    while (op.hasNext()) {
+      assertNotNull(op.next());
+    }
+    assertTrue(TestUtil.checkExhausted(op));
+    op.rewind();
+
+    eqJoin.open();
+    Tuple expected = eqJoin.next();
+    Tuple actual = op.next();
+    assertTrue(TestUtil.compareTuples(expected, actual));
+  }
+
+  /**
+   * Unit test for BlockNestedLoopJoin.getNext() using a &gt; predicate,
+   * with the outer relation split across several blocks
+   */
+  @Test public void gtJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0);
+    BlockNestedLoopJoin op = new BlockNestedLoopJoin(pred, scan1, scan2, 1);
+    op.open();
+    gtJoin.open();
+    TestUtil.matchAllTuples(gtJoin, op);
+    assertEquals(11, count(op));
+  }
+
+  /**
+   * Unit test for BlockNestedLoopJoin.getNext() using an = predicate
+   */
+  @Test public void eqJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    BlockNestedLoopJoin op = new BlockNestedLoopJoin(pred, scan1, scan2, 1);
+    op.open();
+    eqJoin.open();
+    TestUtil.matchAllTuples(eqJoin, op);
+    assertEquals(3, count(op));
+  }
+
+  /**
+   * Unit test for BlockNestedLoopJoin when the whole outer fits in one block
+   */
+  @Test public void singleBlock() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0);
+    BlockNestedLoopJoin op = new BlockNestedLoopJoin(pred, scan1, scan2, 4);
+    op.open();
+    gtJoin.open();
+    TestUtil.matchAllTuples(gtJoin, op);
+    assertEquals(11, count(op));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(BlockNestedLoopJoinTest.class);
+  }
+}
@@ -0,0 +1,82 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class BoundedQueueTest extends SimpleDbTestBase {
+
+  /**
+   * Items come out in order, and offer fails once the queue is full
+   */
+  @Test public void fifoAndCapacity() {
+    BoundedQueue<Integer> q = new BoundedQueue<Integer>(5);
+    assertEquals(8, q.capacity());
+    assertNull(q.poll());
+    for (int lap = 0; lap < 3; lap++) {
+      for (int i = 0; i < 8; i++)
+        assertTrue(q.offer(i));
+      assertFalse(q.offer(8));
+      assertEquals(8, q.size());
+      for (int i = 0; i < 8; i++)
+        assertEquals(Integer.valueOf(i), q.poll());
+      assertNull(q.poll());
+    }
+  }
+
+  /**
+   * Every item offered by several producers is taken exactly once by
+   * several consumers
+   */
+  @Test public void concurrentProducersAndConsumers() throws Exception {
+    final BoundedQueue<Long> q = new BoundedQueue<Long>(16);
+    final int perProducer = 20000;
+    final int producers = 3;
+    final AtomicLong sum = new AtomicLong();
+    Thread[] threads = new Thread[2 * producers];
+    for (int p = 0; p < producers; p++) {
+      final long base = (long) p * perProducer;
+      threads[p] = new Thread() {
+        public void run() {
+          for (long i = 1; i <= perProducer; i++) {
+            while (!q.offer(base + i))
+              Thread.yield();
+          }
+        }
+      };
+      threads[producers + p] = new Thread() {
+        public void run() {
+          try {
+            for (int i = 0; i < perProducer; i++)
+              sum.addAndGet(q.take());
+          } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+        }
+      };
+    }
+    for (Thread t : threads)
+      t.start();
+    for (Thread t : threads)
+      t.join();
+    long n = (long) producers * perProducer;
+    assertEquals(n * (n + 1) / 2, sum.get());
+    assertNull(q.poll());
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(BoundedQueueTest.class);
+  }
+}
@@ -0,0 +1,111 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.util.ArrayList;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class CompiledPredicateTest extends SimpleDbTestBase {
+
+  private TupleDesc td;
+  private ArrayList<Tuple> tuples;
+  private byte[] data;
+
+  /**
+   * Random (int, string, int) tuples, also serialized back to back
+   */
+  @Before public void setUp() throws Exception {
+    td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE });
+    tuples = new ArrayList<Tuple>();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    Random r = new Random(7);
+    for (int i = 0; i < 500; i++) {
+      Tuple t = new Tuple(td);
+      t.setField(0, new IntField(r.nextInt(20) - 10));
+      t.setField(1, new StringField("s" + r.nextInt(5), Type.STRING_LEN));
+      t.setField(2, new IntField(r.nextInt()));
+      for (int j = 0; j < td.numFields(); j++)
+        t.getField(j).serialize(out);
+      tuples.add(t);
+    }
+    data = bytes.toByteArray();
+  }
+
+  /**
+   * @return the number of tuples the compiled predicate passes, checking
+   *         that it agrees with Predicate.filter on tuples and on their
+   *         serialized form
+   */
+  private int check(Predicate... predicates) {
+    CompiledPredicate c = CompiledPredicate.compile(predicates, td);
+    int n = 0;
+    for (int i = 0; i < tuples.size(); i++) {
+      Tuple t = tuples.get(i);
+      boolean expected = true;
+      for (Predicate p : predicates)
+        expected &= p.filter(t);
+      assertEquals(expected, c.matches(t));
+      assertEquals(expected, c.matches(data, i * td.getSize()));
+      if (expected)
+        n++;
+    }
+    return n;
+  }
+
+  /**
+   * Every operator on int fields gives the interpreted result
+   */
+  @Test public void intComparisons() {
+    for (Predicate.Op op : Predicate.Op.values()) {
+      check(new Predicate(0, op, new IntField(3)));
+      check(new Predicate(2, op, new IntField(0)));
+    }
+    assertEquals(tuples.size(), check());
+  }
+
+  /**
+   * String predicates and conjunctions of two or more predicates give the
+   * interpreted result
+   */
+  @Test public void conjunctions() {
+    Predicate s = new Predicate(1, Predicate.Op.EQUALS, new StringField("s2", Type.STRING_LEN));
+    Predicate lo = new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(-3));
+    Predicate hi = new Predicate(0, Predicate.Op.LESS_THAN, new IntField(4));
+    assertTrue(check(s) > 0);
+    assertTrue(check(lo, hi) > 0);
+    assertTrue(check(lo, hi, s) > 0);
+    assertTrue(check(lo, hi, s) < check(lo, hi));
+  }
+
+  /**
+   * Join predicates on ints compare like Field.compare
+   */
+  @Test public void joinPredicates() {
+    for (Predicate.Op op : Predicate.Op.values()) {
+      JoinPredicate jp = new JoinPredicate(0, op, 0);
+      for (int i = 1; i < tuples.size(); i++) {
+        Tuple a = tuples.get(i - 1);
+        Tuple b = tuples.get(i);
+        assertEquals(a.getField(0).compare(op, b.getField(0)), jp.filter(a, b));
+      }
+    }
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(CompiledPredicateTest.class);
+  }
+}
@@ -0,0 +1,226 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ExchangeTest extends SimpleDbTestBase {
+
+  private HeapFile big;
+  private HeapFile small;
+
+  @Before public void setUp() throws Exception {
+    big = SystemTestUtil.createRandomHeapFile(2, 40000, 1000, null, null);
+    small = SystemTestUtil.createRandomHeapFile(2, 300, 1000, null, null);
+    assertTrue(big.numPages() >= Exchange.MIN_PARALLEL_PAGES);
+  }
+
+  /**
+   * Filter(small) join Filter(big) on the first column, projected to three
+   * columns
+   */
+  private OpIterator joinPlan(TransactionId tid, int memoryTuples) {
+    OpIterator probe = new Filter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(700)),
+        new SeqScan(tid, big.getId(), "b"));
+    HashEquiJoin join = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+        new SeqScan(tid, small.getId(), "s"), probe, memoryTuples);
+    ArrayList<Integer> fields = new ArrayList<Integer>();
+    ArrayList<Type> types = new ArrayList<Type>();
+    for (int f : new int[] { 0, 1, 3 }) {
+      fields.add(f);
+      types.add(Type.INT_TYPE);
+    }
+    return new Project(fields, types, join);
+  }
+
+  private static ArrayList<String> drain(OpIterator op) throws Exception {
+    ArrayList<String> out = new ArrayList<String>();
+    op.open();
+    while (op.hasNext())
+      out.add(SystemTestUtil.tupleToList(op.next()).toString());
+    op.close();
+    Collections.sort(out);
+    return out;
+  }
+
+  /**
+   * Drain every output of an exchange on its own thread
+   */
+  private static ArrayList<ArrayList<String>> drainConcurrently(final Exchange[] outputs)
+      throws Exception {
+    final ArrayList<ArrayList<String>> results = new ArrayList<ArrayList<String>>();
+    final Exception[] errors = new Exception[outputs.length];
+    Thread[] threads = new Thread[outputs.length];
+    for (int i = 0; i < outputs.length; i++) {
+      results.add(null);
+      final int n = i;
+      threads[i] = new Thread() {
+        public void run() {
+          try {
+            ArrayList<String> r = drain(outputs[n]);
+            synchronized (results) {
+              results.set(n, r);
+            }
+          } catch (Exception e) {
+            errors[n] = e;
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (int i = 0; i < outputs.length; i++) {
+      threads[i].join();
+      if (errors[i] != null)
+        throw errors[i];
+    }
+    return results;
+  }
+
+  /**
+   * A join pipeline gathered from the workers returns the serial result,
+   * also after a rewind
+   */
+  @Test public void gatherJoin() throws Exception {
+    TransactionId tid = new TransactionId();
+    ArrayList<String> expected = drain(joinPlan(tid, HashEquiJoin.MAP_SIZE));
+    assertFalse(expected.isEmpty());
+
+    assertTrue(Exchange.worthParallelizing(joinPlan(tid, HashEquiJoin.MAP_SIZE)));
+    Exchange gather = new Exchange(joinPlan(tid, HashEquiJoin.MAP_SIZE));
+    assertEquals(Exchange.Mode.GATHER, gather.getMode());
+    gather.open();
+    assertTrue(gather.isParallel());
+    gather.close();
+    assertEquals(expected, drain(gather));
+
+    gather.open();
+    gather.next();
+    gather.rewind();
+    int n = 0;
+    while (gather.hasNext()) {
+      gather.next();
+      n++;
+    }
+    gather.close();
+    assertEquals(expected.size(), n);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * A build side larger than the join's memory budget makes the exchange
+   * read its child serially
+   */
+  @Test public void serialFallback() throws Exception {
+    TransactionId tid = new TransactionId();
+    ArrayList<String> expected = drain(joinPlan(tid, HashEquiJoin.MAP_SIZE));
+    Exchange gather = new Exchange(joinPlan(tid, 100));
+    gather.open();
+    assertFalse(gather.isParallel());
+    gather.close();
+    assertEquals(expected, drain(gather));
+    assertFalse(Exchange.worthParallelizing(new SeqScan(tid, big.getId())));
+    assertFalse(Exchange.worthParallelizing(new OrderBy(0, true,
+        joinPlan(tid, HashEquiJoin.MAP_SIZE))));
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Repartitioned outputs read by concurrent consumers are disjoint, keep
+   * equal keys together, and add up to the whole result
+   */
+  @Test public void repartition() throws Exception {
+    TransactionId tid = new TransactionId();
+    ArrayList<String> expected = drain(joinPlan(tid, HashEquiJoin.MAP_SIZE));
+    Exchange[] outputs = Exchange.repartition(joinPlan(tid, HashEquiJoin.MAP_SIZE), 0, 4);
+    assertEquals(4, outputs.length);
+    ArrayList<ArrayList<String>> parts = drainConcurrently(outputs);
+
+    ArrayList<String> all = new ArrayList<String>();
+    HashSet<String> seenKeys = new HashSet<String>();
+    for (ArrayList<String> part : parts) {
+      HashSet<String> keys = new HashSet<String>();
+      for (String t : part)
+        keys.add(t.substring(1, t.indexOf(',')));
+      for (String k : keys)
+        assertTrue(seenKeys.add(k));
+      all.addAll(part);
+    }
+    Collections.sort(all);
+    assertEquals(expected, all);
+
+    try {
+      outputs[0].open();
+      outputs[0].rewind();
+      fail();
+    } catch (DbException e) {
+      // expected: the other outputs would lose their tuples
+    } finally {
+      outputs[0].close();
+    }
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Every output of a broadcast sees the whole result, whether the child is
+   * run by the workers or read serially
+   */
+  @Test public void broadcast() throws Exception {
+    TransactionId tid = new TransactionId();
+    ArrayList<String> expected = drain(joinPlan(tid, HashEquiJoin.MAP_SIZE));
+    for (int memory : new int[] { HashEquiJoin.MAP_SIZE, 100 }) {
+      Exchange[] outputs = Exchange.broadcast(joinPlan(tid, memory), 3);
+      for (ArrayList<String> part : drainConcurrently(outputs))
+        assertEquals(expected, part);
+    }
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * A serial child buffers a bounded number of tuples for the other outputs,
+   * so they must be read concurrently, but nothing for closed outputs
+   */
+  @Test public void serialBuffering() throws Exception {
+    TransactionId tid = new TransactionId();
+    ArrayList<String> expected = drain(joinPlan(tid, HashEquiJoin.MAP_SIZE));
+    Exchange[] outputs = Exchange.broadcast(joinPlan(tid, 100), 2);
+    outputs[0].open();
+    outputs[1].open();
+    assertFalse(outputs[0].isParallel());
+    outputs[1].close();
+    ArrayList<String> read = new ArrayList<String>();
+    while (outputs[0].hasNext())
+      read.add(SystemTestUtil.tupleToList(outputs[0].next()).toString());
+    outputs[0].close();
+    Collections.sort(read);
+    assertTrue(read.size() > 4 * 256);
+    assertEquals(expected, read);
+
+    Exchange[] parts = Exchange.repartition(joinPlan(tid, 100), 0, 3);
+    ArrayList<String> all = new ArrayList<String>();
+    for (ArrayList<String> part : drainConcurrently(parts))
+      all.addAll(part);
+    Collections.sort(all);
+    assertEquals(expected, all);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ExchangeTest.class);
+  }
+}
@@ -0,0 +1,193 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class HashAggregatorTest extends SimpleDbTestBase {
+
+  private static final Aggregator.Op[] ALL_OPS = new Aggregator.Op[] {
+      Aggregator.Op.COUNT, Aggregator.Op.SUM, Aggregator.Op.MIN,
+      Aggregator.Op.MAX, Aggregator.Op.AVG };
+
+  private static HashAggregator allOpsOnField1(int[] gbfields, int memoryGroups) {
+    Type[] gbtypes = new Type[gbfields.length];
+    for (int i = 0; i < gbfields.length; i++)
+      gbtypes[i] = Type.INT_TYPE;
+    int[] afields = new int[ALL_OPS.length];
+    Type[] atypes = new Type[ALL_OPS.length];
+    for (int i = 0; i < ALL_OPS.length; i++) {
+      afields[i] = 1;
+      atypes[i] = Type.INT_TYPE;
+    }
+    return new HashAggregator(gbfields, gbtypes, afields, atypes, ALL_OPS, memoryGroups);
+  }
+
+  /**
+   * Several aggregates are computed in the same pass
+   */
+  @Test public void multipleAggregates() throws Exception {
+    OpIterator scan = TestUtil.createTupleList(2,
+        new int[] { 1, 2,
+                    1, 4,
+                    1, 6,
+                    3, 2,
+                    3, 4,
+                    3, 6,
+                    5, 7 });
+    HashAggregator agg = allOpsOnField1(new int[] { 0 }, HashAggregator.DEFAULT_MEMORY_GROUPS);
+    scan.open();
+    while (scan.hasNext())
+      agg.mergeTupleIntoGroup(scan.next());
+    assertEquals(6, agg.getTupleDesc().numFields());
+
+    OpIterator expected = TestUtil.createTupleList(6,
+        new int[] { 1, 3, 12, 2, 6, 4,
+                    3, 3, 12, 2, 6, 4,
+                    5, 1, 7, 7, 7, 7 });
+    OpIterator it = agg.iterator();
+    it.open();
+    expected.open();
+    TestUtil.matchAllTuples(expected, it);
+    assertFalse(agg.hasSpilled());
+  }
+
+  /**
+   * Groups keyed on an int and a string field
+   */
+  @Test public void compositeKey() throws Exception {
+    OpIterator scan = TestUtil.createTupleList(3,
+        new Object[] { 1, "a", 5,
+                       1, "b", 6,
+                       1, "a", 7,
+                       2, "a", 8 });
+    HashAggregator agg = new HashAggregator(new int[] { 0, 1 },
+        new Type[] { Type.INT_TYPE, Type.STRING_TYPE }, new int[] { 2, 1 },
+        new Type[] { Type.INT_TYPE, Type.STRING_TYPE },
+        new Aggregator.Op[] { Aggregator.Op.SUM, Aggregator.Op.COUNT });
+    scan.open();
+    while (scan.hasNext())
+      agg.mergeTupleIntoGroup(scan.next());
+
+    OpIterator expected = TestUtil.createTupleList(4,
+        new Object[] { 1, "a", 12, 2,
+                       1, "b", 6, 1,
+                       2, "a", 8, 1 });
+    OpIterator it = agg.iterator();
+    it.open();
+    expected.open();
+    TestUtil.matchAllTuples(expected, it);
+  }
+
+  /**
+   * More groups than the memory budget are partitioned to disk and still
+   * aggregated exactly
+   */
+  @Test public void spill() throws Exception {
+    Random r = new Random(7);
+    int rows = 20000;
+    int[] data = new int[rows * 2];
+    HashMap<Integer, long[]> groups = new HashMap<Integer, long[]>();
+    for (int i = 0; i < rows; i++) {
+      int g = r.nextInt(3000);
+      int v = r.nextInt(1000) - 500;
+      data[2 * i] = g;
+      data[2 * i + 1] = v;
+      long[] s = groups.get(g);
+      if (s == null) {
+        s = new long[] { 0, 0, Long.MAX_VALUE, Long.MIN_VALUE };
+        groups.put(g, s);
+      }
+      s[0]++;
+      s[1] += v;
+      s[2] = Math.min(s[2], v);
+      s[3] = Math.max(s[3], v);
+    }
+
+    HashAggregator agg = allOpsOnField1(new int[] { 0 }, 100);
+    OpIterator scan = TestUtil.createTupleList(2, data);
+    scan.open();
+    while (scan.hasNext())
+      agg.mergeTupleIntoGroup(scan.next());
+    assertTrue(agg.hasSpilled());
+    assertEquals(100, agg.numGroupsInMemory());
+
+    OpIterator it = agg.iterator();
+    it.open();
+    for (int pass = 0; pass < 2; pass++) {
+      int seen = 0;
+      while (it.hasNext()) {
+        Tuple t = it.next();
+        long[] s = groups.get(((IntField) t.getField(0)).getValue());
+        assertEquals(s[0], ((IntField) t.getField(1)).getValue());
+        assertEquals(s[1], ((IntField) t.getField(2)).getValue());
+        assertEquals(s[2], ((IntField) t.getField(3)).getValue());
+        assertEquals(s[3], ((IntField) t.getField(4)).getValue());
+        assertEquals(s[1] / s[0], ((IntField) t.getField(5)).getValue());
+        seen++;
+      }
+      assertEquals(groups.size(), seen);
+      it.rewind();
+    }
+    it.close();
+    agg.discard();
+  }
+
+  /**
+   * SUM accumulates in a long, so AVG of large values is exact and a SUM
+   * that does not fit in an INT is an error rather than a wrapped value
+   */
+  @Test public void sumOverflow() throws Exception {
+    int big = Integer.MAX_VALUE - 1;
+    OpIterator scan = TestUtil.createTupleList(2,
+        new int[] { 1, big,
+                    1, big });
+    HashAggregator avg = new HashAggregator(new int[] { 0 }, new Type[] { Type.INT_TYPE },
+        new int[] { 1 }, new Type[] { Type.INT_TYPE }, new Aggregator.Op[] { Aggregator.Op.AVG });
+    HashAggregator sum = new HashAggregator(new int[0], new Type[0],
+        new int[] { 1 }, new Type[] { Type.INT_TYPE }, new Aggregator.Op[] { Aggregator.Op.SUM });
+    scan.open();
+    while (scan.hasNext()) {
+      Tuple t = scan.next();
+      avg.mergeTupleIntoGroup(t);
+      sum.mergeTupleIntoGroup(t);
+    }
+
+    OpIterator it = avg.iterator();
+    it.open();
+    assertEquals(big, ((IntField) it.next().getField(1)).getValue());
+
+    it = sum.iterator();
+    it.open();
+    try {
+      it.next();
+      throw new Exception("SUM overflow was not reported");
+    } catch (DbException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Only COUNT is supported over string fields
+   */
+  @Test(expected = IllegalArgumentException.class) public void stringSum() {
+    new HashAggregator(new int[0], new Type[0], new int[] { 0 },
+        new Type[] { Type.STRING_TYPE }, new Aggregator.Op[] { Aggregator.Op.SUM });
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(HashAggregatorTest.class);
+  }
+}
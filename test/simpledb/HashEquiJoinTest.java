@@ -0,0 +1,210 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class HashEquiJoinTest extends SimpleDbTestBase {
+
+  int width1 = 2;
+  int width2 = 3;
+  OpIterator scan1;
+  OpIterator scan2;
+  OpIterator eqJoin;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before public void createTupleLists() throws Exception {
+    this.scan1 = TestUtil.createTupleList(width1,
+        new int[] { 1, 2,
+                    3, 4,
+                    5, 6,
+                    7, 8 });
+    this.scan2 = TestUtil.createTupleList(width2,
+        new int[] { 1, 2, 3,
+                    2, 3, 4,
+                    3, 4, 5,
+                    4, 5, 6,
+                    5, 6, 7 });
+    this.eqJoin = TestUtil.createTupleList(width1 + width2,
+        new int[] { 1, 2, 1, 2, 3,
+                    3, 4, 3, 4, 5,
+                    5, 6, 5, 6, 7 });
+  }
+
+  /**
+   * Build a two column relation whose first column is drawn from [0, range)
+   */
+  private static TupleIterator randomRelation(Random r, int rows, int range) {
+    int[] data = new int[rows * 2];
+    for (int i = 0; i < rows; i++) {
+      data[2 * i] = r.nextInt(range);
+      data[2 * i + 1] = i;
+    }
+    return TestUtil.createTupleList(2, data);
+  }
+
+  private static int count(OpIterator it) throws Exception {
+    int n = 0;
+    while (it.hasNext()) {
+      assertNotNull(it.next());
+      n++;
+    }
+    return n;
+  }
+
+  /**
+   * Unit test for HashEquiJoin.getTupleDesc()
+   */
+  @Test public void getTupleDesc() {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashEquiJoin op = new HashEquiJoin(pred, scan1, scan2);
+    TupleDesc expected = Utility.getTupleDesc(width1 + width2);
+    assertEquals(expected, op.getTupleDesc());
+  }
+
+  /**
+   * Unit test for HashEquiJoin when the build side fits in memory
+   */
+  @Test public void eqJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashEquiJoin op = new HashEquiJoin(pred, scan1, scan2);
+    op.open();
+    assertFalse(op.hasSpilled());
+    eqJoin.open();
+    TestUtil.matchAllTuples(eqJoin, op);
+    op.rewind();
+    assertEquals(3, count(op));
+  }
+
+  /**
+   * Unit test for HashEquiJoin.rewind() after spilling
+   */
+  @Test public void rewindSpilled() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashEquiJoin op = new HashEquiJoin(pred, scan1, scan2, 1);
+    op.open();
+    assertTrue(op.hasSpilled());
+    assertEquals(3, count(op));
+    assertTrue(TestUtil.checkExhausted(op));
+    op.rewind();
+    eqJoin.open();
+    TestUtil.matchAllTuples(eqJoin, op);
+    op.close();
+  }
+
+  /**
+   * Compare a spilling hash join with duplicates on both sides against the
+   * expected number of matches per key
+   */
+  @Test public void spillWithDuplicates() throws Exception {
+    Random r = new Random(42);
+    TupleIterator left = randomRelation(r, 3000, 200);
+    TupleIterator right = randomRelation(r, 2000, 300);
+
+    Map<Integer, Integer> leftCounts = new HashMap<Integer, Integer>();
+    left.open();
+    while (left.hasNext()) {
+      int k = ((IntField) left.next().getField(0)).getValue();
+      leftCounts.put(k, leftCounts.containsKey(k) ? leftCounts.get(k) + 1 : 1);
+    }
+    int expected = 0;
+    right.open();
+    while (right.hasNext()) {
+      Integer c = leftCounts.get(((IntField) right.next().getField(0)).getValue());
+      if (c != null)
+        expected += c;
+    }
+    left.close();
+    right.close();
+
+    // small enough to force partitioning and one level of recursion
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashEquiJoin op = new HashEquiJoin(pred, left, right, 50);
+    op.open();
+    assertTrue(op.hasSpilled());
+    ArrayList<Tuple> out = new ArrayList<Tuple>();
+    while (op.hasNext())
+      out.add(op.next());
+    assertEquals(expected, out.size());
+    for (Tuple t : out)
+      assertEquals(t.getField(0), t.getField(2));
+    op.close();
+  }
+
+  /**
+   * A Bloom filter never rejects a key that was added and rarely passes one
+   * that was not
+   */
+  @Test public void bloomFilter() {
+    int[] keys = new int[1000];
+    for (int i = 0; i < keys.length; i++)
+      keys[i] = i * 7;
+    BloomFilter f = BloomFilter.of(keys, keys.length);
+    for (int k : keys)
+      assertTrue(f.mightContain(k));
+    int falsePositives = 0;
+    for (int k = 1; k < 70000; k += 7)
+      if (f.mightContain(k))
+        falsePositives++;
+    assertTrue(falsePositives < 10000 / 20);
+  }
+
+  /**
+   * The Bloom filter of the build side is pushed into the probe scan and
+   * drops the probe tuples that cannot join, spilled or not
+   */
+  @Test public void probeScanFilter() throws Exception {
+    ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+    HeapFile probe = SystemTestUtil.createRandomHeapFile(2, 5000, 1000, null, rows);
+    int[] build = new int[] { 1, 0, 17, 1, 500, 2, 999, 3 };
+    int expected = 0;
+    for (ArrayList<Integer> row : rows) {
+      int k = row.get(0);
+      if (k == 1 || k == 17 || k == 500 || k == 999)
+        expected++;
+    }
+
+    TransactionId tid = new TransactionId();
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    for (int memory : new int[] { HashEquiJoin.MAP_SIZE, 1 }) {
+      SeqScan scan = new SeqScan(tid, probe.getId(), "p");
+      HashEquiJoin op = new HashEquiJoin(pred, TestUtil.createTupleList(2, build), scan, memory);
+      op.open();
+      assertEquals(memory == 1, op.hasSpilled());
+      assertEquals(expected, count(op));
+      long dropped = op.numProbeTuplesDropped();
+      // at most a few false positives get through
+      assertTrue(dropped > (rows.size() - expected) * 9 / 10);
+      assertTrue(dropped <= rows.size() - expected);
+      op.rewind();
+      assertEquals(expected, count(op));
+      assertEquals(2 * dropped, op.numProbeTuplesDropped());
+      op.close();
+      assertEquals(1, scan.getPredicates().length);
+    }
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(HashEquiJoinTest.class);
+  }
+}
@@ -0,0 +1,224 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class HashFileTest extends SimpleDbTestBase {
+
+	private static final int KEYS = 500;
+
+	private HashFile hf;
+
+	/**
+	 * An empty two column table h hashed on c0, with small pages so that it
+	 * splits often
+	 */
+	@Before
+	public void setUp() throws Exception {
+		BufferPool.setPageSize(1024);
+		Database.reset();
+		File f = File.createTempFile("hash", ".dat");
+		f.delete();
+		f.deleteOnExit();
+		hf = new HashFile(f, 0, Utility.getTupleDesc(2, "c"));
+		Database.getCatalog().addTable(hf, "h");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	/**
+	 * Insert the tuples (i % KEYS, i) for i in [from, to), committing every
+	 * 25 tuples
+	 */
+	private void insert(int from, int to) throws Exception {
+		TransactionId tid = new TransactionId();
+		for(int i = from; i < to; i++) {
+			Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[] { i % KEYS, i }));
+			if((i + 1) % 25 == 0) {
+				Database.getBufferPool().transactionComplete(tid);
+				tid = new TransactionId();
+			}
+		}
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * @return the tuples of an iterator over h
+	 */
+	private static ArrayList<Tuple> read(DbFileIterator it) throws Exception {
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		it.open();
+		while(it.hasNext())
+			tuples.add(it.next());
+		it.close();
+		return tuples;
+	}
+
+	/**
+	 * @return the tuples of h with c0 equal to key, read by a new transaction
+	 */
+	private ArrayList<Tuple> lookup(int key) throws Exception {
+		TransactionId tid = new TransactionId();
+		ArrayList<Tuple> tuples = read(hf.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, new IntField(key))));
+		Database.getBufferPool().transactionComplete(tid);
+		for(Tuple t : tuples)
+			assertEquals(key, ((IntField) t.getField(0)).getValue());
+		return tuples;
+	}
+
+	/**
+	 * @return the number of tuples of h, read by a new transaction
+	 */
+	private int size() throws Exception {
+		TransactionId tid = new TransactionId();
+		int n = read(hf.iterator(tid)).size();
+		Database.getBufferPool().transactionComplete(tid);
+		return n;
+	}
+
+	/**
+	 * @return the meta page of h
+	 */
+	private HashMetaPage meta() throws Exception {
+		return (HashMetaPage) Database.getBufferPool().fetchPage(new HashPageId(hf.getId(), 0));
+	}
+
+	private static OpIterator find(OpIterator op, Class<?> c) {
+		if(c.isInstance(op))
+			return op;
+		if(op instanceof Operator) {
+			for(OpIterator child : ((Operator) op).getChildren()) {
+				OpIterator found = find(child, c);
+				if(found != null)
+					return found;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Buckets are split one at a time as the file grows, and every tuple can
+	 * still be found through the bucket of its key
+	 */
+	@Test
+	public void insertAndLookup() throws Exception {
+		assertEquals(0, size());
+		assertEquals(0, lookup(1).size());
+		insert(0, 10 * KEYS);
+		assertEquals(10 * KEYS, size());
+		int buckets = meta().getNumBuckets();
+		assertTrue(buckets > 32);
+		assertTrue(buckets < 10 * KEYS / HashBucketPage.getMaxTuples(hf.getTupleDesc()) * 2);
+		for(int key = 0; key < KEYS; key++)
+			assertEquals(10, lookup(key).size());
+		assertEquals(0, lookup(KEYS).size());
+
+		// other operators are answered by reading the whole file
+		TransactionId tid = new TransactionId();
+		assertEquals(10 * 10, read(hf.indexIterator(tid,
+				new IndexPredicate(Predicate.Op.LESS_THAN, new IntField(10)))).size());
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * Deleted tuples are gone, and the pages they were on are reused
+	 */
+	@Test
+	public void delete() throws Exception {
+		insert(0, 4 * KEYS);
+		TransactionId tid = new TransactionId();
+		for(Tuple t : read(hf.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, new IntField(7)))))
+			Database.getBufferPool().deleteTuple(tid, t);
+		Database.getBufferPool().transactionComplete(tid);
+		assertEquals(0, lookup(7).size());
+		assertEquals(4, lookup(8).size());
+		assertEquals(4 * KEYS - 4, size());
+
+		tid = new TransactionId();
+		for(int key = 0; key < KEYS; key += 2) {
+			for(Tuple t : read(hf.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, new IntField(key)))))
+				Database.getBufferPool().deleteTuple(tid, t);
+			if(key % 50 == 0) {
+				Database.getBufferPool().transactionComplete(tid);
+				tid = new TransactionId();
+			}
+		}
+		Database.getBufferPool().transactionComplete(tid);
+		int numPages = meta().getNumPages();
+		insert(0, KEYS);
+		assertEquals(numPages, meta().getNumPages());
+		assertEquals(1, lookup(0).size());
+		assertEquals(1, lookup(7).size());
+		assertEquals(5, lookup(9).size());
+	}
+
+	/**
+	 * The splits made by an aborted transaction are rolled back with its
+	 * tuples
+	 */
+	@Test
+	public void abort() throws Exception {
+		insert(0, KEYS);
+		int buckets = meta().getNumBuckets();
+		TransactionId tid = new TransactionId();
+		for(int i = 0; i < 600; i++)
+			Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[] { i, -i }));
+		assertTrue(meta().getNumBuckets() > buckets);
+		Database.getBufferPool().transactionComplete(tid, false);
+		assertEquals(buckets, meta().getNumBuckets());
+		assertEquals(KEYS, size());
+		for(int key = 0; key < KEYS; key++)
+			assertEquals(1, lookup(key).size());
+
+		insert(KEYS, 3 * KEYS);
+		assertEquals(3 * KEYS, size());
+		for(int key = 0; key < KEYS; key++)
+			assertEquals(3, lookup(key).size());
+	}
+
+	/**
+	 * An equality filter on the key is answered by a HashScan, one on another
+	 * field by a scan
+	 */
+	@Test
+	public void hashScanPlan() throws Exception {
+		insert(0, 2 * KEYS);
+		TableStats.setTableStats("h", new TableStats(hf.getId(), 1000));
+		TransactionId tid = new TransactionId();
+		Parser parser = new Parser();
+		OpIterator plan = parser.generateLogicalPlan(tid, "SELECT * FROM h WHERE h.c0 = 42 AND h.c1 > 100;")
+				.physicalPlan(tid, TableStats.getStatsMap(), false);
+		assertNotNull(find(plan, HashScan.class));
+		ArrayList<Integer> values = new ArrayList<Integer>();
+		plan.open();
+		while(plan.hasNext())
+			values.add(((IntField) plan.next().getField(1)).getValue());
+		plan.close();
+		assertEquals(Arrays.asList(42 + KEYS), values);
+
+		plan = parser.generateLogicalPlan(tid, "SELECT * FROM h WHERE h.c1 = 42;")
+				.physicalPlan(tid, TableStats.getStatsMap(), false);
+		assertNull(find(plan, HashScan.class));
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(HashFileTest.class);
+	}
+}
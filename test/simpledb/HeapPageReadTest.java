@@ -99,6 +99,39 @@ public class HeapPageReadTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for HeapPage.iterator(Predicate[]): only matching tuples are
+     * returned, and pages read this way serialize back to the same bytes
+     */
+    @Test public void predicateIterator() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        Predicate[] preds = new Predicate[] {
+            new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(20000)),
+            new Predicate(1, Predicate.Op.LESS_THAN_OR_EQ, new IntField(43771))
+        };
+        Iterator<Tuple> it = page.iterator(preds);
+        for (int[] values : EXAMPLE_VALUES) {
+            if (values[0] > 20000 && values[1] <= 43771) {
+                Tuple tup = it.next();
+                assertEquals(values[0], ((IntField) tup.getField(0)).getValue());
+                assertEquals(values[1], ((IntField) tup.getField(1)).getValue());
+            }
+        }
+        assertFalse(it.hasNext());
+        assertTrue(Arrays.equals(EXAMPLE_DATA, page.getPageData()));
+
+        // tuples already deserialized are filtered the same way
+        it = page.iterator(preds);
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        assertEquals(9, n);
+        assertFalse(page.iterator(new Predicate[] {
+            new Predicate(0, Predicate.Op.EQUALS, new IntField(-1)) }).hasNext());
+    }
+
     /**
      * Unit test for HeapPage.getNumEmptySlots()
      */
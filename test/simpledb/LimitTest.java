@@ -0,0 +1,158 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LimitTest extends SimpleDbTestBase {
+
+  int testWidth = 2;
+  OpIterator scan;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before public void setUp() {
+    this.scan = TestUtil.createTupleList(testWidth,
+        new int[] { 3, 1,
+                    1, 2,
+                    2, 7,
+                    1, 1,
+                    3, 0,
+                    2, 2 });
+  }
+
+  /**
+   * Counts tuples pulled from the wrapped iterator
+   */
+  private static class CountingIterator extends Operator {
+    private static final long serialVersionUID = 1L;
+    OpIterator child;
+    int pulled = 0;
+    boolean closed = false;
+
+    CountingIterator(OpIterator child) {
+      this.child = child;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+      child.open();
+      closed = false;
+      super.open();
+    }
+
+    public void close() {
+      super.close();
+      child.close();
+      closed = true;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+      child.rewind();
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+      if (!child.hasNext())
+        return null;
+      pulled++;
+      return child.next();
+    }
+
+    public TupleDesc getTupleDesc() {
+      return child.getTupleDesc();
+    }
+
+    public OpIterator[] getChildren() {
+      return new OpIterator[] { child };
+    }
+
+    public void setChildren(OpIterator[] children) {
+      child = children[0];
+    }
+  }
+
+  /**
+   * Limit stops reading its child once enough tuples were returned, and
+   * closes it
+   */
+  @Test public void earlyTermination() throws Exception {
+    CountingIterator child = new CountingIterator(scan);
+    Limit op = new Limit(2, child);
+    op.open();
+    OpIterator expected = TestUtil.createTupleList(testWidth,
+        new int[] { 3, 1,
+                    1, 2 });
+    expected.open();
+    TestUtil.compareDbIterators(expected, op);
+    assertTrue(TestUtil.checkExhausted(op));
+    assertEquals(2, child.pulled);
+    assertTrue(child.closed);
+
+    // rewinding reopens the child
+    op.rewind();
+    expected.rewind();
+    TestUtil.compareDbIterators(expected, op);
+    op.close();
+  }
+
+  /**
+   * A limit larger than the input returns everything
+   */
+  @Test public void largeLimit() throws Exception {
+    Limit op = new Limit(100, scan);
+    op.open();
+    int n = 0;
+    while (op.hasNext()) {
+      op.next();
+      n++;
+    }
+    assertEquals(6, n);
+    op.close();
+  }
+
+  /**
+   * OrderBy on two keys with different directions, with a top-N limit
+   */
+  @Test public void multiKeyTopN() throws Exception {
+    OrderBy sort = new OrderBy(new int[] { 0, 1 }, new boolean[] { true, false }, 4, scan);
+    assertEquals(new SortOrder(new int[] { 0, 1 }, new boolean[] { true, false }),
+        sort.getSortOrder());
+    Limit op = new Limit(4, sort);
+    op.open();
+    OpIterator expected = TestUtil.createTupleList(testWidth,
+        new int[] { 1, 2,
+                    1, 1,
+                    2, 7,
+                    2, 2 });
+    expected.open();
+    TestUtil.compareDbIterators(expected, op);
+    assertTrue(TestUtil.checkExhausted(op));
+    op.close();
+  }
+
+  /**
+   * The parser cuts a trailing LIMIT clause off before handing the
+   * statement to ZQL
+   */
+  @Test public void extractLimit() throws Exception {
+    StringBuilder sql = new StringBuilder("SELECT * FROM t ORDER BY t.a DESC limit 10;");
+    assertEquals(10, Parser.extractLimit(sql));
+    assertEquals("SELECT * FROM t ORDER BY t.a DESC;", sql.toString());
+
+    sql = new StringBuilder("SELECT * FROM t;");
+    assertEquals(0, Parser.extractLimit(sql));
+    assertEquals("SELECT * FROM t;", sql.toString());
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(LimitTest.class);
+  }
+}
@@ -3,6 +3,7 @@ package simpledb;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import junit.framework.JUnit4TestAdapter;
 
@@ -186,6 +187,18 @@ public class LockingTest extends TestUtil.CreateHeapFile {
     bp.getPage(tid1, p1, Permissions.READ_WRITE);
   }
 
+  /**
+   * Unit test for BufferPool.transactionComplete() assuming locking.
+   * Releases the locks on pages no longer in the buffer pool as well.
+   */
+  @Test public void releaseLocksOfEvictedPages() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    bp.discardPage(p0);
+    bp.transactionComplete(tid1);
+    assertFalse(bp.holdsLock(tid1, p0));
+    grabLock(tid2, p0, Permissions.READ_WRITE, true);
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,152 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class OrderByTest extends SimpleDbTestBase {
+
+  @After public void resetPageSize() {
+    BufferPool.resetPageSize();
+  }
+
+  /**
+   * Two column tuples whose first column is random and whose second column
+   * is the row number
+   */
+  private static int[] randomData(int rows, long seed) {
+    Random r = new Random(seed);
+    int[] data = new int[rows * 2];
+    for (int i = 0; i < rows; i++) {
+      data[2 * i] = r.nextInt(1000);
+      data[2 * i + 1] = i;
+    }
+    return data;
+  }
+
+  private static int[] sortedKeys(int[] data, boolean asc) {
+    int[] keys = new int[data.length / 2];
+    for (int i = 0; i < keys.length; i++)
+      keys[i] = data[2 * i];
+    Arrays.sort(keys);
+    if (!asc) {
+      for (int i = 0; i < keys.length / 2; i++) {
+        int tmp = keys[i];
+        keys[i] = keys[keys.length - 1 - i];
+        keys[keys.length - 1 - i] = tmp;
+      }
+    }
+    return keys;
+  }
+
+  private static void checkKeys(int[] expected, int n, OpIterator op) throws Exception {
+    ArrayList<Integer> actual = new ArrayList<Integer>();
+    while (op.hasNext())
+      actual.add(((IntField) op.next().getField(0)).getValue());
+    assertEquals(n, actual.size());
+    for (int i = 0; i < n; i++)
+      assertEquals(expected[i], (int) actual.get(i));
+  }
+
+  /**
+   * Small inputs are sorted in memory
+   */
+  @Test public void inMemory() throws Exception {
+    int[] data = randomData(200, 1);
+    OrderBy op = new OrderBy(0, true, TestUtil.createTupleList(2, data));
+    op.open();
+    assertEquals(0, op.numSpilledRuns());
+    checkKeys(sortedKeys(data, true), 200, op);
+    op.rewind();
+    checkKeys(sortedKeys(data, true), 200, op);
+    op.close();
+  }
+
+  /**
+   * Inputs larger than the memory budget are spilled to sorted runs
+   */
+  @Test public void externalSort() throws Exception {
+    int[] data = randomData(5000, 2);
+    OrderBy op = new OrderBy(0, false, 0, 1, TestUtil.createTupleList(2, data));
+    op.open();
+    assertTrue(op.numSpilledRuns() > 1);
+    checkKeys(sortedKeys(data, false), 5000, op);
+    op.rewind();
+    checkKeys(sortedKeys(data, false), 5000, op);
+    op.close();
+  }
+
+  /**
+   * More runs than the merge fan-in need an intermediate merge pass
+   */
+  @Test public void multiPassMerge() throws Exception {
+    // 64 byte pages hold 7 two-int tuples in memory
+    BufferPool.setPageSize(64);
+    int[] data = randomData(3000, 3);
+    OrderBy op = new OrderBy(0, true, 0, 1, TestUtil.createTupleList(2, data));
+    op.open();
+    assertTrue(op.numSpilledRuns() <= ExternalSort.MERGE_FAN_IN);
+    checkKeys(sortedKeys(data, true), 3000, op);
+    op.close();
+  }
+
+  /**
+   * Replacement selection turns presorted input into a single run
+   */
+  @Test public void presortedInputIsOneRun() throws Exception {
+    int[] data = new int[4000];
+    for (int i = 0; i < 2000; i++) {
+      data[2 * i] = i;
+      data[2 * i + 1] = i;
+    }
+    OrderBy op = new OrderBy(0, true, 0, 1, TestUtil.createTupleList(2, data));
+    op.open();
+    assertEquals(1, op.numSpilledRuns());
+    checkKeys(sortedKeys(data, true), 2000, op);
+    op.close();
+  }
+
+  /**
+   * A limit returns only the first tuples of the ordering
+   */
+  @Test public void topK() throws Exception {
+    int[] data = randomData(5000, 4);
+    OrderBy op = new OrderBy(0, true, 10, 1, TestUtil.createTupleList(2, data));
+    op.open();
+    assertEquals(0, op.numSpilledRuns());
+    checkKeys(sortedKeys(data, true), 10, op);
+    assertTrue(TestUtil.checkExhausted(op));
+    op.rewind();
+    checkKeys(sortedKeys(data, true), 10, op);
+    op.close();
+  }
+
+  /**
+   * A limit larger than memory falls back to the external sort
+   */
+  @Test public void largeLimit() throws Exception {
+    int[] data = randomData(5000, 5);
+    OrderBy op = new OrderBy(0, false, 4000, 1, TestUtil.createTupleList(2, data));
+    op.open();
+    assertTrue(op.numSpilledRuns() > 1);
+    checkKeys(sortedKeys(data, false), 4000, op);
+    op.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(OrderByTest.class);
+  }
+}
@@ -0,0 +1,92 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ParallelAggregateTest extends SimpleDbTestBase {
+
+  private static final Aggregator.Op[] OPS = new Aggregator.Op[] {
+      Aggregator.Op.COUNT, Aggregator.Op.SUM, Aggregator.Op.MIN,
+      Aggregator.Op.MAX, Aggregator.Op.AVG };
+  private static final int[] AFIELDS = new int[] { 1, 1, 2, 2, 2 };
+
+  private static ArrayList<String> drain(OpIterator op) throws Exception {
+    ArrayList<String> out = new ArrayList<String>();
+    op.open();
+    while (op.hasNext())
+      out.add(SystemTestUtil.tupleToList(op.next()).toString());
+    op.close();
+    Collections.sort(out);
+    return out;
+  }
+
+  private static OpIterator filteredScan(TransactionId tid, HeapFile f) {
+    return new Filter(new Predicate(2, Predicate.Op.GREATER_THAN, new IntField(100)),
+        new SeqScan(tid, f.getId(), "t"));
+  }
+
+  /**
+   * Partial aggregates computed over page ranges merge to the serial result
+   */
+  @Test public void matchesSerial() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(3, 30000, 500, null, null);
+    assertTrue(ParallelAggregate.worthParallelizing(new SeqScan(new TransactionId(), f.getId())));
+    TransactionId tid = new TransactionId();
+
+    ParallelAggregate parallel = new ParallelAggregate(filteredScan(tid, f), AFIELDS,
+        new int[] { 0 }, OPS);
+    Aggregate serial = new Aggregate(filteredScan(tid, f), AFIELDS, new int[] { 0 }, OPS);
+    ArrayList<String> expected = drain(serial);
+    assertEquals(expected, drain(parallel));
+    assertTrue(parallel.ranParallel());
+
+    // no grouping
+    parallel = new ParallelAggregate(new SeqScan(tid, f.getId()), AFIELDS, new int[0], OPS);
+    serial = new Aggregate(new SeqScan(tid, f.getId()), AFIELDS, new int[0], OPS);
+    assertEquals(drain(serial), drain(parallel));
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Too many groups for the memory budget fall back to the spilling serial
+   * path
+   */
+  @Test public void highCardinalityFallsBack() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(3, 30000, 5000, null, null);
+    TransactionId tid = new TransactionId();
+    ParallelAggregate parallel = new ParallelAggregate(new SeqScan(tid, f.getId()), AFIELDS,
+        new int[] { 0 }, OPS, 200);
+    Aggregate serial = new Aggregate(new SeqScan(tid, f.getId()), AFIELDS, new int[] { 0 }, OPS);
+    assertEquals(drain(serial), drain(parallel));
+    assertFalse(parallel.ranParallel());
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Small files and children other than heap scans are not parallelized
+   */
+  @Test public void notWorthParallelizing() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(3, 100, null, null);
+    TransactionId tid = new TransactionId();
+    assertFalse(ParallelAggregate.worthParallelizing(new SeqScan(tid, f.getId())));
+    assertFalse(ParallelAggregate.worthParallelizing(TestUtil.createTupleList(1, new int[] { 1 })));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ParallelAggregateTest.class);
+  }
+}
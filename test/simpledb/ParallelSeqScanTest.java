@@ -0,0 +1,172 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ParallelSeqScanTest extends SimpleDbTestBase {
+
+  private HeapFile f;
+  private ArrayList<ArrayList<Integer>> tuples;
+
+  @Before public void setUp() throws Exception {
+    tuples = new ArrayList<ArrayList<Integer>>();
+    f = SystemTestUtil.createRandomHeapFile(2, 40000, 1000, null, tuples);
+    assertTrue(f.numPages() >= ParallelSeqScan.MIN_PARALLEL_PAGES);
+  }
+
+  private static ArrayList<String> drain(OpIterator op) throws Exception {
+    ArrayList<String> out = new ArrayList<String>();
+    while (op.hasNext())
+      out.add(SystemTestUtil.tupleToList(op.next()).toString());
+    Collections.sort(out);
+    return out;
+  }
+
+  /**
+   * All tuples come back once, and again after reopening
+   */
+  @Test public void scanAll() throws Exception {
+    TransactionId tid = new TransactionId();
+    ParallelSeqScan scan = new ParallelSeqScan(tid, f.getId(), "t");
+    assertEquals(new SeqScan(tid, f.getId(), "t").getTupleDesc(), scan.getTupleDesc());
+    SystemTestUtil.matchTuples(scan, tuples);
+    SystemTestUtil.matchTuples(scan, tuples);
+    // the workers locked the pages for the scanning transaction
+    assertTrue(Database.getBufferPool().holdsLock(tid, new HeapPageId(f.getId(), f.numPages() - 1)));
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Filters pushed into the workers return the same tuples as Filter
+   * operators over a serial scan
+   */
+  @Test public void pushedFilters() throws Exception {
+    TransactionId tid = new TransactionId();
+    OpIterator filtered = new Filter(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(300)),
+        new Filter(new Predicate(1, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(500)),
+            new SeqScan(tid, f.getId(), "t")));
+    assertTrue(ParallelSeqScan.worthParallelizing(filtered));
+    ParallelSeqScan scan = ParallelSeqScan.of(filtered);
+    assertEquals(2, scan.getPredicates().length);
+
+    filtered.open();
+    ArrayList<String> expected = drain(filtered);
+    filtered.close();
+    scan.open();
+    assertEquals(expected, drain(scan));
+    scan.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Two scans consumed in lockstep share the worker pool without blocking
+   * each other, and closing a scan early stops its workers
+   */
+  @Test public void interleavedScans() throws Exception {
+    TransactionId tid = new TransactionId();
+    ParallelSeqScan s1 = new ParallelSeqScan(tid, f.getId(), "a");
+    ParallelSeqScan s2 = new ParallelSeqScan(tid, f.getId(), "b");
+    s1.open();
+    s2.open();
+    int n = 0;
+    while (s1.hasNext() && s2.hasNext()) {
+      s1.next();
+      s2.next();
+      n++;
+    }
+    assertEquals(tuples.size(), n);
+    assertFalse(s1.hasNext());
+    s1.close();
+    s2.close();
+
+    s1.open();
+    s1.next();
+    s1.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * A HeapFile whose morsels, except the first, stall before reading their
+   * first page
+   */
+  private static class SlowHeapFile extends HeapFile {
+    SlowHeapFile(File f, TupleDesc td) {
+      super(f, td);
+    }
+
+    @Override
+    public DbFileIterator iterator(TransactionId tid, int startPage, int endPage, Predicate[] predicates) {
+      final DbFileIterator it = super.iterator(tid, startPage, endPage, predicates);
+      final boolean stall = startPage > 0;
+      return new DbFileIterator() {
+        private boolean started = false;
+
+        public void open() throws DbException, TransactionAbortedException {
+          it.open();
+        }
+
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+          if (stall && !started) {
+            try {
+              Thread.sleep(200);
+            } catch (InterruptedException e) {
+            }
+          }
+          started = true;
+          return it.hasNext();
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException {
+          return it.next();
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+          it.rewind();
+        }
+
+        public void close() {
+          it.close();
+        }
+      };
+    }
+  }
+
+  /**
+   * Closing a scan mid-run waits for the morsels being scanned, so no worker
+   * locks a page for the transaction after it has completed
+   */
+  @Test public void closeMidRun() throws Exception {
+    File file = SystemTestUtil.createRandomHeapFileUnopened(2, 40000, 1000, null, null);
+    HeapFile slow = new SlowHeapFile(file, Utility.getTupleDesc(2));
+    Database.getCatalog().addTable(slow, SystemTestUtil.getUUID());
+    TransactionId tid = new TransactionId();
+    ParallelSeqScan scan = new ParallelSeqScan(tid, slow.getId(), "t");
+    scan.open();
+    scan.next();
+    scan.close();
+    Database.getBufferPool().transactionComplete(tid);
+    Thread.sleep(400);
+    for (int p = 0; p < slow.numPages(); p++)
+      assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(slow.getId(), p)));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ParallelSeqScanTest.class);
+  }
+}
@@ -0,0 +1,211 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class QueryCacheTest extends SimpleDbTestBase {
+
+  private static final String SQL = "SELECT t.c0, t.c1 FROM t WHERE t.c0 >= ? AND t.c0 < ?;";
+
+  private ArrayList<ArrayList<Integer>> tuples;
+  private Parser parser;
+
+  /**
+   * A two column table t with values in [0, 100), and its statistics
+   */
+  @Before public void setUp() throws Exception {
+    tuples = new ArrayList<ArrayList<Integer>>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 2000, 100, null, tuples, "c");
+    Database.getCatalog().addTable(f, "t");
+    TableStats.setTableStats("t", new TableStats(f.getId(), 1000));
+    parser = new Parser();
+  }
+
+  /**
+   * @return the number of rows of t with c0 in [lo, hi)
+   */
+  private int expected(int lo, int hi) {
+    int n = 0;
+    for (ArrayList<Integer> t : tuples) {
+      if (t.get(0) >= lo && t.get(0) < hi)
+        n++;
+    }
+    return n;
+  }
+
+  private int run(Query q) throws Exception {
+    int n = 0;
+    q.start();
+    while (q.hasNext()) {
+      q.next();
+      n++;
+    }
+    q.close();
+    return n;
+  }
+
+  /**
+   * A prepared statement reuses its plan with new parameter values and
+   * transactions, and returns the right rows each time
+   */
+  @Test public void rebind() throws Exception {
+    TransactionId tid = new TransactionId();
+    Query q = parser.prepareQuery(SQL, tid, new IntField(10), new IntField(20));
+    assertEquals(2, q.getNumParameters());
+    assertEquals(expected(10, 20), run(q));
+    Database.getBufferPool().transactionComplete(tid);
+
+    tid = new TransactionId();
+    Query again = parser.prepareQuery(SQL, tid, new IntField(50), new IntField(90));
+    assertSame(q, again);
+    assertSame(tid, again.getTransactionId());
+    assertEquals(expected(50, 90), run(again));
+    Database.getBufferPool().transactionComplete(tid);
+
+    assertEquals(1, parser.getQueryCache().size());
+    assertEquals(1, parser.getQueryCache().numHits());
+  }
+
+  /**
+   * A plan is not handed out again until its query is closed
+   */
+  @Test public void inUse() throws Exception {
+    TransactionId tid = new TransactionId();
+    Query q = parser.prepareQuery(SQL, tid, new IntField(0), new IntField(5));
+    Query other = parser.prepareQuery(SQL, tid, new IntField(5), new IntField(10));
+    assertNotSame(q, other);
+    assertEquals(expected(0, 5), run(q));
+    assertEquals(expected(5, 10), run(other));
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Values must match the parameters in number and type
+   */
+  @Test public void badParameters() throws Exception {
+    TransactionId tid = new TransactionId();
+    try {
+      parser.prepareQuery(SQL, tid, new IntField(0));
+      fail("expected ParsingException");
+    } catch (ParsingException e) {
+    }
+    run(parser.prepareQuery(SQL, tid, new IntField(0), new IntField(1)));
+    try {
+      parser.prepareQuery(SQL, tid, new IntField(0), new StringField("x", Type.STRING_LEN));
+      fail("expected ParsingException");
+    } catch (ParsingException e) {
+    }
+    // the plan is still usable
+    assertEquals(expected(3, 4), run(parser.prepareQuery(SQL, tid, new IntField(3), new IntField(4))));
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * New statistics or catalog changes make cached plans unreachable
+   */
+  @Test public void invalidation() throws Exception {
+    QueryCache cache = parser.getQueryCache();
+    TransactionId tid = new TransactionId();
+    run(parser.prepareQuery(SQL, tid, new IntField(0), new IntField(1)));
+    assertEquals(0, cache.numHits());
+
+    int tableId = Database.getCatalog().getTableId("t");
+    TableStats.setTableStats("t", new TableStats(tableId, 1000));
+    run(parser.prepareQuery(SQL, tid, new IntField(0), new IntField(1)));
+    assertEquals(0, cache.numHits());
+
+    Database.getCatalog().addTable(Database.getCatalog().getDatabaseFile(tableId), "t");
+    run(parser.prepareQuery(SQL, tid, new IntField(0), new IntField(1)));
+    assertEquals(0, cache.numHits());
+
+    run(parser.prepareQuery(SQL, tid, new IntField(0), new IntField(1)));
+    assertEquals(1, cache.numHits());
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * The cache holds a bounded number of plans, evicting the least recently
+   * used
+   */
+  @Test public void eviction() throws Exception {
+    QueryCache cache = new QueryCache(2);
+    Query a = new Query(null), b = new Query(null), c = new Query(null);
+    cache.put("a", a);
+    cache.put("b", b);
+    a.inUse = b.inUse = false;
+    assertSame(a, cache.get("a"));
+    cache.put("c", c);
+    assertEquals(2, cache.size());
+    assertNull(cache.get("b"));
+    assertNull(cache.get("a"));
+  }
+
+  /**
+   * A prepared plan is not handed out to a statement run as it is, nor the
+   * other way around
+   */
+  @Test public void preparedAndAdHoc() throws Exception {
+    TransactionId tid = new TransactionId();
+    run(parser.prepareQuery(SQL, tid, new IntField(0), new IntField(1)));
+    QueryCache cache = parser.getQueryCache();
+    assertNull(cache.get(SQL));
+    assertNull(cache.get(SQL, false));
+    assertEquals(expected(2, 3), run(parser.prepareQuery(SQL, tid, new IntField(2), new IntField(3))));
+    Database.getBufferPool().transactionComplete(tid);
+
+    Query a = new Query(null);
+    cache.put("a", a);
+    a.inUse = false;
+    assertNull(cache.get("a", true));
+    assertSame(a, cache.get("a"));
+  }
+
+  /**
+   * A plan whose query fails while it runs is free again
+   */
+  @Test public void failedExecution() throws Exception {
+    QueryCache cache = parser.getQueryCache();
+    TransactionId tid = new TransactionId();
+    SeqScan scan = new SeqScan(tid, Database.getCatalog().getTableId("t"), "t");
+    // a predicate over a field t does not have fails once tuples are read
+    Query q = new Query(new Filter(new Predicate(5, Predicate.Op.EQUALS, new IntField(0)), scan), tid);
+    cache.put("bad", q);
+    try {
+      q.execute();
+      fail("expected the query to fail");
+    } catch (RuntimeException e) {
+    }
+    assertSame(q, cache.get("bad"));
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Whitespace outside quoted strings and a trailing semicolon don't
+   * distinguish statements
+   */
+  @Test public void normalize() {
+    assertEquals("SELECT * FROM t WHERE t.s = 'a  b'",
+        QueryCache.normalize("  SELECT *\n FROM   t\tWHERE t.s = 'a  b' ; "));
+    assertEquals(QueryCache.normalize(SQL), QueryCache.normalize(SQL.replace(" ", "   ")));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(QueryCacheTest.class);
+  }
+}
@@ -0,0 +1,268 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class SecondaryIndexTest extends SimpleDbTestBase {
+
+	private ArrayList<ArrayList<Integer>> tuples;
+	private HeapFile table;
+	private SecondaryIndex index;
+
+	/**
+	 * A two column table t of values in [0, 1000), with an index on c0
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tuples = new ArrayList<ArrayList<Integer>>();
+		table = SystemTestUtil.createRandomHeapFile(2, 20000, 1000, null, tuples, "c");
+		Database.getCatalog().addTable(table, "t");
+		TableStats.setTableStats("t", new TableStats(table.getId(), 1000));
+		File f = File.createTempFile("index", ".dat");
+		f.deleteOnExit();
+		index = new SecondaryIndex(f, table, 0);
+		Database.getCatalog().addIndex(index, "t_c0");
+		TransactionId tid = new TransactionId();
+		assertEquals(tuples.size(), new BTreeBulkLoader().load(tid, index));
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.reset();
+	}
+
+	/**
+	 * @return the number of tuples of t with c0 equal to key
+	 */
+	private int expected(int key) {
+		int n = 0;
+		for(ArrayList<Integer> t : tuples) {
+			if(t.get(0) == key)
+				n++;
+		}
+		return n;
+	}
+
+	/**
+	 * @return the tuples of t with c0 equal to key, looked up through the index
+	 */
+	private ArrayList<Tuple> lookup(TransactionId tid, int key) throws Exception {
+		ArrayList<Tuple> result = new ArrayList<Tuple>();
+		DbFileIterator it = index.iterator(tid, new IndexPredicate(Predicate.Op.EQUALS, new IntField(key)));
+		it.open();
+		while(it.hasNext()) {
+			Tuple t = it.next();
+			assertEquals(key, ((IntField) t.getField(0)).getValue());
+			result.add(t);
+		}
+		it.close();
+		return result;
+	}
+
+	/**
+	 * Inserts and deletes through the BufferPool keep the index up to date,
+	 * and an aborted insert leaves no entry behind
+	 */
+	@Test
+	public void maintained() throws Exception {
+		TransactionId tid = new TransactionId();
+		for(int i = 0; i < 600; i++) {
+			Tuple t = BTreeUtility.getBTreeTuple(new int[] { 2000 + i % 3, i });
+			Database.getBufferPool().insertTuple(tid, table.getId(), t);
+		}
+		ArrayList<Tuple> deleted = lookup(tid, 17);
+		for(Tuple t : deleted)
+			Database.getBufferPool().deleteTuple(tid, t);
+		Database.getBufferPool().transactionComplete(tid);
+
+		tid = new TransactionId();
+		assertEquals(200, lookup(tid, 2001).size());
+		assertEquals(0, lookup(tid, 17).size());
+		assertEquals(expected(18), lookup(tid, 18).size());
+		Database.getBufferPool().transactionComplete(tid);
+
+		tid = new TransactionId();
+		Database.getBufferPool().insertTuple(tid, table.getId(), BTreeUtility.getBTreeTuple(new int[] { 3000, 0 }));
+		assertEquals(1, lookup(tid, 3000).size());
+		Database.getBufferPool().transactionComplete(tid, false);
+
+		tid = new TransactionId();
+		assertEquals(0, lookup(tid, 3000).size());
+		BTreeChecker.checkRep(index.getIndexFile(), tid, new HashMap<PageId, Page>(), false);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * @return the first operator of the given class in a plan, or null
+	 */
+	private static OpIterator find(OpIterator op, Class<?> c) {
+		if(c.isInstance(op))
+			return op;
+		if(op instanceof Operator) {
+			for(OpIterator child : ((Operator) op).getChildren()) {
+				OpIterator found = find(child, c);
+				if(found != null)
+					return found;
+			}
+		}
+		return null;
+	}
+
+	private static int count(OpIterator op) throws Exception {
+		int n = 0;
+		op.open();
+		while(op.hasNext()) {
+			op.next();
+			n++;
+		}
+		op.close();
+		return n;
+	}
+
+	/**
+	 * An equality filter on the indexed field is answered by an IndexScan, one
+	 * on another field by a scan
+	 */
+	@Test
+	public void indexScanPlan() throws Exception {
+		TransactionId tid = new TransactionId();
+		Parser parser = new Parser();
+		OpIterator plan = parser.generateLogicalPlan(tid, "SELECT * FROM t WHERE t.c0 = 42 AND t.c1 > 500;")
+				.physicalPlan(tid, TableStats.getStatsMap(), false);
+		assertNotNull(find(plan, IndexScan.class));
+		int n = 0;
+		for(ArrayList<Integer> t : tuples) {
+			if(t.get(0) == 42 && t.get(1) > 500)
+				n++;
+		}
+		assertEquals(n, count(plan));
+
+		plan = parser.generateLogicalPlan(tid, "SELECT * FROM t WHERE t.c1 = 42;")
+				.physicalPlan(tid, TableStats.getStatsMap(), false);
+		assertNull(find(plan, IndexScan.class));
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * A small table joined on the indexed field looks its keys up in the index
+	 */
+	@Test
+	public void indexNestedLoopJoinPlan() throws Exception {
+		ArrayList<ArrayList<Integer>> small = new ArrayList<ArrayList<Integer>>();
+		HeapFile s = SystemTestUtil.createRandomHeapFile(2, 10, 1000, null, small, "c");
+		Database.getCatalog().addTable(s, "s");
+		TableStats.setTableStats("s", new TableStats(s.getId(), 1000));
+
+		TransactionId tid = new TransactionId();
+		OpIterator plan = new Parser().generateLogicalPlan(tid, "SELECT * FROM s, t WHERE s.c0 = t.c0;")
+				.physicalPlan(tid, TableStats.getStatsMap(), false);
+		assertNotNull(find(plan, IndexNestedLoopJoin.class));
+		int n = 0;
+		for(ArrayList<Integer> t : small)
+			n += expected(t.get(0));
+		assertEquals(n, count(plan));
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * An outer input of several batches is joined in its own order
+	 */
+	@Test
+	public void indexNestedLoopJoinBatches() throws Exception {
+		ArrayList<ArrayList<Integer>> outer = new ArrayList<ArrayList<Integer>>();
+		HeapFile s = SystemTestUtil.createRandomHeapFile(2, IndexNestedLoopJoin.BATCH_SIZE * 2 + 10, 1200, null, outer, "c");
+		Database.getCatalog().addTable(s, "s");
+
+		TransactionId tid = new TransactionId();
+		OpIterator join = new IndexNestedLoopJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+				new SeqScan(tid, s.getId(), "s"), IndexNestedLoopJoin.innerScan(tid, index, "t", new Predicate[0]));
+		ArrayList<Integer> expected = new ArrayList<Integer>();
+		for(ArrayList<Integer> t : outer) {
+			for(int i = expected(t.get(0)); i > 0; i--)
+				expected.add(t.get(1));
+		}
+		ArrayList<Integer> found = new ArrayList<Integer>();
+		join.open();
+		while(join.hasNext()) {
+			Tuple t = join.next();
+			assertEquals(t.getField(0), t.getField(2));
+			found.add(((IntField) t.getField(1)).getValue());
+		}
+		join.close();
+		Database.getBufferPool().transactionComplete(tid);
+		assertEquals(expected, found);
+	}
+
+	/**
+	 * A query using only the fields of a covering index is answered from its
+	 * entries, which are kept up to date like those of any index
+	 */
+	@Test
+	public void indexOnlyScanPlan() throws Exception {
+		ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+		HeapFile u = SystemTestUtil.createRandomHeapFile(3, 5000, 1000, null, rows, "c");
+		Database.getCatalog().addTable(u, "u");
+		TableStats.setTableStats("u", new TableStats(u.getId(), 1000));
+		File f = File.createTempFile("covering", ".dat");
+		f.deleteOnExit();
+		SecondaryIndex covering = new SecondaryIndex(f, u, 1, new int[] { 2 });
+		Database.getCatalog().addIndex(covering, "u_c1");
+		TransactionId tid = new TransactionId();
+		new BTreeBulkLoader().load(tid, covering);
+		Tuple extra = BTreeUtility.getBTreeTuple(new int[] { 1, 150, 2 });
+		Database.getBufferPool().insertTuple(tid, u.getId(), extra);
+		Database.getBufferPool().deleteTuple(tid, extra);
+		Database.getBufferPool().insertTuple(tid, u.getId(), BTreeUtility.getBTreeTuple(new int[] { 1, 150, 2 }));
+		rows.add(new ArrayList<Integer>(Arrays.asList(1, 150, 2)));
+		Database.getBufferPool().transactionComplete(tid);
+
+		tid = new TransactionId();
+		Parser parser = new Parser();
+		OpIterator plan = parser.generateLogicalPlan(tid,
+				"SELECT u.c1, u.c2 FROM u WHERE u.c1 BETWEEN 100 AND 200 AND u.c2 < 500;")
+				.physicalPlan(tid, TableStats.getStatsMap(), false);
+		assertNotNull(find(plan, IndexOnlyScan.class));
+		int n = 0;
+		for(ArrayList<Integer> t : rows) {
+			if(t.get(1) >= 100 && t.get(1) <= 200 && t.get(2) < 500)
+				n++;
+		}
+		int prev = 100;
+		int found = 0;
+		plan.open();
+		while(plan.hasNext()) {
+			Tuple t = plan.next();
+			int c1 = ((IntField) t.getField(0)).getValue();
+			assertTrue(c1 >= prev && c1 <= 200);
+			assertTrue(((IntField) t.getField(1)).getValue() < 500);
+			prev = c1;
+			found++;
+		}
+		plan.close();
+		assertEquals(n, found);
+
+		// c0 is not held by the index
+		plan = parser.generateLogicalPlan(tid, "SELECT u.c0 FROM u WHERE u.c1 BETWEEN 100 AND 200;")
+				.physicalPlan(tid, TableStats.getStatsMap(), false);
+		assertNull(find(plan, IndexOnlyScan.class));
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(SecondaryIndexTest.class);
+	}
+}
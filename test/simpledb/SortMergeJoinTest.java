@@ -0,0 +1,167 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class SortMergeJoinTest extends SimpleDbTestBase {
+
+  int width1 = 2;
+  int width2 = 3;
+  OpIterator scan1;
+  OpIterator scan2;
+  OpIterator eqJoin;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before public void createTupleLists() throws Exception {
+    // neither input is sorted, and both have duplicate join keys
+    this.scan1 = TestUtil.createTupleList(width1,
+        new int[] { 5, 6,
+                    3, 4,
+                    1, 2,
+                    3, 9,
+                    7, 8 });
+    this.scan2 = TestUtil.createTupleList(width2,
+        new int[] { 4, 5, 6,
+                    3, 4, 5,
+                    1, 2, 3,
+                    3, 0, 0,
+                    2, 3, 4 });
+    this.eqJoin = TestUtil.createTupleList(width1 + width2,
+        new int[] { 1, 2, 1, 2, 3,
+                    3, 4, 3, 4, 5,
+                    3, 4, 3, 0, 0,
+                    3, 9, 3, 4, 5,
+                    3, 9, 3, 0, 0 });
+  }
+
+  private static ArrayList<Tuple> drain(OpIterator it) throws Exception {
+    ArrayList<Tuple> out = new ArrayList<Tuple>();
+    while (it.hasNext()) {
+      Tuple t = it.next();
+      assertNotNull(t);
+      out.add(t);
+    }
+    return out;
+  }
+
+  /**
+   * Unit test for SortMergeJoin.getTupleDesc()
+   */
+  @Test public void getTupleDesc() {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    SortMergeJoin op = new SortMergeJoin(pred, scan1, scan2);
+    assertEquals(Utility.getTupleDesc(width1 + width2), op.getTupleDesc());
+  }
+
+  /**
+   * Unsorted inputs are wrapped in an OrderBy
+   */
+  @Test public void sortsUnorderedInputs() {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    SortMergeJoin op = new SortMergeJoin(pred, scan1, scan2);
+    assertTrue(op.getChildren()[0] instanceof OrderBy);
+    assertTrue(op.getChildren()[1] instanceof OrderBy);
+    assertEquals(new SortOrder(0, true), op.getSortOrder());
+  }
+
+  /**
+   * Duplicate keys on both sides produce the full cross product
+   */
+  @Test public void eqJoinWithDuplicates() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    SortMergeJoin op = new SortMergeJoin(pred, scan1, scan2);
+    op.open();
+    eqJoin.open();
+    TestUtil.matchAllTuples(eqJoin, op);
+    op.rewind();
+    ArrayList<Tuple> out = drain(op);
+    assertEquals(5, out.size());
+    for (int i = 1; i < out.size(); i++) {
+      assertFalse(out.get(i).getField(0).compare(Predicate.Op.LESS_THAN,
+          out.get(i - 1).getField(0)));
+    }
+    assertTrue(TestUtil.checkExhausted(op));
+  }
+
+  /**
+   * Non-equality predicates are rejected
+   */
+  @Test(expected = IllegalArgumentException.class) public void rejectsNonEqui() {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.LESS_THAN, 0);
+    new SortMergeJoin(pred, scan1, scan2);
+  }
+
+  /**
+   * Scans of B+ trees keyed on the join field are merged without sorting,
+   * and give the same result as a hash join
+   */
+  @Test public void btreeInputs() throws Exception {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    BTreeFile f1 = BTreeUtility.createRandomBTreeFile(2, 2000, 500, null, tuples, 0);
+    BTreeFile f2 = BTreeUtility.createRandomBTreeFile(2, 1000, 500, null, tuples, 0);
+    TransactionId tid = new TransactionId();
+
+    SeqScan s1 = new SeqScan(tid, f1.getId(), "t1");
+    BTreeScan s2 = new BTreeScan(tid, f2.getId(), "t2", null);
+    assertEquals(new SortOrder(0, true), s1.getSortOrder());
+    assertEquals(new SortOrder(0, true), s2.getSortOrder());
+
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    SortMergeJoin smj = new SortMergeJoin(pred, s1, s2);
+    assertSame(s1, smj.getChildren()[0]);
+    assertSame(s2, smj.getChildren()[1]);
+    smj.open();
+    int merged = drain(smj).size();
+    smj.close();
+
+    HashEquiJoin hj = new HashEquiJoin(pred, new SeqScan(tid, f1.getId(), "t1"),
+        new SeqScan(tid, f2.getId(), "t2"));
+    hj.open();
+    assertEquals(drain(hj).size(), merged);
+    hj.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Sort orders pass through Filter and are remapped by Project
+   */
+  @Test public void sortOrderPropagation() throws Exception {
+    OpIterator sorted = new OrderBy(1, false, scan1);
+    Filter filter = new Filter(new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(0)), sorted);
+    assertEquals(new SortOrder(1, false), filter.getSortOrder());
+
+    ArrayList<Integer> fields = new ArrayList<Integer>();
+    fields.add(1);
+    fields.add(0);
+    ArrayList<Type> types = new ArrayList<Type>();
+    types.add(Type.INT_TYPE);
+    types.add(Type.INT_TYPE);
+    assertEquals(new SortOrder(0, false), new Project(fields, types, filter).getSortOrder());
+
+    fields.remove(0);
+    types.remove(0);
+    assertEquals(null, new Project(fields, types, filter).getSortOrder());
+    assertEquals(null, scan1.getSortOrder());
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(SortMergeJoinTest.class);
+  }
+}
@@ -0,0 +1,169 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class ZoneMapTest extends SimpleDbTestBase {
+
+  private static final int ROWS = 5000;
+
+  private File file;
+  private HeapFile hf;
+
+  /**
+   * A table whose first column grows with the row number, like the
+   * timestamps of an append-only log, and whose second column is constant
+   */
+  @Before public void setUp() throws Exception {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    for (int i = 0; i < ROWS; i++) {
+      ArrayList<Integer> tuple = new ArrayList<Integer>();
+      tuple.add(i);
+      tuple.add(7);
+      tuples.add(tuple);
+    }
+    file = File.createTempFile("zonemap", ".dat");
+    file.deleteOnExit();
+    ZoneMap.sidecarOf(file).deleteOnExit();
+    HeapFileEncoder.convert(tuples, file, BufferPool.getPageSize(), 2);
+    hf = Utility.openHeapFile(2, file);
+  }
+
+  private static int count(DbFileIterator it) throws Exception {
+    int n = 0;
+    it.open();
+    while (it.hasNext()) {
+      it.next();
+      n++;
+    }
+    it.close();
+    return n;
+  }
+
+  private static Predicate[] where(int field, Predicate.Op op, int value) {
+    return new Predicate[] { new Predicate(field, op, new IntField(value)) };
+  }
+
+  /**
+   * Ranges on min and max decide which pages may hold a match
+   */
+  @Test public void mayMatch() throws Exception {
+    ZoneMap zm = hf.zoneMap();
+    int perPage = zm.tupleCount(0);
+    assertTrue(perPage > 0);
+    assertEquals(-1, zm.tupleCount(hf.numPages()));
+    assertTrue(zm.mayMatch(0, where(0, Predicate.Op.EQUALS, perPage - 1)));
+    assertFalse(zm.mayMatch(0, where(0, Predicate.Op.EQUALS, perPage)));
+    assertTrue(zm.mayMatch(1, where(0, Predicate.Op.GREATER_THAN_OR_EQ, 2 * perPage - 1)));
+    assertFalse(zm.mayMatch(1, where(0, Predicate.Op.GREATER_THAN, 2 * perPage - 1)));
+    assertFalse(zm.mayMatch(1, where(0, Predicate.Op.LESS_THAN, perPage)));
+    assertTrue(zm.mayMatch(1, where(0, Predicate.Op.LESS_THAN_OR_EQ, perPage)));
+    assertFalse(zm.mayMatch(0, where(1, Predicate.Op.NOT_EQUALS, 7)));
+    assertTrue(zm.mayMatch(0, where(1, Predicate.Op.NOT_EQUALS, 8)));
+    // pages the map does not cover must be read
+    assertTrue(zm.mayMatch(hf.numPages(), where(0, Predicate.Op.EQUALS, -1)));
+  }
+
+  /**
+   * A range scan only reads the pages that can hold a match, though it
+   * locks the pages it skips
+   */
+  @Test public void scanSkipsPages() throws Exception {
+    TransactionId tid = new TransactionId();
+    assertEquals(100, count(hf.iterator(tid, where(0, Predicate.Op.LESS_THAN, 100))));
+    BufferPool bp = Database.getBufferPool();
+    assertTrue(bp.holdsLock(tid, new HeapPageId(hf.getId(), 0)));
+    assertTrue(bp.holdsLock(tid, new HeapPageId(hf.getId(), hf.numPages() - 1)));
+    assertEquals(0, count(hf.iterator(tid, where(0, Predicate.Op.GREATER_THAN, ROWS))));
+    assertEquals(ROWS, count(hf.iterator(tid, new Predicate[0])));
+    bp.transactionComplete(tid);
+  }
+
+  /**
+   * Inserted tuples are found before they are written, through the dirty
+   * page, and afterwards, through the updated zone map
+   */
+  @Test public void writesUpdateMap() throws Exception {
+    BufferPool bp = Database.getBufferPool();
+    int last = hf.numPages() - 1;
+    assertFalse(hf.zoneMap().mayMatch(last, where(0, Predicate.Op.EQUALS, -5)));
+
+    TransactionId tid = new TransactionId();
+    Tuple t = new Tuple(hf.getTupleDesc());
+    t.setField(0, new IntField(-5));
+    t.setField(1, new IntField(7));
+    bp.insertTuple(tid, hf.getId(), t);
+    assertEquals(1, count(hf.iterator(tid, where(0, Predicate.Op.EQUALS, -5))));
+    bp.transactionComplete(tid);
+
+    PageId pid = t.getRecordId().getPageId();
+    assertFalse(bp.isDirty(pid));
+    assertTrue(hf.zoneMap().mayMatch(pid.getPageNumber(), where(0, Predicate.Op.EQUALS, -5)));
+    tid = new TransactionId();
+    assertEquals(1, count(hf.iterator(tid, where(0, Predicate.Op.EQUALS, -5))));
+    bp.transactionComplete(tid);
+  }
+
+  /**
+   * The sidecar is reused by a new HeapFile over the same file, and rebuilt
+   * once the file has been replaced
+   */
+  @Test public void sidecar() throws Exception {
+    ZoneMap zm = hf.zoneMap();
+    assertTrue(ZoneMap.sidecarOf(file).exists());
+    Database.getBufferPool().flushAllPages();
+    HeapFile reopened = new HeapFile(file, hf.getTupleDesc());
+    assertEquals(zm.tupleCount(0), reopened.zoneMap().tupleCount(0));
+    assertFalse(reopened.zoneMap().mayMatch(0, where(1, Predicate.Op.EQUALS, 8)));
+
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    for (int i = 0; i < 10; i++) {
+      ArrayList<Integer> tuple = new ArrayList<Integer>();
+      tuple.add(i);
+      tuple.add(8);
+      tuples.add(tuple);
+    }
+    HeapFileEncoder.convert(tuples, file, BufferPool.getPageSize(), 2);
+    HeapFile replaced = new HeapFile(file, hf.getTupleDesc());
+    assertEquals(10, replaced.zoneMap().tupleCount(0));
+    assertTrue(replaced.zoneMap().mayMatch(0, where(1, Predicate.Op.EQUALS, 8)));
+  }
+
+  /**
+   * A page written after the map was saved makes the sidecar out of date
+   */
+  @Test public void writeAfterSave() throws Exception {
+    BufferPool bp = Database.getBufferPool();
+    hf.zoneMap();
+    bp.flushAllPages();
+
+    TransactionId tid = new TransactionId();
+    Tuple t = new Tuple(hf.getTupleDesc());
+    t.setField(0, new IntField(-5));
+    t.setField(1, new IntField(7));
+    bp.insertTuple(tid, hf.getId(), t);
+    bp.transactionComplete(tid);
+
+    HeapFile reopened = new HeapFile(file, hf.getTupleDesc());
+    int page = t.getRecordId().getPageId().getPageNumber();
+    assertTrue(reopened.zoneMap().mayMatch(page, where(0, Predicate.Op.EQUALS, -5)));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ZoneMapTest.class);
+  }
+}
@@ -0,0 +1,28 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+import static org.junit.Assert.*;
+import simpledb.*;
+
+public class PushedFilterTest extends FilterBase {
+    @Override
+    protected int applyPredicate(HeapFile table, TransactionId tid, Predicate predicate)
+            throws DbException, TransactionAbortedException, IOException {
+        SeqScan ss = new SeqScan(tid, table.getId(), "", new Predicate[] { predicate });
+        ss.open();
+
+        int resultCount = 0;
+        while (ss.hasNext()) {
+            assertTrue(predicate.filter(ss.next()));
+            resultCount += 1;
+        }
+
+        ss.close();
+        return resultCount;
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(PushedFilterTest.class);
+    }
+}